@@ -0,0 +1,123 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestMemoryCacheRegistry {
+    private static class FakeCache implements MemoryCacheRegistry.Cache {
+        final long budget;
+        float fraction = 1f;
+        int calls;
+
+        FakeCache(long budget) {
+            this.budget = budget;
+        }
+
+        @Override
+        public long getSizeInBytes() {
+            return (long) (budget * fraction);
+        }
+
+        @Override
+        public void setBudgetFraction(float fraction) {
+            this.fraction = fraction;
+            calls++;
+        }
+    }
+
+    @Test
+    public void testCachesShrinkByPriority() {
+        final MemoryCacheRegistry registry = new MemoryCacheRegistry();
+        final FakeCache low = new FakeCache(1000);
+        final FakeCache normal = new FakeCache(1000);
+        final FakeCache high = new FakeCache(1000);
+        registry.register("low", MemoryCacheRegistry.PRIORITY_LOW, low);
+        registry.register("normal", MemoryCacheRegistry.PRIORITY_NORMAL, normal);
+        registry.register("high", MemoryCacheRegistry.PRIORITY_HIGH, high);
+
+        registry.setBudgetFraction(0.25f);
+        assertEquals(0.0625f, low.fraction, 1e-6);
+        assertEquals(0.25f, normal.fraction, 1e-6);
+        assertEquals(0.5f, high.fraction, 1e-6);
+
+        // Higher pressure takes more from every cache.
+        registry.setBudgetFraction(0.125f);
+        assertTrue(low.fraction < 0.0625f);
+        assertEquals(0.125f, normal.fraction, 1e-6);
+        assertTrue(high.fraction < 0.5f);
+        assertTrue(low.fraction < normal.fraction && normal.fraction < high.fraction);
+
+        // Budgets are restored once the pressure is gone.
+        registry.setBudgetFraction(1f);
+        assertEquals(1f, low.fraction, 0);
+        assertEquals(1f, normal.fraction, 0);
+        assertEquals(1f, high.fraction, 0);
+    }
+
+    @Test
+    public void testCachesCanCompareTheirFraction() {
+        final MemoryCacheRegistry registry = new MemoryCacheRegistry();
+        final FakeCache low = new FakeCache(1000);
+        registry.register("low", MemoryCacheRegistry.PRIORITY_LOW, low);
+
+        // A cache that can't be resized compares the fraction it is given to a threshold, as
+        // ImageLoader does; the fraction has to match exactly at that level.
+        final float threshold = MemoryCacheRegistry.getBudgetFraction(0.125f, MemoryCacheRegistry.PRIORITY_LOW);
+        registry.setBudgetFraction(0.25f);
+        assertTrue(low.fraction > threshold);
+        registry.setBudgetFraction(0.125f);
+        assertTrue(low.fraction <= threshold);
+    }
+
+    @Test
+    public void testLateRegistrationIsShrunk() {
+        final MemoryCacheRegistry registry = new MemoryCacheRegistry();
+        final FakeCache before = new FakeCache(1000);
+        registry.register("before", MemoryCacheRegistry.PRIORITY_NORMAL, before);
+        assertEquals(0, before.calls);
+
+        registry.setBudgetFraction(0.5f);
+        final FakeCache after = new FakeCache(1000);
+        registry.register("after", MemoryCacheRegistry.PRIORITY_NORMAL, after);
+        assertEquals(1, after.calls);
+        assertEquals(0.5f, after.fraction, 1e-6);
+    }
+
+    @Test
+    public void testUnregisteredCacheIsNotCalled() {
+        final MemoryCacheRegistry registry = new MemoryCacheRegistry();
+        final FakeCache cache = new FakeCache(1000);
+        registry.register("cache", MemoryCacheRegistry.PRIORITY_LOW, cache);
+        registry.unregister(cache);
+
+        registry.setBudgetFraction(0.5f);
+        assertEquals(0, cache.calls);
+    }
+
+    @Test
+    public void testDumpListsUsage() {
+        final MemoryCacheRegistry registry = new MemoryCacheRegistry();
+        registry.register("icons", MemoryCacheRegistry.PRIORITY_NORMAL, new FakeCache(4096));
+        registry.register("images", MemoryCacheRegistry.PRIORITY_LOW, new FakeCache(1024));
+        registry.setBudgetFraction(0.5f);
+
+        final String[] lines = registry.dump().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("icons: 2048 bytes, priority 1, budget 50%", lines[0]);
+        assertEquals("images: 256 bytes, priority 0, budget 25%", lines[1]);
+        assertEquals("total: 2304 bytes", lines[2]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPriorityIsRejected() {
+        new MemoryCacheRegistry().register("cache", 3, new FakeCache(1));
+    }
+}
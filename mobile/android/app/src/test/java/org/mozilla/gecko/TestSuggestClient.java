@@ -0,0 +1,268 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.v4.os.CancellationSignal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestSuggestClient {
+    // Like most search engines, the stub server returns up to 10 suggestions.
+    private static final int SERVER_MAX_RESULTS = 10;
+
+    private static final List<String> VOCABULARY = Arrays.asList(
+            "firefox", "firefox download", "firefox focus", "firefox for android", "firefox nightly",
+            "firefox quantum", "firefox update", "firefox add ons", "firefox developer edition",
+            "firefox send", "firefox monitor", "firefox esr", "fire tv", "fire emblem", "fireplace",
+            "firefly", "fireworks", "fire station", "mozilla", "mozilla foundation", "mozilla vpn");
+
+    private HttpServer mServer;
+    private String mTemplate;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final Set<Integer> mClientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private volatile long mServerDelayMillis;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/suggest", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRequestCount.incrementAndGet();
+                mClientPorts.add(exchange.getRemoteAddress().getPort());
+
+                final String rawQuery = exchange.getRequestURI().getRawQuery();
+                final String query = URLDecoder.decode(rawQuery.substring(rawQuery.indexOf('=') + 1), "UTF-8");
+                try {
+                    Thread.sleep(mServerDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                final StringBuilder json = new StringBuilder("[\"").append(query).append("\",[");
+                int count = 0;
+                for (String suggestion : VOCABULARY) {
+                    if (suggestion.startsWith(query) && count < SERVER_MAX_RESULTS) {
+                        json.append(count > 0 ? "," : "").append('"').append(suggestion).append('"');
+                        count++;
+                    }
+                }
+                final byte[] body = json.append("]]").toString().getBytes("UTF-8");
+
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+
+        // Each server has its own port, so tests don't share cached results.
+        mTemplate = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/suggest?q=__searchTerms__";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private SuggestClient createClient(int maxResults) {
+        return new SuggestClient(RuntimeEnvironment.application, mTemplate, 5000, maxResults, false);
+    }
+
+    @Test
+    public void testQueryReturnsServerSuggestions() {
+        final SuggestClient client = createClient(3);
+
+        assertEquals(Arrays.asList("firefox download", "firefox focus", "firefox for android"),
+                     client.query("firefox"));
+        assertEquals(Arrays.asList("mozilla foundation", "mozilla vpn"), client.query("mozilla"));
+        assertEquals(2, mRequestCount.get());
+    }
+
+    @Test
+    public void testRepeatedQueryIsCached() {
+        final SuggestClient client = createClient(3);
+
+        final ArrayList<String> first = client.query("fire");
+        assertEquals(first, client.query("fire"));
+        // The cache is shared between clients.
+        assertEquals(first, createClient(3).query("fire"));
+        assertEquals(1, mRequestCount.get());
+    }
+
+    @Test
+    public void testCompleteResultsForPrefixAreFiltered() {
+        final SuggestClient client = createClient(Integer.MAX_VALUE);
+
+        // A full list of results tells the client how many results the server returns at most.
+        assertEquals(SERVER_MAX_RESULTS, client.query("f").size());
+        // Fewer results than that: these are all of the suggestions starting with "mozilla".
+        assertEquals(Arrays.asList("mozilla foundation", "mozilla vpn"), client.query("mozilla"));
+        assertEquals(2, mRequestCount.get());
+
+        assertEquals(Arrays.asList("mozilla foundation"), client.query("mozilla f"));
+        assertEquals(Arrays.asList("mozilla foundation"), client.query("mozilla fo"));
+        assertEquals(new ArrayList<String>(), client.query("mozilla foundation"));
+        assertEquals(new ArrayList<String>(), client.query("mozillax"));
+        assertEquals(2, mRequestCount.get());
+    }
+
+    @Test
+    public void testIncompleteResultsForPrefixAreNotFiltered() {
+        final SuggestClient client = createClient(Integer.MAX_VALUE);
+
+        assertEquals(SERVER_MAX_RESULTS, client.query("f").size());
+        // The results for "f" are capped by the server, so they may not hold all results for "fi".
+        client.query("fi");
+        assertEquals(2, mRequestCount.get());
+    }
+
+    @Test
+    public void testCompletenessIsSharedBetweenClients() {
+        assertEquals(SERVER_MAX_RESULTS, createClient(Integer.MAX_VALUE).query("f").size());
+
+        // A new client knows from the first one that two results are all of them.
+        final SuggestClient client = createClient(Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("mozilla foundation", "mozilla vpn"), client.query("mozilla"));
+        assertEquals(Arrays.asList("mozilla vpn"), client.query("mozilla v"));
+        assertEquals(2, mRequestCount.get());
+    }
+
+    @Test
+    public void testConnectionsAreReused() {
+        final SuggestClient client = createClient(3);
+
+        for (String query : new String[] { "f", "fi", "fir", "fire", "firef" }) {
+            client.query(query);
+        }
+        assertEquals(5, mRequestCount.get());
+        assertEquals(1, mClientPorts.size());
+    }
+
+    @Test
+    public void testCancelledQueryDoesNotWaitForServer() throws Exception {
+        final SuggestClient client = createClient(3);
+        mServerDelayMillis = 2000;
+
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final long start = System.nanoTime();
+            final Future<ArrayList<String>> result = executor.submit(new QueryTask(client, "fire", cancellationSignal));
+            // Wait for the request to reach the server.
+            while (mRequestCount.get() == 0) {
+                Thread.sleep(10);
+            }
+            cancellationSignal.cancel();
+
+            assertTrue(result.get().isEmpty());
+            assertTrue((System.nanoTime() - start) / 1000000 < mServerDelayMillis);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The cancelled query's results weren't cached.
+        mServerDelayMillis = 0;
+        assertEquals(3, client.query("fire").size());
+        assertEquals(2, mRequestCount.get());
+    }
+
+    @Test
+    public void testQueryCancelledWhileDebouncingIsNotSent() {
+        final SuggestClient client = createClient(3);
+
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+        assertTrue(client.query("fire", cancellationSignal).isEmpty());
+        assertEquals(0, mRequestCount.get());
+    }
+
+    private static class QueryTask implements Callable<ArrayList<String>> {
+        private final SuggestClient mClient;
+        private final String mQuery;
+        private final CancellationSignal mCancellationSignal;
+
+        public QueryTask(SuggestClient client, String query, CancellationSignal cancellationSignal) {
+            mClient = client;
+            mQuery = query;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        @Override
+        public ArrayList<String> call() {
+            return mClient.query(mQuery, mCancellationSignal);
+        }
+    }
+
+    /**
+     * Types words a character at a time, faster than the debounce delay, the way BrowserSearch
+     * queries: every keystroke cancels the outdated query.
+     */
+    @Test
+    public void testTypingSendsOneRequestPerWord() throws Exception {
+        final String[] words = { "firefox nightly", "mozilla foundation", "fireworks" };
+        final long keystrokeMillis = 20;
+
+        final SuggestClient client = createClient(3);
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            for (String word : words) {
+                final int requestsBefore = mRequestCount.get();
+
+                CancellationSignal previousSignal = null;
+                Future<ArrayList<String>> result = null;
+                for (int i = 1; i <= word.length(); i++) {
+                    if (previousSignal != null) {
+                        previousSignal.cancel();
+                    }
+                    previousSignal = new CancellationSignal();
+                    result = executor.submit(new QueryTask(client, word.substring(0, i), previousSignal));
+                    if (i < word.length()) {
+                        Thread.sleep(keystrokeMillis);
+                    }
+                }
+                final ArrayList<String> suggestions = result.get();
+
+                // Only the query for the whole word went to the network.
+                assertEquals(1, mRequestCount.get() - requestsBefore);
+                assertEquals(createClient(3).query(word), suggestions);
+            }
+            assertEquals(words.length, mRequestCount.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestVisitedLinkFilter {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String url(int i) {
+        return "https://example.com/page/" + i;
+    }
+
+    @Test
+    public void testNoFalseNegatives() {
+        final VisitedLinkFilter filter = VisitedLinkFilter.create(null, 1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add(url(i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain(url(i)));
+        }
+        assertEquals(1000, filter.getItemCount());
+    }
+
+    @Test
+    public void testFalsePositiveRateIsLow() {
+        final int count = VisitedLinkFilter.MIN_CAPACITY;
+        final VisitedLinkFilter filter = VisitedLinkFilter.create(null, count);
+        for (int i = 0; i < count; i++) {
+            filter.add(url(i));
+        }
+
+        int falsePositives = 0;
+        for (int i = count; i < 2 * count; i++) {
+            if (filter.mightContain(url(i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < count / 50);
+    }
+
+    @Test
+    public void testRepeatedVisitsDontUseCapacity() {
+        final VisitedLinkFilter filter = VisitedLinkFilter.create(null, 0);
+        filter.add(url(1));
+        filter.add(url(1));
+        assertEquals(1, filter.getItemCount());
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        final File file = new File(tempDir.getRoot(), "visited.bloom");
+        final VisitedLinkFilter filter = VisitedLinkFilter.create(file, 100);
+        filter.add(url(1));
+        filter.setTimestamp(1234L);
+
+        final VisitedLinkFilter reopened = VisitedLinkFilter.open(file);
+        assertNotNull(reopened);
+        assertTrue(reopened.mightContain(url(1)));
+        assertFalse(reopened.mightContain(url(2)));
+        assertEquals(1, reopened.getItemCount());
+        assertEquals(1234L, reopened.getTimestamp());
+    }
+
+    @Test
+    public void testOpenIgnoresMissingAndCorruptFiles() throws Exception {
+        final File file = new File(tempDir.getRoot(), "visited.bloom");
+        assertNull(VisitedLinkFilter.open(file));
+
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        } finally {
+            out.close();
+        }
+        assertNull(VisitedLinkFilter.open(file));
+    }
+
+    @Test
+    public void testOverCapacity() {
+        final VisitedLinkFilter filter = VisitedLinkFilter.create(null, 0);
+        int i = 0;
+        while (!filter.isOverCapacity()) {
+            filter.add(url(i++));
+        }
+        assertTrue(i > VisitedLinkFilter.MIN_CAPACITY);
+    }
+}
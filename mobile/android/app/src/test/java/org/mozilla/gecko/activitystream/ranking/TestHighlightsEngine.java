@@ -0,0 +1,227 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.activitystream.ranking;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.gecko.activitystream.homepanel.model.Highlight;
+import org.mozilla.gecko.db.BrowserContract;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestHighlightsEngine {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static final String[] COLUMNS = new String[] {
+            BrowserContract.Highlights.URL,
+            BrowserContract.Highlights.TITLE,
+            BrowserContract.History.VISITS,
+            BrowserContract.Highlights.METADATA,
+            BrowserContract.Bookmarks.DATE_CREATED,
+            BrowserContract.Highlights.HISTORY_ID,
+            BrowserContract.Highlights.BOOKMARK_ID,
+            // Both the date of the last visit and the date candidates are ordered by.
+            BrowserContract.Highlights.DATE,
+            BrowserContract.Highlights.IS_REMOVED,
+    };
+
+    /**
+     * A row of the highlight candidates query.
+     */
+    private static class Row {
+        private final long historyID;
+        private final String url;
+        private final int visits;
+        private final long date;
+        private final boolean hasImage;
+        private final int descriptionLength;
+        private boolean isBookmark;
+        private boolean isRemoved;
+
+        private Row(long historyID, String url, int visits, long date, boolean hasImage, int descriptionLength) {
+            this.historyID = historyID;
+            this.url = url;
+            this.visits = visits;
+            this.date = date;
+            this.hasImage = hasImage;
+            this.descriptionLength = descriptionLength;
+        }
+
+        private Row asBookmark() {
+            isBookmark = true;
+            return this;
+        }
+
+        private Row asRemoved() {
+            isRemoved = true;
+            return this;
+        }
+    }
+
+    private static Cursor createCursor(List<Row> rows) {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (final Row row : rows) {
+            final String metadata = "{" +
+                    (row.hasImage ? "\"image_url\":\"https://example.org/" + row.historyID + ".png\"," : "") +
+                    "\"description_length\":" + row.descriptionLength + "}";
+            cursor.addRow(new Object[] {
+                    row.url,
+                    "Title " + row.historyID,
+                    row.visits,
+                    metadata,
+                    row.isBookmark ? row.date : null,
+                    row.historyID,
+                    row.isBookmark ? row.historyID : -1,
+                    row.date,
+                    row.isRemoved ? 1 : 0,
+            });
+        }
+        return cursor;
+    }
+
+    private static List<Row> createRows(long now, int count, long firstHistoryID) {
+        return createRows(now, count, firstHistoryID, 40);
+    }
+
+    private static List<Row> createRows(long now, int count, long firstHistoryID, int hostCount) {
+        final List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final long historyID = firstHistoryID + i;
+            final String url = "https://site" + (historyID % hostCount) + ".example.com/" +
+                    (historyID % 3 == 0 ? "" : "path/" + historyID) +
+                    (historyID % 5 == 0 ? "?query=" + historyID : "");
+            final Row row = new Row(historyID, url, 1 + (int) (historyID % 4), now - historyID * DAY_MILLIS / 3,
+                    historyID % 4 != 1, (int) (historyID * 37 % 200));
+            rows.add(historyID % 9 == 0 ? row.asBookmark() : row);
+        }
+        return rows;
+    }
+
+    private static List<String> getUrls(List<Highlight> highlights) {
+        final List<String> urls = new ArrayList<>();
+        for (final Highlight highlight : highlights) {
+            urls.add(highlight.getUrl());
+        }
+        return urls;
+    }
+
+    private static void assertSameHighlights(HighlightsEngine engine, List<Row> allRows, long now, int limit,
+            boolean includeHistory, boolean includeBookmarks) {
+        final List<Highlight> expected = HighlightsRanking.rank(createCursor(allRows), limit, includeHistory, includeBookmarks);
+        final List<Highlight> actual = engine.rank(now, limit, includeHistory, includeBookmarks);
+
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(getUrls(expected), getUrls(actual));
+    }
+
+    @Test
+    public void testRankingAllCandidates() {
+        final long now = System.currentTimeMillis();
+        final List<Row> rows = createRows(now, 100, 1);
+
+        final HighlightsEngine engine = new HighlightsEngine(500);
+        engine.update(createCursor(rows));
+
+        assertSameHighlights(engine, rows, now, 10, true, true);
+        assertSameHighlights(engine, rows, now, 20, true, true);
+    }
+
+    @Test
+    public void testRankingAfterAddingAndReplacingCandidates() {
+        final long now = System.currentTimeMillis();
+        final List<Row> rows = createRows(now, 60, 1);
+
+        final HighlightsEngine engine = new HighlightsEngine(500);
+        engine.update(createCursor(rows));
+        engine.rank(now, 5, true, true);
+
+        // New candidates, one of which extends the bounds of the description length.
+        final List<Row> modifiedRows = createRows(now, 10, 61);
+        modifiedRows.add(new Row(1000, "https://new.example.com/a/b/c/d/e/f", 2, now, true, 5000));
+        // Replaced candidates: visited again.
+        modifiedRows.add(new Row(2, rows.get(1).url, 12, now - 1000, true, 10));
+        modifiedRows.add(new Row(3, rows.get(2).url, 7, now - 2000, true, 20));
+        engine.update(createCursor(modifiedRows));
+
+        final List<Row> allRows = new ArrayList<>(rows.subList(3, rows.size()));
+        allRows.add(rows.get(0));
+        allRows.addAll(modifiedRows);
+        assertSameHighlights(engine, allRows, now, 20, true, true);
+    }
+
+    @Test
+    public void testRankingAfterRemovingCandidates() {
+        final long now = System.currentTimeMillis();
+        final List<Row> rows = createRows(now, 60, 1);
+        final Row longestDescriptionRow = new Row(1000, "https://new.example.com/a/b/c/d/e/f", 2, now, true, 5000);
+        rows.add(longestDescriptionRow);
+
+        final HighlightsEngine engine = new HighlightsEngine(500);
+        engine.update(createCursor(rows));
+        final List<Highlight> highlights = engine.rank(now, 5, true, true);
+
+        // Remove the best highlight, and the candidate with the longest description which shrinks its bounds.
+        final List<Row> removedRows = new ArrayList<>();
+        final List<Row> remainingRows = new ArrayList<>();
+        for (final Row row : rows) {
+            if (row.url.equals(highlights.get(0).getUrl()) || row == longestDescriptionRow) {
+                removedRows.add(row.asRemoved());
+            } else {
+                remainingRows.add(row);
+            }
+        }
+        engine.update(createCursor(removedRows));
+
+        assertSameHighlights(engine, remainingRows, now, 20, true, true);
+        Assert.assertFalse(getUrls(engine.rank(now, 5, true, true)).contains(highlights.get(0).getUrl()));
+    }
+
+    @Test
+    public void testRankingWithManyCandidatesOnTheSameSites() {
+        final long now = System.currentTimeMillis();
+        // The most recent candidates are all on two sites, the older ones on different sites.
+        final List<Row> rows = createRows(now, 150, 1, 2);
+        rows.addAll(createRows(now, 50, 151, 1000));
+
+        final HighlightsEngine engine = new HighlightsEngine(500);
+        engine.update(createCursor(rows));
+
+        // Most of the best candidates are removed by deduping.
+        assertSameHighlights(engine, rows, now, 10, true, true);
+    }
+
+    @Test
+    public void testOldestCandidatesAreDropped() {
+        final long now = System.currentTimeMillis();
+        final List<Row> rows = createRows(now, 30, 1);
+
+        final HighlightsEngine engine = new HighlightsEngine(20);
+        engine.update(createCursor(rows.subList(10, 30)));
+        engine.update(createCursor(rows.subList(0, 10)));
+
+        // The candidates query would have only returned the 20 most recent candidates.
+        assertSameHighlights(engine, rows.subList(0, 20), now, 10, true, true);
+    }
+
+    @Test
+    public void testRankingWithPreferences() {
+        final long now = System.currentTimeMillis();
+        final List<Row> rows = createRows(now, 100, 1);
+
+        final HighlightsEngine engine = new HighlightsEngine(500);
+        engine.update(createCursor(rows));
+
+        assertSameHighlights(engine, rows, now, 10, true, false);
+        assertSameHighlights(engine, rows, now, 10, false, true);
+        assertSameHighlights(engine, rows, now, 10, true, true);
+        Assert.assertTrue(engine.rank(now, 5, false, false).isEmpty());
+    }
+}
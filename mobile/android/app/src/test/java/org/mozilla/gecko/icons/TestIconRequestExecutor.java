@@ -0,0 +1,183 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.icons;
+
+import android.graphics.Bitmap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.gecko.icons.loader.IconLoader;
+import org.mozilla.gecko.icons.preparation.Preparer;
+import org.mozilla.gecko.icons.processing.Processor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestIconRequestExecutor {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /**
+     * Loader that records which pages it loads icons for, and blocks until released.
+     */
+    private static class BlockingLoader implements IconLoader {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final List<String> loadedPages = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public IconResponse load(IconRequest request) {
+            loadedPages.add(request.getPageUrl());
+            started.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                return null;
+            }
+            return IconResponse.create(mock(Bitmap.class));
+        }
+
+        void awaitStarted() throws InterruptedException {
+            assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    private BlockingLoader loader;
+    private ThreadPoolExecutor localExecutor;
+    private ThreadPoolExecutor networkExecutor;
+    private IconRequestExecutor executor;
+
+    @Before
+    public void setUp() {
+        loader = new BlockingLoader();
+        // A single thread, so that the order in which waiting loads run is observable.
+        localExecutor = IconRequestExecutor.createExecutor("TestIconTask", 1);
+        networkExecutor = IconRequestExecutor.createExecutor("TestIconDownload", 1);
+        executor = new IconRequestExecutor(
+                Collections.<Preparer>emptyList(),
+                Collections.<IconLoader>singletonList(loader),
+                Collections.<IconLoader>emptyList(),
+                Collections.<Processor>emptyList(),
+                mock(IconLoader.class),
+                localExecutor,
+                networkExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        loader.released.countDown();
+        localExecutor.shutdownNow();
+        networkExecutor.shutdownNow();
+    }
+
+    private static IconRequest createRequest(String pageUrl, boolean highPriority) {
+        IconRequestBuilder builder = Icons.with(RuntimeEnvironment.application)
+                .pageUrl(pageUrl)
+                .icon(IconDescriptor.createGenericIcon(pageUrl + "favicon.ico"));
+        if (!highPriority) {
+            builder = builder.executeCallbackOnBackgroundThread();
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testRequestsForSameIconShareOneLoad() throws Exception {
+        final Future<IconResponse> first = executor.execute(createRequest("http://www.mozilla.org/", true));
+        loader.awaitStarted();
+        final Future<IconResponse> second = executor.execute(createRequest("http://www.mozilla.org/", true));
+
+        loader.released.countDown();
+
+        final IconResponse response = first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(response);
+        assertSame(response, second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, loader.loadedPages.size());
+    }
+
+    @Test
+    public void testCancellingOneWaiterKeepsLoadForOthers() throws Exception {
+        final Future<IconResponse> cancelled = executor.execute(createRequest("http://www.mozilla.org/", true));
+        loader.awaitStarted();
+        final Future<IconResponse> waiting = executor.execute(createRequest("http://www.mozilla.org/", true));
+
+        assertTrue(cancelled.cancel(true));
+        assertTrue(cancelled.isCancelled());
+        assertTrue(cancelled.isDone());
+        assertFalse(waiting.isDone());
+
+        loader.released.countDown();
+
+        assertNotNull(waiting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(waiting.isCancelled());
+        assertEquals(1, loader.interrupted.getCount());
+        try {
+            cancelled.get();
+            fail("Expected a CancellationException");
+        } catch (CancellationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testCancellingLastWaiterCancelsLoad() throws Exception {
+        final Future<IconResponse> future = executor.execute(createRequest("http://www.mozilla.org/", true));
+        loader.awaitStarted();
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        assertTrue(loader.interrupted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // The load is no longer shared: a new request for the same icon loads it again.
+        loader.released.countDown();
+        final Future<IconResponse> next = executor.execute(createRequest("http://www.mozilla.org/", true));
+        assertNotNull(next.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, loader.loadedPages.size());
+    }
+
+    @Test
+    public void testHighPriorityRequestsRunFirst() throws Exception {
+        // Occupy the only thread, so that the following requests have to wait.
+        final Future<IconResponse> blocking = executor.execute(createRequest("http://a.example.org/", true));
+        loader.awaitStarted();
+
+        final Future<IconResponse> low = executor.execute(createRequest("http://b.example.org/", false));
+        final Future<IconResponse> promoted = executor.execute(createRequest("http://c.example.org/", false));
+        final Future<IconResponse> high = executor.execute(createRequest("http://d.example.org/", true));
+        // A displayed icon needs the load of a waiting prefetch, which moves it ahead.
+        final Future<IconResponse> promoting = executor.execute(createRequest("http://c.example.org/", true));
+
+        loader.released.countDown();
+        for (Future<IconResponse> future : Arrays.asList(blocking, low, promoted, high, promoting)) {
+            assertNotNull(future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        // High priority loads run in the order they were submitted (or promoted), before low priority ones.
+        assertEquals(Arrays.asList(
+                "http://a.example.org/",
+                "http://d.example.org/",
+                "http://c.example.org/",
+                "http://b.example.org/"), loader.loadedPages);
+    }
+}
@@ -503,6 +503,60 @@ public class TestIconTask {
         }
     }
 
+    @Test
+    public void testTaskStopsBeforeNetworkLoadersAndResumes() {
+        final List<IconLoader> loaders = createListWithFailingLoaders();
+        final IconLoader networkLoader = createSuccessfulLoader(mock(Bitmap.class));
+        final IconLoader generator = createGenerator();
+
+        final IconRequest request = createIconRequest();
+
+        final IconTask task = new IconTask(
+                request,
+                Collections.<Preparer>emptyList(),
+                loaders,
+                Collections.singletonList(networkLoader),
+                Collections.<Processor>emptyList(),
+                generator);
+
+        Assert.assertNull(task.execute(false));
+        Assert.assertTrue(task.needsNetwork());
+        verify(networkLoader, never()).load(request);
+
+        final IconResponse response = task.execute(true);
+        Assert.assertNotNull(response);
+        Assert.assertFalse(task.needsNetwork());
+
+        // Local loaders are not tried again for the same icon after moving to the network.
+        for (IconLoader loader : loaders) {
+            verify(loader).load(request);
+        }
+        verify(networkLoader).load(request);
+        verify(generator, never()).load(request);
+    }
+
+    @Test
+    public void testNetworkLoadersAreNotNeededForSkipNetworkRequests() {
+        final IconLoader networkLoader = createSuccessfulLoader(mock(Bitmap.class));
+
+        final IconRequest request = createIconRequest()
+                .modify()
+                .skipNetwork()
+                .build();
+
+        final IconTask task = new IconTask(
+                request,
+                Collections.<Preparer>emptyList(),
+                createListWithFailingLoaders(),
+                Collections.singletonList(networkLoader),
+                Collections.<Processor>emptyList(),
+                createGenerator());
+
+        Assert.assertNotNull(task.execute(false));
+        Assert.assertFalse(task.needsNetwork());
+        verify(networkLoader, never()).load(request);
+    }
+
     public List<IconLoader> createListWithSuccessfulLoader() {
         return Arrays.asList(
                 createFailingLoader(),
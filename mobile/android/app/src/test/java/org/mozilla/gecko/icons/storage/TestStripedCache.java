@@ -0,0 +1,103 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.icons.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestStripedCache {
+    private static final String VALUE = "0123456789";
+
+    private static StripedCache<String, String> createCache(long maxSize) {
+        return new StripedCache<String, String>(maxSize) {
+            @Override
+            protected long sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+    }
+
+    @Test
+    public void testValuesAreCachedWithinBudget() {
+        final StripedCache<String, String> cache = createCache(10000);
+
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, VALUE);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(VALUE, cache.get("key" + i));
+        }
+
+        Assert.assertEquals(100 * VALUE.length(), cache.size());
+        Assert.assertEquals(100, cache.hitCount());
+        Assert.assertEquals(0, cache.missCount());
+        Assert.assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    public void testSizeNeverExceedsBudget() {
+        final StripedCache<String, String> cache = createCache(800);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key" + i, VALUE);
+            Assert.assertTrue(cache.size() <= 800);
+        }
+
+        Assert.assertTrue(cache.evictionCount() > 0);
+    }
+
+    @Test
+    public void testFrequentlyUsedValuesSurviveScan() {
+        final StripedCache<String, String> cache = createCache(8000);
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20; i++) {
+                if (cache.get("hot" + i) == null) {
+                    cache.put("hot" + i, VALUE);
+                }
+            }
+        }
+
+        for (int i = 0; i < 5000; i++) {
+            if (cache.get("scan" + i) == null) {
+                cache.put("scan" + i, VALUE);
+            }
+        }
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertNotNull(cache.get("hot" + i));
+        }
+    }
+
+    @Test
+    public void testResizeAndEvictAll() {
+        final StripedCache<String, String> cache = createCache(8000);
+        for (int i = 0; i < 500; i++) {
+            cache.put("key" + i, VALUE);
+        }
+
+        cache.resize(4000);
+        Assert.assertEquals(4000, cache.maxSize());
+        Assert.assertTrue(cache.size() <= 4000);
+
+        cache.evictAll();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNull(cache.get("key1"));
+        Assert.assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void testValueLargerThanBudgetIsNotCached() {
+        final StripedCache<String, String> cache = createCache(80);
+
+        cache.put("key", VALUE + VALUE);
+
+        Assert.assertNull(cache.get("key"));
+        Assert.assertEquals(0, cache.size());
+    }
+}
@@ -3,6 +3,9 @@
 
 package org.mozilla.gecko.push;
 
+import android.os.Handler;
+import android.os.Looper;
+
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Before;
@@ -35,7 +38,7 @@ public class TestPushManager {
 
     @Before
     public void setUp() throws Exception {
-        state = new PushState(RuntimeEnvironment.application, "test.json");
+        state = new PushState(RuntimeEnvironment.application, "test.json", new Handler(Looper.getMainLooper()));
         gcmTokenClient = mock(GcmTokenClient.class);
         doReturn(new Fetched("opaque-gcm-token", System.currentTimeMillis())).when(gcmTokenClient).getToken(anyString(), anyBoolean());
 
@@ -3,15 +3,21 @@
 
 package org.mozilla.gecko.push;
 
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.mozilla.gecko.util.StringUtils;
 import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.util.Map;
 
 @RunWith(RobolectricTestRunner.class)
 public class TestPushState {
@@ -68,4 +74,122 @@ public class TestPushState {
         final PushState state = new PushState(RuntimeEnvironment.application, "testCorruptedJSON.json");
         Assert.assertTrue(state.getRegistrations().isEmpty());
     }
+
+    private static class CountingPushState extends PushState {
+        int checkpoints;
+
+        CountingPushState(Context context, String fileName) {
+            super(context, fileName, new Handler(Looper.getMainLooper()));
+        }
+
+        @Override
+        public boolean checkpoint() {
+            checkpoints++;
+            return super.checkpoint();
+        }
+    }
+
+    private static void subscribe(PushState state, String profileName, int count) {
+        for (int i = 0; i < count; i++) {
+            final String chid = profileName + "-chid-" + i;
+            state.putSubscription(profileName, new PushSubscription(chid, profileName, "webpushEndpoint", "webpush", null));
+        }
+    }
+
+    @Test
+    public void testSubscriptionIndex() throws Exception {
+        final PushState state = new PushState(RuntimeEnvironment.application, "testSubscriptionIndex.json");
+        final PushRegistration registration = new PushRegistration("endpoint", false, Fetched.now("uaid"), "secret");
+        state.putRegistration("profileName", registration);
+        subscribe(state, "profileName", 3);
+
+        Assert.assertSame(registration, state.getRegistrationForSubscription("profileName-chid-1"));
+        Assert.assertNull(state.getRegistrationForSubscription("missingChid"));
+
+        Assert.assertNotNull(state.removeSubscription("profileName-chid-1"));
+        Assert.assertNull(state.getRegistrationForSubscription("profileName-chid-1"));
+        Assert.assertNull(state.removeSubscription("profileName-chid-1"));
+
+        // Replacing a registration re-indexes its subscriptions.
+        final PushRegistration nextRegistration = registration.withUserAgentID("uaid", "secret", System.currentTimeMillis());
+        state.putRegistration("profileName", nextRegistration);
+        Assert.assertSame(nextRegistration, state.getRegistrationForSubscription("profileName-chid-2"));
+
+        state.checkpoint();
+        final PushState readState = new PushState(RuntimeEnvironment.application, "testSubscriptionIndex.json");
+        Assert.assertNotNull(readState.getRegistrationForSubscription("profileName-chid-0"));
+        Assert.assertNull(readState.getRegistrationForSubscription("profileName-chid-1"));
+
+        readState.removeRegistration("profileName");
+        Assert.assertNull(readState.getRegistrationForSubscription("profileName-chid-0"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSubscriptionNeedsRegistration() throws Exception {
+        final PushState state = new PushState(RuntimeEnvironment.application, "testSubscriptionNeedsRegistration.json");
+        subscribe(state, "missingProfileName", 1);
+    }
+
+    @Test
+    public void testScheduledCheckpointsCoalesce() throws Exception {
+        final CountingPushState state = new CountingPushState(RuntimeEnvironment.application, "testScheduledCheckpoints.json");
+        state.putRegistration("profileName", new PushRegistration("endpoint", false, Fetched.now("uaid"), "secret"));
+
+        for (int i = 0; i < 100; i++) {
+            subscribe(state, "profileName", i + 1);
+            state.scheduleCheckpoint();
+        }
+        state.removeSubscription("profileName-chid-0");
+        state.scheduleCheckpoint();
+        Assert.assertEquals(0, state.checkpoints);
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Assert.assertEquals(1, state.checkpoints);
+
+        final PushState readState = new PushState(RuntimeEnvironment.application, "testScheduledCheckpoints.json");
+        Assert.assertEquals(99, readState.getRegistration("profileName").subscriptions.size());
+
+        // Checkpointing synchronously writes pending changes and cancels the scheduled write.
+        state.removeSubscription("profileName-chid-1");
+        state.scheduleCheckpoint();
+        state.checkpoint();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Assert.assertEquals(2, state.checkpoints);
+    }
+
+    private static PushRegistration scanForSubscription(PushState state, String chid) {
+        for (Map.Entry<String, PushRegistration> entry : state.getRegistrations().entrySet()) {
+            if (entry.getValue().getSubscription(chid) != null) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the registration for incoming messages the way PushService does, with a few
+     * thousand subscriptions spread over a few profiles.
+     */
+    @Test
+    public void testDispatchWithManySubscriptions() throws Exception {
+        final CountingPushState state = new CountingPushState(RuntimeEnvironment.application, "testDispatch.json");
+        final String[] profileNames = new String[] { "default", "work", "guest" };
+        for (String profileName : profileNames) {
+            state.putRegistration(profileName, new PushRegistration("endpoint", false, Fetched.now("uaid"), "secret"));
+            subscribe(state, profileName, 1000);
+            state.scheduleCheckpoint();
+        }
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Assert.assertEquals(1, state.checkpoints);
+
+        for (String profileName : profileNames) {
+            final PushRegistration registration = state.getRegistration(profileName);
+            for (int i = 0; i < 1000; i++) {
+                final String chid = profileName + "-chid-" + i;
+                Assert.assertSame(registration, state.getRegistrationForSubscription(chid));
+                Assert.assertSame(scanForSubscription(state, chid), state.getRegistrationForSubscription(chid));
+            }
+        }
+        Assert.assertNull(state.getRegistrationForSubscription("default-chid-1000"));
+    }
 }
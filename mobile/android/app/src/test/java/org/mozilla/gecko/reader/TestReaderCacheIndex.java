@@ -0,0 +1,204 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.reader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestReaderCacheIndex {
+    private static final long BUDGET = 10 * 1024;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = new File(tempDir.getRoot(), "readercache");
+    }
+
+    private static String url(int i) {
+        return "https://example.com/article/" + i;
+    }
+
+    private static String path(int i) {
+        return "/profile/readercache/" + i + ".json";
+    }
+
+    private ReaderCacheIndex reload() {
+        final ReaderCacheIndex index = new ReaderCacheIndex(cacheDir, BUDGET);
+        index.load();
+        return index;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedItemsAreEvicted() {
+        final ReaderCacheIndex index = new ReaderCacheIndex(cacheDir, BUDGET);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(index.put(url(i), path(i), 2 * 1024).isEmpty());
+        }
+        assertEquals(10 * 1024, index.getTotalBytes());
+
+        index.touch(url(0));
+        final List<ReaderCacheIndex.Item> evicted = index.put(url(5), path(5), 3 * 1024);
+
+        assertEquals(2, evicted.size());
+        assertEquals(path(1), evicted.get(0).path);
+        assertEquals(path(2), evicted.get(1).path);
+        assertTrue(index.contains(url(0)));
+        assertFalse(index.contains(url(1)));
+        assertFalse(index.contains(url(2)));
+        assertEquals(4, index.size());
+        assertEquals(9 * 1024, index.getTotalBytes());
+    }
+
+    @Test
+    public void testNewestItemIsKeptEvenIfOverBudget() {
+        final ReaderCacheIndex index = new ReaderCacheIndex(cacheDir, BUDGET);
+        index.put(url(0), path(0), 1024);
+
+        final List<ReaderCacheIndex.Item> evicted = index.put(url(1), path(1), 2 * BUDGET);
+
+        assertEquals(1, evicted.size());
+        assertTrue(index.contains(url(1)));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testReplacingAnItemUpdatesTotalSize() {
+        final ReaderCacheIndex index = new ReaderCacheIndex(cacheDir, BUDGET);
+        index.put(url(0), path(0), 1024);
+        index.put(url(0), path(0), 3000);
+
+        assertEquals(1, index.size());
+        assertEquals(3000, index.getTotalBytes());
+
+        index.remove(url(0));
+        assertEquals(0, index.getTotalBytes());
+    }
+
+    @Test
+    public void testChangesArePersistedIncrementally() throws Exception {
+        final ReaderCacheIndex index = new ReaderCacheIndex(cacheDir, BUDGET);
+        index.put(url(0), path(0), 100);
+        index.put(url(1), path(1), 200);
+        index.flush();
+
+        final File log = new File(cacheDir, ReaderCacheIndex.LOG_FILE_NAME);
+        final long compactedLength = log.length();
+
+        index.put(url(2), path(2), 300);
+        index.remove(url(1));
+        index.touch(url(0));
+        index.flush();
+        assertTrue(log.length() > compactedLength);
+
+        final ReaderCacheIndex reloaded = reload();
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.contains(url(0)));
+        assertFalse(reloaded.contains(url(1)));
+        assertTrue(reloaded.contains(url(2)));
+        assertEquals(400, reloaded.getTotalBytes());
+
+        // Access order survives reloading: url(2) is now the least recently used item.
+        final List<ReaderCacheIndex.Item> evicted = reloaded.setBudget(150);
+        assertEquals(1, evicted.size());
+        assertEquals(path(2), evicted.get(0).path);
+    }
+
+    @Test
+    public void testLogIsCompacted() throws Exception {
+        final ReaderCacheIndex index = new ReaderCacheIndex(cacheDir, BUDGET);
+        index.put(url(0), path(0), 100);
+        index.flush();
+
+        final File log = new File(cacheDir, ReaderCacheIndex.LOG_FILE_NAME);
+        final long initialLength = log.length();
+        for (int i = 0; i < 2000; i++) {
+            index.touch(url(0));
+            index.flush();
+        }
+
+        assertTrue(log.length() < initialLength * 100);
+        assertEquals(1, reload().size());
+    }
+
+    @Test
+    public void testTruncatedLogKeepsCompleteRecords() throws Exception {
+        final ReaderCacheIndex index = new ReaderCacheIndex(cacheDir, BUDGET);
+        index.put(url(0), path(0), 100);
+        index.flush();
+        index.put(url(1), path(1), 200);
+        index.flush();
+
+        final File log = new File(cacheDir, ReaderCacheIndex.LOG_FILE_NAME);
+        final RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.setLength(log.length() - 3);
+        file.close();
+
+        final ReaderCacheIndex reloaded = reload();
+        assertEquals(1, reloaded.size());
+        assertTrue(reloaded.contains(url(0)));
+
+        // The next flush rewrites a clean log.
+        reloaded.flush();
+        assertEquals(1, reload().size());
+    }
+
+    @Test
+    public void testCorruptStringLengthKeepsCompleteRecords() throws Exception {
+        final ReaderCacheIndex index = new ReaderCacheIndex(cacheDir, BUDGET);
+        index.put(url(0), path(0), 100);
+        index.flush();
+
+        // Append a record whose URL claims to be almost 2GB long.
+        final File log = new File(cacheDir, ReaderCacheIndex.LOG_FILE_NAME);
+        final RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.seek(log.length());
+        file.writeByte(1);
+        file.writeInt(Integer.MAX_VALUE - 8);
+        file.close();
+
+        final ReaderCacheIndex reloaded = reload();
+        assertEquals(1, reloaded.size());
+        assertTrue(reloaded.contains(url(0)));
+
+        // The next flush rewrites a clean log.
+        reloaded.flush();
+        assertEquals(1, reload().size());
+    }
+
+    @Test
+    public void testLegacyIndexIsImported() throws Exception {
+        assertTrue(cacheDir.mkdirs());
+        final File legacy = new File(cacheDir, ReaderCacheIndex.LEGACY_FILE_NAME);
+        final FileOutputStream output = new FileOutputStream(legacy);
+        output.write(("{\"" + url(0) + "\":{\"path\":\"" + path(0) + "\",\"size\":123}," +
+                "\"" + url(1) + "\":{\"path\":\"" + path(1) + "\",\"size\":456}}").getBytes("UTF-8"));
+        output.close();
+
+        final ReaderCacheIndex index = reload();
+        assertEquals(2, index.size());
+        assertEquals(579, index.getTotalBytes());
+
+        index.flush();
+        assertFalse(legacy.exists());
+        assertEquals(2, reload().size());
+    }
+}
@@ -73,6 +73,10 @@ public class TelemetrySyncPingBuilderTest {
         stage.inboundStored = 3;
         stage.inboundFailed = 1;
         stage.reconciled = 1;
+        stage.fetchDecrypted = 5;
+        stage.fetchDecryptMillis = 12;
+        stage.fetchDeliverMillis = 7;
+        stage.fetchStalledMillis = 3;
 
         stage.outbound = new ArrayList<>();
         stage.outbound.add(new StoreBatchTracker.Batch(1, 1));
@@ -104,6 +108,12 @@ public class TelemetrySyncPingBuilderTest {
         assertEquals(Integer.valueOf(stage.inboundFailed), inbound.getIntegerSafely("failed"));
         assertEquals(Integer.valueOf(stage.reconciled), inbound.getIntegerSafely("reconciled"));
 
+        ExtendedJSONObject decrypted = inbound.getObject("decrypted");
+        assertEquals(Long.valueOf(5L), decrypted.getLong("count"));
+        assertEquals(Long.valueOf(12L), decrypted.getLong("took"));
+        assertEquals(Long.valueOf(7L), decrypted.getLong("deliverTook"));
+        assertEquals(Long.valueOf(3L), decrypted.getLong("stalledTook"));
+
         ExtendedJSONObject error = engine.getObject("failureReason");
         assertEquals("unexpectederror", error.getString("name"));
         assertEquals("test", error.getString("error"));
@@ -131,6 +141,7 @@ public class TelemetrySyncPingBuilderTest {
 
         ExtendedJSONObject emptyEngine = (ExtendedJSONObject) payload.getArray("engines").get(1);
         assertFalse(emptyEngine.containsKey("outgoing"));
+        assertFalse(emptyEngine.getObject("incoming").containsKey("decrypted"));
     }
 
     @Test
@@ -0,0 +1,257 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, you can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.mozilla.gecko.telemetry.stores;
+
+import android.os.Parcel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.telemetry.TelemetryLocalPing;
+import org.mozilla.gecko.telemetry.TelemetryOutgoingPing;
+import org.mozilla.gecko.telemetry.TelemetryPing;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test methods of the {@link TelemetrySegmentedPingStore} class.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TestTelemetrySegmentedPingStore {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+    private File testDir;
+    private TelemetrySegmentedPingStore testStore;
+
+    @Before
+    public void setUp() throws Exception {
+        testDir = tempDir.newFolder();
+        testStore = new TelemetrySegmentedPingStore(testDir, "");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PingSegmentLog.forgetDirectory(testDir);
+    }
+
+    private TelemetrySegmentedPingStore reopenStore() {
+        PingSegmentLog.forgetDirectory(testDir);
+        return new TelemetrySegmentedPingStore(testDir, "");
+    }
+
+    private static ExtendedJSONObject generateTelemetryPayload(final int i) {
+        final ExtendedJSONObject out = new ExtendedJSONObject();
+        out.put("str", "a String");
+        out.put("int", i);
+        return out;
+    }
+
+    private List<String> storePings(final int count) throws Exception {
+        final List<String> docIDs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String docID = UUID.randomUUID().toString();
+            testStore.storePing(new TelemetryOutgoingPing("a/server/url/" + i, generateTelemetryPayload(i), docID));
+            docIDs.add(docID);
+        }
+        return docIDs;
+    }
+
+    private static List<String> getDocIDs(final List<TelemetryPing> pings) {
+        final List<String> docIDs = new ArrayList<>();
+        for (final TelemetryPing ping : pings) {
+            docIDs.add(ping.getDocID());
+        }
+        return docIDs;
+    }
+
+    private int getSegmentCount() {
+        int count = 0;
+        for (final String name : testDir.list()) {
+            if (name.startsWith("seg-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testStoredPingsAreReadInOrder() throws Exception {
+        final List<String> docIDs = storePings(20);
+        testStore.storePing(new TelemetryLocalPing(generateTelemetryPayload(20), "local"));
+
+        final List<TelemetryPing> pings = testStore.getAllPings();
+        assertEquals("Store contains all pings", 21, testStore.getCount());
+        assertEquals("Pings are read oldest to newest", docIDs, getDocIDs(pings).subList(0, 20));
+
+        final TelemetryPing ping = pings.get(3);
+        assertEquals("Ping url path is correct", "a/server/url/3", ping.getURLPath());
+        assertEquals("Payload is correct", 3, (int) ping.getPayload().getIntegerSafely("int"));
+        assertEquals("Payload is correct", "a String", ping.getPayload().getString("str"));
+
+        final TelemetryPing localPing = pings.get(20);
+        assertTrue("Local ping is read as a local ping", localPing instanceof TelemetryLocalPing);
+        assertNull("Local ping has no url path", localPing.getURLPath());
+
+        assertEquals("Pings survive reopening the store", getDocIDs(pings), getDocIDs(reopenStore().getAllPings()));
+    }
+
+    @Test
+    public void testPingsAreReadInBatches() throws Exception {
+        final List<String> docIDs = storePings(25);
+
+        final List<Integer> batchSizes = new ArrayList<>();
+        final List<String> readDocIDs = new ArrayList<>();
+        testStore.forEachPingBatch(10, new TelemetryPingStore.PingBatchCallback() {
+            @Override
+            public boolean onPingBatch(final List<TelemetryPing> pings) {
+                batchSizes.add(pings.size());
+                readDocIDs.addAll(getDocIDs(pings));
+                return true;
+            }
+        });
+        assertEquals("Pings are split into batches", Arrays.asList(10, 10, 5), batchSizes);
+        assertEquals("Batches are read oldest to newest", docIDs, readDocIDs);
+
+        batchSizes.clear();
+        testStore.forEachPingBatch(10, new TelemetryPingStore.PingBatchCallback() {
+            @Override
+            public boolean onPingBatch(final List<TelemetryPing> pings) {
+                batchSizes.add(pings.size());
+                return false;
+            }
+        });
+        assertEquals("Reading stops when asked to", Arrays.asList(10), batchSizes);
+    }
+
+    @Test
+    public void testUploadedPingsAreRemoved() throws Exception {
+        final List<String> docIDs = storePings(20);
+
+        testStore.onUploadAttemptComplete(new HashSet<>(docIDs.subList(0, 10)));
+        assertEquals("Uploaded pings are removed", docIDs.subList(10, 20), getDocIDs(testStore.getAllPings()));
+        assertFalse("Segments without pings are deleted", new File(testDir, "seg-0").exists());
+
+        final TelemetrySegmentedPingStore reopenedStore = reopenStore();
+        assertEquals("Removals survive reopening the store", docIDs.subList(10, 20),
+                getDocIDs(reopenedStore.getAllPings()));
+
+        reopenedStore.onUploadAttemptComplete(new HashSet<>(docIDs));
+        assertEquals("All pings are removed", 0, reopenedStore.getCount());
+        assertEquals("Only the active segment is left", 1, getSegmentCount());
+    }
+
+    @Test
+    public void testPruningDropsOldestSegments() throws Exception {
+        final int count = TelemetrySegmentedPingStore.MAX_PING_COUNT + 3 * PingSegmentLog.MAX_RECORDS_PER_SEGMENT;
+        final List<String> docIDs = storePings(count);
+
+        testStore.maybePrunePings();
+        final List<String> remainingDocIDs = getDocIDs(testStore.getAllPings());
+        assertTrue("Store was pruned", remainingDocIDs.size() <= TelemetrySegmentedPingStore.MAX_PING_COUNT);
+        assertTrue("At most one segment more than needed was dropped",
+                remainingDocIDs.size() > TelemetrySegmentedPingStore.MAX_PING_COUNT - PingSegmentLog.MAX_RECORDS_PER_SEGMENT);
+        assertEquals("Newest pings are kept", docIDs.subList(count - remainingDocIDs.size(), count), remainingDocIDs);
+        assertEquals("Pruning survives reopening the store", remainingDocIDs, getDocIDs(reopenStore().getAllPings()));
+    }
+
+    @Test
+    public void testTornRecordIsTruncated() throws Exception {
+        final List<String> docIDs = storePings(3);
+
+        final File segment = new File(testDir, "seg-0");
+        final long length = segment.length();
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(length - 5);
+        file.close();
+
+        final TelemetrySegmentedPingStore reopenedStore = reopenStore();
+        assertEquals("Complete pings are kept", docIDs.subList(0, 2), getDocIDs(reopenedStore.getAllPings()));
+
+        final List<String> newDocIDs = new ArrayList<>(docIDs.subList(0, 2));
+        newDocIDs.add("new");
+        reopenedStore.storePing(new TelemetryOutgoingPing("a/server/url", generateTelemetryPayload(3), "new"));
+        assertEquals("Pings are appended after the truncated record", newDocIDs,
+                getDocIDs(reopenStore().getAllPings()));
+    }
+
+    @Test
+    public void testChangesByOtherProcessesAreSeen() throws Exception {
+        final List<String> docIDs = storePings(5);
+
+        // Another process has its own log for the same directory.
+        final TelemetrySegmentedPingStore otherStore = reopenStore();
+        final String otherDocID = UUID.randomUUID().toString();
+        otherStore.storePing(new TelemetryOutgoingPing("a/server/url", generateTelemetryPayload(5), otherDocID));
+        docIDs.add(otherDocID);
+        assertEquals("Appended pings are seen", docIDs, getDocIDs(testStore.getAllPings()));
+
+        docIDs.addAll(storePings(2 * PingSegmentLog.MAX_RECORDS_PER_SEGMENT));
+        assertEquals("Appended segments are seen", docIDs, getDocIDs(otherStore.getAllPings()));
+
+        otherStore.onUploadAttemptComplete(new HashSet<>(docIDs.subList(0, PingSegmentLog.MAX_RECORDS_PER_SEGMENT)));
+        assertFalse("Segments without pings are deleted", new File(testDir, "seg-0").exists());
+        final List<String> remainingDocIDs = docIDs.subList(PingSegmentLog.MAX_RECORDS_PER_SEGMENT, docIDs.size());
+        assertEquals("Removed pings are seen", remainingDocIDs.size(), testStore.getCount());
+        assertEquals("Removed pings are seen", remainingDocIDs, getDocIDs(testStore.getAllPings()));
+
+        // Both processes keep appending to the same segments.
+        final String newDocID = UUID.randomUUID().toString();
+        testStore.storePing(new TelemetryOutgoingPing("a/server/url", generateTelemetryPayload(6), newDocID));
+        final List<String> newDocIDs = new ArrayList<>(remainingDocIDs);
+        newDocIDs.add(newDocID);
+        assertEquals("Pings are appended after the other process's", newDocIDs, getDocIDs(otherStore.getAllPings()));
+        assertEquals("Log is intact", newDocIDs, getDocIDs(reopenStore().getAllPings()));
+    }
+
+    @Test
+    public void testJSONFilePingsAreImported() throws Exception {
+        final File legacyDir = tempDir.newFolder();
+        final TelemetryJSONFilePingStore legacyStore = new TelemetryJSONFilePingStore(legacyDir, "");
+        final String docID = UUID.randomUUID().toString();
+        legacyStore.storePing(generateTelemetryPayload(7), docID, "a/server/url");
+
+        final TelemetrySegmentedPingStore store = new TelemetrySegmentedPingStore(legacyDir, "");
+        try {
+            final List<TelemetryPing> pings = store.getAllPings();
+            assertEquals("Legacy ping is imported", 1, pings.size());
+            assertEquals("Doc ID is kept", docID, pings.get(0).getDocID());
+            assertEquals("Url path is kept", "a/server/url", pings.get(0).getURLPath());
+            assertEquals("Payload is kept", 7, (int) pings.get(0).getPayload().getIntegerSafely("int"));
+            assertFalse("Legacy ping file is deleted", new File(legacyDir, docID).exists());
+        } finally {
+            PingSegmentLog.forgetDirectory(legacyDir);
+        }
+    }
+
+    @Test
+    public void testParcelable() throws Exception {
+        final List<String> docIDs = storePings(2);
+
+        final Parcel parcel = Parcel.obtain();
+        testStore.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        final TelemetrySegmentedPingStore store = TelemetrySegmentedPingStore.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertEquals("Profile name is kept", testStore.getProfileName(), store.getProfileName());
+        assertEquals("Unparcelled store reads the same pings", docIDs, getDocIDs(store.getAllPings()));
+    }
+}
@@ -0,0 +1,324 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.updater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestPackageDownloader {
+    private static final int PACKAGE_SIZE = 300 * 1024;
+    private static final int BUFFER_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private HttpServer server;
+    private URI uri;
+
+    private volatile byte[] body;
+    private volatile String etag;
+    // Replaces body after the next dropped connection, as if a new package was published.
+    private volatile byte[] nextBody;
+    // For each upcoming response, the number of body bytes after which the connection is dropped.
+    private final Queue<Integer> drops = new LinkedList<>();
+    // Range header of each request, or null.
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    private static byte[] createPackage(long seed) {
+        final byte[] bytes = new byte[PACKAGE_SIZE];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String hash(byte[] bytes) throws Exception {
+        return PackageVerifier.toHexString(MessageDigest.getInstance("SHA-512").digest(bytes));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        body = createPackage(1);
+        etag = "\"v1\"";
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/fennec.apk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final String range = exchange.getRequestHeaders().getFirst("Range");
+                final String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                ranges.add(range);
+
+                int start = 0;
+                if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                    start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                }
+                if (start >= body.length) {
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (start > 0) {
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + start + "-" + (body.length - 1) + "/" + body.length);
+                    exchange.sendResponseHeaders(206, body.length - start);
+                } else {
+                    exchange.sendResponseHeaders(200, body.length);
+                }
+
+                final Integer drop;
+                synchronized (drops) {
+                    drop = drops.poll();
+                }
+                final int end = drop != null ? Math.min(body.length, start + drop) : body.length;
+
+                final OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body, start, end - start);
+                    out.flush();
+                    bytesServed.addAndGet(end - start);
+                    // Closing a fixed length response before all of it was written drops the
+                    // connection.
+                    out.close();
+                } catch (IOException e) {
+                    // Expected when dropping the connection.
+                } finally {
+                    exchange.close();
+                }
+
+                if (end < body.length && nextBody != null) {
+                    body = nextBody;
+                    etag = "\"v2\"";
+                    nextBody = null;
+                }
+            }
+        });
+        server.start();
+
+        uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/fennec.apk");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void dropConnectionsAfter(Integer... bytes) {
+        synchronized (drops) {
+            Collections.addAll(drops, bytes);
+        }
+    }
+
+    private PackageDownloader createDownloader(File file, String hashValue) throws Exception {
+        final PackageDownloader downloader = new PackageDownloader(
+                uri, file, MessageDigest.getInstance("SHA-512"), hashValue, BUFFER_SIZE);
+        downloader.setRetryPolicy(5, 10, 1000);
+        return downloader;
+    }
+
+    private static class TestListener implements PackageDownloader.Listener {
+        long cancelAfter = Long.MAX_VALUE;
+        long bytesRead;
+        long length;
+        String validator;
+
+        @Override
+        public boolean isCanceled() {
+            return bytesRead >= cancelAfter;
+        }
+
+        @Override
+        public void onProgress(long bytesRead, long length) {
+            this.bytesRead = bytesRead;
+            this.length = length;
+        }
+
+        @Override
+        public void onValidator(String validator) {
+            this.validator = validator;
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void testDownloadIsVerifiedWhileWriting() throws Exception {
+        final File file = new File(tempDir.getRoot(), "fennec.apk");
+        final PackageDownloader downloader = createDownloader(file, hash(body));
+        final TestListener listener = new TestListener();
+
+        assertEquals(file, downloader.download(listener));
+        assertArrayEquals(body, readFully(file));
+        assertFalse(downloader.getPartialFile().exists());
+        assertEquals(PACKAGE_SIZE, listener.bytesRead);
+        assertEquals(PACKAGE_SIZE, listener.length);
+        assertEquals(1, ranges.size());
+    }
+
+    @Test
+    public void testDroppedConnectionsAreResumed() throws Exception {
+        dropConnectionsAfter(50000, 100000, 1);
+
+        final File file = new File(tempDir.getRoot(), "fennec.apk");
+        final PackageDownloader downloader = createDownloader(file, hash(body));
+
+        assertEquals(file, downloader.download(new TestListener()));
+        assertArrayEquals(body, readFully(file));
+
+        assertEquals(4, ranges.size());
+        assertNull(ranges.get(0));
+        assertEquals("bytes=50000-", ranges.get(1));
+        assertEquals("bytes=150000-", ranges.get(2));
+        assertEquals("bytes=150001-", ranges.get(3));
+        // Nothing was downloaded twice.
+        assertEquals(PACKAGE_SIZE, bytesServed.get());
+    }
+
+    @Test
+    public void testPartialFileIsResumedByLaterDownload() throws Exception {
+        dropConnectionsAfter(120000);
+
+        final File file = new File(tempDir.getRoot(), "fennec.apk");
+        final PackageDownloader first = createDownloader(file, hash(body));
+        first.setRetryPolicy(1, 0, 1000);
+        try {
+            first.download(new TestListener());
+            fail("Expected the dropped connection to fail the download");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertFalse(file.exists());
+        assertEquals(120000, first.getPartialFile().length());
+
+        // As after a restart: the hash of the partial download is rebuilt from disk.
+        final PackageDownloader second = createDownloader(file, hash(body));
+        assertEquals(file, second.download(new TestListener()));
+        assertArrayEquals(body, readFully(file));
+        assertEquals("bytes=120000-", ranges.get(1));
+        assertEquals(PACKAGE_SIZE, bytesServed.get());
+    }
+
+    @Test
+    public void testPackageChangedBeforeLaterDownloadStartsOver() throws Exception {
+        dropConnectionsAfter(120000);
+        final String nextHash = hash(createPackage(2));
+        nextBody = createPackage(2);
+
+        final File file = new File(tempDir.getRoot(), "fennec.apk");
+        final PackageDownloader first = createDownloader(file, nextHash);
+        first.setRetryPolicy(1, 0, 1000);
+        final TestListener listener = new TestListener();
+        try {
+            first.download(listener);
+            fail("Expected the dropped connection to fail the download");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals("\"v1\"", listener.validator);
+
+        // As after a restart, with the saved validator: the server sends all of the new package
+        // instead of the rest of it.
+        final PackageDownloader second = createDownloader(file, nextHash);
+        second.setValidator(listener.validator);
+        assertEquals(file, second.download(new TestListener()));
+        assertArrayEquals(body, readFully(file));
+        assertEquals("bytes=120000-", ranges.get(1));
+        assertEquals(120000 + PACKAGE_SIZE, bytesServed.get());
+    }
+
+    @Test
+    public void testChangedPackageStartsOver() throws Exception {
+        dropConnectionsAfter(120000);
+        nextBody = createPackage(2);
+
+        final File file = new File(tempDir.getRoot(), "fennec.apk");
+        final PackageDownloader downloader = createDownloader(file, hash(nextBody));
+
+        // The resumed request doesn't match the first package, so the server sends all of the new one.
+        assertEquals(file, downloader.download(new TestListener()));
+        assertArrayEquals(body, readFully(file));
+        assertEquals("bytes=120000-", ranges.get(1));
+        assertEquals(120000 + PACKAGE_SIZE, bytesServed.get());
+    }
+
+    @Test
+    public void testHashMismatchDiscardsDownload() throws Exception {
+        final File file = new File(tempDir.getRoot(), "fennec.apk");
+        final PackageDownloader downloader = createDownloader(file, hash(createPackage(2)));
+
+        assertNull(downloader.download(new TestListener()));
+        assertFalse(file.exists());
+        assertFalse(downloader.getPartialFile().exists());
+    }
+
+    @Test
+    public void testCancelDiscardsDownload() throws Exception {
+        final File file = new File(tempDir.getRoot(), "fennec.apk");
+        final PackageDownloader downloader = createDownloader(file, hash(body));
+        final TestListener listener = new TestListener();
+        listener.cancelAfter = 100000;
+
+        assertNull(downloader.download(listener));
+        assertFalse(file.exists());
+        assertFalse(downloader.getPartialFile().exists());
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() throws Exception {
+        uri = uri.resolve("/missing.apk");
+        final File file = new File(tempDir.getRoot(), "fennec.apk");
+        final PackageDownloader downloader = createDownloader(file, hash(body));
+
+        try {
+            downloader.download(new TestListener());
+            fail("Expected a 404 to fail the download");
+        } catch (PackageDownloader.HttpStatusException e) {
+            assertEquals(404, e.status);
+        }
+        assertTrue(ranges.isEmpty());
+    }
+}
@@ -0,0 +1,75 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.util.publicsuffix;
+
+import android.content.Context;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestPublicSuffixTrie {
+    private Context context;
+    private List<String> rules;
+
+    @Before
+    public void setUp() throws IOException {
+        context = RuntimeEnvironment.application;
+        rules = readRules();
+    }
+
+    private List<String> readRules() throws IOException {
+        final List<String> rules = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                getClass().getResourceAsStream("/publicsuffixlist"), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                rules.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return rules;
+    }
+
+    @Test
+    public void testEveryRuleIsAPublicSuffix() {
+        for (String rule : rules) {
+            // Names under wildcard rules have a longer public suffix.
+            final String suffix = PublicSuffix.getPublicSuffix(context, "www.example." + rule, 0);
+            Assert.assertTrue(rule, suffix.endsWith(rule));
+            Assert.assertTrue(rule, PublicSuffix.stripPublicSuffix(context, "www.example." + rule).startsWith("www"));
+        }
+    }
+
+    @Test
+    public void testWildcardAndExceptionRules() {
+        // *.ck
+        Assert.assertEquals("www",
+                PublicSuffix.stripPublicSuffix(context, "www.example.ck"));
+        // !www.ck
+        Assert.assertEquals("www",
+                PublicSuffix.stripPublicSuffix(context, "www.ck"));
+        Assert.assertEquals("foo.www",
+                PublicSuffix.stripPublicSuffix(context, "foo.www.ck"));
+        // *.kobe.jp, !city.kobe.jp
+        Assert.assertEquals("example",
+                PublicSuffix.stripPublicSuffix(context, "example.chuo.kobe.jp"));
+        Assert.assertEquals("example.city",
+                PublicSuffix.stripPublicSuffix(context, "example.city.kobe.jp"));
+        Assert.assertEquals("city.kobe.jp",
+                PublicSuffix.getPublicSuffix(context, "example.city.kobe.jp", 1));
+    }
+}
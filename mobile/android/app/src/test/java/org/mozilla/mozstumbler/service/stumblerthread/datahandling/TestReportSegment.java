@@ -0,0 +1,212 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowScanResult;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestReportSegment {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static StumblerBundle createBundle(double lat, double lon, int firstWifi, int wifiCount, int cellCount, float pressure) {
+        final Location location = new Location("gps");
+        location.setTime(1500000000000L + firstWifi);
+        location.setLatitude(lat);
+        location.setLongitude(lon);
+        location.setBearing(12.3f);
+        location.setSpeed(4.5f);
+        location.setElapsedRealtimeNanos(5000000000L);
+        if (pressure != 0) {
+            location.setAccuracy(7.2f);
+            location.setAltitude(101.6);
+        }
+
+        final StumblerBundle bundle = new StumblerBundle(location, TelephonyManager.PHONE_TYPE_GSM);
+        if (pressure != 0) {
+            bundle.addPressure(pressure);
+        }
+        for (int i = 0; i < wifiCount; i++) {
+            final String bssid = String.format("%012x", 0xa0b0c0d0e000L + firstWifi + i);
+            final ScanResult wifi = ShadowScanResult.newInstance("wifi" + i, bssid, "", -40 - i, i % 2 == 0 ? 2412 : 5180);
+            wifi.timestamp = 4990000000L + i * 1000;
+            bundle.getWifiData().put(wifi.BSSID, wifi);
+        }
+        for (int i = 0; i < cellCount; i++) {
+            final CellInfo cell = new CellInfo(TelephonyManager.PHONE_TYPE_GSM);
+            cell.setWcmdaCellInfo(262, 1, 1000 + i, 50000 + i, 100 + i, 20);
+            bundle.getCellData().put(cell.getCellIdentity(), cell);
+        }
+        return bundle;
+    }
+
+    /**
+     * The JSON StumblerBundle.toMLSJSON() produced for a report, before reports were stored in segments.
+     */
+    private static JSONObject toMLSJSON(StumblerBundle bundle, float pressure) throws JSONException {
+        final Location location = bundle.getGpsPosition();
+        final JSONObject item = new JSONObject();
+        item.put(DataStorageContract.ReportsColumns.TIME, location.getTime());
+        item.put(DataStorageContract.ReportsColumns.LAT, Math.floor(location.getLatitude() * 1.0E6) / 1.0E6);
+        item.put(DataStorageContract.ReportsColumns.LON, Math.floor(location.getLongitude() * 1.0E6) / 1.0E6);
+        item.put(DataStorageContract.ReportsColumns.HEADING, location.getBearing());
+        item.put(DataStorageContract.ReportsColumns.SPEED, location.getSpeed());
+        if (pressure != 0) {
+            item.put(DataStorageContract.ReportsColumns.PRESSURE, pressure);
+        }
+        if (location.hasAccuracy()) {
+            item.put(DataStorageContract.ReportsColumns.ACCURACY, (int) Math.ceil(location.getAccuracy()));
+        }
+        if (location.hasAltitude()) {
+            item.put(DataStorageContract.ReportsColumns.ALTITUDE, Math.round(location.getAltitude()));
+        }
+        item.put(DataStorageContract.ReportsColumns.RADIO, "gsm");
+
+        final JSONArray cells = new JSONArray();
+        for (CellInfo cell : bundle.getCellData().values()) {
+            cells.put(cell.toJSONObject());
+        }
+        item.put(DataStorageContract.ReportsColumns.CELL, cells);
+        item.put(DataStorageContract.ReportsColumns.CELL_COUNT, cells.length());
+
+        final JSONArray wifis = new JSONArray();
+        final long gpsTimeSinceBootInMS = location.getElapsedRealtimeNanos() / 1000000;
+        for (ScanResult wifi : bundle.getWifiData().values()) {
+            final JSONObject entry = new JSONObject();
+            entry.put("key", wifi.BSSID);
+            entry.put("frequency", wifi.frequency);
+            entry.put("signal", wifi.level);
+            entry.put("age", wifi.timestamp / 1000 - gpsTimeSinceBootInMS);
+            wifis.put(entry);
+        }
+        item.put(DataStorageContract.ReportsColumns.WIFI, wifis);
+        item.put(DataStorageContract.ReportsColumns.WIFI_COUNT, wifis.length());
+        return item;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    private File writeFile(String name, byte[] bytes) throws IOException {
+        final File file = tempDir.newFile(name);
+        final FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static int countReports(File file) throws IOException {
+        final ReportSegmentReader reader = new ReportSegmentReader(file);
+        try {
+            int count = 0;
+            while (reader.next() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testRoundTripMatchesMLSJSON() throws Exception {
+        final StumblerBundle first = createBundle(52.5200066, 13.404954, 0, 5, 2, 1013.25f);
+        final StumblerBundle second = createBundle(-33.8688197, 151.2092955, 100, 3, 0, 0);
+        final File file = tempDir.newFile("segment.gz");
+
+        final ReportSegmentWriter writer = new ReportSegmentWriter(file);
+        assertTrue(writer.write(first));
+        assertTrue(writer.write(second));
+        // At the same location, two of the wifis were already written and two are new.
+        assertTrue(writer.write(createBundle(-33.86882, 151.20925, 101, 4, 0, 0)));
+        // Nothing new at the same location.
+        assertFalse(writer.write(createBundle(-33.86882, 151.20925, 100, 5, 0, 0)));
+        assertEquals(3, writer.getReportCount());
+        assertEquals(5 + 3 + 2, writer.getWifiCount());
+        assertEquals(2, writer.getCellCount());
+        writer.close();
+
+        final ReportSegmentReader reader = new ReportSegmentReader(file);
+        try {
+            assertEquals(toMLSJSON(first, 1013.25f).toString(), reader.next().toString());
+            assertEquals(toMLSJSON(second, 0).toString(), reader.next().toString());
+            final JSONObject third = reader.next();
+            assertEquals(2, third.getInt(DataStorageContract.ReportsColumns.WIFI_COUNT));
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testTruncatedSegmentIsReadUpToLastCompleteReport() throws Exception {
+        final File file = tempDir.newFile("open.gz");
+        final ReportSegmentWriter writer = new ReportSegmentWriter(file);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(writer.write(createBundle(10 + i, 20, i * 10, 5, 1, 0)));
+        }
+
+        // As if the process was killed: the segment was never closed.
+        final byte[] unfinished = readFully(file);
+        writer.close();
+        assertEquals(3, countReports(writeFile("unfinished.gz", unfinished)));
+
+        // Cut short at any point, complete reports are still read, and the rest is dropped.
+        int previous = 0;
+        for (int length = 0; length < unfinished.length; length++) {
+            final int count = countReports(writeFile("truncated" + length + ".gz", Arrays.copyOf(unfinished, length)));
+            assertTrue(count >= previous && count <= 3);
+            previous = count;
+        }
+        assertTrue(previous >= 2);
+
+        // Corrupt data ends the segment rather than failing.
+        final byte[] corrupt = unfinished.clone();
+        corrupt[corrupt.length / 2] ^= 0x55;
+        final ReportSegmentReader reader = new ReportSegmentReader(writeFile("corrupt.gz", corrupt));
+        try {
+            JSONObject report;
+            do {
+                report = reader.next();
+            } while (report != null);
+        } finally {
+            reader.close();
+        }
+    }
+}
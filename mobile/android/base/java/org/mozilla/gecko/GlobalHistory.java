@@ -5,9 +5,11 @@
 
 package org.mozilla.gecko;
 
-import java.lang.ref.SoftReference;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 
@@ -45,77 +47,208 @@ class GlobalHistory {
     // which is more efficient.
     private static final long BATCHING_DELAY_MS = 100;
 
+    // History can also be added behind our back, e.g. by Sync, so every so often we pick up
+    // recently modified history items which are missing from the visited link filter.
+    private static final long CATCH_UP_INTERVAL_MS = 60 * 1000;
+
+    // Keep well below SQLite's limit on the number of selection arguments.
+    private static final int MAX_URLS_PER_QUERY = 500;
+
+    private static final String VISITED_FILTER_FILENAME = "visited-links.bloom";
+
     private final Handler mHandler;                     // a background thread on which we can process requests
 
     //  Note: These fields are accessed through the NotificationRunnable inner class.
     final Queue<String> mPendingUris;           // URIs that need to be checked
-    SoftReference<Set<String>> mVisitedCache;   // cache of the visited URI list
+    // Filter over the visited URI list, once loaded. Published from the handler thread, but also
+    // read from others (addToGeckoOnly, memory dumps), hence volatile.
+    volatile VisitedLinkFilter mVisitedFilter;
+    long mLastCatchUp;                          // uptime at which the filter last caught up with the DB
     boolean mProcessing; // = false             // whether or not the runnable is queued/working
 
     private class NotifierRunnable implements Runnable {
+        private final Context mContext;
         private final ContentResolver mContentResolver;
         private final BrowserDB mDB;
 
         public NotifierRunnable(final Context context) {
+            mContext = context;
             mContentResolver = context.getContentResolver();
             mDB = BrowserDB.from(context);
         }
 
         @Override
         public void run() {
-            Set<String> visitedSet = mVisitedCache.get();
-            if (visitedSet == null) {
-                // The cache was wiped. Repopulate it.
-                Log.w(LOGTAG, "Rebuilding visited link set...");
-                final long start = SystemClock.uptimeMillis();
-                final Cursor c = mDB.getAllVisitedHistory(mContentResolver);
-                if (c == null) {
-                    return;
-                }
-
-                try {
-                    visitedSet = new HashSet<String>();
-                    if (c.moveToFirst()) {
-                        do {
-                            visitedSet.add(c.getString(0));
-                        } while (c.moveToNext());
-                    }
-                    mVisitedCache = new SoftReference<Set<String>>(visitedSet);
-                    final long end = SystemClock.uptimeMillis();
-                    final long took = end - start;
-                    Telemetry.addToHistogram(TELEMETRY_HISTOGRAM_BUILD_VISITED_LINK, (int) Math.min(took, Integer.MAX_VALUE));
-                } finally {
-                    c.close();
-                }
-            }
-
             // This runs on the same handler thread as the checkUriVisited code,
             // so no synchronization is needed.
+            final VisitedLinkFilter filter = ensureVisitedFilter(mContext, mContentResolver, mDB);
+            if (filter == null) {
+                // Try again with the next request.
+                mProcessing = false;
+                return;
+            }
+
+            // Most links haven't been visited, and the filter rules those out without a query.
+            final Set<String> candidates = new HashSet<String>();
             while (true) {
                 final String uri = mPendingUris.poll();
                 if (uri == null) {
                     break;
                 }
 
-                if (visitedSet.contains(uri)) {
-                    GeckoAppShell.notifyUriVisited(uri);
+                if (filter.mightContain(uri)) {
+                    candidates.add(uri);
                 }
             }
 
+            if (!candidates.isEmpty()) {
+                notifyVisited(mContentResolver, mDB, candidates);
+            }
+
             mProcessing = false;
         }
     };
 
+    /**
+     * Load the visited link filter if necessary, and bring it up to date with the database.
+     * Must be called on the handler thread.
+     *
+     * @return the filter, or null if history couldn't be read.
+     */
+    private VisitedLinkFilter ensureVisitedFilter(final Context context, final ContentResolver cr, final BrowserDB db) {
+        final boolean isFirstUse = mVisitedFilter == null;
+        if (isFirstUse) {
+            final File file = getVisitedFilterFile(context);
+            if (file != null) {
+                mVisitedFilter = VisitedLinkFilter.open(file);
+            }
+        }
+
+        final long start = SystemClock.uptimeMillis();
+        if (mVisitedFilter == null || mVisitedFilter.isOverCapacity()) {
+            Log.w(LOGTAG, "Rebuilding visited link filter...");
+            mVisitedFilter = rebuildVisitedFilter(context, cr, db);
+        } else if (isFirstUse || start - mLastCatchUp >= CATCH_UP_INTERVAL_MS) {
+            if (!catchUpVisitedFilter(cr, db, mVisitedFilter)) {
+                return null;
+            }
+        } else {
+            return mVisitedFilter;
+        }
+
+        if (mVisitedFilter == null) {
+            return null;
+        }
+        mLastCatchUp = start;
+
+        // Periodic catch-ups are cheap and would drown out the cost of making the filter usable.
+        if (isFirstUse) {
+            final long took = SystemClock.uptimeMillis() - start;
+            Telemetry.addToHistogram(TELEMETRY_HISTOGRAM_BUILD_VISITED_LINK, (int) Math.min(took, Integer.MAX_VALUE));
+        }
+        return mVisitedFilter;
+    }
+
+    private static File getVisitedFilterFile(final Context context) {
+        return GeckoProfile.get(context).getFile(VISITED_FILTER_FILENAME);
+    }
+
+    private static VisitedLinkFilter rebuildVisitedFilter(final Context context, final ContentResolver cr, final BrowserDB db) {
+        // Anything modified after we start reading will be picked up by the next catch-up.
+        final long timestamp = System.currentTimeMillis();
+        final Cursor c = db.getAllVisitedHistory(cr);
+        if (c == null) {
+            return null;
+        }
+
+        try {
+            final VisitedLinkFilter filter = VisitedLinkFilter.create(getVisitedFilterFile(context), c.getCount());
+            while (c.moveToNext()) {
+                filter.add(c.getString(0));
+            }
+            filter.setTimestamp(timestamp);
+            Log.d(LOGTAG, "Built visited link filter of " + filter.getSizeInBytes() + " bytes for " +
+                    filter.getItemCount() + " URIs.");
+            return filter;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static boolean catchUpVisitedFilter(final ContentResolver cr, final BrowserDB db, final VisitedLinkFilter filter) {
+        final long timestamp = System.currentTimeMillis();
+        final Cursor c = db.getVisitedHistorySince(cr, filter.getTimestamp());
+        if (c == null) {
+            return false;
+        }
+
+        try {
+            while (c.moveToNext()) {
+                filter.add(c.getString(0));
+            }
+            filter.setTimestamp(timestamp);
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Confirm which of the URIs the filter matched were really visited, and tell Gecko about them.
+     */
+    private static void notifyVisited(final ContentResolver cr, final BrowserDB db, final Set<String> candidates) {
+        final List<String> chunk = new ArrayList<String>(Math.min(candidates.size(), MAX_URLS_PER_QUERY));
+        for (final String uri : candidates) {
+            chunk.add(uri);
+            if (chunk.size() == MAX_URLS_PER_QUERY) {
+                notifyVisitedChunk(cr, db, chunk);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            notifyVisitedChunk(cr, db, chunk);
+        }
+    }
+
+    private static void notifyVisitedChunk(final ContentResolver cr, final BrowserDB db, final List<String> uris) {
+        final Cursor c = db.getVisitedURLs(cr, uris);
+        if (c == null) {
+            return;
+        }
+
+        try {
+            while (c.moveToNext()) {
+                GeckoAppShell.notifyUriVisited(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     private GlobalHistory() {
         mHandler = ThreadUtils.getBackgroundHandler();
         mPendingUris = new LinkedList<String>();
-        mVisitedCache = new SoftReference<Set<String>>(null);
+
+        // The filter is memory-mapped, so the OS pages it out under pressure by itself; it is only
+        // registered to show up in cache dumps.
+        MemoryCacheRegistry.getInstance().register("visited links", MemoryCacheRegistry.PRIORITY_HIGH,
+                new MemoryCacheRegistry.Cache() {
+                    @Override
+                    public long getSizeInBytes() {
+                        final VisitedLinkFilter filter = mVisitedFilter;
+                        return filter != null ? filter.getSizeInBytes() : 0;
+                    }
+
+                    @Override
+                    public void setBudgetFraction(float fraction) { }
+                });
     }
 
     public void addToGeckoOnly(String uri) {
-        Set<String> visitedSet = mVisitedCache.get();
-        if (visitedSet != null) {
-            visitedSet.add(uri);
+        // If the filter isn't loaded yet, the next catch-up will pick this visit up from the DB.
+        final VisitedLinkFilter filter = mVisitedFilter;
+        if (filter != null) {
+            filter.add(uri);
         }
         GeckoAppShell.notifyUriVisited(uri);
     }
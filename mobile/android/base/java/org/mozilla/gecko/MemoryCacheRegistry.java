@@ -0,0 +1,160 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registry of the in-memory caches that should give memory back when the system runs low on it.
+ *
+ * {@link MemoryMonitor} sets a budget fraction for each memory pressure level, and lets it grow
+ * back to 1 as the pressure goes away. Each cache is asked to shrink to a share of its default
+ * budget that depends on its priority: low priority caches, which are cheap to refill, give up
+ * more than high priority ones.
+ *
+ * Caches are called without the registry lock held, and must be thread-safe.
+ */
+public final class MemoryCacheRegistry {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    // The budget fraction is raised to these powers, so e.g. at 1/4 low, normal and high priority
+    // caches keep 1/16, 1/4 and 1/2 of their budgets.
+    private static final float[] PRIORITY_EXPONENTS = { 2f, 1f, 0.5f };
+
+    public interface Cache {
+        /**
+         * @return The memory currently used by the cache, in bytes.
+         */
+        long getSizeInBytes();
+
+        /**
+         * Use only a fraction of the default budget, evicting entries if necessary. Called with a
+         * fraction of 1 to restore the default budget.
+         *
+         * @param fraction Share of the default budget, in (0, 1].
+         */
+        void setBudgetFraction(float fraction);
+    }
+
+    private static final class Entry {
+        final String name;
+        final int priority;
+        final Cache cache;
+
+        Entry(final String name, final int priority, final Cache cache) {
+            this.name = name;
+            this.priority = priority;
+            this.cache = cache;
+        }
+    }
+
+    private static final MemoryCacheRegistry sInstance = new MemoryCacheRegistry();
+
+    public static MemoryCacheRegistry getInstance() {
+        return sInstance;
+    }
+
+    private final List<Entry> mEntries = new ArrayList<>();   // Synchronized access only.
+    private float mBudgetFraction = 1f;                       // Synchronized access only.
+
+    @VisibleForTesting
+    /* package-private */ MemoryCacheRegistry() {
+    }
+
+    /**
+     * Register a cache. If memory is under pressure, the cache is shrunk right away.
+     *
+     * @param name Name of the cache in dumps.
+     * @param priority One of the PRIORITY_* values.
+     */
+    public void register(@NonNull final String name, final int priority, @NonNull final Cache cache) {
+        if (priority < PRIORITY_LOW || priority > PRIORITY_HIGH) {
+            throw new IllegalArgumentException("Unknown priority: " + priority);
+        }
+
+        final float fraction;
+        synchronized (this) {
+            mEntries.add(new Entry(name, priority, cache));
+            fraction = mBudgetFraction;
+        }
+
+        if (fraction < 1f) {
+            cache.setBudgetFraction(getBudgetFraction(fraction, priority));
+        }
+    }
+
+    public synchronized void unregister(@NonNull final Cache cache) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (mEntries.get(i).cache == cache) {
+                mEntries.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Shrink or restore the budgets of all caches.
+     *
+     * @param fraction Share of their default budgets normal priority caches may use, in (0, 1].
+     */
+    /* package-private */ void setBudgetFraction(final float fraction) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("Fraction must be in (0, 1]: " + fraction);
+        }
+
+        final List<Entry> entries;
+        synchronized (this) {
+            mBudgetFraction = fraction;
+            entries = new ArrayList<>(mEntries);
+        }
+
+        for (final Entry entry : entries) {
+            entry.cache.setBudgetFraction(getBudgetFraction(fraction, entry.priority));
+        }
+    }
+
+    /* package-private */ synchronized float getBudgetFraction() {
+        return mBudgetFraction;
+    }
+
+    /**
+     * @param fraction Share of their default budgets normal priority caches may use, in (0, 1].
+     * @return The share of its default budget a cache of the given priority may use.
+     */
+    public static float getBudgetFraction(final float fraction, final int priority) {
+        return (float) Math.pow(fraction, PRIORITY_EXPONENTS[priority]);
+    }
+
+    /**
+     * @return One line per cache with its memory usage and budget, followed by the total.
+     */
+    /* package-private */ String dump() {
+        final List<Entry> entries;
+        final float fraction;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries);
+            fraction = mBudgetFraction;
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        long total = 0;
+        for (final Entry entry : entries) {
+            final long size = entry.cache.getSizeInBytes();
+            total += size;
+            builder.append(entry.name)
+                   .append(": ").append(size).append(" bytes")
+                   .append(", priority ").append(entry.priority)
+                   .append(", budget ").append(Math.round(getBudgetFraction(fraction, entry.priority) * 100)).append("%\n");
+        }
+        builder.append("total: ").append(total).append(" bytes");
+        return builder.toString();
+    }
+}
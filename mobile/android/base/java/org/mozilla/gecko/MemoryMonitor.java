@@ -9,7 +9,6 @@ import org.mozilla.gecko.annotation.WrapForJNI;
 import org.mozilla.gecko.db.BrowserDB;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.db.BrowserProvider;
-import org.mozilla.gecko.home.ImageLoader;
 import org.mozilla.gecko.icons.storage.MemoryStorage;
 import org.mozilla.gecko.util.ThreadUtils;
 
@@ -29,7 +28,9 @@ import android.util.Log;
   * system is under. It registers itself as a ComponentCallbacks to receive all onLowMemory()/
   * onTrimMemory() notifications for our app, and also listens for some system intents related
   * to disk-space notifications. Internally it will track how much memory and disk pressure
-  * the system is under, and perform various actions to help alleviate the pressure.
+  * the system is under, and perform various actions to help alleviate the pressure. The
+  * in-memory caches registered with {@link MemoryCacheRegistry} are shrunk in proportion to
+  * the memory pressure level.
   *
   * Note that since there is no notification for when the system has lots of free memory
   * again, this class also assumes that, over time, the system will free up memory. This
@@ -44,6 +45,7 @@ import android.util.Log;
 class MemoryMonitor extends BroadcastReceiver implements ComponentCallbacks2 {
     private static final String LOGTAG = "GeckoMemoryMonitor";
     private static final String ACTION_MEMORY_DUMP = "org.mozilla.gecko.MEMORY_DUMP";
+    private static final String ACTION_MEMORY_CACHE_DUMP = "org.mozilla.gecko.MEMORY_CACHE_DUMP";
     private static final String ACTION_FORCE_PRESSURE = "org.mozilla.gecko.FORCE_MEMORY_PRESSURE";
 
     // Memory pressure levels.
@@ -82,6 +84,7 @@ class MemoryMonitor extends BroadcastReceiver implements ComponentCallbacks2 {
         filter.addAction(Intent.ACTION_DEVICE_STORAGE_LOW);
         filter.addAction(Intent.ACTION_DEVICE_STORAGE_OK);
         filter.addAction(ACTION_MEMORY_DUMP);
+        filter.addAction(ACTION_MEMORY_CACHE_DUMP);
         filter.addAction(ACTION_FORCE_PRESSURE);
         mAppContext.registerReceiver(this, filter);
         mAppContext.registerComponentCallbacks(this);
@@ -148,6 +151,14 @@ class MemoryMonitor extends BroadcastReceiver implements ComponentCallbacks2 {
                 label = "default";
             }
             GeckoAppShell.notifyObservers("Memory:Dump", label);
+        } else if (ACTION_MEMORY_CACHE_DUMP.equals(intent.getAction())) {
+            for (String line : MemoryCacheRegistry.getInstance().dump().split("\n")) {
+                Log.i(LOGTAG, line);
+            }
+            // Hit rates of the icon caches, to tune their budgets.
+            final MemoryStorage icons = MemoryStorage.get();
+            Log.i(LOGTAG, "icon cache: " + icons.getIconCacheStats());
+            Log.i(LOGTAG, "icon mapping cache: " + icons.getMappingCacheStats());
         } else if (ACTION_FORCE_PRESSURE.equals(intent.getAction())) {
             increaseMemoryPressure(MEMORY_PRESSURE_HIGH);
         }
@@ -183,21 +194,44 @@ class MemoryMonitor extends BroadcastReceiver implements ComponentCallbacks2 {
             return false;
         }
 
-        // TODO hook in memory-reduction stuff for different levels here
+        MemoryCacheRegistry.getInstance().setBudgetFraction(getCacheBudgetFraction(level));
+
+        if (level >= MEMORY_PRESSURE_HIGH) {
+            // The icon cache shrinks with the pressure, but once memory runs out, no icon is
+            // worth keeping: they are read back from disk when needed.
+            MemoryStorage.get().evictAll();
+        }
+
         if (level >= MEMORY_PRESSURE_MEDIUM) {
             //Only send medium or higher events because that's all that is used right now
             if (GeckoThread.isRunning()) {
                 dispatchMemoryPressure();
             }
 
-            MemoryStorage.get().evictAll();
-            ImageLoader.clearLruCache();
             LocalBroadcastManager.getInstance(mAppContext)
                     .sendBroadcast(new Intent(BrowserProvider.ACTION_SHRINK_MEMORY));
         }
         return true;
     }
 
+    /**
+     * The share of their default budgets normal priority caches may use at the given pressure level.
+     */
+    private static float getCacheBudgetFraction(int level) {
+        switch (level) {
+            case MEMORY_PRESSURE_NONE:
+                return 1f;
+            case MEMORY_PRESSURE_CLEANUP:
+                return 0.5f;
+            case MEMORY_PRESSURE_LOW:
+                return 0.25f;
+            case MEMORY_PRESSURE_MEDIUM:
+                return 0.125f;
+            default:
+                return 0.0625f;
+        }
+    }
+
     /**
      * Thread-safe due to mStoragePressure's volatility.
      */
@@ -222,6 +256,9 @@ class MemoryMonitor extends BroadcastReceiver implements ComponentCallbacks2 {
         }
         Log.d(LOGTAG, "Decreased memory pressure to " + newLevel);
 
+        // Let the caches grow back step by step.
+        MemoryCacheRegistry.getInstance().setBudgetFraction(getCacheBudgetFraction(newLevel));
+
         if (newLevel == MEMORY_PRESSURE_NONE) {
             if (GeckoThread.isRunning()) {
                 dispatchMemoryPressureStop();
@@ -4,14 +4,20 @@
 
 package org.mozilla.gecko;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.mozilla.gecko.annotation.RobocopTarget;
@@ -19,13 +25,23 @@ import org.mozilla.gecko.util.HardwareUtils;
 import org.mozilla.gecko.util.ProxySelector;
 
 import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.v4.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
+
 import org.mozilla.gecko.util.NetworkUtils;
 import org.mozilla.gecko.util.StringUtils;
 
 /**
  * Use network-based search suggestions.
+ *
+ * Server results are kept in a cache shared by all clients, keyed by suggestion template and query.
+ * Each entry records whether the server returned all of its suggestions for the query; if it did, the
+ * suggestions for any longer query starting with it are found by filtering those, without another
+ * request.
  */
 public class SuggestClient {
     private static final String LOGTAG = "GeckoSuggestClient";
@@ -35,6 +51,21 @@ public class SuggestClient {
     private static final String USER_AGENT = HardwareUtils.isTablet() ?
         AppConstants.USER_AGENT_FENNEC_TABLET : AppConstants.USER_AGENT_FENNEC_MOBILE;
 
+    // How long a cancellable query waits for the user to stop typing before going to the network.
+    private static final long DEBOUNCE_MILLIS = 150;
+
+    private static final int CACHE_SIZE = 64;
+
+    // Suggestions change over time, so don't keep serving them for the whole session.
+    private static final long CACHE_EXPIRY_MILLIS = 10 * 60 * 1000;
+
+    private static final LruCache<String, ServerResults> sCache = new LruCache<>(CACHE_SIZE);
+
+    // The largest number of suggestions each server, by suggestion template, returned for a query.
+    // Servers cap the number of suggestions they return, so a shorter list holds all of the
+    // suggestions for its query. Synchronized access only.
+    private static final Map<String, Integer> sMaxServerResults = new HashMap<>();
+
     private final Context mContext;
     private final int mTimeout;
 
@@ -47,9 +78,65 @@ public class SuggestClient {
     // used by robocop for testing
     private final boolean mCheckNetwork;
 
-    // used to make suggestions appear instantly after opt-in
-    private String mPrevQuery;
-    private ArrayList<String> mPrevResults;
+    /**
+     * Suggestions returned by the server for a query, before they are capped to mMaxResults.
+     */
+    private static class ServerResults {
+        public final List<String> suggestions;
+        public final boolean isComplete;
+        public final long time;
+
+        public ServerResults(List<String> suggestions, boolean isComplete, long time) {
+            this.suggestions = suggestions;
+            this.isComplete = isComplete;
+            this.time = time;
+        }
+
+        public boolean isExpired(long now) {
+            return now - time > CACHE_EXPIRY_MILLIS;
+        }
+
+        /**
+         * @return the results for a query starting with the query these are the complete results of.
+         */
+        public ServerResults filter(String query) {
+            final ArrayList<String> filtered = new ArrayList<>();
+            for (String suggestion : suggestions) {
+                if (StringUtils.caseInsensitiveStartsWith(suggestion, query)) {
+                    filtered.add(suggestion);
+                }
+            }
+            return new ServerResults(filtered, true, time);
+        }
+    }
+
+    /**
+     * Ends the debounce wait, and aborts the request, of a query when it is cancelled.
+     */
+    private static class CancelListener implements CancellationSignal.OnCancelListener {
+        private final CountDownLatch mCancelled = new CountDownLatch(1);
+        private volatile HttpURLConnection mConnection;
+
+        @Override
+        public void onCancel() {
+            mCancelled.countDown();
+            final HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        /**
+         * @return true if the query was cancelled while waiting.
+         */
+        public boolean awaitCancelled(long millis) throws InterruptedException {
+            return mCancelled.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        public void setConnection(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+    }
 
     @RobocopTarget
     public SuggestClient(Context context, String suggestTemplate, int timeout, int maxResults, boolean checkNetwork) {
@@ -68,78 +155,160 @@ public class SuggestClient {
      * Queries for a given search term and returns an ArrayList of suggestions.
      */
     public ArrayList<String> query(String query) {
-        if (query.equals(mPrevQuery))
-            return mPrevResults;
+        return query(query, null);
+    }
 
-        ArrayList<String> suggestions = new ArrayList<String>();
+    /**
+     * Queries for a given search term and returns an ArrayList of suggestions. A query that can be
+     * cancelled, because the user may type on, waits for a moment before going to the network; once
+     * cancelled it returns no suggestions.
+     */
+    public ArrayList<String> query(String query, @Nullable CancellationSignal cancellationSignal) {
         if (TextUtils.isEmpty(mSuggestTemplate) || TextUtils.isEmpty(query)) {
-            return suggestions;
+            return new ArrayList<String>();
+        }
+
+        ServerResults results = getCachedResults(query);
+        if (results == null) {
+            if (!NetworkUtils.isConnected(mContext) && mCheckNetwork) {
+                Log.i(LOGTAG, "Not connected to network");
+                return new ArrayList<String>();
+            }
+
+            results = fetch(query, cancellationSignal);
+            if (results == null) {
+                return new ArrayList<String>();
+            }
+            sCache.put(getCacheKey(query), results);
+        }
+
+        final ArrayList<String> suggestions = new ArrayList<String>();
+        for (String suggestion : results.suggestions) {
+            if (suggestions.size() >= mMaxResults) {
+                break;
+            }
+            if (!suggestion.equalsIgnoreCase(query)) {
+                suggestions.add(suggestion);
+            }
+        }
+        return suggestions;
+    }
+
+    private String getCacheKey(String query) {
+        return mSuggestTemplate + '\n' + query;
+    }
+
+    @Nullable
+    private ServerResults getCachedResults(String query) {
+        final long now = SystemClock.elapsedRealtime();
+        final ServerResults cached = sCache.get(getCacheKey(query));
+        if (cached != null && !cached.isExpired(now)) {
+            return cached;
         }
 
-        if (!NetworkUtils.isConnected(mContext) && mCheckNetwork) {
-            Log.i(LOGTAG, "Not connected to network");
-            return suggestions;
+        // Look for the longest prefix we have all of the suggestions for.
+        for (int length = query.length() - 1; length > 0; length--) {
+            final ServerResults prefixResults = sCache.get(getCacheKey(query.substring(0, length)));
+            if (prefixResults != null && prefixResults.isComplete && !prefixResults.isExpired(now)) {
+                final ServerResults results = prefixResults.filter(query);
+                sCache.put(getCacheKey(query), results);
+                return results;
+            }
         }
+        return null;
+    }
 
+    /**
+     * @return the server results, or null if the request failed or was cancelled.
+     */
+    @Nullable
+    private ServerResults fetch(String query, @Nullable CancellationSignal cancellationSignal) {
+        final CancelListener cancelListener = new CancelListener();
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(cancelListener);
+        }
+
+        HttpURLConnection urlConnection = null;
         try {
+            if (cancellationSignal != null && cancelListener.awaitCancelled(DEBOUNCE_MILLIS)) {
+                return null;
+            }
+
             String encoded = URLEncoder.encode(query, "UTF-8");
             String suggestUri = mSuggestTemplate.replace("__searchTerms__", encoded);
 
             URL url = new URL(suggestUri);
-            String json = null;
-            HttpURLConnection urlConnection = null;
-            InputStream in = null;
-            try {
-                urlConnection = (HttpURLConnection) ProxySelector.openConnectionWithProxy(url.toURI());
-                urlConnection.setConnectTimeout(mTimeout);
-                urlConnection.setRequestProperty("User-Agent", USER_AGENT);
-                in = new BufferedInputStream(urlConnection.getInputStream());
-                json = convertStreamToString(in);
-            } finally {
-                if (urlConnection != null)
-                    urlConnection.disconnect();
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException e) {
-                        Log.e(LOGTAG, "error", e);
-                    }
-                }
+            urlConnection = (HttpURLConnection) ProxySelector.openConnectionWithProxy(url.toURI());
+            urlConnection.setConnectTimeout(mTimeout);
+            urlConnection.setRequestProperty("User-Agent", USER_AGENT);
+
+            cancelListener.setConnection(urlConnection);
+            if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                urlConnection.disconnect();
+                return null;
             }
 
-            if (json != null) {
-                /*
-                 * Sample result:
-                 * ["foo",["food network","foothill college","foot locker",...]]
-                 */
-                JSONArray results = new JSONArray(json);
-                JSONArray jsonSuggestions = results.getJSONArray(1);
-
-                int added = 0;
-                for (int i = 0; (i < jsonSuggestions.length()) && (added < mMaxResults); i++) {
-                    String suggestion = jsonSuggestions.getString(i);
-                    if (!suggestion.equalsIgnoreCase(query)) {
-                        suggestions.add(suggestion);
-                        added++;
-                    }
-                }
-            } else {
-                Log.e(LOGTAG, "Suggestion query failed");
+            // The response is read in full and the stream closed, without disconnecting, so that
+            // the connection goes back to the pool to be reused by the next query.
+            final String json = readStreamToString(urlConnection.getInputStream());
+
+            /*
+             * Sample result:
+             * ["foo",["food network","foothill college","foot locker",...]]
+             */
+            JSONArray results = new JSONArray(json);
+            JSONArray jsonSuggestions = results.getJSONArray(1);
+
+            final int count = jsonSuggestions.length();
+            final ArrayList<String> suggestions = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                suggestions.add(jsonSuggestions.getString(i));
             }
+
+            return new ServerResults(Collections.unmodifiableList(suggestions), isComplete(count),
+                                     SystemClock.elapsedRealtime());
         } catch (Exception e) {
-            Log.e(LOGTAG, "Error", e);
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+            if (cancellationSignal == null || !cancellationSignal.isCanceled()) {
+                Log.e(LOGTAG, "Error", e);
+            }
+            return null;
+        } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
         }
+    }
 
-        mPrevQuery = query;
-        mPrevResults = suggestions;
-        return suggestions;
+    /**
+     * @return true if a server response with this many suggestions holds all of the suggestions for
+     * its query.
+     */
+    private boolean isComplete(int count) {
+        synchronized (sMaxServerResults) {
+            final Integer maxCount = sMaxServerResults.get(mSuggestTemplate);
+            if (maxCount == null || count > maxCount) {
+                sMaxServerResults.put(mSuggestTemplate, count);
+                return count == 0;
+            }
+            return count < maxCount;
+        }
     }
 
-    private String convertStreamToString(java.io.InputStream is) {
+    private static String readStreamToString(InputStream is) throws IOException {
+        final Reader reader = new InputStreamReader(is, StringUtils.UTF_8);
         try {
-            return new java.util.Scanner(new InputStreamReader(is, StringUtils.UTF_8)).useDelimiter("\\A").next();
-        } catch (java.util.NoSuchElementException e) {
-            return "";
+            final StringBuilder builder = new StringBuilder();
+            final char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+            return builder.toString();
+        } finally {
+            reader.close();
         }
     }
 }
@@ -55,6 +55,8 @@ public final class ThumbnailHelper {
     public static synchronized ThumbnailHelper getInstance() {
         if (sInstance == null) {
             sInstance = new ThumbnailHelper();
+            MemoryCacheRegistry.getInstance().register("thumbnail buffer", MemoryCacheRegistry.PRIORITY_LOW,
+                                                       sInstance.mBufferBudget);
         }
         return sInstance;
     }
@@ -67,6 +69,26 @@ public final class ThumbnailHelper {
     private int mHeight;
     private ByteBuffer mBuffer;
 
+    // The buffer is only needed while thumbnails are pending; under memory pressure it is freed
+    // in between, and allocated again for the next thumbnail.
+    private final MemoryCacheRegistry.Cache mBufferBudget = new MemoryCacheRegistry.Cache() {
+        @Override
+        public long getSizeInBytes() {
+            synchronized (mPendingThumbnails) {
+                return mBuffer != null ? mBuffer.capacity() : 0;
+            }
+        }
+
+        @Override
+        public void setBudgetFraction(float fraction) {
+            synchronized (mPendingThumbnails) {
+                if (fraction < 1f && mBuffer != null && mPendingThumbnails.isEmpty()) {
+                    mBuffer = DirectBufferAllocator.free(mBuffer);
+                }
+            }
+        }
+    };
+
     private ThumbnailHelper() {
         final Resources res = GeckoAppShell.getApplicationContext().getResources();
 
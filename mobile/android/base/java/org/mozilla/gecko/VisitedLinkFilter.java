@@ -0,0 +1,239 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Bloom filter over visited URLs, used by {@link GlobalHistory} to answer most "was this link
+ * visited?" questions without touching the database, and without keeping every visited URL on
+ * the heap.
+ *
+ * A negative answer is definitive as long as every visited URL was added to the filter; a
+ * positive answer must be confirmed against the database, both because of false positives and
+ * because URLs are never removed from the filter when history is deleted.
+ *
+ * The filter is backed by a memory-mapped file, so it survives restarts and the OS can page it
+ * out under memory pressure instead of us throwing it away and rebuilding it. Along with the
+ * bits, the file stores how many URLs were added and a caller-defined timestamp describing how
+ * up to date the filter is with respect to the database.
+ *
+ * Instances are thread-safe.
+ */
+/* package-private */ class VisitedLinkFilter {
+    private static final String LOGTAG = "GeckoVisitedLinkFilter";
+
+    private static final int MAGIC = 0x564c4246; // "VLBF"
+    private static final int VERSION = 1;
+
+    // magic, version, bit count, hash count, item count, reserved, timestamp.
+    private static final int HEADER_SIZE = 32;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_BIT_COUNT = 8;
+    private static final int OFFSET_HASH_COUNT = 12;
+    private static final int OFFSET_ITEM_COUNT = 16;
+    private static final int OFFSET_TIMESTAMP = 24;
+
+    // ~10 bits per URL with 7 hash functions gives a false positive rate of about 1%.
+    private static final int BITS_PER_ITEM = 10;
+    private static final int HASH_COUNT = 7;
+
+    // At least 32KB, and at most 4MB, which fits about 3.3M URLs.
+    /* package-private */ static final int MIN_CAPACITY = 16 * 1024;
+    private static final int MAX_BIT_COUNT = 32 * 1024 * 1024;
+
+    private final ByteBuffer mBuffer;
+    private final int mBitMask;
+    private final int mHashCount;
+    private final int mCapacity;
+
+    private VisitedLinkFilter(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mBitMask = buffer.getInt(OFFSET_BIT_COUNT) - 1;
+        mHashCount = buffer.getInt(OFFSET_HASH_COUNT);
+        mCapacity = (mBitMask + 1) / BITS_PER_ITEM;
+    }
+
+    /**
+     * Open an existing filter file.
+     *
+     * @return the filter, or null if the file doesn't exist or isn't a usable filter.
+     */
+    @Nullable
+    /* package-private */ static VisitedLinkFilter open(@NonNull File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            final ByteBuffer buffer = map(file, file.length());
+            if (buffer.capacity() < HEADER_SIZE ||
+                    buffer.getInt(OFFSET_MAGIC) != MAGIC ||
+                    buffer.getInt(OFFSET_VERSION) != VERSION) {
+                Log.w(LOGTAG, "Ignoring unrecognized visited link filter.");
+                return null;
+            }
+
+            final int bitCount = buffer.getInt(OFFSET_BIT_COUNT);
+            if (bitCount <= 0 || Integer.bitCount(bitCount) != 1 ||
+                    buffer.capacity() != HEADER_SIZE + bitCount / 8 ||
+                    buffer.getInt(OFFSET_HASH_COUNT) <= 0) {
+                Log.w(LOGTAG, "Ignoring corrupt visited link filter.");
+                return null;
+            }
+
+            return new VisitedLinkFilter(buffer);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to open visited link filter.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Create an empty filter sized for <code>expectedCount</code> URLs plus room to grow,
+     * replacing the given file. If the file can't be written, the filter lives on the heap and
+     * won't be persisted.
+     */
+    @NonNull
+    /* package-private */ static VisitedLinkFilter create(@Nullable File file, int expectedCount) {
+        final int bitCount = bitCountFor(expectedCount);
+        final long size = HEADER_SIZE + bitCount / 8;
+
+        ByteBuffer buffer = null;
+        if (file != null) {
+            try {
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Unable to delete old filter");
+                }
+                buffer = map(file, size);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Unable to create visited link filter file; keeping it in memory.", e);
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate((int) size);
+        }
+
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_VERSION, VERSION);
+        buffer.putInt(OFFSET_BIT_COUNT, bitCount);
+        buffer.putInt(OFFSET_HASH_COUNT, HASH_COUNT);
+        buffer.putInt(OFFSET_ITEM_COUNT, 0);
+        buffer.putLong(OFFSET_TIMESTAMP, 0);
+        return new VisitedLinkFilter(buffer);
+    }
+
+    private static int bitCountFor(int expectedCount) {
+        // Leave room for the history to double before we need to rebuild.
+        final long wanted = Math.max((long) MIN_CAPACITY, 2L * expectedCount) * BITS_PER_ITEM;
+        int bitCount = Integer.highestOneBit((int) Math.min(wanted, MAX_BIT_COUNT));
+        if (bitCount < wanted && bitCount < MAX_BIT_COUNT) {
+            bitCount <<= 1;
+        }
+        return bitCount;
+    }
+
+    private static ByteBuffer map(File file, long size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after the channel is closed.
+            final FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return false if the URL was definitely never added, true if it might have been.
+     */
+    /* package-private */ synchronized boolean mightContain(@NonNull String url) {
+        final long hash1 = hash(url);
+        final long hash2 = mix(hash1);
+        for (int i = 0; i < mHashCount; i++) {
+            final int bit = (int) (hash1 + i * hash2) & mBitMask;
+            if ((mBuffer.get(HEADER_SIZE + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* package-private */ synchronized void add(@NonNull String url) {
+        final long hash1 = hash(url);
+        final long hash2 = mix(hash1);
+        boolean changed = false;
+        for (int i = 0; i < mHashCount; i++) {
+            final int bit = (int) (hash1 + i * hash2) & mBitMask;
+            final int index = HEADER_SIZE + (bit >>> 3);
+            final byte current = mBuffer.get(index);
+            final byte updated = (byte) (current | (1 << (bit & 7)));
+            if (current != updated) {
+                mBuffer.put(index, updated);
+                changed = true;
+            }
+        }
+
+        // Visiting the same URL again doesn't use up any capacity.
+        if (changed) {
+            mBuffer.putInt(OFFSET_ITEM_COUNT, mBuffer.getInt(OFFSET_ITEM_COUNT) + 1);
+        }
+    }
+
+    /**
+     * @return true if so many URLs were added that the false positive rate is getting too high,
+     * and the filter should be rebuilt at a larger size.
+     */
+    /* package-private */ synchronized boolean isOverCapacity() {
+        return mBuffer.getInt(OFFSET_ITEM_COUNT) > mCapacity && mBitMask + 1 < MAX_BIT_COUNT;
+    }
+
+    /* package-private */ synchronized int getItemCount() {
+        return mBuffer.getInt(OFFSET_ITEM_COUNT);
+    }
+
+    /* package-private */ synchronized long getTimestamp() {
+        return mBuffer.getLong(OFFSET_TIMESTAMP);
+    }
+
+    /* package-private */ synchronized void setTimestamp(long timestamp) {
+        mBuffer.putLong(OFFSET_TIMESTAMP, timestamp);
+    }
+
+    /* package-private */ int getSizeInBytes() {
+        return mBuffer.capacity();
+    }
+
+    // 64-bit FNV-1a over the UTF-16 code units of the URL.
+    private static long hash(String url) {
+        long hash = 0xcbf29ce484222325L;
+        final int length = url.length();
+        for (int i = 0; i < length; i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // MurmurHash3's finalizer; gives us a second, independent-looking hash for double hashing.
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash | 1;
+    }
+}
@@ -9,7 +9,8 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.ContentObserver;
-import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
 import android.os.SystemClock;
 import android.support.annotation.WorkerThread;
 import android.support.v4.content.AsyncTaskLoader;
@@ -17,13 +18,12 @@ import android.support.v4.content.AsyncTaskLoader;
 import org.mozilla.gecko.GeckoSharedPrefs;
 import org.mozilla.gecko.R;
 import org.mozilla.gecko.Telemetry;
-import org.mozilla.gecko.activitystream.ranking.HighlightsRanking;
+import org.mozilla.gecko.activitystream.ranking.HighlightsEngine;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.db.BrowserDB;
 import org.mozilla.gecko.activitystream.homepanel.model.Highlight;
 import org.mozilla.gecko.util.ThreadUtils;
 
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -32,8 +32,11 @@ import java.util.List;
 /* package-private */ class HighlightsLoader extends AsyncTaskLoader<List<Highlight>> {
     private static final String TELEMETRY_HISTOGRAM_ACTIVITY_STREAM_HIGHLIGHTS = "FENNEC_ACTIVITY_STREAM_HIGHLIGHTS_LOADER_TIME_MS";
 
+    // Shared by all loaders so that the ranked candidates are kept while the panel is not shown.
+    private static HighlightsEngine sharedEngine;
+
     private final Context context;
-    private final int candidatesLimit;
+    private final HighlightsEngine engine;
     private final int highlightsLimit;
     private final ContentObserver observer;
 
@@ -47,40 +50,38 @@ import java.util.List;
         super(context);
 
         this.context = context;
-        this.candidatesLimit = candidatesLimit;
+        this.engine = getEngine(candidatesLimit);
         this.highlightsLimit = highlightsLimit;
-        this.observer = new ForceLoadContentObserver();
+        this.observer = new HighlightsContentObserver();
+    }
+
+    private static synchronized HighlightsEngine getEngine(int candidatesLimit) {
+        if (sharedEngine == null || sharedEngine.getCandidatesLimit() != candidatesLimit) {
+            sharedEngine = new HighlightsEngine(candidatesLimit);
+        }
+        return sharedEngine;
     }
 
     @Override
     public List<Highlight> loadInBackground() {
         final long startTime = SystemClock.uptimeMillis();
 
-        final Cursor candidatesCursor = BrowserDB.from(context)
-                .getHighlightCandidates(context.getContentResolver(), candidatesLimit);
-
-        if (candidatesCursor == null) {
-            return Collections.emptyList();
-        }
-
-        try {
-            // From now on get notified about content updates and reload data - until loader is reset.
-            enableContentUpdates();
+        // From now on get notified about content updates and reload data - until loader is reset. We need to
+        // be registered before querying so that the engine doesn't miss an invalidation.
+        enableContentUpdates();
 
-            final SharedPreferences prefs = GeckoSharedPrefs.forProfile(getContext());
-            final Resources res = getContext().getResources();
-            final boolean includeHistory = prefs.getBoolean(ActivityStreamPanel.PREF_VISITED_ENABLED, res.getBoolean(R.bool.pref_activitystream_visited_enabled_default));
-            final boolean includeBookmarks = prefs.getBoolean(ActivityStreamPanel.PREF_BOOKMARKS_ENABLED, res.getBoolean(R.bool.pref_activitystream_recentbookmarks_enabled_default));
+        final SharedPreferences prefs = GeckoSharedPrefs.forProfile(getContext());
+        final Resources res = getContext().getResources();
+        final boolean includeHistory = prefs.getBoolean(ActivityStreamPanel.PREF_VISITED_ENABLED, res.getBoolean(R.bool.pref_activitystream_visited_enabled_default));
+        final boolean includeBookmarks = prefs.getBoolean(ActivityStreamPanel.PREF_BOOKMARKS_ENABLED, res.getBoolean(R.bool.pref_activitystream_recentbookmarks_enabled_default));
 
-            final List<Highlight> highlights = HighlightsRanking.rank(candidatesCursor, highlightsLimit, includeHistory, includeBookmarks);
-            forceLoadHighlightMetadata(highlights); // force load now that we have a short list of the data.
+        final List<Highlight> highlights = engine.getHighlights(BrowserDB.from(context), context.getContentResolver(),
+                highlightsLimit, includeHistory, includeBookmarks);
+        forceLoadHighlightMetadata(highlights); // force load now that we have a short list of the data.
 
-            addToPerformanceHistogram(startTime);
+        addToPerformanceHistogram(startTime);
 
-            return highlights;
-        } finally {
-            candidatesCursor.close();
-        }
+        return highlights;
     }
 
     /**
@@ -111,6 +112,34 @@ import java.util.List;
         forceLoad();
     }
 
+    /**
+     * Like {@link ForceLoadContentObserver}, but also lets the engine know when it needs to read all candidates
+     * again, see {@link HighlightsEngine}.
+     */
+    private class HighlightsContentObserver extends ContentObserver {
+        private HighlightsContentObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onContentChanged();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri != null && BrowserContract.HighlightCandidates.CONTENT_URI.getPath().equals(uri.getPath())) {
+                engine.invalidate();
+            }
+            onChange(selfChange);
+        }
+    }
+
     private void enableContentUpdates() {
         context.getContentResolver()
                 .registerContentObserver(BrowserContract.AUTHORITY_URI, true, observer);
@@ -71,16 +71,21 @@ import java.lang.annotation.RetentionPolicy;
 
     /**
      * The BOOKMARK_ID colmun value is set to -1 for non-bookmarks in
-     * {@link org.mozilla.gecko.db.BrowserProvider#getHighlightCandidates(SQLiteDatabase, String)}
+     * {@link org.mozilla.gecko.db.BrowserProvider#getHighlightCandidates(SQLiteDatabase, String, String)}
      */
     private static final int COLUMN_VALUE_NON_BOOKMARK = -1;
 
+    private static final double NO_BOOKMARK_DATE_CREATED = -1;
+
     @VisibleForTesting final Features features = new Features();
     private Highlight highlight;
     private @Nullable String imageUrl;
     private String host;
     private double score;
     private boolean isBookmark;
+    private long date;
+    private double dateLastVisited;
+    private double bookmarkDateCreated = NO_BOOKMARK_DATE_CREATED;
 
     /**
      * @return the HighlightCandidate, or null if the candidate is invalid.
@@ -126,11 +131,7 @@ import java.lang.annotation.RetentionPolicy;
         }
 
         candidate.isBookmark = cursor.getDouble(cursorIndices.bookmarkIDColumnIndex) != COLUMN_VALUE_NON_BOOKMARK;
-
-        candidate.features.put(
-                FEATURE_AGE_IN_DAYS,
-                (System.currentTimeMillis() - cursor.getDouble(cursorIndices.historyDateLastVisitedColumnIndex))
-                        / (1000 * 3600 * 24));
+        candidate.date = cursor.getLong(cursorIndices.highlightsDateColumnIndex);
 
         candidate.features.put(
                 FEATURE_VISITS_COUNT,
@@ -171,15 +172,11 @@ import java.lang.annotation.RetentionPolicy;
         // to the real creation date, or the earliest one mentioned in the clients constellation.
         // We are sourcing highlights from the recent visited history - so in order to
         // show up this bookmark need to have been visited recently too.
-        if (cursor.isNull(cursorIndices.bookmarkDateCreatedColumnIndex)) {
-            candidate.features.put(
-                    FEATURE_BOOKMARK_AGE_IN_MILLISECONDS,
-                    0d);
-        } else {
-            candidate.features.put(
-                    FEATURE_BOOKMARK_AGE_IN_MILLISECONDS,
-                    Math.max(1, System.currentTimeMillis() - cursor.getDouble(cursorIndices.bookmarkDateCreatedColumnIndex)));
-        }
+        candidate.dateLastVisited = cursor.getDouble(cursorIndices.historyDateLastVisitedColumnIndex);
+        candidate.bookmarkDateCreated = cursor.isNull(cursorIndices.bookmarkDateCreatedColumnIndex)
+                ? NO_BOOKMARK_DATE_CREATED
+                : cursor.getDouble(cursorIndices.bookmarkDateCreatedColumnIndex);
+        candidate.updateAgeFeatures(System.currentTimeMillis());
 
         candidate.features.put(
                 FEATURE_DESCRIPTION_LENGTH,
@@ -202,6 +199,26 @@ import java.lang.annotation.RetentionPolicy;
     @VisibleForTesting HighlightCandidate() {
     }
 
+    /**
+     * Update the features which depend on the time the candidate is ranked at, i.e. the age of the
+     * last visit and of the bookmark.
+     */
+    /* package-private */ void updateAgeFeatures(final long now) {
+        features.put(
+                FEATURE_AGE_IN_DAYS,
+                (now - dateLastVisited) / (1000 * 3600 * 24));
+
+        if (bookmarkDateCreated == NO_BOOKMARK_DATE_CREATED) {
+            features.put(
+                    FEATURE_BOOKMARK_AGE_IN_MILLISECONDS,
+                    0d);
+        } else {
+            features.put(
+                    FEATURE_BOOKMARK_AGE_IN_MILLISECONDS,
+                    Math.max(1, now - bookmarkDateCreated));
+        }
+    }
+
     /* package-private */ double getScore() {
         return score;
     }
@@ -222,6 +239,14 @@ import java.lang.annotation.RetentionPolicy;
         return isBookmark;
     }
 
+    /**
+     * @return the date the candidate is ordered by in the candidates query: the date the bookmark was created
+     * for bookmarks, or the date of the last visit otherwise.
+     */
+    /* package-private */ long getDate() {
+        return date;
+    }
+
     /**
      * Gets an estimate of the actual image url that should only be used to compare against other return
      * values of this method. See {@link Highlight#getFastImageURLForComparison()} for more details.
@@ -0,0 +1,392 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.activitystream.ranking;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import org.mozilla.gecko.activitystream.homepanel.model.Highlight;
+import org.mozilla.gecko.db.BrowserContract;
+import org.mozilla.gecko.db.BrowserDB;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.mozilla.gecko.activitystream.ranking.HighlightCandidate.FEATURE_DOMAIN_FREQUENCY;
+import static org.mozilla.gecko.activitystream.ranking.HighlightsRanking.NORMALIZATION_FEATURES;
+
+/**
+ * HighlightsEngine keeps the highlight candidates and their features between loads, so that ranking after
+ * a change does not have to start from scratch like {@link HighlightsRanking#rank(Cursor, int, boolean, boolean)}.
+ *
+ * - The first load reads all candidates. Later loads only read the candidates that were modified since the
+ *   previous load, and add, replace or remove those.
+ * - The normalized features and the part of the score that doesn't depend on time are kept per candidate. They
+ *   are only recomputed for all candidates if a change shifts the min/max bounds of a normalized feature.
+ * - The features that depend on the time we rank at (e.g. the age of the last visit) are updated on every load,
+ *   and the best candidates are then picked with a bounded heap rather than by sorting all of them.
+ *
+ * Changes which the modified candidates query can't see, i.e. deletions, are signalled with a notification for
+ * {@link BrowserContract.HighlightCandidates#CONTENT_URI}: call {@link #invalidate()} to read all candidates
+ * again on the next load.
+ */
+public class HighlightsEngine {
+    private static final String LOG_TAG = "HighlightsEngine";
+
+    /**
+     * A record can be committed a little after the time it was modified. We read the candidates modified during
+     * this window before the previous load again so that we don't miss them: reading a candidate twice is harmless.
+     */
+    private static final long MODIFIED_SINCE_OVERLAP_MILLIS = 60 * 1000;
+
+    /** We read all candidates again after this long to pick up changes we can't see otherwise, e.g. expiration. */
+    private static final long MAX_INCREMENTAL_UPDATES_MILLIS = 60 * 60 * 1000;
+
+    /** The number of candidates we pick before deduping, as a multiple of the number of highlights. */
+    private static final int SELECTION_FACTOR = 4;
+
+    private static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.candidate.getDate() != rhs.candidate.getDate()) {
+                return lhs.candidate.getDate() < rhs.candidate.getDate() ? -1 : 1;
+            }
+            return lhs.historyID < rhs.historyID ? -1 : (lhs.historyID == rhs.historyID ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<HighlightCandidate> LOWEST_SCORE_FIRST = new Comparator<HighlightCandidate>() {
+        @Override
+        public int compare(HighlightCandidate lhs, HighlightCandidate rhs) {
+            return Double.compare(lhs.getScore(), rhs.getScore());
+        }
+    };
+
+    /**
+     * A candidate along with the values of its normalized features before normalization and the
+     * time-independent part of its score.
+     */
+    private static class Entry {
+        private final long historyID;
+        private final HighlightCandidate candidate;
+        private final double[] rawNormalizationValues = new double[NORMALIZATION_FEATURES.length];
+        private double timeIndependentScore;
+
+        private Entry(long historyID, HighlightCandidate candidate) {
+            this.historyID = historyID;
+            this.candidate = candidate;
+            for (int i = 0; i < NORMALIZATION_FEATURES.length; i++) {
+                rawNormalizationValues[i] = candidate.features.get(NORMALIZATION_FEATURES[i]);
+            }
+        }
+    }
+
+    private final int candidatesLimit;
+
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> entriesByDate = new TreeSet<>(OLDEST_FIRST);
+    private final Set<Entry> unscoredEntries = new HashSet<>();
+
+    // The bounds of the normalized features of the candidates included by the current preferences.
+    private final double[] minValues = new double[NORMALIZATION_FEATURES.length];
+    private final double[] maxValues = new double[NORMALIZATION_FEATURES.length];
+    private boolean boundsMayHaveShrunk = true;
+    private boolean includeHistory = true;
+    private boolean includeBookmarks = true;
+
+    private BrowserDB browserDB;
+    private long lastQueryTime;
+    private long lastFullQueryTime;
+    private volatile boolean isInvalidated = true;
+
+    private double bestUnselectedScore;
+
+    /**
+     * @param candidatesLimit Number of database entries to consider and rank for finding highlights.
+     */
+    public HighlightsEngine(int candidatesLimit) {
+        this.candidatesLimit = candidatesLimit;
+    }
+
+    public int getCandidatesLimit() {
+        return candidatesLimit;
+    }
+
+    /**
+     * Read all candidates again on the next load. This can be called from any thread.
+     */
+    public void invalidate() {
+        isInvalidated = true;
+    }
+
+    /**
+     * Update the candidates from the database and create a list of highlights from them.
+     *
+     * @param limit Number of highlights that should be returned (max).
+     */
+    @WorkerThread
+    @NonNull
+    public synchronized List<Highlight> getHighlights(BrowserDB db, ContentResolver cr, int limit,
+            boolean includeHistory, boolean includeBookmarks) {
+        final long now = System.currentTimeMillis();
+        if (!updateCandidates(db, cr, now)) {
+            return Collections.emptyList();
+        }
+        return rank(now, limit, includeHistory, includeBookmarks);
+    }
+
+    /**
+     * @return false if the candidates could not be read.
+     */
+    private boolean updateCandidates(BrowserDB db, ContentResolver cr, long now) {
+        final boolean isFullQuery = isInvalidated || db != browserDB ||
+                now < lastQueryTime || now - lastFullQueryTime > MAX_INCREMENTAL_UPDATES_MILLIS;
+
+        if (isFullQuery) {
+            // Cleared before querying so that an invalidation while we query is not lost.
+            isInvalidated = false;
+        }
+
+        final Cursor cursor = isFullQuery
+                ? db.getHighlightCandidates(cr, candidatesLimit)
+                : db.getHighlightCandidatesModifiedSince(cr, lastQueryTime - MODIFIED_SINCE_OVERLAP_MILLIS);
+        if (cursor == null) {
+            isInvalidated = true;
+            return false;
+        }
+
+        try {
+            if (isFullQuery) {
+                clear();
+            }
+            update(cursor);
+        } finally {
+            cursor.close();
+        }
+
+        browserDB = db;
+        lastQueryTime = now;
+        if (isFullQuery) {
+            lastFullQueryTime = now;
+        }
+        return true;
+    }
+
+    /**
+     * Add, replace or remove the candidates in the given cursor.
+     */
+    @VisibleForTesting void update(Cursor cursor) {
+        if (!cursor.moveToFirst()) {
+            return;
+        }
+
+        // Cache column indices for performance: see HighlightCandidateCursorIndices for more info.
+        final HighlightCandidateCursorIndices cursorIndices = new HighlightCandidateCursorIndices(cursor);
+        final int isRemovedColumnIndex = cursor.getColumnIndex(BrowserContract.Highlights.IS_REMOVED);
+
+        do {
+            final long historyID = cursor.getLong(cursorIndices.historyIDColumnIndex);
+            if (isRemovedColumnIndex != -1 && cursor.getInt(isRemovedColumnIndex) == 1) {
+                remove(historyID);
+                continue;
+            }
+
+            final HighlightCandidate candidate = HighlightCandidate.fromCursor(cursor, cursorIndices);
+            if (candidate == null) {
+                Log.w(LOG_TAG, "Skipping invalid highlight item.");
+                remove(historyID);
+                continue;
+            }
+            put(historyID, candidate);
+        } while (cursor.moveToNext());
+    }
+
+    /**
+     * Add or replace a candidate. If there are more than candidatesLimit candidates afterwards, the oldest
+     * are removed, like the candidates query would.
+     */
+    @VisibleForTesting void put(long historyID, HighlightCandidate candidate) {
+        remove(historyID);
+
+        final Entry entry = new Entry(historyID, candidate);
+        entries.put(historyID, entry);
+        entriesByDate.add(entry);
+        unscoredEntries.add(entry);
+
+        while (entries.size() > candidatesLimit) {
+            remove(entriesByDate.first().historyID);
+        }
+    }
+
+    @VisibleForTesting void remove(long historyID) {
+        final Entry entry = entries.remove(historyID);
+        if (entry == null) {
+            return;
+        }
+
+        entriesByDate.remove(entry);
+        unscoredEntries.remove(entry);
+
+        // Only an entry on a bound can shrink the bounds.
+        if (!boundsMayHaveShrunk && isIncluded(entry.candidate)) {
+            for (int i = 0; i < NORMALIZATION_FEATURES.length; i++) {
+                if (entry.rawNormalizationValues[i] == minValues[i] || entry.rawNormalizationValues[i] == maxValues[i]) {
+                    boundsMayHaveShrunk = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void clear() {
+        entries.clear();
+        entriesByDate.clear();
+        unscoredEntries.clear();
+        boundsMayHaveShrunk = true;
+    }
+
+    /**
+     * Create a list of highlights from the candidates, see {@link HighlightsRanking#rank(Cursor, int, boolean, boolean)}.
+     */
+    @VisibleForTesting List<Highlight> rank(long now, int limit, boolean includeHistory, boolean includeBookmarks) {
+        final boolean isFilterChanged = includeHistory != this.includeHistory || includeBookmarks != this.includeBookmarks;
+        this.includeHistory = includeHistory;
+        this.includeBookmarks = includeBookmarks;
+        updateTimeIndependentScores(isFilterChanged);
+
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        // Until we can determine those numbers we assume every domain has only been visited once: see
+        // HighlightCandidate.extractFeatures().
+        final double domainFrequency = Math.log(1 + entries.size());
+
+        // Penalizing consecutive entries and deduping only ever lower the score of or remove candidates that
+        // come after better candidates. So if the last highlight we find among the best candidates still scores
+        // better than all other candidates, we'd have found the same highlights by ranking all candidates.
+        for (int count = Math.max(1, limit * SELECTION_FACTOR); ; count *= 2) {
+            final List<HighlightCandidate> highlights = selectBest(count, now, domainFrequency);
+
+            HighlightsRanking.adjustConsecutiveEntries(highlights);
+
+            HighlightsRanking.dedupeSites(highlights);
+
+            HighlightsRanking.sortDescendingByScore(highlights);
+
+            final boolean isComplete = highlights.size() >= limit
+                    ? highlights.get(limit - 1).getScore() >= bestUnselectedScore
+                    : bestUnselectedScore == Double.NEGATIVE_INFINITY;
+            if (isComplete || count >= entries.size()) {
+                return HighlightsRanking.createHighlightsList(highlights, limit);
+            }
+        }
+    }
+
+    /**
+     * Update the normalized features and time-independent scores of the candidates that need it: all of the
+     * candidates if the bounds of the normalized features have changed, the unscored candidates otherwise.
+     */
+    private void updateTimeIndependentScores(boolean isFilterChanged) {
+        final double[] newMinValues = new double[NORMALIZATION_FEATURES.length];
+        final double[] newMaxValues = new double[NORMALIZATION_FEATURES.length];
+        final boolean isRecomputingBounds = isFilterChanged || boundsMayHaveShrunk;
+
+        // Use the same initial bounds as HighlightsRanking.normalize().
+        for (int i = 0; i < NORMALIZATION_FEATURES.length; i++) {
+            newMinValues[i] = isRecomputingBounds ? Double.MAX_VALUE : minValues[i];
+            newMaxValues[i] = isRecomputingBounds ? Double.MIN_VALUE : maxValues[i];
+        }
+        for (final Entry entry : isRecomputingBounds ? entries.values() : unscoredEntries) {
+            if (!isIncluded(entry.candidate)) {
+                continue;
+            }
+            for (int i = 0; i < NORMALIZATION_FEATURES.length; i++) {
+                newMinValues[i] = Math.min(newMinValues[i], entry.rawNormalizationValues[i]);
+                newMaxValues[i] = Math.max(newMaxValues[i], entry.rawNormalizationValues[i]);
+            }
+        }
+
+        boolean isBoundsChanged = false;
+        for (int i = 0; i < NORMALIZATION_FEATURES.length; i++) {
+            isBoundsChanged |= newMinValues[i] != minValues[i] || newMaxValues[i] != maxValues[i];
+            minValues[i] = newMinValues[i];
+            maxValues[i] = newMaxValues[i];
+        }
+
+        // Candidates which weren't included were not normalized with the current bounds.
+        for (final Entry entry : isBoundsChanged || isFilterChanged ? entries.values() : unscoredEntries) {
+            if (!isIncluded(entry.candidate)) {
+                continue;
+            }
+            for (int i = 0; i < NORMALIZATION_FEATURES.length; i++) {
+                entry.candidate.features.put(NORMALIZATION_FEATURES[i],
+                        RankingUtils.normalize(entry.rawNormalizationValues[i], minValues[i], maxValues[i]));
+            }
+            entry.timeIndependentScore = HighlightsRanking.scoreTimeIndependently(entry.candidate);
+        }
+
+        unscoredEntries.clear();
+        boundsMayHaveShrunk = false;
+    }
+
+    /**
+     * Score the included candidates at the given time and return the best count candidates with a positive
+     * score, best first. The best score of the remaining candidates is stored in bestUnselectedScore.
+     */
+    private List<HighlightCandidate> selectBest(int count, long now, double domainFrequency) {
+        final PriorityQueue<HighlightCandidate> best = new PriorityQueue<>(count + 1, LOWEST_SCORE_FIRST);
+        bestUnselectedScore = Double.NEGATIVE_INFINITY;
+
+        for (final Entry entry : entries.values()) {
+            final HighlightCandidate candidate = entry.candidate;
+            if (!isIncluded(candidate)) {
+                continue;
+            }
+
+            candidate.updateAgeFeatures(now);
+            candidate.features.put(FEATURE_DOMAIN_FREQUENCY, domainFrequency);
+            candidate.updateScore(HighlightsRanking.scoreAtRankingTime(entry.timeIndependentScore, candidate));
+            if (candidate.getScore() <= 0) {
+                continue;
+            }
+
+            best.add(candidate);
+            if (best.size() > count) {
+                bestUnselectedScore = Math.max(bestUnselectedScore, best.poll().getScore());
+            }
+        }
+
+        final List<HighlightCandidate> result = new ArrayList<>(best);
+        HighlightsRanking.sortDescendingByScore(result);
+        return result;
+    }
+
+    /**
+     * See {@link HighlightsRanking#filterOutItemsPreffedOff(List, boolean, boolean)}.
+     */
+    private boolean isIncluded(HighlightCandidate candidate) {
+        if (includeBookmarks && includeHistory) {
+            return true;
+        } else if (!includeBookmarks && !includeHistory) {
+            return false;
+        } else {
+            return includeBookmarks == candidate.isBookmark();
+        }
+    }
+}
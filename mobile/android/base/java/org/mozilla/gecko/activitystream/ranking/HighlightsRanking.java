@@ -53,6 +53,8 @@ import static org.mozilla.gecko.activitystream.ranking.RankingUtils.mapWithLimit
  * - Then we multiply some (normalized) feature values with weights to calculate:
  *      initialScore * e ^ -(sum of weighted features)
  * - Finally we adjust the score with some custom rules.
+ *
+ * {@link HighlightsEngine} keeps candidates between loads and uses the same scoring to rank them incrementally.
  */
 public class HighlightsRanking {
     private static final String LOG_TAG = "HighlightsRanking";
@@ -92,7 +94,7 @@ public class HighlightsRanking {
      * If this array grows in size, perf changes may need to be made: see
      * associated comment in {@link #normalize(List)}.
      */
-    private static final int[] NORMALIZATION_FEATURES = new int[] {
+    /* package-private */ static final int[] NORMALIZATION_FEATURES = new int[] {
             FEATURE_DESCRIPTION_LENGTH,
             FEATURE_PATH_LENGTH,
             FEATURE_IMAGE_SIZE,
@@ -180,20 +182,46 @@ public class HighlightsRanking {
         apply(highlights, new Action1<HighlightCandidate>() {
             @Override
             public void call(HighlightCandidate candidate) {
-                // Initial score based on frequency.
-                final double initialScore = candidate.features.get(FEATURE_VISITS_COUNT) *
-                        candidate.features.get(FEATURE_DOMAIN_FREQUENCY);
-
-                // First multiply some features with weights (decay) then adjust score with manual rules
-                final double score = adjustScore(
-                        decay(initialScore, candidate.features, HIGHLIGHT_WEIGHTS),
-                        candidate);
-
-                candidate.updateScore(score);
+                candidate.updateScore(scoreAtRankingTime(scoreTimeIndependently(candidate), candidate));
             }
         });
     }
 
+    /**
+     * Calculate the part of the score of a candidate which does not depend on the time we rank at, nor on
+     * the number of candidates. This needs the candidate's features to be normalized already.
+     *
+     * The result can be kept as long as the normalized features don't change, see {@link HighlightsEngine}.
+     */
+    /* package-private */ static double scoreTimeIndependently(HighlightCandidate candidate) {
+        // Initial score based on frequency: the domain frequency is multiplied in scoreAtRankingTime().
+        final double initialScore = candidate.features.get(FEATURE_VISITS_COUNT);
+
+        // First multiply some features with weights (decay) then adjust score with manual rules
+        return adjustScoreTimeIndependently(
+                decay(initialScore, candidate.features, HIGHLIGHT_WEIGHTS),
+                candidate);
+    }
+
+    /**
+     * Calculate the final score of a candidate from the result of {@link #scoreTimeIndependently(HighlightCandidate)}
+     * and the features which depend on the time we rank at.
+     */
+    /* package-private */ static double scoreAtRankingTime(double timeIndependentScore, HighlightCandidate candidate) {
+        double newScore = timeIndependentScore * candidate.features.get(FEATURE_DOMAIN_FREQUENCY);
+
+        newScore /= Math.pow(1 + candidate.features.get(FEATURE_AGE_IN_DAYS), 2);
+
+        // Boost bookmarks even if they have low score or no images giving a just-bookmarked page
+        // a near-infinite boost.
+        final double bookmarkAge = candidate.features.get(FEATURE_BOOKMARK_AGE_IN_MILLISECONDS);
+        if (bookmarkAge > 0) {
+            newScore += BOOKMARK_AGE_DIVIDEND / bookmarkAge;
+        }
+
+        return newScore;
+    }
+
     /**
      * Sort the highlight candidates by score descending.
      */
@@ -343,11 +371,9 @@ public class HighlightsRanking {
         return initialScore * Math.exp(-sumOfWeightedFeatures);
     }
 
-    private static double adjustScore(double initialScore, HighlightCandidate candidate) {
+    private static double adjustScoreTimeIndependently(double initialScore, HighlightCandidate candidate) {
         double newScore = initialScore;
 
-        newScore /= Math.pow(1 + candidate.features.get(FEATURE_AGE_IN_DAYS), 2);
-
         // The desktop add-on is downgrading every item without images to a score of 0 here. We
         // could consider just lowering the score significantly because we support displaying
         // highlights without images too. However it turns out that having an image is a pretty good
@@ -364,13 +390,6 @@ public class HighlightsRanking {
 
         // TODO: Consider adding a penalty for items without an icon or with a low quality icon (Bug 1335824).
 
-        // Boost bookmarks even if they have low score or no images giving a just-bookmarked page
-        // a near-infinite boost.
-        final double bookmarkAge = candidate.features.get(FEATURE_BOOKMARK_AGE_IN_MILLISECONDS);
-        if (bookmarkAge > 0) {
-            newScore += BOOKMARK_AGE_DIVIDEND / bookmarkAge;
-        }
-
         return newScore;
     }
 }
@@ -61,6 +61,10 @@ public class BrowserContract {
     public static final String PARAM_EXPIRE_PRIORITY = "priority";
     public static final String PARAM_DATASET_ID = "dataset_id";
     public static final String PARAM_GROUP_BY = "group_by";
+    public static final String PARAM_LIMIT_PER_HISTORY_GUID = "limit_per_history_guid";
+    public static final String PARAM_MODIFIED_SINCE = "modified_since";
+    // Full-text query restricting combined queries to sites with a matching URL or title.
+    public static final String PARAM_SEARCH_MATCH = "search_match";
 
     public static final String METHOD_INSERT_HISTORY_WITH_VISITS_FROM_SYNC = "insertHistoryWithVisitsSync";
     public static final String METHOD_UPDATE_SYNC_VERSIONS = "updateSyncVersions";
@@ -78,15 +82,15 @@ public class BrowserContract {
 
     /**
      * Produces a SQL expression used for sorting results of the "combined" view by frecency.
-     * Combines remote and local frecency calculations, weighting local visits much heavier.
+     * Sorts by the stored {@link Combined#FRECENCY} score, which combines remote and local frecency
+     * calculations, weighting local visits much heavier.
      *
      * @param includesBookmarks When URL is bookmarked, should we give it bonus frecency points?
      * @param ascending Indicates if sorting order ascending
      * @return Combined frecency sorting expression
      */
     static public String getCombinedFrecencySortOrder(boolean includesBookmarks, boolean ascending) {
-        final long now = System.currentTimeMillis();
-        StringBuilder order = new StringBuilder(getRemoteFrecencySQL(now) + " + " + getLocalFrecencySQL(now));
+        StringBuilder order = new StringBuilder(Combined.FRECENCY);
 
         if (includesBookmarks) {
             order.insert(0, "(CASE WHEN " + Combined.BOOKMARK_ID + " > -1 THEN 100 ELSE 0 END) + ");
@@ -96,6 +100,20 @@ public class BrowserContract {
         return order.toString();
     }
 
+    /**
+     * Produces a SQL expression computing the frecency of a row in the history table, as stored in
+     * {@link History#FRECENCY}. The current time is evaluated by SQLite, so that the expression can be
+     * used in triggers.
+     *
+     * @return Combined remote and local frecency SQL calculation
+     */
+    static public String getHistoryFrecencySQL() {
+        final String nowInMicroseconds = "(STRFTIME('%s', 'now') * 1000000)";
+        return getRemoteFrecencySQL(nowInMicroseconds, History.REMOTE_VISITS, History.REMOTE_DATE_LAST_VISITED) +
+                " + " +
+                getLocalFrecencySQL(nowInMicroseconds, History.LOCAL_VISITS, History.LOCAL_DATE_LAST_VISITED);
+    }
+
     /**
      * See Bug 1265525 for details (explanation + graphs) on how Remote frecency compares to Local frecency for different
      * combinations of visits count and age.
@@ -104,7 +122,11 @@ public class BrowserContract {
      * @return remote frecency SQL calculation
      */
     static public String getRemoteFrecencySQL(final long now) {
-        return getFrecencyCalculation(now, 1, 110, Combined.REMOTE_VISITS_COUNT, Combined.REMOTE_DATE_LAST_VISITED);
+        return getRemoteFrecencySQL(String.valueOf(now * 1000), Combined.REMOTE_VISITS_COUNT, Combined.REMOTE_DATE_LAST_VISITED);
+    }
+
+    private static String getRemoteFrecencySQL(final String nowInMicroseconds, final String visitCountColumn, final String lastVisitColumn) {
+        return getFrecencyCalculation(nowInMicroseconds, 1, 110, visitCountColumn, lastVisitColumn);
     }
 
     /**
@@ -116,10 +138,14 @@ public class BrowserContract {
      * @return local frecency SQL calculation
      */
     static public String getLocalFrecencySQL(final long now) {
-        String visitCountExpr = "(" + Combined.LOCAL_VISITS_COUNT + " + 2)";
+        return getLocalFrecencySQL(String.valueOf(now * 1000), Combined.LOCAL_VISITS_COUNT, Combined.LOCAL_DATE_LAST_VISITED);
+    }
+
+    private static String getLocalFrecencySQL(final String nowInMicroseconds, final String visitCountColumn, final String lastVisitColumn) {
+        String visitCountExpr = "(" + visitCountColumn + " + 2)";
         visitCountExpr = visitCountExpr + " * " + visitCountExpr;
 
-        return getFrecencyCalculation(now, 2, 225, visitCountExpr, Combined.LOCAL_DATE_LAST_VISITED);
+        return getFrecencyCalculation(nowInMicroseconds, 2, 225, visitCountExpr, lastVisitColumn);
     }
 
     /**
@@ -138,7 +164,10 @@ public class BrowserContract {
      * @return Frecency SQL calculation
      */
     static public String getFrecencyCalculation(final long now, final int minFrecency, final int multiplier, @NonNull  final String visitCountExpr, @NonNull final String lastVisitExpr) {
-        final long nowInMicroseconds = now * 1000;
+        return getFrecencyCalculation(String.valueOf(now * 1000), minFrecency, multiplier, visitCountExpr, lastVisitExpr);
+    }
+
+    private static String getFrecencyCalculation(final String nowInMicroseconds, final int minFrecency, final int multiplier, @NonNull final String visitCountExpr, @NonNull final String lastVisitExpr) {
         final long microsecondsPerDay = 86400000000L;
         final String ageExpr = "(" + nowInMicroseconds + " - " + lastVisitExpr + ") / " + microsecondsPerDay;
 
@@ -194,6 +223,8 @@ public class BrowserContract {
         public static final String REMOTE_VISITS = "visits_remote";
         public static final String LOCAL_DATE_LAST_VISITED = "date_local";
         public static final String REMOTE_DATE_LAST_VISITED = "date_remote";
+        // Frecency score computed from the aggregates above, refreshed as they change and once a day.
+        public static final String FRECENCY = "frecency";
     }
 
     @RobocopTarget
@@ -659,6 +690,10 @@ public class BrowserContract {
         public static final String PARENT = "parent";
         public static final String DATE = "date";
         public static final String METADATA = "metadata";
+
+        // Only present when querying for candidates modified since a given time: 1 if the candidate
+        // is no longer a highlight candidate, e.g. because it has been blocked.
+        public static final String IS_REMOVED = "is_removed";
     }
 
     public static final class HighlightCandidates extends Highlights {
@@ -85,6 +85,19 @@ public abstract class BrowserDB {
      */
     public abstract Cursor getAllVisitedHistory(ContentResolver cr);
 
+    /**
+     * Can return <code>null</code>.
+     * Returns the URLs of visited history items modified at or after <code>sinceMillis</code>.
+     */
+    public abstract Cursor getVisitedHistorySince(ContentResolver cr, long sinceMillis);
+
+    /**
+     * Can return <code>null</code>.
+     * Returns those of the given URLs which have been visited. Callers should keep the number of
+     * URLs well below SQLite's limit on the number of selection arguments.
+     */
+    public abstract Cursor getVisitedURLs(ContentResolver cr, Collection<String> urls);
+
     /**
      * Can return <code>null</code>.
      */
@@ -194,6 +207,15 @@ public abstract class BrowserDB {
      */
     @Nullable public abstract Cursor getHighlightCandidates(ContentResolver contentResolver, int limit);
 
+    /**
+     * Obtain the links to rank whose history record, bookmark or page metadata was modified after the given
+     * time, including links that are no longer candidates, see {@link BrowserContract.Highlights#IS_REMOVED}.
+     *
+     * @param contentResolver to load the cursor.
+     * @param modifiedSince Time in milliseconds since the epoch.
+     */
+    @Nullable public abstract Cursor getHighlightCandidatesModifiedSince(ContentResolver contentResolver, long modifiedSince);
+
     /**
      * Block a page from the highlights list.
      *
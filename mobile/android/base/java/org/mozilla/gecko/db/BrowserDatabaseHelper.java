@@ -70,7 +70,7 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
 
     // Replace the Bug number below with your Bug that is conducting a DB upgrade, as to force a merge conflict with any
     // other patches that require a DB upgrade.
-    public static final int DATABASE_VERSION = 39; // Bug 1364644
+    public static final int DATABASE_VERSION = 41; // Stored history frecency
     public static final String DATABASE_NAME = "browser.db";
 
     final protected Context mContext;
@@ -89,6 +89,7 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
     static final String TABLE_DELETED_LOGINS = BrowserContract.DeletedLogins.TABLE_DELETED_LOGINS;
     static final String TABLE_DISABLED_HOSTS = BrowserContract.LoginsDisabledHosts.TABLE_DISABLED_HOSTS;
     static final String TABLE_ANNOTATIONS = UrlAnnotations.TABLE_NAME;
+    static final String TABLE_SEARCH_INDEX = "search_index";
 
     static final String VIEW_COMBINED = Combined.VIEW_NAME;
     static final String VIEW_BOOKMARKS_WITH_FAVICONS = Bookmarks.VIEW_WITH_FAVICONS;
@@ -108,6 +109,13 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
             TABLE_FAVICONS + " ON " + qualifyColumn(TABLE_HISTORY, History.FAVICON_ID) + " = " +
             qualifyColumn(TABLE_FAVICONS, Favicons._ID);
 
+    // Selects the URLs of history items and bookmarks whose URL or title match a full-text query.
+    static final String SEARCH_INDEX_MATCH = "SELECT " + Combined.URL + " FROM " + TABLE_SEARCH_INDEX +
+            " WHERE " + TABLE_SEARCH_INDEX + " MATCH ?";
+
+    // (0 + 2) * (0 + 2) * 2, the local frecency of a page without visits; see getLocalFrecencySQL.
+    private static final int NEVER_VISITED_FRECENCY = 8;
+
     static final String TABLE_BOOKMARKS_TMP = TABLE_BOOKMARKS + "_tmp";
     static final String TABLE_HISTORY_TMP = TABLE_HISTORY + "_tmp";
 
@@ -174,6 +182,7 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
                 History.DATE_LAST_VISITED + " INTEGER," +
                 History.LOCAL_DATE_LAST_VISITED + " INTEGER NOT NULL DEFAULT 0," +
                 History.REMOTE_DATE_LAST_VISITED + " INTEGER NOT NULL DEFAULT 0," +
+                History.FRECENCY + " INTEGER NOT NULL DEFAULT 0," +
                 History.DATE_CREATED + " INTEGER," +
                 History.DATE_MODIFIED + " INTEGER," +
                 History.GUID + " TEXT NOT NULL," +
@@ -707,8 +716,62 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
             Combined.REMOTE_VISITS_COUNT
             Combined.HISTORY_GUID
          */
-        db.execSQL("CREATE VIEW IF NOT EXISTS " + VIEW_COMBINED + " AS" +
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + VIEW_COMBINED + " AS" + getCombinedSelect(false, null));
 
+        debug("Creating " + VIEW_COMBINED_WITH_FAVICONS + " view");
+
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + VIEW_COMBINED_WITH_FAVICONS + " AS" +
+                " SELECT " + qualifyColumn(VIEW_COMBINED, "*") + ", " +
+                qualifyColumn(TABLE_FAVICONS, Favicons.URL) + " AS " + Combined.FAVICON_URL + ", " +
+                qualifyColumn(TABLE_FAVICONS, Favicons.DATA) + " AS " + Combined.FAVICON +
+                " FROM " + VIEW_COMBINED + " LEFT OUTER JOIN " + TABLE_FAVICONS +
+                " ON " + Combined.FAVICON_ID + " = " + qualifyColumn(TABLE_FAVICONS, Favicons._ID));
+
+    }
+
+    private void createCombinedViewOn41(final SQLiteDatabase db) {
+        /*
+        Builds on top of v38 combined view, adding the column:
+        - Combined.FRECENCY - stored frecency score of the history item.
+
+        The rows in the ensuing view are, in order:
+            Combined.BOOKMARK_ID
+            Combined.HISTORY_ID
+            Combined._ID (always 0)
+            Combined.URL
+            Combined.TITLE
+            Combined.VISITS
+            Combined.DATE_LAST_VISITED
+            Combined.FAVICON_ID
+            Combined.LOCAL_DATE_LAST_VISITED
+            Combined.REMOTE_DATE_LAST_VISITED
+            Combined.LOCAL_VISITS_COUNT
+            Combined.REMOTE_VISITS_COUNT
+            Combined.HISTORY_GUID
+            Combined.FRECENCY
+         */
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + VIEW_COMBINED + " AS" + getCombinedSelect(true, null));
+
+        debug("Creating " + VIEW_COMBINED_WITH_FAVICONS + " view");
+
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + VIEW_COMBINED_WITH_FAVICONS + " AS" +
+                " SELECT " + qualifyColumn(VIEW_COMBINED, "*") + ", " +
+                qualifyColumn(TABLE_FAVICONS, Favicons.URL) + " AS " + Combined.FAVICON_URL + ", " +
+                qualifyColumn(TABLE_FAVICONS, Favicons.DATA) + " AS " + Combined.FAVICON +
+                " FROM " + VIEW_COMBINED + " LEFT OUTER JOIN " + TABLE_FAVICONS +
+                " ON " + Combined.FAVICON_ID + " = " + qualifyColumn(TABLE_FAVICONS, Favicons._ID));
+    }
+
+    /**
+     * Returns the SELECT statement behind the v38 combined view, or the v41 one if
+     * <code>withFrecency</code> is set.
+     *
+     * @param urlConstraint if not null, a subquery selecting URLs; both halves of the statement only
+     *                      select rows with one of these URLs. Applying the constraint here, before
+     *                      the joins, avoids materializing the whole view first.
+     */
+    private static String getCombinedSelect(boolean withFrecency, String urlConstraint) {
+        return
                 // Bookmarks without history.
                 " SELECT " + qualifyColumn(TABLE_BOOKMARKS, Bookmarks._ID) + " AS " + Combined.BOOKMARK_ID + "," +
                 "-1 AS " + Combined.HISTORY_ID + "," +
@@ -723,6 +786,8 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
                 "0 AS " + Combined.LOCAL_VISITS_COUNT + ", " +
                 "0 AS " + Combined.REMOTE_VISITS_COUNT + ", " +
                 "NULL AS " + Combined.HISTORY_GUID +
+                // The frecency of a page without any visits.
+                (withFrecency ? ", " + NEVER_VISITED_FRECENCY + " AS " + Combined.FRECENCY : "") +
                 " FROM " + TABLE_BOOKMARKS +
                 " WHERE " +
                 qualifyColumn(TABLE_BOOKMARKS, Bookmarks.TYPE)  + " = " + Bookmarks.TYPE_BOOKMARK + " AND " +
@@ -731,6 +796,8 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
                 qualifyColumn(TABLE_BOOKMARKS, Bookmarks.IS_DELETED)  + " = 0 AND " +
                 qualifyColumn(TABLE_BOOKMARKS, Bookmarks.URL) +
                 " NOT IN (SELECT " + History.URL + " FROM " + TABLE_HISTORY + ")" +
+                (urlConstraint == null ? "" :
+                        " AND " + qualifyColumn(TABLE_BOOKMARKS, Bookmarks.URL) + " IN (" + urlConstraint + ")") +
                 " UNION ALL" +
 
                 // History with and without bookmark.
@@ -767,6 +834,7 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
                 qualifyColumn(TABLE_HISTORY, History.LOCAL_VISITS) + " AS " + Combined.LOCAL_VISITS_COUNT + "," +
                 qualifyColumn(TABLE_HISTORY, History.REMOTE_VISITS) + " AS " + Combined.REMOTE_VISITS_COUNT + "," +
                 qualifyColumn(TABLE_HISTORY, History.GUID) + " AS " + Combined.HISTORY_GUID +
+                (withFrecency ? ", " + qualifyColumn(TABLE_HISTORY, History.FRECENCY) + " AS " + Combined.FRECENCY : "") +
 
                 // We need to JOIN on Visits in order to compute visit counts
                 " FROM " + TABLE_HISTORY + " " +
@@ -782,18 +850,9 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
 
                 // ... or it's a bookmark. This is less efficient than filtering prior
                 // to the join if you have lots of folders.
-                qualifyColumn(TABLE_BOOKMARKS, Bookmarks.TYPE) + " = " + Bookmarks.TYPE_BOOKMARK + ")"
-        );
-
-        debug("Creating " + VIEW_COMBINED_WITH_FAVICONS + " view");
-
-        db.execSQL("CREATE VIEW IF NOT EXISTS " + VIEW_COMBINED_WITH_FAVICONS + " AS" +
-                " SELECT " + qualifyColumn(VIEW_COMBINED, "*") + ", " +
-                qualifyColumn(TABLE_FAVICONS, Favicons.URL) + " AS " + Combined.FAVICON_URL + ", " +
-                qualifyColumn(TABLE_FAVICONS, Favicons.DATA) + " AS " + Combined.FAVICON +
-                " FROM " + VIEW_COMBINED + " LEFT OUTER JOIN " + TABLE_FAVICONS +
-                " ON " + Combined.FAVICON_ID + " = " + qualifyColumn(TABLE_FAVICONS, Favicons._ID));
-
+                qualifyColumn(TABLE_BOOKMARKS, Bookmarks.TYPE) + " = " + Bookmarks.TYPE_BOOKMARK + ")" +
+                (urlConstraint == null ? "" :
+                        " AND " + qualifyColumn(TABLE_HISTORY, History.URL) + " IN (" + urlConstraint + ")");
     }
 
     private void createLoginsTable(SQLiteDatabase db, final String tableName) {
@@ -889,13 +948,16 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
         createBookmarksWithAnnotationsView(db);
 
         createVisitsTable(db);
-        createCombinedViewOn38(db);
+        createCombinedViewOn41(db);
 
         createActivityStreamBlocklistTable(db);
 
         createPageMetadataTable(db);
 
         createRemoteDevicesTable(db);
+
+        createSearchIndex(db);
+        createHistoryFrecencyTriggers(db);
     }
 
     /**
@@ -1149,6 +1211,100 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
                 UrlAnnotations.TABLE_NAME + "(" + UrlAnnotations.URL + ", " + UrlAnnotations.KEY + ")");
     }
 
+    /**
+     * Create a full-text index over the URLs and titles of history items and bookmarks, used to
+     * filter the combined view without scanning it. Triggers keep the index up to date. Rows
+     * are keyed by history ID, and by negative bookmark ID, so that both share one index.
+     */
+    private void createSearchIndex(final SQLiteDatabase db) {
+        debug("Creating " + TABLE_SEARCH_INDEX + " table");
+
+        // The "simple" tokenizer is available on all Android versions; it splits on ASCII
+        // punctuation and folds ASCII case, just like the LIKE clauses this index replaces.
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_SEARCH_INDEX + " USING fts4(" +
+                Combined.URL + ", " + Combined.TITLE + ")");
+
+        createSearchIndexTriggers(db, TABLE_HISTORY, "");
+        createSearchIndexTriggers(db, TABLE_BOOKMARKS, "-");
+
+        db.execSQL("INSERT INTO " + TABLE_SEARCH_INDEX + "(docid, " + Combined.URL + ", " + Combined.TITLE + ")" +
+                " SELECT " + History._ID + ", " + History.URL + ", " + History.TITLE +
+                " FROM " + TABLE_HISTORY);
+        db.execSQL("INSERT INTO " + TABLE_SEARCH_INDEX + "(docid, " + Combined.URL + ", " + Combined.TITLE + ")" +
+                " SELECT -" + Bookmarks._ID + ", " + Bookmarks.URL + ", " + Bookmarks.TITLE +
+                " FROM " + TABLE_BOOKMARKS + " WHERE " + Bookmarks.URL + " IS NOT NULL");
+    }
+
+    private static void createSearchIndexTriggers(final SQLiteDatabase db, final String table, final String idSign) {
+        // History and bookmarks use the same column names for these.
+        final String insert = "INSERT INTO " + TABLE_SEARCH_INDEX +
+                "(docid, " + Combined.URL + ", " + Combined.TITLE + ")" +
+                " SELECT " + idSign + "new." + History._ID + ", new." + History.URL + ", new." + History.TITLE +
+                " WHERE new." + History.URL + " IS NOT NULL; ";
+        final String delete = "DELETE FROM " + TABLE_SEARCH_INDEX +
+                " WHERE docid = " + idSign + "old." + History._ID + "; ";
+
+        db.execSQL("CREATE TRIGGER " + table + "_search_index_insert AFTER INSERT ON " + table +
+                " BEGIN " + insert + "END");
+        db.execSQL("CREATE TRIGGER " + table + "_search_index_update" +
+                " AFTER UPDATE OF " + History.URL + ", " + History.TITLE + " ON " + table +
+                " BEGIN " + delete + insert + "END");
+        db.execSQL("CREATE TRIGGER " + table + "_search_index_delete AFTER DELETE ON " + table +
+                " BEGIN " + delete + "END");
+    }
+
+    /**
+     * Keep the stored frecency of history items up to date as visits are added or synced.
+     */
+    private static void createHistoryFrecencyTriggers(final SQLiteDatabase db) {
+        final String update = "UPDATE " + TABLE_HISTORY +
+                " SET " + History.FRECENCY + " = " + BrowserContract.getHistoryFrecencySQL() +
+                " WHERE " + History._ID + " = new." + History._ID + "; ";
+
+        db.execSQL("CREATE TRIGGER history_frecency_insert AFTER INSERT ON " + TABLE_HISTORY +
+                " BEGIN " + update + "END");
+        db.execSQL("CREATE TRIGGER history_frecency_update" +
+                " AFTER UPDATE OF " + History.LOCAL_VISITS + ", " + History.REMOTE_VISITS + ", " +
+                History.LOCAL_DATE_LAST_VISITED + ", " + History.REMOTE_DATE_LAST_VISITED + " ON " + TABLE_HISTORY +
+                " BEGIN " + update + "END");
+    }
+
+    /**
+     * Recompute the stored frecency of all history items, which decays as their last visits age.
+     *
+     * @return the number of history items whose frecency changed.
+     */
+    /* package-private */ static int refreshHistoryFrecency(final SQLiteDatabase db) {
+        final String frecency = BrowserContract.getHistoryFrecencySQL();
+        final SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE_HISTORY +
+                " SET " + History.FRECENCY + " = " + frecency +
+                " WHERE " + History.FRECENCY + " <> " + frecency);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Returns the tables to query for combined rows matching a full-text query on
+     * {@link #TABLE_SEARCH_INDEX}. The returned SQL contains two placeholders, which must both be
+     * bound to the query before any other arguments.
+     */
+    /* package-private */ static String getCombinedSearchTables(boolean withFavicons) {
+        final String combined = "(" + getCombinedSelect(true, SEARCH_INDEX_MATCH) + ") AS " + VIEW_COMBINED;
+        if (!withFavicons) {
+            return combined;
+        }
+
+        return "(SELECT " + qualifyColumn(VIEW_COMBINED, "*") + ", " +
+                qualifyColumn(TABLE_FAVICONS, Favicons.URL) + " AS " + Combined.FAVICON_URL + ", " +
+                qualifyColumn(TABLE_FAVICONS, Favicons.DATA) + " AS " + Combined.FAVICON +
+                " FROM " + combined + " LEFT OUTER JOIN " + TABLE_FAVICONS +
+                " ON " + Combined.FAVICON_ID + " = " + qualifyColumn(TABLE_FAVICONS, Favicons._ID) +
+                ") AS " + VIEW_COMBINED_WITH_FAVICONS;
+    }
+
     private void createOrUpdateAllSpecialFolders(SQLiteDatabase db) {
         createOrUpdateSpecialFolder(db, Bookmarks.MOBILE_FOLDER_GUID,
             R.string.bookmarks_folder_mobile, 0);
@@ -2244,6 +2400,18 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
         Log.d(LOGTAG, "Marked bookmarks as 'not changed since last sync': " + modified);
     }
 
+    private void upgradeDatabaseFrom39to40(final SQLiteDatabase db) {
+        createSearchIndex(db);
+    }
+
+    private void upgradeDatabaseFrom40to41(final SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_HISTORY +
+                " ADD COLUMN " + History.FRECENCY + " INTEGER NOT NULL DEFAULT 0");
+        refreshHistoryFrecency(db);
+        createHistoryFrecencyTriggers(db);
+        createV41CombinedView(db);
+    }
+
     private void createV33CombinedView(final SQLiteDatabase db) {
         db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMBINED);
         db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMBINED_WITH_FAVICONS);
@@ -2265,6 +2433,13 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
         createCombinedViewOn38(db);
     }
 
+    private void createV41CombinedView(final SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMBINED);
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMBINED_WITH_FAVICONS);
+
+        createCombinedViewOn41(db);
+    }
+
     private void createV19CombinedView(SQLiteDatabase db) {
         db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMBINED);
         db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMBINED_WITH_FAVICONS);
@@ -2398,6 +2573,14 @@ public class BrowserDatabaseHelper extends SQLiteOpenHelper {
                 case 39:
                     upgradeDatabaseFrom38to39(db);
                     break;
+
+                case 40:
+                    upgradeDatabaseFrom39to40(db);
+                    break;
+
+                case 41:
+                    upgradeDatabaseFrom40to41(db);
+                    break;
             }
         }
 
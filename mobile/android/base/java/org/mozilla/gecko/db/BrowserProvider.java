@@ -25,6 +25,7 @@ import org.mozilla.gecko.db.BrowserContract.FaviconColumns;
 import org.mozilla.gecko.db.BrowserContract.Favicons;
 import org.mozilla.gecko.db.BrowserContract.RemoteDevices;
 import org.mozilla.gecko.db.BrowserContract.Highlights;
+import org.mozilla.gecko.db.BrowserContract.HighlightCandidates;
 import org.mozilla.gecko.db.BrowserContract.History;
 import org.mozilla.gecko.db.BrowserContract.Visits;
 import org.mozilla.gecko.db.BrowserContract.Schema;
@@ -60,6 +61,7 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
@@ -89,6 +91,13 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
     // Minimum number of thumbnails to keep around.
     static final int DEFAULT_EXPIRY_THUMBNAIL_COUNT = 15;
 
+    // Frecency is based on the age of the last visit in days, so refreshing it daily is enough.
+    static final long FRECENCY_REFRESH_INTERVAL = 1000L * 60L * 60L * 24L;
+
+    // Beyond this many sites matching a search, joining each of them is slower than filtering the
+    // combined view row by row.
+    static final int MAX_SEARCH_INDEX_CANDIDATES = 5000;
+
     static final String TABLE_BOOKMARKS = Bookmarks.TABLE_NAME;
     static final String TABLE_HISTORY = History.TABLE_NAME;
     static final String TABLE_VISITS = Visits.TABLE_NAME;
@@ -300,6 +309,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         map.put(Combined.REMOTE_DATE_LAST_VISITED, Combined.REMOTE_DATE_LAST_VISITED);
         map.put(Combined.LOCAL_VISITS_COUNT, Combined.LOCAL_VISITS_COUNT);
         map.put(Combined.REMOTE_VISITS_COUNT, Combined.REMOTE_VISITS_COUNT);
+        map.put(Combined.FRECENCY, Combined.FRECENCY);
         COMBINED_PROJECTION_MAP = Collections.unmodifiableMap(map);
 
         map = new HashMap<>();
@@ -380,6 +390,9 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
 
     private final ShrinkMemoryReceiver mShrinkMemoryReceiver = new ShrinkMemoryReceiver(this);
 
+    // Elapsed realtime of the last frecency refresh, by database path.
+    private final Map<String, Long> mLastFrecencyRefresh = new HashMap<>();
+
     @Override
     public boolean onCreate() {
         if (!super.onCreate()) {
@@ -405,6 +418,18 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         return (URLImageDataTable) sTables[0];
     }
 
+    /**
+     * Short prefixes like "h" or "www" match most sites; for those, looking up candidates in the
+     * search index costs more than it saves.
+     */
+    private static boolean hasFewSearchIndexMatches(SQLiteDatabase db, String searchMatch) {
+        final long count = DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM (" + BrowserDatabaseHelper.SEARCH_INDEX_MATCH +
+                " LIMIT " + (MAX_SEARCH_INDEX_CANDIDATES + 1) + ")",
+                new String[] { searchMatch });
+        return count <= MAX_SEARCH_INDEX_CANDIDATES;
+    }
+
     private static boolean hasFaviconsInProjection(String[] projection) {
         if (projection == null) return true;
         for (int i = 0; i < projection.length; ++i) {
@@ -499,6 +524,28 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         db.execSQL(sql);
     }
 
+    /**
+     * Let the stored frecency of history items decay, at most once per FRECENCY_REFRESH_INTERVAL.
+     * Scores are otherwise only updated when visits are added, so sites that are no longer
+     * visited would keep their rank forever.
+     *
+     * Call this method within a transaction.
+     */
+    private void refreshFrecencyIfNeeded(final SQLiteDatabase db) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mLastFrecencyRefresh) {
+            final Long lastRefresh = mLastFrecencyRefresh.get(db.getPath());
+            if (lastRefresh != null && now - lastRefresh < FRECENCY_REFRESH_INTERVAL) {
+                return;
+            }
+            mLastFrecencyRefresh.put(db.getPath(), now);
+        }
+
+        beginWrite(db);
+        final int updated = BrowserDatabaseHelper.refreshHistoryFrecency(db);
+        debug("Refreshed frecency of " + updated + " history items.");
+    }
+
     /**
      * Remove any thumbnails that for sites that aren't likely to be ever shown.
      * Items will be removed according to a frecency calculation and only if they are not pinned
@@ -567,6 +614,27 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         }
     }
 
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final int deleted = super.delete(uri, selection, selectionArgs);
+
+        // Deleting wipes the records that the modified highlight candidates query would need to match
+        // (or removes them entirely for Sync), so tell observers to query all candidates again.
+        switch (URI_MATCHER.match(uri)) {
+            case BOOKMARKS_ID:
+            case BOOKMARKS:
+            case HISTORY_ID:
+            case HISTORY:
+            case PAGE_METADATA:
+                if (deleted > 0) {
+                    getContext().getContentResolver().notifyChange(HighlightCandidates.CONTENT_URI, null, false);
+                }
+                break;
+        }
+
+        return deleted;
+    }
+
     @SuppressWarnings("fallthrough")
     @Override
     public int deleteInTransaction(Uri uri, String selection, String[] selectionArgs) {
@@ -637,6 +705,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                 }
                 expireHistory(db, retainCount, keepAfter);
                 expireActivityStreamBlocklist(db, retainCount / ACTIVITYSTREAM_BLOCKLIST_EXPIRY_FACTOR);
+                refreshFrecencyIfNeeded(db);
                 expireThumbnails(db);
                 deleteUnusedImages(uri);
                 break;
@@ -1210,7 +1279,37 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         }
     }
 
-    public Cursor getHighlightCandidates(final SQLiteDatabase db, String limit) {
+    /**
+     * @param modifiedSince if not null, only return candidates whose history record, bookmark or page metadata
+     *                      was modified after this time, including candidates that were removed, so that the
+     *                      caller can update the candidates it already has. See {@link Highlights#IS_REMOVED}.
+     */
+    public Cursor getHighlightCandidates(final SQLiteDatabase db, String limit, @Nullable String modifiedSince) {
+        final String blocklistedURLs = "(SELECT " + ActivityStreamBlocklist.URL + " FROM " + ActivityStreamBlocklist.TABLE_NAME + " ) ";
+        final String removedColumn;
+        final String filter;
+        final String[] filterArgs;
+        if (modifiedSince == null) {
+            removedColumn = "";
+            filter = "WHERE " + DBUtils.qualifyColumn(History.TABLE_NAME, History.URL) + " NOT IN " + blocklistedURLs +
+                    "AND " + DBUtils.qualifyColumn(History.TABLE_NAME, History.IS_DELETED) + " IS NOT 1 ";
+            filterArgs = null;
+        } else {
+            removedColumn = ", " +
+                    "CASE WHEN " + DBUtils.qualifyColumn(History.TABLE_NAME, History.IS_DELETED) + " IS 1 "
+                    + "OR " + DBUtils.qualifyColumn(History.TABLE_NAME, History.URL) + " IN " + blocklistedURLs
+                    + "THEN 1 "
+                    + "ELSE 0 "
+                    + "END AS " + Highlights.IS_REMOVED + " ";
+            filter = "WHERE " + DBUtils.qualifyColumn(History.TABLE_NAME, History.DATE_MODIFIED) + " > ? " +
+                    "OR " + DBUtils.qualifyColumn(Bookmarks.TABLE_NAME, Bookmarks.DATE_MODIFIED) + " > ? " +
+                    "OR " + DBUtils.qualifyColumn(PageMetadata.TABLE_NAME, PageMetadata.DATE_CREATED) + " > ? " +
+                    "OR " + DBUtils.qualifyColumn(History.TABLE_NAME, History.URL) + " IN (SELECT " + ActivityStreamBlocklist.URL +
+                        " FROM " + ActivityStreamBlocklist.TABLE_NAME +
+                        " WHERE " + ActivityStreamBlocklist.CREATED + " > ? ) ";
+            filterArgs = new String[] { modifiedSince, modifiedSince, modifiedSince, modifiedSince };
+        }
+
         final String query = "SELECT " +
                 DBUtils.qualifyColumn(History.TABLE_NAME, History.URL) + " AS " + Highlights.URL + ", " +
                 DBUtils.qualifyColumn(History.TABLE_NAME, History.VISITS) + ", " +
@@ -1238,6 +1337,8 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                     + "ELSE " + DBUtils.qualifyColumn(History.TABLE_NAME, History.DATE_LAST_VISITED) + " "
                     + "END AS " + Highlights.DATE + " " +
 
+                removedColumn +
+
                 "FROM " + History.TABLE_NAME + " " +
                 "LEFT JOIN " + Bookmarks.TABLE_NAME + " ON " +
                     DBUtils.qualifyColumn(History.TABLE_NAME, History.URL) + " = " +
@@ -1246,12 +1347,11 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                 "LEFT JOIN " + PageMetadata.TABLE_NAME + " ON " +
                     DBUtils.qualifyColumn(History.TABLE_NAME, History.GUID) + " = " +
                     DBUtils.qualifyColumn(PageMetadata.TABLE_NAME, PageMetadata.HISTORY_GUID) + " " +
-                "WHERE " + DBUtils.qualifyColumn(History.TABLE_NAME, History.URL) + " NOT IN (SELECT " + ActivityStreamBlocklist.URL + " FROM " + ActivityStreamBlocklist.TABLE_NAME + " ) " +
-                "AND " + DBUtils.qualifyColumn(History.TABLE_NAME, History.IS_DELETED) + " IS NOT 1 " +
-                "ORDER BY " + Highlights.DATE + " DESC " +
-                "LIMIT " + limit;
+                filter +
+                "ORDER BY " + Highlights.DATE + " DESC" +
+                (limit == null ? "" : " LIMIT " + limit);
 
-        final Cursor cursor = db.rawQuery(query, null);
+        final Cursor cursor = db.rawQuery(query, filterArgs);
         final Context context = getContext();
 
         if (cursor != null && context != null) {
@@ -1345,15 +1445,23 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                 break;
             }
 
-            case VISITS:
+            case VISITS: {
                 debug("Query is on visits: " + uri);
                 qb.setProjectionMap(VISIT_PROJECTION_MAP);
                 qb.setTables(TABLE_VISITS);
 
+                // Allows fetching the most recent visits for many history records in one query.
+                final String limitPerGuid = uri.getQueryParameter(BrowserContract.PARAM_LIMIT_PER_HISTORY_GUID);
+                if (!TextUtils.isEmpty(limitPerGuid)) {
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            getRecentVisitsPerHistoryGUIDWhereClause(Integer.parseInt(limitPerGuid)));
+                }
+
                 if (TextUtils.isEmpty(sortOrder)) {
                     sortOrder = DEFAULT_VISITS_SORT_ORDER;
                 }
                 break;
+            }
 
             case FAVICON_ID:
                 selection = DatabaseUtils.concatenateWhere(selection, Favicons._ID + " = ?");
@@ -1410,17 +1518,25 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
 
                 qb.setProjectionMap(COMBINED_PROJECTION_MAP);
 
-                if (hasFaviconsInProjection(projection))
+                final String searchMatch = uri.getQueryParameter(BrowserContract.PARAM_SEARCH_MATCH);
+                if (!TextUtils.isEmpty(searchMatch) && hasFewSearchIndexMatches(db, searchMatch)) {
+                    // Only look at sites found in the search index, instead of filtering the whole
+                    // view. The match placeholders come before those of the selection.
+                    qb.setTables(BrowserDatabaseHelper.getCombinedSearchTables(hasFaviconsInProjection(projection)));
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] { searchMatch, searchMatch },
+                                                                      selectionArgs);
+                } else if (hasFaviconsInProjection(projection)) {
                     qb.setTables(VIEW_COMBINED_WITH_FAVICONS);
-                else
+                } else {
                     qb.setTables(Combined.VIEW_NAME);
+                }
 
                 break;
             }
 
             case HIGHLIGHT_CANDIDATES:
                 debug("Highlight candidates query: " + uri);
-                return getHighlightCandidates(db, limit);
+                return getHighlightCandidates(db, limit, uri.getQueryParameter(BrowserContract.PARAM_MODIFIED_SINCE));
 
             case PAGE_METADATA: {
                 debug("PageMetadata query: " + uri);
@@ -1463,6 +1579,25 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         return cursor;
     }
 
+    /**
+     * Restrict a visits query to at most <code>limit</code> most recent visits of each history record.
+     *
+     * The correlated subquery is a short walk over the (history_guid, date) index for every
+     * candidate row, which is much cheaper than running a separate query per history GUID.
+     */
+    private static String getRecentVisitsPerHistoryGUIDWhereClause(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Per-GUID visit limit must be positive: " + limit);
+        }
+        return DBUtils.qualifyColumn(TABLE_VISITS, Visits._ID) + " IN (" +
+                "SELECT " + DBUtils.qualifyColumn("recent", Visits._ID) +
+                " FROM " + TABLE_VISITS + " AS recent" +
+                " WHERE " + DBUtils.qualifyColumn("recent", Visits.HISTORY_GUID) + " = " +
+                DBUtils.qualifyColumn(TABLE_VISITS, Visits.HISTORY_GUID) +
+                " ORDER BY " + DBUtils.qualifyColumn("recent", Visits.DATE_VISITED) + " DESC" +
+                " LIMIT " + limit + ")";
+    }
+
     /**
      * Update the positions of bookmarks in batches.
      *
@@ -65,6 +65,7 @@ import android.os.SystemClock;
 import android.support.annotation.CheckResult;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.content.CursorLoader;
 import android.text.TextUtils;
 import android.util.Log;
@@ -655,6 +656,8 @@ public class LocalBrowserDB extends BrowserDB {
 
     private Cursor filterAllSites(ContentResolver cr, String[] projection, CharSequence constraint,
                                   int limit, CharSequence urlFilter, String selection, String[] selectionArgs) {
+        Uri uri = combinedUriWithLimit(limit);
+
         // The combined history/bookmarks selection queries for sites with a URL or title containing
         // the constraint string(s), treating space-separated words as separate constraints
         if (!TextUtils.isEmpty(constraint)) {
@@ -669,6 +672,16 @@ public class LocalBrowserDB extends BrowserDB {
                 selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
                                                                   new String[] { constraintWord, constraintWord });
             }
+
+            // Scanning every site with the LIKE clauses above is too slow for large histories, so
+            // let the provider narrow the query down to sites found in the search index. The LIKE
+            // clauses then only run on those candidates.
+            final String searchMatch = getSearchIndexQuery(constraintWords, constraintCount);
+            if (searchMatch != null) {
+                uri = uri.buildUpon()
+                         .appendQueryParameter(BrowserContract.PARAM_SEARCH_MATCH, searchMatch)
+                         .build();
+            }
         }
 
         if (urlFilter != null) {
@@ -681,13 +694,60 @@ public class LocalBrowserDB extends BrowserDB {
         // Bookmarked history items get extra frecency points.
         final String sortOrder = BrowserContract.getCombinedFrecencySortOrder(true, false);
 
-        return cr.query(combinedUriWithLimit(limit),
+        return cr.query(uri,
                         projection,
                         selection,
                         selectionArgs,
                         sortOrder);
     }
 
+    /**
+     * Build a full-text query for the search index which matches every site that the LIKE
+     * clauses for the given words could match, as far as the index can tell: each word becomes
+     * a phrase of its tokens, the last one being a prefix, e.g. "mozilla.o" becomes "mozilla o*".
+     * Like SQLite's "simple" tokenizer, we split words on ASCII characters other than letters and
+     * digits, and only fold ASCII case.
+     *
+     * Tokens that start in the middle of an indexed token can't be found this way, so unlike the
+     * LIKE clauses, the index only matches words at token boundaries.
+     *
+     * @return the query, or null if none of the words contain any tokens.
+     */
+    @Nullable
+    @VisibleForTesting
+    static String getSearchIndexQuery(String[] words, int count) {
+        final StringBuilder query = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            final StringBuilder phrase = new StringBuilder();
+            final String word = words[i];
+            final int length = word.length();
+            for (int j = 0; j < length; j++) {
+                final char c = word.charAt(j);
+                if (c >= 0x80 || Character.isLetterOrDigit(c)) {
+                    phrase.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+                } else if (phrase.length() > 0 && phrase.charAt(phrase.length() - 1) != ' ') {
+                    phrase.append(' ');
+                }
+            }
+
+            // Drop a trailing separator; the prefix marker belongs to the last token.
+            int end = phrase.length();
+            if (end > 0 && phrase.charAt(end - 1) == ' ') {
+                end--;
+            }
+            if (end == 0) {
+                continue;
+            }
+
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(phrase, 0, end).append("*\"");
+        }
+
+        return query.length() > 0 ? query.toString() : null;
+    }
+
     @Override
     public int getCount(ContentResolver cr, String database) {
         int count = 0;
@@ -790,6 +850,24 @@ public class LocalBrowserDB extends BrowserDB {
                         null);
     }
 
+    @Override
+    public Cursor getVisitedHistorySince(ContentResolver cr, long sinceMillis) {
+        return cr.query(mHistoryUriWithProfile,
+                        new String[] { History.URL },
+                        History.VISITS + " > 0 AND " + History.DATE_MODIFIED + " >= ?",
+                        new String[] { String.valueOf(sinceMillis) },
+                        null);
+    }
+
+    @Override
+    public Cursor getVisitedURLs(ContentResolver cr, Collection<String> urls) {
+        return cr.query(mHistoryUriWithProfile,
+                        new String[] { History.URL },
+                        History.VISITS + " > 0 AND " + DBUtils.computeSQLInClause(urls.size(), History.URL),
+                        urls.toArray(new String[urls.size()]),
+                        null);
+    }
+
     @Override
     public Cursor getRecentHistory(ContentResolver cr, int limit) {
         return cr.query(combinedUriWithLimit(limit),
@@ -2078,6 +2156,15 @@ public class LocalBrowserDB extends BrowserDB {
         return contentResolver.query(uri, null, null, null, null);
     }
 
+    @Override
+    public Cursor getHighlightCandidatesModifiedSince(ContentResolver contentResolver, long modifiedSince) {
+        final Uri uri = mHighlightCandidatesUriWithProfile.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_MODIFIED_SINCE, String.valueOf(modifiedSince))
+                .build();
+
+        return contentResolver.query(uri, null, null, null, null);
+    }
+
     @Override
     public void blockActivityStreamSite(ContentResolver cr, String url) {
         final ContentValues values = new ContentValues();
@@ -58,6 +58,7 @@ import android.os.Bundle;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
+import android.support.v4.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -1057,6 +1058,10 @@ public class BrowserSearch extends HomeFragment
     private static class SearchEngineSuggestionAsyncLoader extends SuggestionAsyncLoader {
         private final SuggestClient mSuggestClient;
 
+        // Cancelled when the search term changes, so that the outdated request doesn't hold up
+        // the one for the new search term.
+        private CancellationSignal mCancellationSignal;
+
         public SearchEngineSuggestionAsyncLoader(Context context, SuggestClient suggestClient, String searchTerm) {
             super(context, searchTerm);
             mSuggestClient = suggestClient;
@@ -1064,7 +1069,32 @@ public class BrowserSearch extends HomeFragment
 
         @Override
         public ArrayList<String> loadInBackground() {
-            return mSuggestClient.query(mSearchTerm);
+            final CancellationSignal cancellationSignal = new CancellationSignal();
+            synchronized (this) {
+                if (isLoadInBackgroundCanceled()) {
+                    return new ArrayList<String>();
+                }
+                mCancellationSignal = cancellationSignal;
+            }
+
+            try {
+                return mSuggestClient.query(mSearchTerm, cancellationSignal);
+            } finally {
+                synchronized (this) {
+                    mCancellationSignal = null;
+                }
+            }
+        }
+
+        @Override
+        public void cancelLoadInBackground() {
+            super.cancelLoadInBackground();
+
+            synchronized (this) {
+                if (mCancellationSignal != null) {
+                    mCancellationSignal.cancel();
+                }
+            }
         }
     }
 
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.util.EnumSet;
 import java.util.Set;
 
+import org.mozilla.gecko.MemoryCacheRegistry;
 import org.mozilla.gecko.distribution.Distribution;
 
 public class ImageLoader {
@@ -55,6 +56,7 @@ public class ImageLoader {
         if (instance == null) {
             lrucache = new LruCache(context);
             Picasso.Builder builder = new Picasso.Builder(context).memoryCache(lrucache);
+            MemoryCacheRegistry.getInstance().register("images", MemoryCacheRegistry.PRIORITY_LOW, LRU_CACHE_BUDGET);
 
             final Distribution distribution = Distribution.getInstance(context.getApplicationContext());
             builder.downloader(new ImageDownloader(context, distribution));
@@ -70,6 +72,27 @@ public class ImageLoader {
         }
     }
 
+    // Picasso's cache can't be resized, so it is cleared instead, from medium memory pressure on:
+    // that is when normal priority caches are down to 1/8 of their budgets.
+    private static final float LRU_CACHE_CLEAR_FRACTION =
+            MemoryCacheRegistry.getBudgetFraction(0.125f, MemoryCacheRegistry.PRIORITY_LOW);
+
+    private static final MemoryCacheRegistry.Cache LRU_CACHE_BUDGET = new MemoryCacheRegistry.Cache() {
+        @Override
+        public long getSizeInBytes() {
+            synchronized (ImageLoader.class) {
+                return lrucache != null ? lrucache.size() : 0;
+            }
+        }
+
+        @Override
+        public void setBudgetFraction(float fraction) {
+            if (fraction <= LRU_CACHE_CLEAR_FRACTION) {
+                clearLruCache();
+            }
+        }
+    };
+
     /**
      * Custom Downloader built on top of Picasso's UrlConnectionDownloader
      * that supports loading images from custom URIs.
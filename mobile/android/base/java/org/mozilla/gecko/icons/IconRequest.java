@@ -212,4 +212,40 @@ public class IconRequest {
     /* package-private */ boolean shouldPrepareOnly() {
         return prepareOnly;
     }
+
+    /**
+     * Is the result of this request going to be displayed right away? Those requests are run
+     * before requests that prepare or prefetch icons, or serve callers on background threads.
+     */
+    /* package-private */ boolean isHighPriority() {
+        return !backgroundThread && !prepareOnly;
+    }
+
+    /**
+     * Get a key describing everything that affects the response of this request. While a request
+     * is being executed, other requests with the same key share its response instead of loading
+     * the same icon again.
+     *
+     * @return the key, or null if this request can't share its response.
+     */
+    /* package-private */ String getCoalescingKey() {
+        if (prepareOnly || pageUrl == null) {
+            // Callers of prepare-only requests inspect the prepared request itself.
+            return null;
+        }
+
+        final StringBuilder key = new StringBuilder(pageUrl)
+                .append('|').append(privileged)
+                .append('|').append(isPrivate)
+                .append('|').append(skipNetwork)
+                .append('|').append(skipDisk)
+                .append('|').append(skipMemory)
+                .append('|').append(targetSize)
+                .append('|').append(minimumSizePxAfterScaling)
+                .append('|').append(textSize);
+        for (IconDescriptor descriptor : icons) {
+            key.append('|').append(descriptor.getUrl());
+        }
+        return key.toString();
+    }
 }
@@ -6,6 +6,7 @@
 package org.mozilla.gecko.icons;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 
 import org.mozilla.gecko.icons.loader.ContentProviderLoader;
 import org.mozilla.gecko.icons.loader.DataUriLoader;
@@ -32,17 +33,30 @@ import org.mozilla.gecko.icons.processing.MinimumSizeProcessor;
 import org.mozilla.gecko.icons.processing.Processor;
 import org.mozilla.gecko.icons.processing.ResizingProcessor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Executor for icon requests.
+ *
+ * Requests are prepared and loaded from caches and other local sources on a small pool of threads.
+ * Only once a request needs to download an icon it moves to a separate pool for network loads, so
+ * that slow downloads do not hold up requests that can be answered locally. Both pools run
+ * requests whose icons are displayed right away before other requests.
+ *
+ * While a request is running, equivalent requests (see IconRequest.getCoalescingKey()) don't load
+ * the icon again but share the response of the running request.
  */
 /* package-private */ class IconRequestExecutor {
     /**
@@ -107,8 +121,13 @@ import java.util.concurrent.TimeUnit;
 
             // If the icon is not in any of our cashes and can't be decoded then look into the
             // database (legacy). Maybe this icon was loaded before the new code was deployed.
-            new LegacyLoader(),
+            new LegacyLoader()
+    );
 
+    /**
+     * Loaders that access the network. They run on the network executor, after all other loaders failed.
+     */
+    private static final List<IconLoader> NETWORK_LOADERS = Collections.<IconLoader>singletonList(
             // Download the icon from the web.
             new IconDownloader()
     );
@@ -134,25 +153,71 @@ import java.util.concurrent.TimeUnit;
             new MinimumSizeProcessor()
     );
 
-    private static final ExecutorService EXECUTOR;
-    static {
+    private static final int PRIORITY_HIGH = 0;
+    private static final int PRIORITY_LOW = 1;
+
+    private static final IconRequestExecutor INSTANCE = new IconRequestExecutor(
+            PREPARERS, LOADERS, NETWORK_LOADERS, PROCESSORS, GENERATOR,
+            // For preparing requests, loading icons from memory, disk and other local sources, and
+            // for decoding and processing them.
+            createExecutor("GeckoIconTask", 2),
+            // For downloading icons. Downloads spend most of their time waiting for the network.
+            createExecutor("GeckoIconDownload", 4));
+
+    private final List<Preparer> preparers;
+    private final List<IconLoader> loaders;
+    private final List<IconLoader> networkLoaders;
+    private final List<Processor> processors;
+    private final IconLoader generator;
+
+    private final ThreadPoolExecutor localExecutor;
+    private final ThreadPoolExecutor networkExecutor;
+
+    /**
+     * Loads currently running (or waiting to run), by coalescing key. This is also the lock guarding
+     * the state of all loads.
+     */
+    private final Map<String, SharedLoad> inFlight = new HashMap<>();
+
+    private long sequence; // Guarded by inFlight.
+
+    @VisibleForTesting
+    /* package-private */ IconRequestExecutor(
+            List<Preparer> preparers,
+            List<IconLoader> loaders,
+            List<IconLoader> networkLoaders,
+            List<Processor> processors,
+            IconLoader generator,
+            ThreadPoolExecutor localExecutor,
+            ThreadPoolExecutor networkExecutor) {
+        this.preparers = preparers;
+        this.loaders = loaders;
+        this.networkLoaders = networkLoaders;
+        this.processors = processors;
+        this.generator = generator;
+        this.localExecutor = localExecutor;
+        this.networkExecutor = networkExecutor;
+    }
+
+    @VisibleForTesting
+    /* package-private */ static ThreadPoolExecutor createExecutor(final String name, int threads) {
         final ThreadFactory factory = new ThreadFactory() {
             @Override
             public Thread newThread(@NonNull Runnable runnable) {
-                Thread thread = new Thread(runnable, "GeckoIconTask");
+                Thread thread = new Thread(runnable, name);
                 thread.setDaemon(false);
                 thread.setPriority(Thread.NORM_PRIORITY);
                 return thread;
             }
         };
 
-        // Single thread executor
-        EXECUTOR = new ThreadPoolExecutor(
-                1, /* corePoolSize */
-                1, /* maximumPoolSize */
+        // Only Stage objects are ever executed, and they are ordered by priority.
+        return new ThreadPoolExecutor(
+                threads, /* corePoolSize */
+                threads, /* maximumPoolSize */
                 0L, /* keepAliveTime */
                 TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>(),
+                new PriorityBlockingQueue<Runnable>(),
                 factory);
     }
 
@@ -160,8 +225,248 @@ import java.util.concurrent.TimeUnit;
      * Submit the request for execution.
      */
     /* package-private */ static Future<IconResponse> submit(IconRequest request) {
-        return EXECUTOR.submit(
-                new IconTask(request, PREPARERS, LOADERS, PROCESSORS, GENERATOR)
-        );
+        return INSTANCE.execute(request);
+    }
+
+    @VisibleForTesting
+    /* package-private */ Future<IconResponse> execute(IconRequest request) {
+        final String key = request.getCoalescingKey();
+
+        synchronized (inFlight) {
+            if (key != null) {
+                final SharedLoad running = inFlight.get(key);
+                if (running != null) {
+                    return running.attach(request);
+                }
+            }
+
+            final SharedLoad load = new SharedLoad(key, new IconTask(
+                    request, preparers, loaders, networkLoaders, processors, generator));
+            if (key != null) {
+                inFlight.put(key, load);
+            }
+
+            final Future<IconResponse> future = load.attach(request);
+            load.schedule(localExecutor);
+            return future;
+        }
+    }
+
+    /**
+     * A single execution of an IconTask, shared by all requests attached to it.
+     *
+     * All fields are guarded by inFlight.
+     */
+    private class SharedLoad {
+        private final String key;
+        private final IconTask task;
+        private final List<RequestFuture> futures = new ArrayList<>();
+
+        private int priority = PRIORITY_LOW;
+        private Stage queuedStage;
+        private Thread runner;
+
+        private boolean isDone;
+        private boolean isCancelled;
+        private IconResponse response;
+
+        private SharedLoad(String key, IconTask task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        private Future<IconResponse> attach(IconRequest request) {
+            final RequestFuture future = new RequestFuture(this, request);
+            futures.add(future);
+
+            if (request.isHighPriority() && priority != PRIORITY_HIGH) {
+                priority = PRIORITY_HIGH;
+
+                // Move the load ahead of low priority requests if it is still waiting.
+                if (queuedStage != null && queuedStage.executor.remove(queuedStage)) {
+                    schedule(queuedStage.executor);
+                }
+            }
+
+            return future;
+        }
+
+        private void schedule(ThreadPoolExecutor executor) {
+            queuedStage = new Stage(this, executor, priority, sequence++);
+            executor.execute(queuedStage);
+        }
+
+        private void run(Stage stage) {
+            synchronized (inFlight) {
+                if (isCancelled || stage != queuedStage) {
+                    return;
+                }
+                queuedStage = null;
+                runner = Thread.currentThread();
+            }
+
+            final IconResponse result;
+            try {
+                result = task.execute(stage.executor == networkExecutor);
+            } finally {
+                synchronized (inFlight) {
+                    runner = null;
+                }
+                // Don't let a cancellation of this load interrupt the next one run by this thread.
+                Thread.interrupted();
+            }
+
+            final List<RequestFuture> completed;
+            synchronized (inFlight) {
+                if (isCancelled) {
+                    return;
+                }
+
+                if (task.needsNetwork()) {
+                    schedule(networkExecutor);
+                    return;
+                }
+
+                if (key != null && inFlight.get(key) == this) {
+                    inFlight.remove(key);
+                }
+                isDone = true;
+                response = result;
+                completed = new ArrayList<>(futures);
+                inFlight.notifyAll();
+            }
+
+            if (result != null) {
+                for (RequestFuture future : completed) {
+                    IconTask.executeCallback(future.request, result);
+                }
+            }
+        }
+
+        private boolean cancel(RequestFuture future, boolean mayInterruptIfRunning) {
+            synchronized (inFlight) {
+                if (isDone || future.isCancelled) {
+                    return false;
+                }
+
+                future.isCancelled = true;
+                futures.remove(future);
+                inFlight.notifyAll();
+
+                if (!futures.isEmpty()) {
+                    // Other requests are still waiting for this icon.
+                    return true;
+                }
+
+                isCancelled = true;
+                if (key != null && inFlight.get(key) == this) {
+                    inFlight.remove(key);
+                }
+                if (queuedStage != null) {
+                    queuedStage.executor.remove(queuedStage);
+                    queuedStage = null;
+                }
+                if (mayInterruptIfRunning && runner != null) {
+                    runner.interrupt();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * One step of a load, run on either the local or the network executor.
+     */
+    private static class Stage implements Runnable, Comparable<Stage> {
+        private final SharedLoad load;
+        private final ThreadPoolExecutor executor;
+        private final int priority;
+        private final long sequence;
+
+        private Stage(SharedLoad load, ThreadPoolExecutor executor, int priority, long sequence) {
+            this.load = load;
+            this.executor = executor;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            load.run(this);
+        }
+
+        @Override
+        public int compareTo(@NonNull Stage other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * The future returned for a single request. Cancelling it only cancels the shared load once no
+     * other request is waiting for it.
+     */
+    private class RequestFuture implements Future<IconResponse> {
+        private final SharedLoad load;
+        private final IconRequest request;
+        private boolean isCancelled; // Guarded by inFlight.
+
+        private RequestFuture(SharedLoad load, IconRequest request) {
+            this.load = load;
+            this.request = request;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return load.cancel(this, mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (inFlight) {
+                return isCancelled;
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized (inFlight) {
+                return isCancelled || load.isDone;
+            }
+        }
+
+        @Override
+        public IconResponse get() throws InterruptedException {
+            synchronized (inFlight) {
+                while (!isCancelled && !load.isDone) {
+                    inFlight.wait();
+                }
+                return getResponseLocked();
+            }
+        }
+
+        @Override
+        public IconResponse get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (inFlight) {
+                while (!isCancelled && !load.isDone) {
+                    final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMs <= 0) {
+                        throw new TimeoutException();
+                    }
+                    inFlight.wait(remainingMs);
+                }
+                return getResponseLocked();
+            }
+        }
+
+        private IconResponse getResponseLocked() {
+            if (isCancelled) {
+                throw new CancellationException();
+            }
+            return load.response;
+        }
     }
 }
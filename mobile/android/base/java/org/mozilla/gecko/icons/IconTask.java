@@ -13,8 +13,10 @@ import org.mozilla.gecko.AppConstants;
 import org.mozilla.gecko.icons.loader.IconLoader;
 import org.mozilla.gecko.icons.preparation.Preparer;
 import org.mozilla.gecko.icons.processing.Processor;
+import org.mozilla.gecko.util.StringUtils;
 import org.mozilla.gecko.util.ThreadUtils;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -27,40 +29,82 @@ import java.util.concurrent.Callable;
 
     private final List<Preparer> preparers;
     private final List<IconLoader> loaders;
+    private final List<IconLoader> networkLoaders;
     private final List<Processor> processors;
     private final IconLoader generator;
     private final IconRequest request;
 
+    // State for tasks that are run in multiple steps, see execute().
+    private boolean isPrepared;
+    private boolean needsNetwork;
+
+    /* package-private */ IconTask(
+            @NonNull IconRequest request,
+            @NonNull List<Preparer> preparers,
+            @NonNull List<IconLoader> loaders,
+            @NonNull List<Processor> processors,
+            @NonNull IconLoader generator) {
+        this(request, preparers, loaders, Collections.<IconLoader>emptyList(), processors, generator);
+    }
+
+    /**
+     * @param networkLoaders Loaders that access the network. For every icon descriptor they run after
+     *                       all other loaders failed.
+     */
     /* package-private */ IconTask(
             @NonNull IconRequest request,
             @NonNull List<Preparer> preparers,
             @NonNull List<IconLoader> loaders,
+            @NonNull List<IconLoader> networkLoaders,
             @NonNull List<Processor> processors,
             @NonNull IconLoader generator) {
         this.request = request;
         this.preparers = preparers;
         this.loaders = loaders;
+        this.networkLoaders = networkLoaders;
         this.processors = processors;
         this.generator = generator;
     }
 
     @Override
     public IconResponse call() {
+        final IconResponse response = execute(true);
+
+        if (response != null) {
+            executeCallback(request, response);
+        }
+
+        return response;
+    }
+
+    /**
+     * Run this task without executing the callback of the request.
+     *
+     * If network access is not allowed, the task stops as soon as it would need to run a network
+     * loader, and needsNetwork() returns true. Calling this method again then resumes the task
+     * where it left off.
+     */
+    /* package-private */ IconResponse execute(boolean allowNetwork) {
+        final boolean isResuming = needsNetwork;
+        needsNetwork = false;
+
         try {
-            logRequest(request);
+            if (!isPrepared) {
+                logRequest(request);
 
-            prepareRequest(request);
+                prepareRequest(request);
+                isPrepared = true;
 
-            if (request.shouldPrepareOnly()) {
-                // This request should only be prepared but not load an actual icon.
-                return null;
+                if (request.shouldPrepareOnly()) {
+                    // This request should only be prepared but not load an actual icon.
+                    return null;
+                }
             }
 
-            final IconResponse response = loadIcon(request);
+            final IconResponse response = loadIcon(request, allowNetwork, isResuming);
 
             if (response != null) {
                 processIcon(request, response);
-                executeCallback(request, response);
 
                 logResponse(response);
 
@@ -88,7 +132,14 @@ import java.util.concurrent.Callable;
         }
     }
 
-    private void executeCallback(IconRequest request, final IconResponse response) {
+    /**
+     * Did the last call to execute() stop because the task needs to run a network loader next?
+     */
+    /* package-private */ boolean needsNetwork() {
+        return needsNetwork;
+    }
+
+    /* package-private */ static void executeCallback(IconRequest request, final IconResponse response) {
         final IconCallback callback = request.getCallback();
 
         if (callback != null) {
@@ -120,15 +171,26 @@ import java.util.concurrent.Callable;
         }
     }
 
-    private IconResponse loadIcon(IconRequest request) throws InterruptedException {
-        while (request.hasIconDescriptors()) {
-            for (IconLoader loader : loaders) {
-                ensureNotInterrupted();
+    private IconResponse loadIcon(IconRequest request, boolean allowNetwork, boolean isResuming) throws InterruptedException {
+        // If we stopped to move to the network, the other loaders already failed for the current icon.
+        boolean skipLoaders = isResuming;
 
-                IconResponse response = loader.load(request);
+        while (request.hasIconDescriptors()) {
+            if (!skipLoaders) {
+                final IconResponse response = runLoaders(request, loaders);
+                if (response != null) {
+                    return response;
+                }
+            }
+            skipLoaders = false;
 
-                logLoader(request, loader, response);
+            if (shouldRunNetworkLoaders(request)) {
+                if (!allowNetwork) {
+                    needsNetwork = true;
+                    return null;
+                }
 
+                final IconResponse response = runLoaders(request, networkLoaders);
                 if (response != null) {
                     return response;
                 }
@@ -140,6 +202,28 @@ import java.util.concurrent.Callable;
         return generator.load(request);
     }
 
+    private IconResponse runLoaders(IconRequest request, List<IconLoader> loaders) throws InterruptedException {
+        for (IconLoader loader : loaders) {
+            ensureNotInterrupted();
+
+            IconResponse response = loader.load(request);
+
+            logLoader(request, loader, response);
+
+            if (response != null) {
+                return response;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean shouldRunNetworkLoaders(IconRequest request) {
+        return !networkLoaders.isEmpty() &&
+                !request.shouldSkipNetwork() &&
+                StringUtils.isHttpOrHttps(request.getBestIcon().getUrl());
+    }
+
     private void processIcon(IconRequest request, IconResponse response) throws InterruptedException {
         for (Processor processor : processors) {
             ensureNotInterrupted();
@@ -49,7 +49,7 @@ public class DiskStorage {
 
     private static DiskStorage instance;
 
-    public static DiskStorage get(Context context) {
+    public static synchronized DiskStorage get(Context context) {
         if (instance == null) {
             instance = new DiskStorage(context);
         }
@@ -6,27 +6,36 @@
 package org.mozilla.gecko.icons.storage;
 
 import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
-import android.util.LruCache;
 
+import org.mozilla.gecko.MemoryCacheRegistry;
 import org.mozilla.gecko.icons.IconRequest;
 import org.mozilla.gecko.icons.IconResponse;
 
 /**
- * Least Recently Used (LRU) memory cache for icons and the mappings from page URLs to icon URLs.
+ * Memory cache for icons and the mappings from page URLs to icon URLs.
+ *
+ * Both caches have a budget in bytes, which shrinks under memory pressure (see setBudgetFraction()).
+ * They are registered with {@link MemoryCacheRegistry} as a single cache.
  */
-public class MemoryStorage {
+public class MemoryStorage implements MemoryCacheRegistry.Cache {
     /**
-     * Maximum number of items in the cache for mapping page URLs to icon URLs.
+     * Budget of the cache for mapping page URLs to icon URLs, in bytes.
      */
-    private static final int MAPPING_CACHE_SIZE = 500;
+    private static final long MAPPING_CACHE_SIZE = 256 * 1024;
+
+    /**
+     * Rough size of a mapping entry, not counting the characters of the URLs.
+     */
+    private static final int MAPPING_ENTRY_OVERHEAD = 96;
 
     private static MemoryStorage instance;
 
     public static synchronized MemoryStorage get() {
         if (instance == null) {
             instance = new MemoryStorage();
+            MemoryCacheRegistry.getInstance().register("icons", MemoryCacheRegistry.PRIORITY_NORMAL, instance);
         }
 
         return instance;
@@ -45,30 +54,37 @@ public class MemoryStorage {
         }
     }
 
-    private final LruCache<String, CacheEntry> iconCache; // Guarded by 'this'
-    private final LruCache<String, String> mappingCache; // Guarded by 'this'
+    private final long maxIconCacheSize;
+    private final StripedCache<String, CacheEntry> iconCache;
+    private final StripedCache<String, String> mappingCache;
 
     private MemoryStorage() {
-        iconCache = new LruCache<String, CacheEntry>(calculateCacheSize()) {
+        maxIconCacheSize = calculateCacheSize();
+
+        iconCache = new StripedCache<String, CacheEntry>(maxIconCacheSize) {
             @Override
-            protected int sizeOf(String key, CacheEntry value) {
-                return value.bitmap.getByteCount() / 1024;
+            protected long sizeOf(@NonNull String key, @NonNull CacheEntry value) {
+                return value.bitmap.getByteCount();
             }
         };
 
-        mappingCache = new LruCache<>(MAPPING_CACHE_SIZE);
+        mappingCache = new StripedCache<String, String>(MAPPING_CACHE_SIZE) {
+            @Override
+            protected long sizeOf(@NonNull String key, @NonNull String value) {
+                return MAPPING_ENTRY_OVERHEAD + 2 * (key.length() + value.length());
+            }
+        };
     }
 
-    private int calculateCacheSize() {
+    private long calculateCacheSize() {
         // Use a maximum of 1/8 of the available memory for storing cached icons.
-        int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        return maxMemory / 8;
+        return Runtime.getRuntime().maxMemory() / 8;
     }
 
     /**
      * Store a mapping from page URL to icon URL in the cache.
      */
-    public synchronized void putMapping(IconRequest request, String iconUrl) {
+    public void putMapping(IconRequest request, String iconUrl) {
         mappingCache.put(request.getPageUrl(), iconUrl);
     }
 
@@ -76,14 +92,14 @@ public class MemoryStorage {
      * Get the icon URL for this page URL. Returns null if no mapping is in the cache.
      */
     @Nullable
-    public synchronized String getMapping(String pageUrl) {
+    public String getMapping(String pageUrl) {
         return mappingCache.get(pageUrl);
     }
 
     /**
      * Store an icon in the cache (uses the icon URL as key).
      */
-    public synchronized void putIcon(String url, IconResponse response) {
+    public void putIcon(String url, IconResponse response) {
         final CacheEntry entry = new CacheEntry(response.getBitmap(), response.getColor());
 
         iconCache.put(url, entry);
@@ -93,7 +109,7 @@ public class MemoryStorage {
      * Get an icon for the icon URL from the cache. Returns null if no icon is cached for this URL.
      */
     @Nullable
-    public synchronized IconResponse getIcon(String iconUrl) {
+    public IconResponse getIcon(String iconUrl) {
         final CacheEntry entry = iconCache.get(iconUrl);
         if (entry == null) {
             return null;
@@ -105,8 +121,66 @@ public class MemoryStorage {
     /**
      * Remove all entries from this cache.
      */
-    public synchronized void evictAll() {
+    public void evictAll() {
         iconCache.evictAll();
         mappingCache.evictAll();
     }
+
+    /**
+     * Use only a fraction of the default budget of the caches, evicting entries if necessary. Called
+     * with a fraction of 1 to restore the default budget once memory pressure is gone.
+     */
+    @Override
+    public void setBudgetFraction(float fraction) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("Fraction must be in (0, 1]: " + fraction);
+        }
+
+        iconCache.resize(Math.max(1, (long) (maxIconCacheSize * fraction)));
+        mappingCache.resize(Math.max(1, (long) (MAPPING_CACHE_SIZE * fraction)));
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        return iconCache.size() + mappingCache.size();
+    }
+
+    /**
+     * Get the counters of the icon cache, e.g. for tuning its budget.
+     */
+    public CacheStats getIconCacheStats() {
+        return new CacheStats(iconCache);
+    }
+
+    /**
+     * Get the counters of the cache mapping page URLs to icon URLs.
+     */
+    public CacheStats getMappingCacheStats() {
+        return new CacheStats(mappingCache);
+    }
+
+    /**
+     * Snapshot of the counters of a cache. Sizes are in bytes.
+     */
+    public static class CacheStats {
+        public final long hitCount;
+        public final long missCount;
+        public final long evictionCount;
+        public final long size;
+        public final long maxSize;
+
+        private CacheStats(StripedCache<?, ?> cache) {
+            hitCount = cache.hitCount();
+            missCount = cache.missCount();
+            evictionCount = cache.evictionCount();
+            size = cache.size();
+            maxSize = cache.maxSize();
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount +
+                    ", size=" + size + "/" + maxSize;
+        }
+    }
 }
@@ -0,0 +1,371 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 4; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.icons.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory cache with a size budget, split into independently locked stripes so that lookups from
+ * the UI thread rarely wait for writes from background threads.
+ *
+ * Each stripe follows the W-TinyLFU design: new entries go into a small LRU "window". Entries
+ * pushed out of the window are only admitted into the main LRU area if they are requested more
+ * often than the entry they would evict there. Access frequencies are estimated with a small
+ * count-min sketch which also remembers keys that are not cached. This keeps a long scroll
+ * through rarely visited pages from flushing out the icons of frequently visited ones.
+ *
+ * The API follows android.util.LruCache. Like LruCache, this class is thread-safe.
+ */
+/* package-private */ abstract class StripedCache<K, V> {
+    private static final int STRIPES = 8;
+
+    // Share of each stripe's budget used for the admission window.
+    private static final int WINDOW_PERCENT = 20;
+
+    private final Stripe[] stripes;
+    private volatile long maxSize;
+
+    /**
+     * @param maxSize The total budget of the cache, in the units returned by sizeOf().
+     */
+    /* package-private */ StripedCache(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        this.maxSize = maxSize;
+
+        stripes = new StripedCache.Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeSize(maxSize));
+        }
+    }
+
+    /**
+     * Returns the size of the entry in user-defined units. An entry's size must not change while
+     * it is in the cache.
+     */
+    protected abstract long sizeOf(@NonNull K key, @NonNull V value);
+
+    @Nullable
+    public V get(@NonNull K key) {
+        return stripeFor(key).get(key);
+    }
+
+    /**
+     * Cache the value for the key. The value may not be kept if it is too large, or used less often
+     * than the values it would displace.
+     */
+    public void put(@NonNull K key, @NonNull V value) {
+        stripeFor(key).put(key, value, sizeOf(key, value));
+    }
+
+    public void remove(@NonNull K key) {
+        stripeFor(key).remove(key);
+    }
+
+    public void evictAll() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     * Change the budget of the cache, evicting entries if it shrinks.
+     */
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        this.maxSize = maxSize;
+        for (Stripe stripe : stripes) {
+            stripe.resize(stripeSize(maxSize));
+        }
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.windowSize + stripe.mainSize;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of times get() returned a value.
+     */
+    public long hitCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.hitCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times get() returned null.
+     */
+    public long missCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.missCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of values that were evicted, or not admitted into the cache at all.
+     */
+    public long evictionCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.evictionCount;
+            }
+        }
+        return count;
+    }
+
+    private static long stripeSize(long maxSize) {
+        return Math.max(1, maxSize / STRIPES);
+    }
+
+    private Stripe stripeFor(K key) {
+        final int hash = spread(key.hashCode());
+        return stripes[(hash >>> 16) & (STRIPES - 1)];
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long size;
+
+        private Entry(V value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * One independently locked part of the cache. All fields are guarded by the stripe itself.
+     */
+    private class Stripe {
+        // Both maps are in access order: the eldest entry is the least recently used one.
+        private final LinkedHashMap<K, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<K, Entry<V>> main = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch = new FrequencySketch();
+
+        private long maxWindowSize;
+        private long maxMainSize;
+        private long windowSize;
+        private long mainSize;
+
+        private long hitCount;
+        private long missCount;
+        private long evictionCount;
+
+        private Stripe(long maxSize) {
+            setMaxSize(maxSize);
+        }
+
+        private void setMaxSize(long maxSize) {
+            maxWindowSize = Math.max(1, maxSize * WINDOW_PERCENT / 100);
+            maxMainSize = maxSize - maxWindowSize;
+        }
+
+        private synchronized V get(K key) {
+            sketch.increment(spread(key.hashCode()));
+
+            Entry<V> entry = window.get(key);
+            if (entry == null) {
+                entry = main.get(key);
+            }
+
+            if (entry == null) {
+                missCount++;
+                return null;
+            }
+
+            hitCount++;
+            return entry.value;
+        }
+
+        private synchronized void put(K key, V value, long size) {
+            removeLocked(key);
+
+            if (size > maxWindowSize + maxMainSize) {
+                // Would flush the whole stripe.
+                evictionCount++;
+                return;
+            }
+
+            window.put(key, new Entry<>(value, size));
+            windowSize += size;
+            evictFromWindow();
+        }
+
+        private synchronized void remove(K key) {
+            removeLocked(key);
+        }
+
+        private void removeLocked(K key) {
+            Entry<V> entry = window.remove(key);
+            if (entry != null) {
+                windowSize -= entry.size;
+                return;
+            }
+
+            entry = main.remove(key);
+            if (entry != null) {
+                mainSize -= entry.size;
+            }
+        }
+
+        private synchronized void resize(long maxSize) {
+            setMaxSize(maxSize);
+            evictFromWindow();
+            evictFromMain();
+        }
+
+        private synchronized void clear() {
+            evictionCount += window.size() + main.size();
+            window.clear();
+            main.clear();
+            windowSize = 0;
+            mainSize = 0;
+        }
+
+        /**
+         * Move entries from the window into the main area until the window fits its budget. An entry
+         * only displaces entries of the main area that are used less often.
+         */
+        private void evictFromWindow() {
+            final Iterator<Map.Entry<K, Entry<V>>> iterator = window.entrySet().iterator();
+            while (windowSize > maxWindowSize && iterator.hasNext()) {
+                final Map.Entry<K, Entry<V>> candidate = iterator.next();
+                iterator.remove();
+                windowSize -= candidate.getValue().size;
+
+                if (admit(candidate.getKey(), candidate.getValue().size)) {
+                    main.put(candidate.getKey(), candidate.getValue());
+                    mainSize += candidate.getValue().size;
+                } else {
+                    evictionCount++;
+                }
+            }
+        }
+
+        private boolean admit(K candidateKey, long candidateSize) {
+            if (candidateSize > maxMainSize) {
+                return false;
+            }
+
+            final int candidateFrequency = sketch.frequency(spread(candidateKey.hashCode()));
+
+            // Find the least recently used entries that would have to make room. If any of them is
+            // used at least as often as the candidate, keep them instead.
+            long freed = maxMainSize - mainSize;
+            int victims = 0;
+            for (Map.Entry<K, Entry<V>> victim : main.entrySet()) {
+                if (freed >= candidateSize) {
+                    break;
+                }
+                if (sketch.frequency(spread(victim.getKey().hashCode())) >= candidateFrequency) {
+                    return false;
+                }
+                freed += victim.getValue().size;
+                victims++;
+            }
+
+            final Iterator<Entry<V>> iterator = main.values().iterator();
+            for (int i = 0; i < victims; i++) {
+                mainSize -= iterator.next().size;
+                iterator.remove();
+                evictionCount++;
+            }
+            return true;
+        }
+
+        private void evictFromMain() {
+            final Iterator<Entry<V>> iterator = main.values().iterator();
+            while (mainSize > maxMainSize && iterator.hasNext()) {
+                mainSize -= iterator.next().size;
+                iterator.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch with 4-bit counters, estimating how often keys were requested recently.
+     * All counters are halved periodically so that old popularity fades.
+     */
+    private static class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int WIDTH = 256; // Counters per row; a power of two.
+        private static final int MAX_COUNT = 15;
+        private static final int SAMPLE_SIZE = 10 * WIDTH;
+
+        private static final int[] SEEDS = { 0x97cb3127, 0xb7e15163, 0x9e3779b9, 0xc2b2ae35 };
+
+        private final byte[] counters = new byte[ROWS * WIDTH];
+        private int additions;
+
+        private void increment(int hash) {
+            boolean incremented = false;
+            for (int row = 0; row < ROWS; row++) {
+                final int index = indexOf(hash, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    incremented = true;
+                }
+            }
+
+            if (incremented && ++additions >= SAMPLE_SIZE) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private static int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 17;
+            return row * WIDTH + (h & (WIDTH - 1));
+        }
+    }
+}
@@ -60,13 +60,7 @@ public class PushManager {
     public PushRegistration registrationForSubscription(String chid) {
         // chids are globally unique, so we're not concerned about finding a chid associated to
         // any particular profile.
-        for (Map.Entry<String, PushRegistration> entry : state.getRegistrations().entrySet()) {
-            final PushSubscription subscription = entry.getValue().getSubscription(chid);
-            if (subscription != null) {
-                return entry.getValue();
-            }
-        }
-        return null;
+        return state.getRegistrationForSubscription(chid);
     }
 
     public Map<String, PushSubscription> allSubscriptionsForProfile(String profileName) {
@@ -127,8 +121,9 @@ public class PushManager {
         }
 
         final PushSubscription subscription = new PushSubscription(result.channelID, profileName, result.endpoint, service, serviceData);
-        registration.putSubscription(result.channelID, subscription);
-        state.checkpoint();
+        state.putSubscription(profileName, subscription);
+        // Sites tend to subscribe in bursts; write them out together.
+        state.scheduleCheckpoint();
 
         return subscription;
     }
@@ -145,8 +140,8 @@ public class PushManager {
         // We remove the local subscription before the remote subscription:  without the local
         // subscription we'll ignoring incoming messages, and after some amount of time the
         // server will expire the channel due to non-activity.  This is also Desktop's approach.
-        final PushSubscription subscription = registration.removeSubscription(chid);
-        state.checkpoint();
+        final PushSubscription subscription = state.removeSubscription(chid);
+        state.scheduleCheckpoint();
 
         if (subscription == null) {
             // This should never happen.
@@ -6,7 +6,10 @@
 package org.mozilla.gecko.push;
 
 import android.content.Context;
+import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
 import android.support.v4.util.AtomicFile;
 import android.util.Log;
@@ -14,6 +17,7 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mozilla.gecko.util.StringUtils;
+import org.mozilla.gecko.util.ThreadUtils;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -31,18 +35,56 @@ import java.util.Map;
  * We use a simple storage model of JSON backed by an atomic file.  It is assumed that instances
  * of this class will reference distinct files on disk; and that all accesses will be happen on a
  * single (worker thread).
+ * <p/>
+ * Every message names the channel it is for, so subscriptions are indexed by channel ID.  To keep
+ * the index current, subscriptions should be added and removed through this class rather than
+ * through their registration.
+ * <p/>
+ * Rewriting the whole file for every change is expensive when many channels are subscribed to at
+ * once, so changes can be checkpointed with {@link #scheduleCheckpoint()}, which writes them
+ * together with any other changes made shortly after.
  */
 public class PushState {
     private static final String LOG_TAG = "GeckoPushState";
 
     private static final long VERSION = 1L;
 
+    // How long scheduled checkpoints wait for further changes to write together.
+    private static final long CHECKPOINT_DELAY_IN_MILLIS = 1000L;
+
     protected final @NonNull AtomicFile file;
 
     protected final @NonNull Map<String, PushRegistration> registrations;
 
+    // Profile name of the registration holding each subscription, keyed by chid.  chids are
+    // globally unique.
+    protected final @NonNull Map<String, String> profileNamesByChid;
+
+    // Handler the scheduled checkpoint is posted to; the background thread's if null.
+    private @Nullable Handler checkpointHandler;
+    private boolean checkpointScheduled;
+
+    private final Runnable checkpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkpointScheduled = false;
+            checkpoint();
+        }
+    };
+
     public PushState(Context context, @NonNull String fileName) {
+        this(context, fileName, null);
+    }
+
+    /**
+     * @param checkpointHandler handler to run scheduled checkpoints on, which must run on the
+     *                          thread accessing this instance.  Defaults to the background thread.
+     */
+    @VisibleForTesting
+    /* package-private */ PushState(Context context, @NonNull String fileName, @Nullable Handler checkpointHandler) {
         this.registrations = new HashMap<>();
+        this.profileNamesByChid = new HashMap<>();
+        this.checkpointHandler = checkpointHandler;
 
         file = new AtomicFile(new File(context.getApplicationInfo().dataDir, fileName));
         synchronized (file) {
@@ -59,13 +101,16 @@ public class PushState {
                     final String profileName = it.next();
                     final PushRegistration registration = PushRegistration.fromJSONObject(registrationsObject.getJSONObject(profileName));
                     this.registrations.put(profileName, registration);
+                    indexSubscriptions(profileName, registration);
                 }
             } catch (FileNotFoundException e) {
                 Log.i(LOG_TAG, "No storage found; starting fresh.");
                 this.registrations.clear();
+                this.profileNamesByChid.clear();
             } catch (IOException | JSONException e) {
                 Log.w(LOG_TAG, "Got exception reading storage; dropping storage and starting fresh.", e);
                 this.registrations.clear();
+                this.profileNamesByChid.clear();
             }
         }
     }
@@ -83,11 +128,17 @@ public class PushState {
     }
 
     /**
-     * Synchronously persist the cache to disk.
+     * Synchronously persist the cache to disk, including any changes waiting for a scheduled
+     * checkpoint.
      * @return whether the cache was persisted successfully.
      */
     @WorkerThread
     public boolean checkpoint() {
+        if (checkpointScheduled) {
+            checkpointScheduled = false;
+            getCheckpointHandler().removeCallbacks(checkpointRunnable);
+        }
+
         synchronized (file) {
             FileOutputStream fileOutputStream = null;
             try {
@@ -105,8 +156,47 @@ public class PushState {
         }
     }
 
+    /**
+     * Persist the cache to disk shortly, in a single write with any other changes made in the
+     * meantime.  Changes made since the last checkpoint are lost if the process dies before then.
+     */
+    @WorkerThread
+    public void scheduleCheckpoint() {
+        if (checkpointScheduled) {
+            return;
+        }
+        checkpointScheduled = true;
+        getCheckpointHandler().postDelayed(checkpointRunnable, CHECKPOINT_DELAY_IN_MILLIS);
+    }
+
+    private @NonNull Handler getCheckpointHandler() {
+        if (checkpointHandler == null) {
+            checkpointHandler = ThreadUtils.getBackgroundHandler();
+        }
+        return checkpointHandler;
+    }
+
+    private void indexSubscriptions(@NonNull String profileName, @NonNull PushRegistration registration) {
+        for (String chid : registration.subscriptions.keySet()) {
+            profileNamesByChid.put(chid, profileName);
+        }
+    }
+
+    private void unindexSubscriptions(@NonNull String profileName, @NonNull PushRegistration registration) {
+        for (String chid : registration.subscriptions.keySet()) {
+            if (profileName.equals(profileNamesByChid.get(chid))) {
+                profileNamesByChid.remove(chid);
+            }
+        }
+    }
+
     public PushRegistration putRegistration(@NonNull String profileName, @NonNull PushRegistration registration) {
-        return registrations.put(profileName, registration);
+        final PushRegistration previous = registrations.put(profileName, registration);
+        if (previous != null) {
+            unindexSubscriptions(profileName, previous);
+        }
+        indexSubscriptions(profileName, registration);
+        return previous;
     }
 
     /**
@@ -133,6 +223,55 @@ public class PushState {
      * @return the removed push registration, if one was removed; null otherwise.
      */
     public PushRegistration removeRegistration(@NonNull String profileName) {
-        return registrations.remove(profileName);
+        final PushRegistration registration = registrations.remove(profileName);
+        if (registration != null) {
+            unindexSubscriptions(profileName, registration);
+        }
+        return registration;
+    }
+
+    /**
+     * Return the push registration holding the subscription to the given channel.
+     * @return the push registration, if the channel is subscribed to; null otherwise.
+     */
+    public PushRegistration getRegistrationForSubscription(@NonNull String chid) {
+        final String profileName = profileNamesByChid.get(chid);
+        if (profileName == null) {
+            return null;
+        }
+
+        final PushRegistration registration = registrations.get(profileName);
+        if (registration == null || registration.getSubscription(chid) == null) {
+            // The registration or subscription was removed without going through this class.
+            profileNamesByChid.remove(chid);
+            return null;
+        }
+        return registration;
+    }
+
+    /**
+     * Add a subscription to the existing push registration for the given profile name.
+     * @return the replaced subscription to the same channel, if there was one; null otherwise.
+     */
+    public PushSubscription putSubscription(@NonNull String profileName, @NonNull PushSubscription subscription) {
+        final PushRegistration registration = registrations.get(profileName);
+        if (registration == null) {
+            throw new IllegalStateException("Cannot put subscription without a registration for profile: " + profileName);
+        }
+        profileNamesByChid.put(subscription.chid, profileName);
+        return registration.putSubscription(subscription.chid, subscription);
+    }
+
+    /**
+     * Remove the subscription to the given channel from the push registration holding it.
+     * @return the removed subscription, if one was removed; null otherwise.
+     */
+    public PushSubscription removeSubscription(@NonNull String chid) {
+        final PushRegistration registration = getRegistrationForSubscription(chid);
+        if (registration == null) {
+            return null;
+        }
+        profileNamesByChid.remove(chid);
+        return registration.removeSubscription(chid);
     }
 }
@@ -0,0 +1,344 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.reader;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.gecko.util.FileUtils;
+import org.mozilla.gecko.util.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size-bounded index of the pages in the reader view cache, ordered from least to most recently used.
+ *
+ * The index is persisted as an append-only log of binary records: every change appends a record,
+ * instead of rewriting the whole index. Once the log holds many more records than there are live
+ * items, it is compacted by writing out one record per item.
+ *
+ * Changes are buffered in memory until {@link #flush()} is called, so that callers can mutate the
+ * index on any thread and only touch the disk on a background thread.
+ *
+ * This class is not thread safe; callers need to synchronize access.
+ */
+/* package */ class ReaderCacheIndex {
+    private static final String LOG_TAG = "ReaderCacheIndex";
+
+    /* package */ static final String LOG_FILE_NAME = "items.idx";
+    /* package */ static final String LEGACY_FILE_NAME = "items.json";
+
+    private static final int MAGIC = 0x52564331; // "RVC1"
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_ACCESS = 3;
+
+    // Compact once the log holds this many records more than there are live items.
+    private static final int COMPACTION_SLACK = 256;
+
+    // Longer than any URL or path we store, so that a corrupt length fails instead of
+    // allocating gigabytes.
+    private static final int MAX_STRING_LENGTH = 2 * 1024 * 1024;
+
+    /* package */ static final class Item {
+        public final String path;
+        public final long size;
+
+        /* package */ Item(@NonNull String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private final File mDirectory;
+
+    // Iterates from the least to the most recently used item.
+    private final LinkedHashMap<String, Item> mItems = new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+    private long mTotalBytes;
+    private long mBudgetBytes;
+
+    private int mLogRecordCount;
+    private final ByteArrayOutputStream mPendingBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mPending = new DataOutputStream(mPendingBytes);
+    private boolean mNeedsCompaction;
+
+    /* package */ ReaderCacheIndex(@NonNull File directory, long budgetBytes) {
+        mDirectory = directory;
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Read the index from disk, importing the JSON index used by earlier versions if there is no log yet.
+     *
+     * Must not be run on the UI thread due to file access.
+     */
+    public void load() {
+        final File log = new File(mDirectory, LOG_FILE_NAME);
+        if (log.exists()) {
+            readLog(log);
+        } else {
+            importLegacyItems(new File(mDirectory, LEGACY_FILE_NAME));
+        }
+    }
+
+    private void readLog(File log) {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+            if (input.readInt() != MAGIC) {
+                Log.w(LOG_TAG, "Unknown index format, starting from scratch");
+                mNeedsCompaction = true;
+                return;
+            }
+
+            while (true) {
+                final byte type;
+                try {
+                    type = input.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                final String url = readString(input);
+                switch (type) {
+                    case RECORD_PUT:
+                        putItem(url, new Item(readString(input), input.readLong()));
+                        break;
+                    case RECORD_REMOVE:
+                        removeItem(url);
+                        break;
+                    case RECORD_ACCESS:
+                        mItems.get(url);
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                }
+                mLogRecordCount++;
+            }
+        } catch (IOException e) {
+            // Most likely we were killed while appending a record. Keep whatever we could read,
+            // and write out a clean log next time we flush.
+            Log.w(LOG_TAG, "Index truncated after " + mLogRecordCount + " records", e);
+            mNeedsCompaction = true;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // Nothing we can do.
+                }
+            }
+        }
+    }
+
+    private void importLegacyItems(File legacyFile) {
+        if (!legacyFile.exists()) {
+            return;
+        }
+
+        try {
+            final JSONObject items = new JSONObject(FileUtils.readStringFromFile(legacyFile));
+            final Iterator<String> urls = items.keys();
+            while (urls.hasNext()) {
+                final String url = urls.next();
+                final JSONObject item = items.getJSONObject(url);
+                putItem(url, new Item(item.getString("path"), item.getLong("size")));
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(LOG_TAG, "Unable to import legacy reader cache index", e);
+        }
+        mNeedsCompaction = true;
+    }
+
+    public boolean contains(@NonNull String url) {
+        return mItems.containsKey(url);
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Add or replace an item, and make it the most recently used one.
+     *
+     * @return Items which were evicted to stay within the budget. Their files need to be deleted.
+     */
+    public List<Item> put(@NonNull String url, @NonNull String path, long size) {
+        putItem(url, new Item(path, size));
+        appendRecord(RECORD_PUT, url, path, size);
+        return evictOverBudget();
+    }
+
+    public void remove(@NonNull String url) {
+        if (removeItem(url) != null) {
+            appendRecord(RECORD_REMOVE, url, null, 0);
+        }
+    }
+
+    /**
+     * Mark an item as the most recently used one, if it exists.
+     */
+    public void touch(@NonNull String url) {
+        if (mItems.get(url) != null) {
+            appendRecord(RECORD_ACCESS, url, null, 0);
+        }
+    }
+
+    /**
+     * @return Items which were evicted to stay within the new budget. Their files need to be deleted.
+     */
+    public List<Item> setBudget(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        return evictOverBudget();
+    }
+
+    private void putItem(String url, Item item) {
+        removeItem(url);
+        mItems.put(url, item);
+        mTotalBytes += item.size;
+    }
+
+    private Item removeItem(String url) {
+        final Item item = mItems.remove(url);
+        if (item != null) {
+            mTotalBytes -= item.size;
+        }
+        return item;
+    }
+
+    private List<Item> evictOverBudget() {
+        final List<Item> evicted = new ArrayList<>();
+
+        // We never evict the most recently used item, even if it doesn't fit on its own: it's
+        // the page the user just saved.
+        final Iterator<Map.Entry<String, Item>> entries = mItems.entrySet().iterator();
+        while (mTotalBytes > mBudgetBytes && mItems.size() > 1) {
+            final Map.Entry<String, Item> eldest = entries.next();
+            final Item item = eldest.getValue();
+
+            entries.remove();
+            mTotalBytes -= item.size;
+            appendRecord(RECORD_REMOVE, eldest.getKey(), null, 0);
+            evicted.add(item);
+        }
+        return evicted;
+    }
+
+    private void appendRecord(byte type, String url, String path, long size) {
+        try {
+            mPending.writeByte(type);
+            writeString(mPending, url);
+            if (type == RECORD_PUT) {
+                writeString(mPending, path);
+                mPending.writeLong(size);
+            }
+        } catch (IOException e) {
+            // Writing to a ByteArrayOutputStream doesn't fail.
+            throw new IllegalStateException(e);
+        }
+        mLogRecordCount++;
+    }
+
+    /**
+     * Persist all changes since the last flush. Must not be run on the UI thread due to file access.
+     */
+    public void flush() throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Couldn't create cache directory " + mDirectory);
+        }
+
+        final File log = new File(mDirectory, LOG_FILE_NAME);
+        if (mNeedsCompaction || !log.exists() || mLogRecordCount > mItems.size() * 2 + COMPACTION_SLACK) {
+            compact(log);
+            return;
+        }
+
+        if (mPendingBytes.size() == 0) {
+            return;
+        }
+
+        final FileOutputStream output = new FileOutputStream(log, /* append */ true);
+        try {
+            mPendingBytes.writeTo(output);
+        } catch (IOException e) {
+            // Part of the records may have been written, and appending them again would follow a
+            // torn record. Rewrite the log instead next time.
+            mNeedsCompaction = true;
+            throw e;
+        } finally {
+            output.close();
+        }
+        mPendingBytes.reset();
+    }
+
+    private void compact(File log) throws IOException {
+        final File temp = new File(mDirectory, LOG_FILE_NAME + ".tmp");
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            output.writeInt(MAGIC);
+            for (Map.Entry<String, Item> entry : mItems.entrySet()) {
+                output.writeByte(RECORD_PUT);
+                writeString(output, entry.getKey());
+                writeString(output, entry.getValue().path);
+                output.writeLong(entry.getValue().size);
+            }
+        } finally {
+            output.close();
+        }
+
+        if (!temp.renameTo(log)) {
+            throw new IOException("Couldn't replace " + log);
+        }
+
+        mLogRecordCount = mItems.size();
+        mPendingBytes.reset();
+        mNeedsCompaction = false;
+
+        final File legacyFile = new File(mDirectory, LEGACY_FILE_NAME);
+        if (legacyFile.exists() && !legacyFile.delete()) {
+            Log.w(LOG_TAG, "Couldn't delete legacy reader cache index");
+        }
+    }
+
+    // DataOutputStream.writeUTF is limited to 64KB, which (data:) URLs can exceed.
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StringUtils.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        final int length = input.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StringUtils.UTF_8);
+    }
+}
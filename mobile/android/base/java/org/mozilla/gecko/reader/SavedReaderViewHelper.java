@@ -10,8 +10,6 @@ import android.content.Context;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.mozilla.gecko.GeckoProfile;
 import org.mozilla.gecko.Tab;
 import org.mozilla.gecko.Tabs;
@@ -22,55 +20,42 @@ import org.mozilla.gecko.util.ThreadUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.List;
 
 /**
  * Helper to keep track of items that are stored in the reader view cache. This is an in-memory list
  * of the reader view items that are cached on disk. It is intended to allow quickly determining whether
  * a given URL is in the cache, and also how many cached items there are.
  *
- * Currently we have 1:1 correspondence of reader view items (in the URL-annotations table)
- * to cached items. This is _not_ a true cache, we never purge/cleanup items here - we only remove
- * items when we un-reader-view/bookmark them. This is an acceptable model while we can guarantee the
- * 1:1 correspondence.
+ * The cache is bounded by a disk budget: once it is exceeded, the least recently used items are
+ * evicted and their files deleted. Their URL annotations are kept, since those are the canonical
+ * record of user intent - an evicted reader view bookmark is simply decorated and opened like a
+ * plain bookmark until it is saved again.
  *
  * It isn't strictly necessary to mirror cached items in SQL at this stage, however it seems sensible
  * to maintain URL anotations to avoid additional DB migrations in future.
  * It is also simpler to implement the reading list smart-folder using the annotations (even if we do
- * all other decoration from our in-memory cache record), as that is what we will need when
- * we move away from the 1:1 correspondence.
+ * all other decoration from our in-memory cache record).
  *
- * Bookmarks can be in one of two states - plain bookmark, or reader view bookmark that is also saved
- * offline. We're hoping to introduce real cache management / cleanup in future, in which case a
- * third user-visible state (reader view bookmark without a cache entry) will be added. However that logic is
- * much more complicated and requires substantial changes in how we decorate reader view bookmarks.
- * With the current 1:1 correspondence we can use this in-memory helper to quickly decorate
- * bookmarks (in all the various lists and panels that are used), whereas supporting
- * the third state requires significant changes in order to allow joining with the
- * URL-annotations table wherever bookmarks might be retrieved (i.e. multiple homepanels, each with
- * their own loaders and adapter).
+ * Bookmarks are decorated using this in-memory helper (in all the various lists and panels that are
+ * used), which avoids having to join with the URL-annotations table wherever bookmarks might be
+ * retrieved (i.e. multiple homepanels, each with their own loaders and adapter).
  *
- * If/when cache cleanup and sync are implemented, URL annotations will be the canonical record of
- * user intent, and the cache will no longer represent all reader view bookmarks. We will have (A)
- * cached items that are not a bookmark, or bookmarks without the reader view annotation (both of
- * these would need purging), and (B) bookmarks with a reader view annotation, but not stored in
- * the cache (which we might want to download in the background). Supporting (B) is currently difficult,
- * see previous paragraph.
+ * The list of cached items is persisted by {@link ReaderCacheIndex}.
  */
 public class SavedReaderViewHelper {
     private static final String LOG_TAG = "SavedReaderViewHelper";
 
-    private static final String PATH = "path";
-    private static final String SIZE = "size";
-
     private static final String DIRECTORY = "readercache";
-    private static final String FILE_NAME = "items.json";
-    private static final String FILE_PATH = DIRECTORY + "/" + FILE_NAME;
+
+    public static final int DEFAULT_DISK_BUDGET_KB = 50 * 1024;
 
     // We use null to indicate that the cache hasn't yet been loaded. Loading has to be explicitly
     // requested by client code, and must happen on the background thread. Attempting to access
     // items (which happens mainly on the UI thread) before explicitly loading them is not permitted.
-    private JSONObject mItems = null;
+    private ReaderCacheIndex mItems = null;
+
+    private int mDiskBudgetKB = DEFAULT_DISK_BUDGET_KB;
 
     private final Context mContext;
 
@@ -89,7 +74,7 @@ public class SavedReaderViewHelper {
     }
 
     /**
-     * Load the reader view cache list from our JSON file.
+     * Load the reader view cache list from disk.
      *
      * Must not be run on the UI thread due to file access.
      */
@@ -103,11 +88,9 @@ public class SavedReaderViewHelper {
             return;
         }
 
-        try {
-            mItems = GeckoProfile.get(mContext).readJSONObjectFromFile(FILE_PATH);
-        } catch (IOException e) {
-            mItems = new JSONObject();
-        }
+        final File cacheDir = new File(GeckoProfile.get(mContext).getDir(), DIRECTORY);
+        mItems = new ReaderCacheIndex(cacheDir, mDiskBudgetKB * 1024L);
+        mItems.load();
     }
 
     private synchronized void assertItemsLoaded() {
@@ -116,35 +99,20 @@ public class SavedReaderViewHelper {
         }
     }
 
-    private JSONObject makeItem(@NonNull String path, long size) throws JSONException {
-        final JSONObject item = new JSONObject();
-
-        item.put(PATH, path);
-        item.put(SIZE, size);
-
-        return item;
-    }
-
     public synchronized boolean isURLCached(@NonNull final String URL) {
         assertItemsLoaded();
-        return mItems.has(URL);
+        return mItems.contains(URL);
     }
 
     /**
-     * Insert an item into the list of cached items.
+     * Insert an item into the list of cached items. This might evict the least recently used items.
      *
      * This may be called from any thread.
      */
     public synchronized void put(@NonNull final String pageURL, @NonNull final String path, final long size) {
         assertItemsLoaded();
 
-        try {
-            mItems.put(pageURL, makeItem(path, size));
-        } catch (JSONException e) {
-            Log.w(LOG_TAG, "Item insertion failed:", e);
-            // This should never happen, absent any errors in our own implementation
-            throw new IllegalStateException("Failure inserting into SavedReaderViewHelper json");
-        }
+        final List<ReaderCacheIndex.Item> evicted = mItems.put(pageURL, path, size);
 
         ThreadUtils.postToBackgroundThread(new Runnable() {
             @Override
@@ -157,6 +125,7 @@ public class SavedReaderViewHelper {
                 BrowserDB.from(mContext).addBookmark(contentResolver, selectedTab.getTitle(), pageURL);
                 Tabs.getInstance().notifyListeners(selectedTab, Tabs.TabEvents.BOOKMARK_ADDED);
 
+                deleteFiles(evicted);
                 commit();
             }
         });
@@ -178,74 +147,93 @@ public class SavedReaderViewHelper {
         });
     }
 
+    /**
+     * Set how much disk space cached items may use, evicting the least recently used items if needed.
+     */
+    public synchronized void setDiskBudgetKB(final int budgetKB) {
+        mDiskBudgetKB = budgetKB;
+        if (mItems == null) {
+            return;
+        }
+
+        final List<ReaderCacheIndex.Item> evicted = mItems.setBudget(budgetKB * 1024L);
+        if (evicted.isEmpty()) {
+            return;
+        }
+
+        ThreadUtils.postToBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                deleteFiles(evicted);
+                commit();
+            }
+        });
+    }
+
     @RobocopTarget
     public synchronized int size() {
         assertItemsLoaded();
-        return mItems.length();
+        return mItems.size();
     }
 
     private synchronized void commit() {
         ThreadUtils.assertOnBackgroundThread();
 
-        GeckoProfile profile = GeckoProfile.get(mContext);
-        File cacheDir = new File(profile.getDir(), DIRECTORY);
-
-        if (!cacheDir.exists()) {
-            Log.i(LOG_TAG, "No preexisting cache directory, creating now");
+        try {
+            mItems.flush();
+        } catch (IOException e) {
+            // The changes stay buffered, we'll try again with the next commit.
+            Log.w(LOG_TAG, "Unable to write reader view cache index", e);
+        }
+    }
 
-            boolean cacheDirCreated = cacheDir.mkdir();
-            if (!cacheDirCreated) {
-                throw new IllegalStateException("Couldn't create cache directory, unable to track reader view cache");
+    private static void deleteFiles(final List<ReaderCacheIndex.Item> items) {
+        for (ReaderCacheIndex.Item item : items) {
+            final File file = new File(item.path);
+            if (file.exists() && !file.delete()) {
+                Log.w(LOG_TAG, "Unable to delete evicted reader view item");
             }
         }
-
-        profile.writeFile(FILE_PATH, mItems.toString());
     }
 
     /**
-     * Return the Reader View URL for a given URL if it is contained in the cache. Returns the
-     * plain URL if the page is not cached.
+     * Return the Reader View URL for a given URL if it is contained in the cache, and mark it as
+     * recently used. Returns the plain URL if the page is not cached.
      */
     public static String getReaderURLIfCached(final Context context, @NonNull final String pageURL) {
         SavedReaderViewHelper rvh = getSavedReaderViewHelper(context);
 
-        if (rvh.isURLCached(pageURL)) {
+        if (rvh.touch(pageURL)) {
             return ReaderModeUtils.getAboutReaderForUrl(pageURL);
         } else {
             return pageURL;
         }
     }
 
+    private synchronized boolean touch(@NonNull final String pageURL) {
+        if (!isURLCached(pageURL)) {
+            return false;
+        }
+
+        mItems.touch(pageURL);
+        ThreadUtils.postToBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        });
+        return true;
+    }
+
     /**
      * Obtain the total disk space used for saved reader view items, in KB.
      *
      * @return Total disk space used (KB), or Integer.MAX_VALUE on overflow.
      */
     public synchronized int getDiskSpacedUsedKB() {
-        // JSONObject is not thread safe - we need to be synchronized to avoid issues (most likely to
-        // occur if items are removed during iteration).
-        final Iterator<String> keys = mItems.keys();
-        long bytes = 0;
-
-        while (keys.hasNext()) {
-            final String pageURL = keys.next();
-            try {
-                final JSONObject item = mItems.getJSONObject(pageURL);
-                bytes += item.getLong(SIZE);
-
-                // Overflow is highly unlikely (we will hit device storage limits before we hit integer limits),
-                // but we should still handle this for correctness.
-                // We definitely can't store our output in an int if we overflow the long here.
-                if (bytes < 0) {
-                    return Integer.MAX_VALUE;
-                }
-            } catch (JSONException e) {
-                // This shouldn't ever happen:
-                throw new IllegalStateException("Must be able to access items in saved reader view list", e);
-            }
-        }
+        assertItemsLoaded();
 
-        long kb = bytes / 1024;
+        final long kb = mItems.getTotalBytes() / 1024;
         if (kb > Integer.MAX_VALUE) {
             return Integer.MAX_VALUE;
         } else {
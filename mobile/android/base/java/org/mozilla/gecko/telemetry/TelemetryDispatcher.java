@@ -15,8 +15,8 @@ import org.mozilla.gecko.telemetry.pingbuilders.TelemetryCorePingBuilder;
 import org.mozilla.gecko.telemetry.pingbuilders.TelemetryCrashPingBuilder;
 import org.mozilla.gecko.telemetry.schedulers.TelemetryUploadScheduler;
 import org.mozilla.gecko.telemetry.schedulers.TelemetryUploadAllPingsImmediatelyScheduler;
-import org.mozilla.gecko.telemetry.stores.TelemetryJSONFilePingStore;
 import org.mozilla.gecko.telemetry.stores.TelemetryPingStore;
+import org.mozilla.gecko.telemetry.stores.TelemetrySegmentedPingStore;
 import org.mozilla.gecko.util.ThreadUtils;
 
 import java.io.File;
@@ -60,20 +60,20 @@ public class TelemetryDispatcher {
     private static final String CORE_STORE_DIR_NAME = "core";
     private static final String CRASH_STORE_DIR_NAME = "crash";
 
-    private final TelemetryJSONFilePingStore coreStore;
-    private final TelemetryJSONFilePingStore crashStore;
+    private final TelemetrySegmentedPingStore coreStore;
+    private final TelemetrySegmentedPingStore crashStore;
 
     private final TelemetryUploadAllPingsImmediatelyScheduler uploadAllPingsImmediatelyScheduler;
 
-    @WorkerThread // via TelemetryJSONFilePingStore
+    @WorkerThread // via TelemetrySegmentedPingStore
     public TelemetryDispatcher(final String profilePath, final String profileName) {
         final String storePath = profilePath + File.separator + STORE_CONTAINER_DIR_NAME;
 
         // There are measurements in the core ping (e.g. seq #) that would ideally be atomically updated
-        // when the ping is stored. However, for simplicity, we use the json store and accept the possible
+        // when the ping is stored. However, for simplicity, we use a file-backed store and accept the possible
         // loss of data (see bug 1243585 comment 16+ for more).
-        coreStore = new TelemetryJSONFilePingStore(new File(storePath, CORE_STORE_DIR_NAME), profileName);
-        crashStore = new TelemetryJSONFilePingStore(new File(storePath, CRASH_STORE_DIR_NAME), profileName);
+        coreStore = new TelemetrySegmentedPingStore(new File(storePath, CORE_STORE_DIR_NAME), profileName);
+        crashStore = new TelemetrySegmentedPingStore(new File(storePath, CRASH_STORE_DIR_NAME), profileName);
 
         uploadAllPingsImmediatelyScheduler = new TelemetryUploadAllPingsImmediatelyScheduler();
     }
@@ -51,6 +51,8 @@ public class TelemetryUploadService extends JobIntentService {
     public static final String ACTION_UPLOAD = "upload";
     public static final String EXTRA_STORE = "store";
 
+    private static final int UPLOAD_BATCH_SIZE = 10;
+
     // TelemetryUploadService can run in a background thread so for future proofing, we set it volatile.
     private static volatile boolean isDisabled = false;
 
@@ -105,30 +107,37 @@ public class TelemetryUploadService extends JobIntentService {
      * @return true if all pings were uploaded successfully, false otherwise.
      */
     private static boolean uploadPendingPingsFromStore(final Context context, final TelemetryPingStore store) {
-        final List<TelemetryPing> pingsToUpload = store.getAllPings();
-        if (pingsToUpload.isEmpty()) {
+        if (store.getCount() == 0) {
             return true;
         }
 
         final String serverSchemeHostPort = TelemetryPreferences.getServerSchemeHostPort(context, store.getProfileName());
-        final HashSet<String> successfulUploadIDs = new HashSet<>(pingsToUpload.size()); // used for side effects.
+        final HashSet<String> successfulUploadIDs = new HashSet<>(); // used for side effects.
         final PingResultDelegate delegate = new PingResultDelegate(successfulUploadIDs);
-        for (final TelemetryPing ping : pingsToUpload) {
-            if (!(ping instanceof TelemetryOutgoingPing)) {
-                throw new IllegalStateException("Tried uploading a non-outgoing ping.");
-            }
-            // TODO: It'd be great to re-use the same HTTP connection for each upload request.
-            delegate.setDocID(ping.getDocID());
-            final String url = serverSchemeHostPort + "/" + ping.getURLPath();
-            uploadPayload(url, ping.getPayload(), delegate);
-
-            // There are minimal gains in trying to upload if we already failed one attempt.
-            if (delegate.hadConnectionError()) {
-                break;
-            }
 
-            checkPingsPersistence(context, ping.getDocID());
-        }
+        // Read the pings in batches so we don't have to hold them all in memory at once.
+        store.forEachPingBatch(UPLOAD_BATCH_SIZE, new TelemetryPingStore.PingBatchCallback() {
+            @Override
+            public boolean onPingBatch(final List<TelemetryPing> pingsToUpload) {
+                for (final TelemetryPing ping : pingsToUpload) {
+                    if (!(ping instanceof TelemetryOutgoingPing)) {
+                        throw new IllegalStateException("Tried uploading a non-outgoing ping.");
+                    }
+                    // TODO: It'd be great to re-use the same HTTP connection for each upload request.
+                    delegate.setDocID(ping.getDocID());
+                    final String url = serverSchemeHostPort + "/" + ping.getURLPath();
+                    uploadPayload(url, ping.getPayload(), delegate);
+
+                    // There are minimal gains in trying to upload if we already failed one attempt.
+                    if (delegate.hadConnectionError()) {
+                        return false;
+                    }
+
+                    checkPingsPersistence(context, ping.getDocID());
+                }
+                return true;
+            }
+        });
 
         final boolean wereAllUploadsSuccessful = !delegate.hadConnectionError();
         if (wereAllUploadsSuccessful) {
@@ -64,6 +64,15 @@ public class TelemetrySyncPingBuilder extends TelemetryLocalPingBuilder {
                 if (stage.reconciled > 0) {
                     incomingJSON.put("reconciled", stage.reconciled);
                 }
+                // Throughput of records decrypted on worker threads, if they were.
+                if (stage.fetchDecrypted > 0) {
+                    final ExtendedJSONObject decryptedJSON = new ExtendedJSONObject();
+                    decryptedJSON.put("count", stage.fetchDecrypted);
+                    decryptedJSON.put("took", stage.fetchDecryptMillis);
+                    decryptedJSON.put("deliverTook", stage.fetchDeliverMillis);
+                    decryptedJSON.put("stalledTook", stage.fetchStalledMillis);
+                    incomingJSON.put("decrypted", decryptedJSON);
+                }
                 stageJSON.put("incoming", incomingJSON);
             }
 
@@ -0,0 +1,645 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, you can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.mozilla.gecko.telemetry.stores;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.telemetry.TelemetryLocalPing;
+import org.mozilla.gecko.telemetry.TelemetryOutgoingPing;
+import org.mozilla.gecko.telemetry.TelemetryPing;
+import org.mozilla.gecko.util.FileUtils;
+import org.mozilla.gecko.util.FileUtils.FileLastModifiedComparator;
+import org.mozilla.gecko.util.FileUtils.FilenameRegexFilter;
+import org.mozilla.gecko.util.StringUtils;
+import org.mozilla.gecko.util.UUIDUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of telemetry pings, split into numbered segment files.
+ *
+ * Every record is framed as [int body length][int CRC32 of body][body]. The body is either a ping
+ * (doc ID, optional URL path, JSON payload) or a tombstone for a removed ping. Tombstones always
+ * follow the ping they remove, so segments can only be dropped oldest first: a segment is deleted
+ * once neither it nor any older segment holds a live ping, or when the store is pruned.
+ *
+ * The location of every live ping is kept in memory, and rebuilt by scanning the segments when the
+ * log is first opened. A torn record at the end of a segment (e.g. because we were killed while
+ * writing it) is truncated away at that point.
+ *
+ * There is one instance per directory and process, shared by all the stores using that directory.
+ * Other processes (e.g. the crash reporter) may use the same directory, so every operation holds
+ * an exclusive lock on the directory's lock file, and first catches up with the records the other
+ * processes appended and the segments they deleted since.
+ */
+/* package */ class PingSegmentLog {
+    private static final String LOGTAG = "GeckoPingSegmentLog";
+
+    private static final String LOCK_FILE_NAME = "lock";
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile(SEGMENT_PREFIX + "(\\d+)");
+
+    @VisibleForTesting static final int MAX_RECORDS_PER_SEGMENT = 8;
+    private static final long MAX_SEGMENT_BYTES = 256 * 1024;
+
+    // Anything longer is a torn or corrupt length field rather than a ping.
+    private static final int MAX_RECORD_BYTES = 8 * 1024 * 1024;
+    private static final int HEADER_BYTES = 8;
+
+    private static final byte RECORD_PING = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private static final HashMap<String, PingSegmentLog> sLogs = new HashMap<>();
+
+    /**
+     * @return the log for the given directory, opening it (and importing pings stored by
+     * {@link TelemetryJSONFilePingStore} in the same directory) if needed.
+     */
+    static PingSegmentLog forDirectory(final File dir) {
+        synchronized (sLogs) {
+            final String key = dir.getAbsolutePath();
+            PingSegmentLog log = sLogs.get(key);
+            if (log == null) {
+                log = new PingSegmentLog(dir);
+                log.open();
+                sLogs.put(key, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * Drops the log for the given directory, so that the next call to {@link #forDirectory(File)}
+     * reads it from disk again.
+     */
+    @VisibleForTesting static void forgetDirectory(final File dir) {
+        synchronized (sLogs) {
+            sLogs.remove(dir.getAbsolutePath());
+        }
+    }
+
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(final int segment, final long offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final int number;
+        int liveCount;
+        int recordCount;
+        long size;
+
+        Segment(final int number) {
+            this.number = number;
+        }
+    }
+
+    private final File dir;
+
+    // Oldest to newest.
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+    // Opened on first use, and kept open: closing any channel to the file would release our lock.
+    private RandomAccessFile lockFile;
+
+    private PingSegmentLog(final File dir) {
+        this.dir = dir;
+    }
+
+    private File getSegmentFile(final int number) {
+        return new File(dir, SEGMENT_PREFIX + number);
+    }
+
+    private synchronized void open() {
+        final FileLock lock;
+        try {
+            lock = lock();
+        } catch (final IOException e) {
+            // We'll read the segments with the next operation that gets the lock.
+            Log.w(LOGTAG, "Unable to lock ping store. Not opening it yet.", e);
+            return;
+        }
+
+        try {
+            refresh();
+            dropDeadSegments();
+            importJSONFilePings();
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Blocks until no other process uses the log. Must be called with our own monitor held, so
+     * that at most one thread of this process asks for the lock at a time.
+     */
+    private FileLock lock() throws IOException {
+        if (lockFile == null) {
+            lockFile = new RandomAccessFile(new File(dir, LOCK_FILE_NAME), "rw");
+        }
+        return lockFile.getChannel().lock();
+    }
+
+    private static void unlock(@Nullable final FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (final IOException e) {
+            Log.w(LOGTAG, "Unable to unlock ping store.", e);
+        }
+    }
+
+    /**
+     * Like {@link #lock()}, but logs failures and returns null instead. For operations which can
+     * fall back to what we last read from disk.
+     */
+    @Nullable
+    private FileLock lockQuietly() {
+        try {
+            return lock();
+        } catch (final IOException e) {
+            Log.w(LOGTAG, "Unable to lock ping store. Using the last known pings.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Catches up with the segments on disk, which other processes may have changed since we last
+     * looked. Must be called with the lock held.
+     *
+     * Segments only ever grow by appending records, and are only deleted oldest first, so we only
+     * need to replay what was appended after the records we know. If the segments changed in any
+     * other way, we rebuild the index from scratch.
+     */
+    private void refresh() {
+        final TreeMap<Integer, Long> lengths = new TreeMap<>();
+        final String[] names = dir.list();
+        if (names != null) {
+            for (final String name : names) {
+                final Matcher matcher = SEGMENT_PATTERN.matcher(name);
+                if (matcher.matches()) {
+                    final int number = Integer.parseInt(matcher.group(1));
+                    lengths.put(number, getSegmentFile(number).length());
+                }
+            }
+        }
+
+        // Forget the segments we created but never managed to write to.
+        final Iterator<Segment> it = segments.values().iterator();
+        while (it.hasNext()) {
+            final Segment segment = it.next();
+            if (segment.size == 0 && !lengths.containsKey(segment.number)) {
+                it.remove();
+            }
+        }
+
+        // Forget the oldest segments, which were deleted along with their pings.
+        while (!segments.isEmpty() && !lengths.containsKey(segments.firstKey())) {
+            dropFromIndex(segments.pollFirstEntry().getValue());
+        }
+
+        if (!isPrefixOf(lengths)) {
+            Log.w(LOGTAG, "Ping store was changed unexpectedly. Reading it again.");
+            index.clear();
+            segments.clear();
+        }
+
+        for (final Map.Entry<Integer, Long> entry : lengths.entrySet()) {
+            Segment segment = segments.get(entry.getKey());
+            if (segment == null) {
+                segment = new Segment(entry.getKey());
+                segments.put(segment.number, segment);
+            }
+            if (entry.getValue() > segment.size) {
+                scan(segment);
+            }
+        }
+    }
+
+    /**
+     * @return whether the segments we know about are still the oldest ones on disk, and still
+     * start with the records we read from them.
+     */
+    private boolean isPrefixOf(final TreeMap<Integer, Long> lengths) {
+        if (segments.isEmpty()) {
+            return true;
+        }
+        if (lengths.isEmpty() || lengths.firstKey() < segments.firstKey()) {
+            return false;
+        }
+        for (final Segment segment : segments.values()) {
+            final Long length = lengths.get(segment.number);
+            if (length == null || length < segment.size) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replay the records appended to the given segment since we last scanned it, truncating it
+     * after the last valid record.
+     */
+    private void scan(final Segment segment) {
+        final File file = getSegmentFile(segment.number);
+        RandomAccessFile input = null;
+        long offset = segment.size;
+        try {
+            input = new RandomAccessFile(file, "rw");
+            final long length = input.length();
+            while (offset + HEADER_BYTES <= length) {
+                input.seek(offset);
+                final int bodyLength = input.readInt();
+                final int checksum = input.readInt();
+                if (bodyLength <= 0 || bodyLength > MAX_RECORD_BYTES ||
+                        offset + HEADER_BYTES + bodyLength > length) {
+                    break;
+                }
+
+                final byte[] body = new byte[bodyLength];
+                input.readFully(body);
+                if (checksum(body) != checksum) {
+                    break;
+                }
+
+                apply(segment, offset, body);
+                offset += HEADER_BYTES + bodyLength;
+            }
+
+            if (offset < length) {
+                Log.w(LOGTAG, "Truncating " + (length - offset) + " torn bytes from segment " + segment.number);
+                input.setLength(offset);
+            }
+        } catch (final IOException e) {
+            Log.w(LOGTAG, "Unable to read segment " + segment.number + ". Ignoring the rest of it.");
+        } finally {
+            closeQuietly(input);
+        }
+        segment.size = offset;
+    }
+
+    private void apply(final Segment segment, final long offset, final byte[] body) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        final byte type = input.readByte();
+        final String docID = input.readUTF();
+
+        segment.recordCount++;
+        removeFromIndex(docID);
+        if (type == RECORD_PING) {
+            index.put(docID, new Location(segment.number, offset, body.length));
+            segment.liveCount++;
+        }
+    }
+
+    private void dropFromIndex(final Segment segment) {
+        final Iterator<Map.Entry<String, Location>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().segment == segment.number) {
+                it.remove();
+            }
+        }
+    }
+
+    private void removeFromIndex(final String docID) {
+        final Location location = index.remove(docID);
+        if (location != null) {
+            final Segment segment = segments.get(location.segment);
+            if (segment != null) {
+                segment.liveCount--;
+            }
+        }
+    }
+
+    /**
+     * Moves pings which {@link TelemetryJSONFilePingStore} stored in our directory into the log.
+     */
+    private void importJSONFilePings() {
+        final File[] files = dir.listFiles(new FilenameRegexFilter(UUIDUtil.UUID_PATTERN));
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        final List<File> sortedFiles = Arrays.asList(files);
+        Collections.sort(sortedFiles, new FileLastModifiedComparator()); // oldest to newest
+        for (final File file : sortedFiles) {
+            try {
+                final JSONObject obj = new JSONObject(FileUtils.readStringFromFile(file));
+                final String urlPath = obj.has(TelemetryJSONFilePingStore.KEY_URL_PATH) ?
+                        obj.getString(TelemetryJSONFilePingStore.KEY_URL_PATH) : null;
+                writePing(file.getName(), urlPath, obj.getString(TelemetryJSONFilePingStore.KEY_PAYLOAD));
+            } catch (final JSONException e) {
+                Log.w(LOGTAG, "Bad json in ping. Dropping it.");
+            } catch (final IOException e) {
+                // Keep the file around, we'll try again next time.
+                Log.w(LOGTAG, "Unable to import ping.", e);
+                continue;
+            }
+            file.delete();
+        }
+    }
+
+    synchronized void append(final String docID, @Nullable final String urlPath, final String payload)
+            throws IOException {
+        final FileLock lock = lock();
+        try {
+            refresh();
+            writePing(docID, urlPath, payload);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void writePing(final String docID, @Nullable final String urlPath, final String payload)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(RECORD_PING);
+        body.writeUTF(docID);
+        body.writeBoolean(urlPath != null);
+        if (urlPath != null) {
+            body.writeUTF(urlPath);
+        }
+        final byte[] payloadBytes = payload.getBytes(StringUtils.UTF_8);
+        body.writeInt(payloadBytes.length);
+        body.write(payloadBytes);
+
+        final Segment segment = getActiveSegment();
+        final long offset = segment.size;
+        writeRecord(segment, bytes.toByteArray());
+
+        removeFromIndex(docID);
+        index.put(docID, new Location(segment.number, offset, bytes.size()));
+        segment.liveCount++;
+    }
+
+    synchronized void remove(final Collection<String> docIDs) {
+        FileLock lock = null;
+        try {
+            lock = lock();
+            refresh();
+
+            for (final String docID : docIDs) {
+                if (!index.containsKey(docID)) {
+                    continue;
+                }
+
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final DataOutputStream body = new DataOutputStream(bytes);
+                body.writeByte(RECORD_REMOVE);
+                body.writeUTF(docID);
+
+                // Only forget about the ping once the tombstone is written, or it'll come back.
+                writeRecord(getActiveSegment(), bytes.toByteArray());
+                removeFromIndex(docID);
+            }
+            dropDeadSegments();
+        } catch (final IOException e) {
+            Log.w(LOGTAG, "Unable to remove pings. They'll be uploaded again.", e);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Drops the oldest segments, live pings and all, until at most maxCount pings remain.
+     */
+    synchronized void prune(final int maxCount) {
+        final FileLock lock;
+        try {
+            lock = lock();
+        } catch (final IOException e) {
+            Log.w(LOGTAG, "Unable to lock ping store. Not pruning it.", e);
+            return;
+        }
+
+        try {
+            refresh();
+            while (index.size() > maxCount && segments.size() > 1) {
+                final Segment oldest = segments.firstEntry().getValue();
+                dropFromIndex(oldest);
+                deleteSegment(oldest);
+            }
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    private void dropDeadSegments() {
+        while (segments.size() > 1 && segments.firstEntry().getValue().liveCount == 0) {
+            deleteSegment(segments.firstEntry().getValue());
+        }
+    }
+
+    private void deleteSegment(final Segment segment) {
+        segments.remove(segment.number);
+        if (!getSegmentFile(segment.number).delete()) {
+            Log.w(LOGTAG, "Unable to delete segment " + segment.number);
+        }
+    }
+
+    private Segment getActiveSegment() {
+        final Map.Entry<Integer, Segment> last = segments.lastEntry();
+        if (last != null && last.getValue().recordCount < MAX_RECORDS_PER_SEGMENT &&
+                last.getValue().size < MAX_SEGMENT_BYTES) {
+            return last.getValue();
+        }
+
+        final int number = last == null ? 0 : last.getKey() + 1;
+        final Segment segment = new Segment(number);
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private void writeRecord(final Segment segment, final byte[] body) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + body.length);
+        final DataOutputStream record = new DataOutputStream(bytes);
+        record.writeInt(body.length);
+        record.writeInt(checksum(body));
+        record.write(body);
+
+        final FileOutputStream output = new FileOutputStream(getSegmentFile(segment.number), true);
+        try {
+            bytes.writeTo(output);
+        } catch (final IOException e) {
+            // We might have written part of the record, which we'd otherwise append to. Drop it.
+            final RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment.number), "rw");
+            try {
+                file.setLength(segment.size);
+            } finally {
+                file.close();
+            }
+            throw e;
+        } finally {
+            output.close();
+        }
+
+        segment.size += bytes.size();
+        segment.recordCount++;
+    }
+
+    private static int checksum(final byte[] body) {
+        final CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    synchronized int getCount() {
+        final FileLock lock = lockQuietly();
+        try {
+            if (lock != null) {
+                refresh();
+            }
+            return index.size();
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * @return the doc IDs of all pings, oldest to newest.
+     */
+    synchronized List<String> getDocIDs() {
+        final FileLock lock = lockQuietly();
+        try {
+            if (lock != null) {
+                refresh();
+            }
+            return new ArrayList<>(index.keySet());
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Reads the given pings, in the given order. Pings which have been removed in the meantime, or
+     * which can't be read, are skipped.
+     */
+    synchronized List<TelemetryPing> readPings(final List<String> docIDs) {
+        final List<TelemetryPing> pings = new ArrayList<>(docIDs.size());
+
+        final FileLock lock = lockQuietly();
+        RandomAccessFile input = null;
+        int inputSegment = -1;
+        try {
+            if (lock != null) {
+                refresh();
+            }
+
+            for (final String docID : docIDs) {
+                final Location location = index.get(docID);
+                if (location == null) {
+                    continue;
+                }
+
+                try {
+                    if (input == null || inputSegment != location.segment) {
+                        if (input != null) {
+                            input.close();
+                        }
+                        input = new RandomAccessFile(getSegmentFile(location.segment), "r");
+                        inputSegment = location.segment;
+                    }
+
+                    final TelemetryPing ping = readPing(input, location);
+                    if (ping != null) {
+                        pings.add(ping);
+                    }
+                } catch (final IOException e) {
+                    Log.w(LOGTAG, "Unable to read ping. Ignoring.");
+                    closeQuietly(input);
+                    input = null;
+                }
+            }
+        } finally {
+            closeQuietly(input);
+            unlock(lock);
+        }
+        return pings;
+    }
+
+    private static void closeQuietly(@Nullable final RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (final IOException e) {
+            // Nothing we can do.
+        }
+    }
+
+    private static TelemetryPing readPing(final RandomAccessFile file, final Location location) throws IOException {
+        file.seek(location.offset + HEADER_BYTES - 4);
+        final int checksum = file.readInt();
+        final byte[] body = new byte[location.length];
+        file.readFully(body);
+        if (checksum(body) != checksum) {
+            Log.w(LOGTAG, "Corrupt ping. Ignoring.");
+            return null;
+        }
+
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        input.readByte(); // RECORD_PING
+        final String docID = input.readUTF();
+        final String urlPath = input.readBoolean() ? input.readUTF() : null;
+        final byte[] payloadBytes = new byte[input.readInt()];
+        input.readFully(payloadBytes);
+
+        final ExtendedJSONObject payload;
+        try {
+            payload = new ExtendedJSONObject(new String(payloadBytes, StringUtils.UTF_8));
+        } catch (final NonObjectJSONException e) {
+            Log.w(LOGTAG, "Bad json in ping. Ignoring.");
+            return null;
+        }
+
+        if (urlPath != null) {
+            return new TelemetryOutgoingPing(urlPath, payload, docID);
+        }
+        return new TelemetryLocalPing(payload, docID);
+    }
+}
@@ -14,6 +14,7 @@ import org.mozilla.gecko.telemetry.TelemetryOutgoingPing;
 import org.mozilla.gecko.telemetry.TelemetryPing;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -48,6 +49,34 @@ public abstract class TelemetryPingStore implements Parcelable {
      */
     public abstract List<TelemetryPing> getAllPings();
 
+    /**
+     * Receives the pings in the store one batch at a time, see {@link #forEachPingBatch(int, PingBatchCallback)}.
+     */
+    public interface PingBatchCallback {
+        /**
+         * @return true to receive the next batch, false to stop.
+         */
+        boolean onPingBatch(List<TelemetryPing> pings);
+    }
+
+    /**
+     * Passes the telemetry pings in the store to the given callback in batches of up to batchSize pings,
+     * ascending oldest to newest, so that callers don't need to hold all the pings in memory at once.
+     *
+     * The default implementation reads all the pings up front: stores which can read pings lazily should
+     * override it.
+     */
+    public void forEachPingBatch(final int batchSize, final PingBatchCallback callback) {
+        final List<TelemetryPing> pings = getAllPings();
+        for (int start = 0; start < pings.size(); start += batchSize) {
+            final List<TelemetryPing> batch = new ArrayList<>(
+                    pings.subList(start, Math.min(start + batchSize, pings.size())));
+            if (!callback.onPingBatch(batch)) {
+                return;
+            }
+        }
+    }
+
     /**
      * @return a number of all currently stored pings.
      */
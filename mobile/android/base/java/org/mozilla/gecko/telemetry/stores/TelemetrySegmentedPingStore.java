@@ -0,0 +1,130 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, you can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.mozilla.gecko.telemetry.stores;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+
+import org.mozilla.gecko.telemetry.TelemetryPing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An implementation of TelemetryPingStore that appends pings to a log of rolling segment files, see
+ * {@link PingSegmentLog} for the file format.
+ *
+ * Compared to {@link TelemetryJSONFilePingStore}, storing a ping is a single append rather than a new
+ * file, pruning drops whole segments rather than listing and sorting the directory, and pings can be
+ * read a batch at a time with {@link #forEachPingBatch(int, PingBatchCallback)}.
+ *
+ * Pings which a {@link TelemetryJSONFilePingStore} left in the same directory are imported into the log
+ * when it's first opened, so the two can be swapped without losing pings.
+ */
+public class TelemetrySegmentedPingStore extends TelemetryPingStore {
+    @VisibleForTesting static final int MAX_PING_COUNT = TelemetryJSONFilePingStore.MAX_PING_COUNT;
+
+    private final File storeDir;
+    private final PingSegmentLog log;
+
+    @WorkerThread // Reads from and writes to disk
+    public TelemetrySegmentedPingStore(final File storeDir, final String profileName) {
+        super(profileName);
+        if (storeDir.exists() && !storeDir.isDirectory()) {
+            // An alternative is to create a new directory, but we wouldn't
+            // be able to access it later so it's better to throw.
+            throw new IllegalStateException("Store dir unexpectedly exists & is not a directory - cannot continue");
+        }
+
+        this.storeDir = storeDir;
+        this.storeDir.mkdirs();
+
+        if (!this.storeDir.canRead() || !this.storeDir.canWrite() || !this.storeDir.canExecute()) {
+            throw new IllegalStateException("Cannot read, write, or execute store dir: " +
+                    this.storeDir.canRead() + " " + this.storeDir.canWrite() + " " + this.storeDir.canExecute());
+        }
+
+        log = PingSegmentLog.forDirectory(storeDir);
+    }
+
+    @Override
+    public void storePing(final TelemetryPing ping) throws IOException {
+        log.append(ping.getDocID(), ping.getURLPath(), ping.getPayload().toString());
+    }
+
+    @Override
+    public void maybePrunePings() {
+        log.prune(MAX_PING_COUNT);
+    }
+
+    @Override
+    public List<TelemetryPing> getAllPings() {
+        return log.readPings(log.getDocIDs());
+    }
+
+    @Override
+    public void forEachPingBatch(final int batchSize, final PingBatchCallback callback) {
+        // Only take a snapshot of the IDs: pings stored in the meantime are left for the next
+        // caller, and pings removed in the meantime are skipped.
+        final List<String> docIDs = log.getDocIDs();
+        for (int start = 0; start < docIDs.size(); start += batchSize) {
+            final List<TelemetryPing> batch = log.readPings(
+                    docIDs.subList(start, Math.min(start + batchSize, docIDs.size())));
+            if (!batch.isEmpty() && !callback.onPingBatch(batch)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return log.getCount();
+    }
+
+    @Override
+    public Set<String> getStoredIDs() {
+        return new HashSet<>(log.getDocIDs());
+    }
+
+    @Override
+    public void onUploadAttemptComplete(final Set<String> successfulRemoveIDs) {
+        if (successfulRemoveIDs.isEmpty()) {
+            return;
+        }
+        log.remove(successfulRemoveIDs);
+    }
+
+    public static final Parcelable.Creator<TelemetrySegmentedPingStore> CREATOR = new Parcelable.Creator<TelemetrySegmentedPingStore>() {
+        @Override
+        public TelemetrySegmentedPingStore createFromParcel(final Parcel source) {
+            final String storeDirPath = source.readString();
+            final String profileName = source.readString();
+            return new TelemetrySegmentedPingStore(new File(storeDirPath), profileName);
+        }
+
+        @Override
+        public TelemetrySegmentedPingStore[] newArray(final int size) {
+            return new TelemetrySegmentedPingStore[size];
+        }
+    };
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeString(storeDir.getAbsolutePath());
+        dest.writeString(getProfileName());
+    }
+}
@@ -0,0 +1,336 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 4; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.updater;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import org.mozilla.gecko.util.IOUtils;
+import org.mozilla.gecko.util.ProxySelector;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Downloads an update package and hashes it while it is being written, so that it doesn't have
+ * to be read back from disk to be verified.<br>
+ * The package is downloaded to a ".part" file next to the destination, which is only renamed to
+ * the destination once its hash matches. If the connection drops, the download is resumed where
+ * it stopped with a Range request. The ".part" file is kept when the download fails, so a later
+ * download of the same package resumes it too; its hash is then rebuilt from the bytes already on
+ * disk, since the state of a {@link MessageDigest} can't be saved.
+ */
+/* package-private */ class PackageDownloader {
+    private static final String LOGTAG = "GeckoPackageDownloader";
+    private static final boolean DEBUG = false;
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_RETRY_DELAY_IN_MILLIS = 2000L;
+    // A connection that stalls for this long is treated as dropped.
+    private static final int DEFAULT_TIMEOUT_IN_MILLIS = 30000;
+
+    interface Listener {
+        /**
+         * @return whether the download should be stopped and its ".part" file deleted.
+         */
+        boolean isCanceled();
+
+        /**
+         * @param length total size of the package, or -1 if the server didn't say.
+         */
+        void onProgress(long bytesRead, long length);
+
+        /**
+         * Called when the validator of the ".part" file changes. Save it and pass it to
+         * {@link PackageDownloader#setValidator(String)} to resume the ".part" file after a restart.
+         *
+         * @param validator ETag or Last-Modified of the package, or null.
+         */
+        void onValidator(@Nullable String validator);
+    }
+
+    /**
+     * Thrown for responses that can't be used to continue the download.
+     */
+    /* package-private */ static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 4126817320155683214L;
+
+        final int status;
+
+        HttpStatusException(int status) {
+            super("Unexpected HTTP status: " + status);
+            this.status = status;
+        }
+    }
+
+    private final URI uri;
+    private final File file;
+    private final File partialFile;
+    private final MessageDigest digest;
+    private final String hashValue;
+    private final int bufferSize;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long retryDelayInMillis = DEFAULT_RETRY_DELAY_IN_MILLIS;
+    private int timeoutInMillis = DEFAULT_TIMEOUT_IN_MILLIS;
+
+    // Number of bytes in the ".part" file that have been passed to digest.
+    private long offset;
+    // Validator of the response the ".part" file was started from, sent in If-Range when resuming.
+    private String validator;
+    private long length = -1;
+
+    PackageDownloader(@NonNull URI uri, @NonNull File file, @NonNull MessageDigest digest,
+                      @NonNull String hashValue, int bufferSize) {
+        this.uri = uri;
+        this.file = file;
+        this.partialFile = getPartialFile(file);
+        this.digest = digest;
+        this.hashValue = hashValue;
+        this.bufferSize = bufferSize;
+    }
+
+    @VisibleForTesting
+    void setRetryPolicy(int maxAttempts, long retryDelayInMillis, int timeoutInMillis) {
+        this.maxAttempts = maxAttempts;
+        this.retryDelayInMillis = retryDelayInMillis;
+        this.timeoutInMillis = timeoutInMillis;
+    }
+
+    File getPartialFile() {
+        return partialFile;
+    }
+
+    /**
+     * @return the ".part" file a download to the given destination is written to.
+     */
+    static File getPartialFile(@NonNull File file) {
+        return new File(file.getPath() + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Set the validator of a ".part" file left by an earlier download, so that it is only resumed
+     * if the package didn't change since.
+     */
+    void setValidator(@Nullable String validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Delete what has been downloaded so far, so that the next download starts over.
+     */
+    void discardPartialFile() {
+        partialFile.delete();
+        digest.reset();
+        offset = 0;
+        validator = null;
+        length = -1;
+    }
+
+    /**
+     * Download the package, retrying with increasing delays while the connection keeps dropping.
+     * @return the verified package, or null if the download was canceled or the package didn't
+     *         match its hash.
+     * @throws IOException if the download failed; the ".part" file is kept to be resumed later.
+     */
+    @WorkerThread
+    @Nullable File download(@NonNull Listener listener) throws IOException {
+        restoreDigest();
+
+        long delay = retryDelayInMillis;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (!transfer(listener)) {
+                    if (DEBUG) {
+                        Log.i(LOGTAG, "download canceled");
+                    }
+                    discardPartialFile();
+                    return null;
+                }
+                break;
+            } catch (IOException e) {
+                if (attempt >= maxAttempts || !shouldRetry(e)) {
+                    throw e;
+                }
+                if (DEBUG) {
+                    Log.i(LOGTAG, "download interrupted at " + offset + " bytes; retrying in " + delay + "ms", e);
+                }
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to resume download", e);
+            }
+            delay *= 2;
+        }
+
+        final String hex = PackageVerifier.toHexString(digest.digest());
+        if (!hex.equals(hashValue)) {
+            Log.e(LOGTAG, "Downloaded package hash does not match");
+            discardPartialFile();
+            return null;
+        }
+
+        file.delete();
+        if (!partialFile.renameTo(file)) {
+            throw new IOException("Could not rename " + partialFile + " to " + file);
+        }
+        return file;
+    }
+
+    private static boolean shouldRetry(IOException e) {
+        if (e instanceof HttpStatusException) {
+            // Only server errors might go away by themselves.
+            return ((HttpStatusException) e).status >= 500;
+        }
+        return true;
+    }
+
+    /**
+     * Pass the bytes of a ".part" file left by an earlier download to the digest.
+     */
+    private void restoreDigest() throws IOException {
+        if (offset > 0 || !partialFile.exists()) {
+            return;
+        }
+
+        InputStream input = null;
+        try {
+            input = new BufferedInputStream(new FileInputStream(partialFile));
+            final byte[] buf = new byte[bufferSize];
+            int len;
+            while ((len = input.read(buf, 0, bufferSize)) > 0) {
+                digest.update(buf, 0, len);
+                offset += len;
+            }
+        } catch (IOException e) {
+            discardPartialFile();
+            throw e;
+        } finally {
+            IOUtils.safeStreamClose(input);
+        }
+
+        if (DEBUG) {
+            Log.i(LOGTAG, "resuming download from " + offset + " bytes");
+        }
+    }
+
+    /**
+     * Make a single request for the rest of the package and write it to the ".part" file.
+     * @return false if the download was canceled.
+     */
+    private boolean transfer(Listener listener) throws IOException {
+        HttpURLConnection conn = null;
+        InputStream input = null;
+        RandomAccessFile output = null;
+
+        try {
+            conn = (HttpURLConnection) ProxySelector.openConnectionWithProxy(uri);
+            conn.setConnectTimeout(timeoutInMillis);
+            conn.setReadTimeout(timeoutInMillis);
+            if (offset > 0) {
+                conn.setRequestProperty("Range", "bytes=" + offset + "-");
+                if (validator != null) {
+                    // Get the whole package instead if it changed since the ".part" file was started.
+                    conn.setRequestProperty("If-Range", validator);
+                }
+            }
+
+            final int status = conn.getResponseCode();
+            final long contentLength = parseLong(conn.getHeaderField("Content-Length"));
+            if (status == HttpURLConnection.HTTP_PARTIAL && offset > 0 &&
+                    conn.getHeaderField("Content-Range") != null &&
+                    conn.getHeaderField("Content-Range").startsWith("bytes " + offset + "-")) {
+                length = contentLength >= 0 ? offset + contentLength : -1;
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                if (offset > 0) {
+                    if (DEBUG) {
+                        Log.i(LOGTAG, "server sent the whole package; starting over");
+                    }
+                    discardPartialFile();
+                }
+                length = contentLength;
+            } else if (status == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+                // The ".part" file doesn't belong to this package.  Retry from the start.
+                discardPartialFile();
+                throw new IOException("Range not satisfiable; discarded partial download");
+            } else {
+                throw new HttpStatusException(status);
+            }
+
+            final String etag = conn.getHeaderField("ETag");
+            final String newValidator = etag != null ? etag : conn.getHeaderField("Last-Modified");
+            if (newValidator == null ? validator != null : !newValidator.equals(validator)) {
+                validator = newValidator;
+                listener.onValidator(validator);
+            }
+
+            input = new BufferedInputStream(conn.getInputStream(), bufferSize);
+            output = new RandomAccessFile(partialFile, "rw");
+            // Drop anything written past what was hashed, e.g. by a write that was interrupted.
+            output.setLength(offset);
+            final FileChannel channel = output.getChannel();
+            channel.position(offset);
+
+            final byte[] buf = new byte[bufferSize];
+            int len;
+            while ((len = input.read(buf, 0, bufferSize)) > 0) {
+                if (listener.isCanceled()) {
+                    return false;
+                }
+
+                final ByteBuffer buffer = ByteBuffer.wrap(buf, 0, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                digest.update(buf, 0, len);
+                offset += len;
+
+                listener.onProgress(offset, length);
+            }
+
+            if (length >= 0 && offset < length) {
+                throw new IOException("Connection closed after " + offset + " of " + length + " bytes");
+            }
+            return !listener.isCanceled();
+        } finally {
+            IOUtils.safeStreamClose(input);
+            IOUtils.safeStreamClose(output);
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
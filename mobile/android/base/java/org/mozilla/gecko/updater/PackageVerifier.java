@@ -47,7 +47,7 @@ public class PackageVerifier {
             } catch (java.io.IOException e) { }
         }
 
-        String hex = Hex.encodeHexString(digest.digest());
+        String hex = toHexString(digest.digest());
         if (!hex.equals(prefs.getLastHashValue())) {
             if (DEBUG) {
                 Log.e(LOGTAG, "Package hash does not match");
@@ -58,7 +58,11 @@ public class PackageVerifier {
         return true;
     }
 
-    private static MessageDigest createMessageDigest(String hashFunction) {
+    static String toHexString(byte[] hash) {
+        return Hex.encodeHexString(hash);
+    }
+
+    static MessageDigest createMessageDigest(String hashFunction) {
         String javaHashFunction;
 
         if ("sha512".equalsIgnoreCase(hashFunction)) {
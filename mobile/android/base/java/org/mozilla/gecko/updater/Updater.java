@@ -37,22 +37,17 @@ import org.mozilla.gecko.permissions.Permissions;
 import org.mozilla.gecko.updater.UpdateServiceHelper.AutoDownloadPolicy;
 import org.mozilla.gecko.updater.UpdateServiceHelper.CheckUpdateResult;
 import org.mozilla.gecko.updater.UpdateServiceHelper.UpdateInfo;
-import org.mozilla.gecko.util.IOUtils;
 import org.mozilla.gecko.util.ProxySelector;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.MessageDigest;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.TimeZone;
@@ -218,7 +213,7 @@ public class Updater {
         }
 
         if (updatePath != null) {
-            applyUpdate(new File(updatePath));
+            applyUpdate(new File(updatePath), false);
         }
     }
 
@@ -308,7 +303,9 @@ public class Updater {
         sendCheckUpdateResult(CheckUpdateResult.DOWNLOADED);
 
         if (shouldApplyImmediately) {
-            applyUpdate(pkg);
+            // The package was just verified, either while it was downloaded or because it had
+            // been downloaded before.
+            applyUpdate(pkg, true);
         } else {
             // Prompt to apply the update with a new JobIntentService
 
@@ -372,15 +369,31 @@ public class Updater {
             deleteUpdatePackage(prefs.getLastFileName());
         }
 
+        final MessageDigest digest = PackageVerifier.createMessageDigest(info.hashFunction);
+        if (digest == null) {
+            Log.e(logtag, "Not downloading update package, can't verify it");
+            return null;
+        }
+
+        final PackageDownloader downloader = new PackageDownloader(info.uri, downloadFile, digest, info.hashValue, bufferSize);
+        if (!info.buildID.equals(prefs.getPartialBuildID())) {
+            // Don't resume a download of another version, wherever it was saved.
+            final String partialFileName = prefs.getPartialFileName();
+            if (partialFileName != null) {
+                new File(partialFileName).delete();
+            }
+            downloader.discardPartialFile();
+            prefs.setPartialBuildID(info.buildID, downloader.getPartialFile());
+        } else {
+            // Only resume the download if the package didn't change since it was started.
+            downloader.setValidator(prefs.getPartialValidator());
+        }
+
         if (DEBUG) {
             Log.i(logtag, "downloading update package");
         }
         sendCheckUpdateResult(CheckUpdateResult.DOWNLOADING);
 
-        OutputStream output = null;
-        InputStream input = null;
-        URLConnection conn = null;
-
         shouldCancelDownload = false;
         showDownloadNotification(downloadFile);
 
@@ -391,67 +404,58 @@ public class Updater {
                 mWifiLock.acquire();
             }
 
-            conn = ProxySelector.openConnectionWithProxy(info.uri);
-            int length = conn.getContentLength();
+            final File pkg = downloader.download(new PackageDownloader.Listener() {
+                private long lastNotify;
 
-            output = new BufferedOutputStream(new FileOutputStream(downloadFile));
-            input = new BufferedInputStream(conn.getInputStream());
-
-            byte[] buf = new byte[bufferSize];
-            int len = 0;
+                @Override
+                public boolean isCanceled() {
+                    return shouldCancelDownload;
+                }
 
-            int bytesRead = 0;
-            int lastNotify = 0;
+                @Override
+                public void onProgress(long bytesRead, long length) {
+                    // Updating the notification takes time so only do it every 1MB
+                    if (bytesRead - lastNotify > 1048576) {
+                        notifBuilder.setProgress((int) length, (int) bytesRead, false);
+                        notificationManager.notify(notificationId, notifBuilder.build());
+                        lastNotify = bytesRead;
+                    }
+                }
 
-            while ((len = input.read(buf, 0, bufferSize)) > 0 && !shouldCancelDownload) {
-                output.write(buf, 0, len);
-                bytesRead += len;
-                // Updating the notification takes time so only do it every 1MB
-                if (bytesRead - lastNotify > 1048576) {
-                    notifBuilder.setProgress(length, bytesRead, false);
-                    notificationManager.notify(notificationId, notifBuilder.build());
-                    lastNotify = bytesRead;
+                @Override
+                public void onValidator(String validator) {
+                    prefs.setPartialValidator(validator);
                 }
-            }
+            });
 
             notificationManager.cancel(notificationId);
 
-            // if the download was canceled by the user
-            // delete the update package
-            if (shouldCancelDownload) {
-                if (DEBUG) {
-                    Log.i(logtag, "download canceled by user!");
+            if (pkg == null) {
+                if (shouldCancelDownload) {
+                    if (DEBUG) {
+                        Log.i(logtag, "download canceled by user!");
+                    }
+                } else {
+                    showDownloadFailure();
+                    Log.e(logtag, "Downloaded update package failed verification");
                 }
-                downloadFile.delete();
-
                 return null;
-            } else {
-                if (DEBUG) {
-                    Log.i(logtag, "completed update download!");
-                }
-                return downloadFile;
             }
+
+            if (DEBUG) {
+                Log.i(logtag, "completed update download!");
+            }
+            return pkg;
         } catch (Exception e) {
-            downloadFile.delete();
+            // The partial download is kept, and resumed when the download is retried.
             showDownloadFailure();
 
             Log.e(logtag, "failed to download update: ", e);
             return null;
         } finally {
-            IOUtils.safeStreamClose(input);
-            IOUtils.safeStreamClose(output);
-
             if (mWifiLock.isHeld()) {
                 mWifiLock.release();
             }
-
-            // conn isn't guaranteed to be an HttpURLConnection, hence we don't want to cast earlier
-            // in this method. However in our current implementation it usually is, so we need to
-            // make sure we close it in that case:
-            final HttpURLConnection httpConn = (HttpURLConnection) conn;
-            if (httpConn != null) {
-                httpConn.disconnect();
-            }
         }
     }
 
@@ -510,19 +514,21 @@ public class Updater {
         notificationManager.notify(notificationId, builder.build());
     }
 
-    private void applyUpdate(File updateFile) {
+    private void applyUpdate(File updateFile, boolean verified) {
         shouldApplyImmediately = false;
 
         if (!updateFile.exists())
             return;
 
-        if (DEBUG) {
-            Log.i(logtag, "Verifying package: " + updateFile);
-        }
+        if (!verified) {
+            if (DEBUG) {
+                Log.i(logtag, "Verifying package: " + updateFile);
+            }
 
-        if (!PackageVerifier.verifyDownloadedPackage(prefs, updateFile, bufferSize)) {
-            Log.e(logtag, "Not installing update, failed verification");
-            return;
+            if (!PackageVerifier.verifyDownloadedPackage(prefs, updateFile, bufferSize)) {
+                Log.e(logtag, "Not installing update, failed verification");
+                return;
+            }
         }
 
         Intent intent = new Intent(Intent.ACTION_VIEW);
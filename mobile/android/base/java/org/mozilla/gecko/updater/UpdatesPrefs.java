@@ -25,6 +25,9 @@ public final class UpdatesPrefs {
     private static final String KEY_LAST_HASH_FUNCTION = "UpdateService.lastHashFunction";
     private static final String KEY_LAST_HASH_VALUE = "UpdateService.lastHashValue";
     private static final String KEY_LAST_FILE_NAME = "UpdateService.lastFileName";
+    private static final String KEY_PARTIAL_BUILDID = "UpdateService.partialBuildID";
+    private static final String KEY_PARTIAL_VALIDATOR = "UpdateService.partialValidator";
+    private static final String KEY_PARTIAL_FILE_NAME = "UpdateService.partialFileName";
     private static final String KEY_LAST_ATTEMPT_DATE = "UpdateService.lastAttemptDate";
     private static final String KEY_AUTODOWNLOAD_POLICY = "UpdateService.autoDownloadPolicy";
     private static final String KEY_UPDATE_URL = "UpdateService.updateUrl";
@@ -55,6 +58,32 @@ public final class UpdatesPrefs {
         return sharedPrefs.getString(KEY_LAST_FILE_NAME, null);
     }
 
+    String getPartialBuildID() {
+        return sharedPrefs.getString(KEY_PARTIAL_BUILDID, null);
+    }
+
+    String getPartialFileName() {
+        return sharedPrefs.getString(KEY_PARTIAL_FILE_NAME, null);
+    }
+
+    void setPartialBuildID(String buildID, File partialFile) {
+        SharedPreferences.Editor editor = sharedPrefs.edit();
+        editor.putString(KEY_PARTIAL_BUILDID, buildID);
+        editor.putString(KEY_PARTIAL_FILE_NAME, partialFile.toString());
+        editor.remove(KEY_PARTIAL_VALIDATOR);
+        editor.commit();
+    }
+
+    String getPartialValidator() {
+        return sharedPrefs.getString(KEY_PARTIAL_VALIDATOR, null);
+    }
+
+    void setPartialValidator(String validator) {
+        SharedPreferences.Editor editor = sharedPrefs.edit();
+        editor.putString(KEY_PARTIAL_VALIDATOR, validator);
+        editor.commit();
+    }
+
     Calendar getLastAttemptDate() {
         long lastAttempt = sharedPrefs.getLong(KEY_LAST_ATTEMPT_DATE, -1);
         if (lastAttempt < 0)
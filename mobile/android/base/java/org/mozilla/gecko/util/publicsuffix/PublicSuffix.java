@@ -13,7 +13,6 @@ import android.text.TextUtils;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Helper methods for the public suffix part of a domain.
@@ -90,68 +89,32 @@ public class PublicSuffix {
      */
     @WorkerThread
     private static int findPublicSuffixIndex(Context context, String domain) {
-        final List<String> parts = normalizeAndSplit(domain);
-        final int partsSize = parts.size();
-        final Set<String> exact = PublicSuffixPatterns.getExactSet(context);
-
-        for (int i = 0; i < partsSize; i++) {
-            String ancestorName = TextUtils.join(".", parts.subList(i, partsSize));
-
-            if (exact.contains(ancestorName)) {
-                return joinIndex(parts, i);
-            }
-
-            // Excluded domains (e.g. !nhs.uk) use the next highest
-            // domain as the effective public suffix (e.g. uk).
-            if (PublicSuffixPatterns.EXCLUDED.contains(ancestorName)) {
-                return joinIndex(parts, i + 1);
-            }
-
-            if (matchesWildcardPublicSuffix(ancestorName)) {
-                return joinIndex(parts, i);
-            }
-        }
-
-        return -1;
+        return PublicSuffixPatterns.getTrie(context).findPublicSuffixIndex(normalize(domain));
     }
 
     /**
-     * Normalize domain and split into domain parts (www.mozilla.org -> [www, mozilla, org]).
+     * Normalize domain: all dot-like characters to '.', lower case, and without a trailing '.'.
      */
-    private static List<String> normalizeAndSplit(String domain) {
-        domain = domain.replaceAll("[.\u3002\uFF0E\uFF61]", "."); // All dot-like characters to '.'
+    private static String normalize(String domain) {
+        // All dot-like characters to '.'. Unlike a regular expression, this doesn't allocate
+        // anything for the common case of a domain which doesn't contain any.
+        domain = domain.replace('\u3002', '.').replace('\uFF0E', '.').replace('\uFF61', '.');
         domain = domain.toLowerCase();
 
         if (domain.endsWith(".")) {
             domain = domain.substring(0, domain.length() - 1); // Strip trailing '.'
         }
 
-        List<String> parts = new ArrayList<>();
-        Collections.addAll(parts, domain.split("\\."));
-
-        return parts;
+        return domain;
     }
 
     /**
-     * Translate the index of the leftmost part of the public suffix to the index of the domain string.
-     *
-     * [www, mozilla, org] and 2 => 12 (www.mozilla)
+     * Normalize domain and split into domain parts (www.mozilla.org -> [www, mozilla, org]).
      */
-    private static int joinIndex(List<String> parts, int index) {
-        int actualIndex = parts.get(0).length();
-
-        for (int i = 1; i < index; i++) {
-            actualIndex += parts.get(i).length() + 1; // Add one for the "." that is not part of the list elements
-        }
-
-        return actualIndex;
-    }
+    private static List<String> normalizeAndSplit(String domain) {
+        List<String> parts = new ArrayList<>();
+        Collections.addAll(parts, normalize(domain).split("\\."));
 
-    /**
-     * Does the domain name match one of the "wildcard" patterns (e.g. {@code "*.ar"})?
-     */
-    private static boolean matchesWildcardPublicSuffix(String domain) {
-        final String[] pieces = domain.split("\\.", 2);
-        return pieces.length == 2 && PublicSuffixPatterns.UNDER.contains(pieces[1]);
+        return parts;
     }
 }
@@ -0,0 +1,207 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.util.publicsuffix;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import org.mozilla.gecko.util.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The public suffix rules, compiled into a trie of reversed domain labels by
+ * generate_public_suffix_trie.py (see there for the file format).
+ *
+ * The trie is stored uncompressed in the APK and memory-mapped straight out of it. It is queried
+ * without allocating: labels are compared to the UTF-8 encoded labels in the trie as they are walked.
+ */
+class PublicSuffixTrie {
+    private static final int MAGIC = 0x50534c31; // "PSL1"
+    private static final int ROOT = 4;
+
+    private static final int FLAG_EXACT = 1;
+    private static final int FLAG_WILDCARD = 2;
+    private static final int FLAG_EXCEPTION = 4;
+
+    // Only ever accessed with absolute reads, so it can be shared between threads.
+    private final ByteBuffer buffer;
+
+    /* package */ PublicSuffixTrie(ByteBuffer buffer) {
+        if (buffer.limit() < ROOT || buffer.getInt(0) != MAGIC) {
+            throw new IllegalStateException("Public suffix trie is corrupt");
+        }
+        this.buffer = buffer;
+    }
+
+    static PublicSuffixTrie load(AssetManager assets, String name) throws IOException {
+        AssetFileDescriptor descriptor = null;
+        try {
+            // Only works if the asset is stored uncompressed, see aaptOptions in app/build.gradle.
+            descriptor = assets.openFd(name);
+        } catch (IOException e) {
+            // Compressed: fall back to reading the whole asset into memory.
+        }
+
+        if (descriptor != null) {
+            final FileInputStream input = descriptor.createInputStream();
+            try {
+                return new PublicSuffixTrie(input.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        descriptor.getStartOffset(), descriptor.getLength()));
+            } finally {
+                IOUtils.safeStreamClose(input);
+                descriptor.close();
+            }
+        }
+
+        final InputStream input = assets.open(name);
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 * 1024);
+            IOUtils.copy(input, bytes);
+            return new PublicSuffixTrie(ByteBuffer.wrap(bytes.toByteArray()));
+        } finally {
+            IOUtils.safeStreamClose(input);
+        }
+    }
+
+    /**
+     * Returns the index of the dot in front of the public suffix of the given domain, or -1 if
+     * there is none.
+     *
+     * The domain has to be normalized (lower case, with a single trailing dot stripped). Whenever
+     * the public suffix starts at the first label of the domain, the index of the end of that label
+     * is returned instead.
+     */
+    int findPublicSuffixIndex(String domain) {
+        int end = domain.length();
+        // Like String.split, ignore trailing empty labels.
+        while (end > 0 && domain.charAt(end - 1) == '.') {
+            end--;
+        }
+        if (end == 0 && domain.length() > 0) {
+            return -1;
+        }
+
+        // Walk from the rightmost label to the left. Matches for longer names win.
+        int result = -1;
+        int node = ROOT;
+        int labelEnd = end;
+        while (true) {
+            final int labelStart = domain.lastIndexOf('.', labelEnd - 1) + 1;
+            final int index = labelStart == 0 ? firstLabelEnd(domain, end) : labelStart - 1;
+            final boolean underWildcard = (flags(node) & FLAG_WILDCARD) != 0;
+
+            node = findChild(node, domain, labelStart, labelEnd);
+            if (node == -1) {
+                if (underWildcard) {
+                    result = index;
+                }
+                break;
+            }
+
+            final int flags = flags(node);
+            if ((flags & FLAG_EXACT) != 0) {
+                result = index;
+            } else if ((flags & FLAG_EXCEPTION) != 0) {
+                // Excluded domains (e.g. !nhs.uk) use the next highest
+                // domain as the effective public suffix (e.g. uk).
+                result = labelEnd;
+            } else if (underWildcard) {
+                result = index;
+            }
+
+            if (labelStart == 0) {
+                break;
+            }
+            labelEnd = labelStart - 1;
+        }
+        return result;
+    }
+
+    private static int firstLabelEnd(String domain, int end) {
+        final int dot = domain.indexOf('.');
+        return dot == -1 || dot > end ? end : dot;
+    }
+
+    private int flags(int node) {
+        return buffer.get(node);
+    }
+
+    /**
+     * Binary search the children of the given node for the label domain[start, end).
+     *
+     * @return the offset of the child, or -1 if there is no such child.
+     */
+    private int findChild(int node, String domain, int start, int end) {
+        final int labelLength = buffer.get(node + 1) & 0xff;
+        final int childCountOffset = node + 2 + labelLength;
+        final int children = childCountOffset + 2;
+
+        int low = 0;
+        int high = (buffer.getShort(childCountOffset) & 0xffff) - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int child = buffer.getInt(children + 4 * middle);
+            final int comparison = compareLabel(child, domain, start, end);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare the label of the given node to domain[start, end), by their UTF-8 bytes.
+     */
+    private int compareLabel(int node, String domain, int start, int end) {
+        final int labelLength = buffer.get(node + 1) & 0xff;
+        int position = node + 2;
+        final int labelEnd = position + labelLength;
+
+        int i = start;
+        while (i < end) {
+            int codePoint = domain.charAt(i++);
+            if (Character.isHighSurrogate((char) codePoint) && i < end &&
+                    Character.isLowSurrogate(domain.charAt(i))) {
+                codePoint = Character.toCodePoint((char) codePoint, domain.charAt(i++));
+            } else if (Character.isSurrogate((char) codePoint)) {
+                // Unpaired surrogates are encoded as '?', like String.getBytes does.
+                codePoint = '?';
+            }
+
+            final int byteCount = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            for (int b = 0; b < byteCount; b++) {
+                if (position == labelEnd) {
+                    return -1;
+                }
+                final int comparison = (buffer.get(position++) & 0xff) - utf8Byte(codePoint, byteCount, b);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+        }
+        return position == labelEnd ? 0 : 1;
+    }
+
+    private static int utf8Byte(int codePoint, int byteCount, int index) {
+        if (byteCount == 1) {
+            return codePoint;
+        }
+        if (index == 0) {
+            final int lead = byteCount == 2 ? 0xc0 : byteCount == 3 ? 0xe0 : 0xf0;
+            return lead | (codePoint >> (6 * (byteCount - 1)));
+        }
+        return 0x80 | ((codePoint >> (6 * (byteCount - 1 - index))) & 0x3f);
+    }
+}
@@ -0,0 +1,170 @@
+#!/bin/python
+
+# -*- Mode: python; indent-tabs-mode: nil; tab-width: 40 -*-
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+'''
+Script to compile the public suffix list into the binary trie read by
+PublicSuffixTrie.java.
+
+The input is mobile/android/base/publicsuffix/publicsuffixlist (one exact rule
+per line), plus the wildcard and exception rules listed below. The list is not
+shipped: the output is the publicsuffixlist.trie asset.
+
+To update the public suffixes, update the input list and/or the rules below
+and run the script using 'mach python <script.py>'.  Don't forget to commit
+the changes to the inputs and the output.
+
+The trie is keyed by the labels of a rule in reverse order ("co.uk" is stored
+as "uk" -> "co"). All integers are big-endian. The file starts with the magic
+number 0x50534c31 ("PSL1"), followed by the root node. Each node is:
+
+    u8         flags (1: exact rule, 2: wildcard rule "*.<node>",
+                      4: exception rule "!<node>")
+    u8         length of the node's label in bytes
+    bytes      the node's label, UTF-8 encoded
+    u16        number of children
+    u32[]      absolute offsets of the children, sorted by their labels'
+               UTF-8 bytes
+'''
+
+from __future__ import absolute_import, print_function, unicode_literals
+
+import io
+import os
+import struct
+
+__DIR__ = os.path.dirname(os.path.abspath(__file__))
+ANDROID = os.path.join(__DIR__, '..', '..', '..', '..', '..', '..', '..')
+
+INPUT = os.path.join(ANDROID, 'base', 'publicsuffix', 'publicsuffixlist')
+OUTPUT = os.path.join(ANDROID, 'app', 'src', 'main', 'assets', 'publicsuffixlist.trie')
+
+MAGIC = 0x50534c31
+
+FLAG_EXACT = 1
+FLAG_WILDCARD = 2
+FLAG_EXCEPTION = 4
+
+# "*.<rule>": every name directly under these is a public suffix.
+WILDCARD_RULES = [
+    'bd',
+    'magentosite.cloud',
+    'ke',
+    'triton.zone',
+    'compute.estate',
+    'ye',
+    'pg',
+    'kh',
+    'platform.sh',
+    'fj',
+    'ck',
+    'fk',
+    'alces.network',
+    'sch.uk',
+    'jm',
+    'mm',
+    'api.githubcloud.com',
+    'ext.githubcloud.com',
+    '0emm.com',
+    'githubcloudusercontent.com',
+    'cns.joyent.com',
+    'bn',
+    'yokohama.jp',
+    'nagoya.jp',
+    'kobe.jp',
+    'sendai.jp',
+    'kawasaki.jp',
+    'sapporo.jp',
+    'kitakyushu.jp',
+    'np',
+    'nom.br',
+    'er',
+    'cryptonomic.net',
+    'gu',
+    'kw',
+    'zw',
+    'mz',
+]
+
+# "!<rule>": these would match a wildcard rule above, but are not public
+# suffixes; the name directly above them is.
+EXCEPTION_RULES = [
+    'www.ck',
+    'city.yokohama.jp',
+    'city.nagoya.jp',
+    'city.kobe.jp',
+    'city.sendai.jp',
+    'city.kawasaki.jp',
+    'city.sapporo.jp',
+    'city.kitakyushu.jp',
+    'teledata.mz',
+]
+
+
+class Node(object):
+    def __init__(self, label):
+        self.label = label
+        self.flags = 0
+        self.children = {}
+        self.offset = None
+
+    def child(self, label):
+        if label not in self.children:
+            self.children[label] = Node(label)
+        return self.children[label]
+
+    def size(self):
+        return 1 + 1 + len(self.label) + 2 + 4 * len(self.children)
+
+
+def add(root, rule, flag):
+    node = root
+    for label in reversed(rule.split('.')):
+        node = node.child(label.encode('utf-8'))
+    node.flags |= flag
+
+
+def main():
+    root = Node(b'')
+    with io.open(INPUT, 'r', encoding='utf-8') as f:
+        for line in f:
+            line = line.strip()
+            if line:
+                add(root, line, FLAG_EXACT)
+    for rule in WILDCARD_RULES:
+        add(root, rule, FLAG_WILDCARD)
+    for rule in EXCEPTION_RULES:
+        add(root, rule, FLAG_EXCEPTION)
+
+    # Lay nodes out breadth first, so that the top levels (which every
+    # lookup visits) share as few pages as possible.
+    nodes = []
+    queue = [root]
+    offset = 4
+    while queue:
+        node = queue.pop(0)
+        node.offset = offset
+        offset += node.size()
+        nodes.append(node)
+        queue.extend(node.children[label] for label in sorted(node.children))
+
+    out = bytearray(struct.pack('>I', MAGIC))
+    for node in nodes:
+        assert len(node.label) < 256 and len(node.children) < 65536
+        out += struct.pack('>BB', node.flags, len(node.label))
+        out += node.label
+        out += struct.pack('>H', len(node.children))
+        for label in sorted(node.children):
+            out += struct.pack('>I', node.children[label].offset)
+    assert len(out) == offset
+
+    with open(OUTPUT, 'wb') as f:
+        f.write(out)
+    print('Wrote %d nodes (%d bytes) to %s' % (len(nodes), len(out), OUTPUT))
+
+
+if __name__ == '__main__':
+    main()
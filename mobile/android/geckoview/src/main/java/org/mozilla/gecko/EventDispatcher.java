@@ -20,12 +20,12 @@ import android.os.Handler;
 import android.support.annotation.AnyThread;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RobocopTarget
 public final class EventDispatcher extends JNIObject {
@@ -43,13 +43,18 @@ public final class EventDispatcher extends JNIObject {
     private static final int DEFAULT_UI_EVENTS_COUNT = 128; // Empirically measured
     private static final int DEFAULT_BACKGROUND_EVENTS_COUNT = 64; // Empirically measured
 
+    // Events queued for each thread, shared by all dispatchers so that events keep the
+    // order in which they were dispatched.
+    private static final ConcurrentHashMap<Handler, DispatchQueue> sDispatchQueues =
+        new ConcurrentHashMap<Handler, DispatchQueue>();
+
     // GeckoBundle-based events.
-    private final Map<String, List<BundleEventListener>> mGeckoThreadListeners =
-        new HashMap<String, List<BundleEventListener>>(DEFAULT_GECKO_EVENTS_COUNT);
-    private final Map<String, List<BundleEventListener>> mUiThreadListeners =
-        new HashMap<String, List<BundleEventListener>>(DEFAULT_UI_EVENTS_COUNT);
-    private final Map<String, List<BundleEventListener>> mBackgroundThreadListeners =
-        new HashMap<String, List<BundleEventListener>>(DEFAULT_BACKGROUND_EVENTS_COUNT);
+    private final ListenerRegistry mGeckoThreadListeners =
+        new ListenerRegistry(DEFAULT_GECKO_EVENTS_COUNT);
+    private final ListenerRegistry mUiThreadListeners =
+        new ListenerRegistry(DEFAULT_UI_EVENTS_COUNT);
+    private final ListenerRegistry mBackgroundThreadListeners =
+        new ListenerRegistry(DEFAULT_BACKGROUND_EVENTS_COUNT);
 
     private boolean mAttachedToGecko;
     private final NativeQueue mNativeQueue;
@@ -103,71 +108,23 @@ public final class EventDispatcher extends JNIObject {
         });
     }
 
-    private <T> void registerListener(final Class<?> listType,
-                                      final Map<String, List<T>> listenersMap,
-                                      final T listener,
-                                      final String[] events) {
-        try {
-            synchronized (listenersMap) {
-                for (final String event : events) {
-                    if (event == null) {
-                        continue;
-                    }
-                    List<T> listeners = listenersMap.get(event);
-                    if (listeners == null) {
-                        // Java doesn't let us put Class<? extends List<T>> as the type for listType.
-                        @SuppressWarnings("unchecked")
-                        final Class<? extends List<T>> type = (Class) listType;
-                        listeners = type.newInstance();
-                        listenersMap.put(event, listeners);
-                    }
-                    if (!BuildConfig.RELEASE_OR_BETA && listeners.contains(listener)) {
-                        throw new IllegalStateException("Already registered " + event);
-                    }
-                    listeners.add(listener);
-                }
-            }
-        } catch (final Exception e) {
-            throw new IllegalArgumentException("Invalid new list type", e);
-        }
-    }
-
-    private void checkNotRegisteredElsewhere(final Map<String, ?> allowedMap,
+    private void checkNotRegisteredElsewhere(final ListenerRegistry allowedRegistry,
                                              final String[] events) {
         if (BuildConfig.RELEASE_OR_BETA) {
             // for performance reasons, we only check for
             // already-registered listeners in non-release builds.
             return;
         }
-        for (final Map<String, ?> listenersMap : Arrays.asList(mGeckoThreadListeners,
-                                                               mUiThreadListeners,
-                                                               mBackgroundThreadListeners)) {
-            if (listenersMap == allowedMap) {
+        for (final ListenerRegistry registry : Arrays.asList(mGeckoThreadListeners,
+                                                             mUiThreadListeners,
+                                                             mBackgroundThreadListeners)) {
+            if (registry == allowedRegistry) {
                 continue;
             }
-            synchronized (listenersMap) {
-                for (final String event : events) {
-                    if (listenersMap.get(event) != null) {
-                        throw new IllegalStateException(
-                            "Already registered " + event + " under a different type");
-                    }
-                }
-            }
-        }
-    }
-
-    private <T> void unregisterListener(final Map<String, List<T>> listenersMap,
-                                        final T listener,
-                                        final String[] events) {
-        synchronized (listenersMap) {
             for (final String event : events) {
-                if (event == null) {
-                    continue;
-                }
-                List<T> listeners = listenersMap.get(event);
-                if ((listeners == null ||
-                     !listeners.remove(listener)) && !BuildConfig.RELEASE_OR_BETA) {
-                    throw new IllegalArgumentException(event + " was not registered");
+                if (registry.contains(event)) {
+                    throw new IllegalStateException(
+                        "Already registered " + event + " under a different type");
                 }
             }
         }
@@ -177,21 +134,14 @@ public final class EventDispatcher extends JNIObject {
                                             final String... events) {
         checkNotRegisteredElsewhere(mGeckoThreadListeners, events);
 
-        // For listeners running on the Gecko thread, we want to notify the listeners
-        // outside of our synchronized block, because the listeners may take an
-        // indeterminate amount of time to run. Therefore, to ensure concurrency when
-        // iterating the list outside of the synchronized block, we use a
-        // CopyOnWriteArrayList.
-        registerListener(CopyOnWriteArrayList.class,
-                         mGeckoThreadListeners, listener, events);
+        mGeckoThreadListeners.register(listener, events);
     }
 
     public void registerUiThreadListener(final BundleEventListener listener,
                                          final String... events) {
         checkNotRegisteredElsewhere(mUiThreadListeners, events);
 
-        registerListener(ArrayList.class,
-                         mUiThreadListeners, listener, events);
+        mUiThreadListeners.register(listener, events);
     }
 
     @ReflectionTarget
@@ -199,23 +149,22 @@ public final class EventDispatcher extends JNIObject {
                                                  final String... events) {
         checkNotRegisteredElsewhere(mBackgroundThreadListeners, events);
 
-        registerListener(ArrayList.class,
-                         mBackgroundThreadListeners, listener, events);
+        mBackgroundThreadListeners.register(listener, events);
     }
 
     public void unregisterGeckoThreadListener(final BundleEventListener listener,
                                               final String... events) {
-        unregisterListener(mGeckoThreadListeners, listener, events);
+        mGeckoThreadListeners.unregister(listener, events);
     }
 
     public void unregisterUiThreadListener(final BundleEventListener listener,
                                            final String... events) {
-        unregisterListener(mUiThreadListeners, listener, events);
+        mUiThreadListeners.unregister(listener, events);
     }
 
     public void unregisterBackgroundThreadListener(final BundleEventListener listener,
                                                    final String... events) {
-        unregisterListener(mBackgroundThreadListeners, listener, events);
+        mBackgroundThreadListeners.unregister(listener, events);
     }
 
     @WrapForJNI
@@ -268,29 +217,20 @@ public final class EventDispatcher extends JNIObject {
                                       final GeckoBundle message,
                                       final EventCallback callback,
                                       final boolean isGeckoReady) {
-        final List<BundleEventListener> geckoListeners;
-        synchronized (mGeckoThreadListeners) {
-            geckoListeners = mGeckoThreadListeners.get(type);
-        }
-        if (geckoListeners != null && !geckoListeners.isEmpty()) {
-            final boolean onGeckoThread = ThreadUtils.isOnGeckoThread();
+        final BundleEventListener[] geckoListeners = mGeckoThreadListeners.get(type);
+        if (geckoListeners != null && geckoListeners.length > 0) {
             final EventCallback wrappedCallback = JavaCallbackDelegate.wrap(callback);
 
-            for (final BundleEventListener listener : geckoListeners) {
-                // For other threads, we always dispatch asynchronously. However, for
-                // Gecko listeners only, we dispatch synchronously if we're already on
-                // Gecko thread.
-                if (onGeckoThread) {
+            // For other threads, we always dispatch asynchronously. However, for
+            // Gecko listeners only, we dispatch synchronously if we're already on
+            // Gecko thread.
+            if (ThreadUtils.isOnGeckoThread()) {
+                for (final BundleEventListener listener : geckoListeners) {
                     listener.handleMessage(type, message, wrappedCallback);
-                    continue;
                 }
-                ThreadUtils.sGeckoHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.handleMessage(type, message, wrappedCallback);
-                    }
-                });
+                return true;
             }
+            post(ThreadUtils.sGeckoHandler, type, message, wrappedCallback, geckoListeners);
             return true;
         }
 
@@ -324,53 +264,59 @@ public final class EventDispatcher extends JNIObject {
 
     @WrapForJNI
     public boolean hasListener(final String event) {
-        for (final Map<String, ?> listenersMap : Arrays.asList(mGeckoThreadListeners,
-                mUiThreadListeners,
-                mBackgroundThreadListeners)) {
-            synchronized (listenersMap) {
-                if (listenersMap.get(event) != null) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
+        return mGeckoThreadListeners.contains(event) ||
+               mUiThreadListeners.contains(event) ||
+               mBackgroundThreadListeners.contains(event);
     }
 
     private boolean dispatchToThread(final String type,
                                      final GeckoBundle message,
                                      final EventCallback callback,
-                                     final Map<String, List<BundleEventListener>> listenersMap,
+                                     final ListenerRegistry registry,
                                      final Handler thread) {
-        // We need to hold the lock throughout dispatching, to ensure the listeners list
-        // is consistent, while we iterate over it. We don't have to worry about listeners
-        // running for a long time while we have the lock, because the listeners will run
-        // on a separate thread.
-        synchronized (listenersMap) {
-            final List<BundleEventListener> listeners = listenersMap.get(type);
-            if (listeners == null) {
-                return false;
-            }
+        final BundleEventListener[] listeners = registry.get(type);
+        if (listeners == null) {
+            return false;
+        }
 
-            if (listeners.isEmpty()) {
-                // There were native listeners, and they're gone.
-                return false;
-            }
+        if (listeners.length == 0) {
+            // There were native listeners, and they're gone.
+            return false;
+        }
 
-            // Use a delegate to make sure callbacks happen on a specific thread.
-            final EventCallback wrappedCallback = JavaCallbackDelegate.wrap(callback);
+        // Use a delegate to make sure callbacks happen on a specific thread.
+        final EventCallback wrappedCallback = JavaCallbackDelegate.wrap(callback);
 
-            // Event listeners will call | callback.sendError | if applicable.
-            for (final BundleEventListener listener : listeners) {
-                thread.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.handleMessage(type, message, wrappedCallback);
-                    }
-                });
+        // Event listeners will call | callback.sendError | if applicable.
+        post(thread, type, message, wrappedCallback, listeners);
+        return true;
+    }
+
+    private static void post(final Handler thread,
+                             final String type,
+                             final GeckoBundle message,
+                             final EventCallback callback,
+                             final BundleEventListener[] listeners) {
+        DispatchQueue queue = sDispatchQueues.get(thread);
+        if (queue == null) {
+            queue = new DispatchQueue(thread);
+            final DispatchQueue existing = sDispatchQueues.putIfAbsent(thread, queue);
+            if (existing != null) {
+                queue = existing;
             }
-            return true;
         }
+
+        // The listeners array is a snapshot, so listeners that are unregistered after
+        // this point still receive the event, like they did when we posted one message
+        // per listener.
+        queue.post(new Runnable() {
+            @Override
+            public void run() {
+                for (final BundleEventListener listener : listeners) {
+                    listener.handleMessage(type, message, callback);
+                }
+            }
+        });
     }
 
     @Override
@@ -378,6 +324,143 @@ public final class EventDispatcher extends JNIObject {
         dispose(true);
     }
 
+    /**
+     * Listeners of one thread type. Writers replace an immutable snapshot of the listeners
+     * map under a lock, so that lookups from the dispatch path never have to lock.
+     */
+    private static final class ListenerRegistry {
+        private static final BundleEventListener[] EMPTY = new BundleEventListener[0];
+
+        private final int mInitialCapacity;
+
+        // Never modified once published. Events keep an entry after all their listeners
+        // have been unregistered.
+        private volatile Map<String, BundleEventListener[]> mListeners;
+
+        /* package */ ListenerRegistry(final int initialCapacity) {
+            mInitialCapacity = initialCapacity;
+            mListeners = new HashMap<String, BundleEventListener[]>(initialCapacity);
+        }
+
+        public BundleEventListener[] get(final String event) {
+            return mListeners.get(event);
+        }
+
+        public boolean contains(final String event) {
+            return mListeners.get(event) != null;
+        }
+
+        public synchronized void register(final BundleEventListener listener,
+                                          final String[] events) {
+            final Map<String, BundleEventListener[]> listenersMap = copyListeners();
+            for (final String event : events) {
+                if (event == null) {
+                    continue;
+                }
+                BundleEventListener[] listeners = listenersMap.get(event);
+                if (listeners == null) {
+                    listeners = EMPTY;
+                }
+                if (!BuildConfig.RELEASE_OR_BETA && indexOf(listeners, listener) >= 0) {
+                    throw new IllegalStateException("Already registered " + event);
+                }
+                final BundleEventListener[] newListeners =
+                        Arrays.copyOf(listeners, listeners.length + 1);
+                newListeners[listeners.length] = listener;
+                listenersMap.put(event, newListeners);
+            }
+            mListeners = listenersMap;
+        }
+
+        public synchronized void unregister(final BundleEventListener listener,
+                                            final String[] events) {
+            final Map<String, BundleEventListener[]> listenersMap = copyListeners();
+            for (final String event : events) {
+                if (event == null) {
+                    continue;
+                }
+                final BundleEventListener[] listeners = listenersMap.get(event);
+                final int index = listeners != null ? indexOf(listeners, listener) : -1;
+                if (index < 0) {
+                    if (!BuildConfig.RELEASE_OR_BETA) {
+                        throw new IllegalArgumentException(event + " was not registered");
+                    }
+                    continue;
+                }
+                final BundleEventListener[] newListeners =
+                        new BundleEventListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, index);
+                System.arraycopy(listeners, index + 1, newListeners, index,
+                                 newListeners.length - index);
+                listenersMap.put(event, newListeners);
+            }
+            mListeners = listenersMap;
+        }
+
+        private Map<String, BundleEventListener[]> copyListeners() {
+            final Map<String, BundleEventListener[]> listenersMap =
+                    new HashMap<String, BundleEventListener[]>(
+                            Math.max(mInitialCapacity, mListeners.size() * 2));
+            listenersMap.putAll(mListeners);
+            return listenersMap;
+        }
+
+        private static int indexOf(final BundleEventListener[] listeners,
+                                   final BundleEventListener listener) {
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i].equals(listener)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Events pending for one thread. Events dispatched in quick succession are delivered
+     * together by a single message, instead of posting one message per event and listener.
+     */
+    private static final class DispatchQueue implements Runnable {
+        // Limit the events handled by one message, so that a burst of events does not
+        // hold up other messages on the thread for too long.
+        private static final int MAX_BATCH_SIZE = 32;
+
+        private final Handler mHandler;
+        private final ConcurrentLinkedQueue<Runnable> mPending =
+                new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+        /* package */ DispatchQueue(final Handler handler) {
+            mHandler = handler;
+        }
+
+        public void post(final Runnable event) {
+            mPending.add(event);
+            if (mScheduled.compareAndSet(false, true)) {
+                mHandler.post(this);
+            }
+        }
+
+        @Override // Runnable
+        public void run() {
+            // Clear the flag first, so that events added while we run schedule another
+            // message instead of being missed.
+            mScheduled.set(false);
+
+            for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+                final Runnable event = mPending.poll();
+                if (event == null) {
+                    return;
+                }
+                event.run();
+            }
+
+            if (!mPending.isEmpty() && mScheduled.compareAndSet(false, true)) {
+                mHandler.post(this);
+            }
+        }
+    }
+
     private static class NativeCallbackDelegate extends JNIObject implements EventCallback {
         @WrapForJNI(calledFrom = "gecko")
         private NativeCallbackDelegate() {
@@ -19,6 +19,7 @@ import android.os.Parcelable;
 import android.support.v4.util.SimpleArrayMap;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
@@ -40,7 +41,10 @@ public final class GeckoBundle implements Parcelable {
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
     private static final GeckoBundle[] EMPTY_BUNDLE_ARRAY = new GeckoBundle[0];
 
-    private SimpleArrayMap<String, Object> mMap;
+    // Null while the contents are still encoded, see GeckoBundleCodec.
+    private volatile SimpleArrayMap<String, Object> mMap;
+    private ByteBuffer mEncodedBody;
+    private String[] mEncodedKeys;
 
     /**
      * Construct an empty GeckoBundle.
@@ -64,7 +68,7 @@ public final class GeckoBundle implements Parcelable {
      * @param bundle GeckoBundle to copy from.
      */
     public GeckoBundle(final GeckoBundle bundle) {
-        mMap = new SimpleArrayMap<>(bundle.mMap);
+        mMap = new SimpleArrayMap<>(bundle.map());
     }
 
     @WrapForJNI(calledFrom = "gecko")
@@ -72,15 +76,38 @@ public final class GeckoBundle implements Parcelable {
         final int len = keys.length;
         mMap = new SimpleArrayMap<>(len);
         for (int i = 0; i < len; i++) {
-            mMap.put(keys[i], values[i]);
+            map().put(keys[i], values[i]);
         }
     }
 
+    /**
+     * Construct a GeckoBundle which decodes its contents from the given body when it is
+     * first accessed.
+     */
+    /* package */ GeckoBundle(final ByteBuffer encodedBody, final String[] encodedKeys) {
+        mEncodedBody = encodedBody;
+        mEncodedKeys = encodedKeys;
+    }
+
+    private SimpleArrayMap<String, Object> map() {
+        final SimpleArrayMap<String, Object> map = mMap;
+        return map != null ? map : decodeMap();
+    }
+
+    private synchronized SimpleArrayMap<String, Object> decodeMap() {
+        if (mMap == null) {
+            mMap = GeckoBundleCodec.decodeBody(mEncodedBody, mEncodedKeys);
+            mEncodedBody = null;
+            mEncodedKeys = null;
+        }
+        return mMap;
+    }
+
     /**
      * Clear all mappings.
      */
     public void clear() {
-        mMap.clear();
+        map().clear();
     }
 
     /**
@@ -91,7 +118,7 @@ public final class GeckoBundle implements Parcelable {
      * @return True if the specified key exists and the value is not null.
      */
     public boolean containsKey(final String key) {
-        return mMap.get(key) != null;
+        return map().get(key) != null;
     }
 
     /**
@@ -101,7 +128,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Mapping value or null if the mapping does not exist.
      */
     public Object get(final String key) {
-        return mMap.get(key);
+        return map().get(key);
     }
 
     /**
@@ -113,7 +140,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Boolean value
      */
     public boolean getBoolean(final String key, final boolean defaultValue) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? defaultValue : (Boolean) value;
     }
 
@@ -136,7 +163,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Boolean array value
      */
     public boolean[] getBooleanArray(final String key) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? null :
                 Array.getLength(value) == 0 ? EMPTY_BOOLEAN_ARRAY : (boolean[]) value;
     }
@@ -150,7 +177,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Double value
      */
     public double getDouble(final String key, final double defaultValue) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? defaultValue : ((Number) value).doubleValue();
     }
 
@@ -182,7 +209,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Double array value
      */
     public double[] getDoubleArray(final String key) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? null : Array.getLength(value) == 0 ? EMPTY_DOUBLE_ARRAY :
                value instanceof int[] ? getDoubleArray((int[]) value) : (double[]) value;
     }
@@ -196,7 +223,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Int value
      */
     public int getInt(final String key, final int defaultValue) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? defaultValue : ((Number) value).intValue();
     }
 
@@ -228,7 +255,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Int array value
      */
     public int[] getIntArray(final String key) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? null : Array.getLength(value) == 0 ? EMPTY_INT_ARRAY :
                value instanceof double[] ? getIntArray((double[]) value) : (int[]) value;
     }
@@ -242,7 +269,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Long value
      */
     public long getLong(final String key, final long defaultValue) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? defaultValue : ((Number) value).longValue();
     }
 
@@ -274,7 +301,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Long array value
      */
     public long[] getLongArray(final String key) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? null :
                Array.getLength(value) == 0 ? EMPTY_LONG_ARRAY : getLongArray(value);
     }
@@ -291,7 +318,7 @@ public final class GeckoBundle implements Parcelable {
         // If the key maps to null, technically we should return null because the mapping
         // exists and null is a valid string value. However, people expect the default
         // value to be returned instead, so we make an exception to return the default value.
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? defaultValue : (String) value;
     }
 
@@ -326,7 +353,7 @@ public final class GeckoBundle implements Parcelable {
      * @return String array value
      */
     public String[] getStringArray(final String key) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? null : Array.getLength(value) == 0 ? EMPTY_STRING_ARRAY :
                !(value instanceof String[]) ? new String[getNullArrayLength(value)] :
                                               (String[]) value;
@@ -340,7 +367,7 @@ public final class GeckoBundle implements Parcelable {
      * @return GeckoBundle value
      */
     public GeckoBundle getBundle(final String key) {
-        return (GeckoBundle) mMap.get(key);
+        return (GeckoBundle) map().get(key);
     }
 
     /**
@@ -351,7 +378,7 @@ public final class GeckoBundle implements Parcelable {
      * @return GeckoBundle array value
      */
     public GeckoBundle[] getBundleArray(final String key) {
-        final Object value = mMap.get(key);
+        final Object value = map().get(key);
         return value == null ? null : Array.getLength(value) == 0 ? EMPTY_BUNDLE_ARRAY :
                !(value instanceof GeckoBundle[]) ? new GeckoBundle[getNullArrayLength(value)] :
                                                    (GeckoBundle[]) value;
@@ -363,7 +390,7 @@ public final class GeckoBundle implements Parcelable {
      * @return True if no mapping exists.
      */
     public boolean isEmpty() {
-        return mMap.isEmpty();
+        return map().isEmpty();
     }
 
     /**
@@ -373,20 +400,28 @@ public final class GeckoBundle implements Parcelable {
      */
     @WrapForJNI(calledFrom = "gecko")
     public String[] keys() {
-        final int len = mMap.size();
+        final int len = map().size();
         final String[] ret = new String[len];
         for (int i = 0; i < len; i++) {
-            ret[i] = mMap.keyAt(i);
+            ret[i] = map().keyAt(i);
         }
         return ret;
     }
 
+    /* package */ String keyAt(final int index) {
+        return map().keyAt(index);
+    }
+
+    /* package */ Object valueAt(final int index) {
+        return map().valueAt(index);
+    }
+
     @WrapForJNI(calledFrom = "gecko")
     private Object[] values() {
-        final int len = mMap.size();
+        final int len = map().size();
         final Object[] ret = new Object[len];
         for (int i = 0; i < len; i++) {
-            ret[i] = mMap.valueAt(i);
+            ret[i] = map().valueAt(i);
         }
         return ret;
     }
@@ -415,7 +450,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putBoolean(final String key, final boolean value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -425,7 +460,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putBooleanArray(final String key, final boolean[] value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -436,14 +471,14 @@ public final class GeckoBundle implements Parcelable {
      */
     public void putBooleanArray(final String key, final Boolean[] value) {
         if (value == null) {
-            mMap.put(key, null);
+            map().put(key, null);
             return;
         }
         final boolean[] array = new boolean[value.length];
         for (int i = 0; i < value.length; i++) {
             array[i] = value[i];
         }
-        mMap.put(key, array);
+        map().put(key, array);
     }
 
     /**
@@ -454,7 +489,7 @@ public final class GeckoBundle implements Parcelable {
      */
     public void putBooleanArray(final String key, final Collection<Boolean> value) {
         if (value == null) {
-            mMap.put(key, null);
+            map().put(key, null);
             return;
         }
         final boolean[] array = new boolean[value.size()];
@@ -462,7 +497,7 @@ public final class GeckoBundle implements Parcelable {
         for (final Boolean element : value) {
             array[i++] = element;
         }
-        mMap.put(key, array);
+        map().put(key, array);
     }
 
     /**
@@ -472,7 +507,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putDouble(final String key, final double value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -482,7 +517,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putDoubleArray(final String key, final double[] value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -503,7 +538,7 @@ public final class GeckoBundle implements Parcelable {
      */
     public void putDoubleArray(final String key, final Collection<Double> value) {
         if (value == null) {
-            mMap.put(key, null);
+            map().put(key, null);
             return;
         }
         final double[] array = new double[value.size()];
@@ -511,7 +546,7 @@ public final class GeckoBundle implements Parcelable {
         for (final Double element : value) {
             array[i++] = element;
         }
-        mMap.put(key, array);
+        map().put(key, array);
     }
 
     /**
@@ -521,7 +556,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putInt(final String key, final int value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -531,7 +566,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putIntArray(final String key, final int[] value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -552,7 +587,7 @@ public final class GeckoBundle implements Parcelable {
      */
     public void putIntArray(final String key, final Collection<Integer> value) {
         if (value == null) {
-            mMap.put(key, null);
+            map().put(key, null);
             return;
         }
         final int[] array = new int[value.size()];
@@ -560,7 +595,7 @@ public final class GeckoBundle implements Parcelable {
         for (final Integer element : value) {
             array[i++] = element;
         }
-        mMap.put(key, array);
+        map().put(key, array);
     }
 
     /**
@@ -570,7 +605,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putLong(final String key, final long value) {
-        mMap.put(key, (double) value);
+        map().put(key, (double) value);
     }
 
     /**
@@ -581,14 +616,14 @@ public final class GeckoBundle implements Parcelable {
      */
     public void putLongArray(final String key, final long[] value) {
         if (value == null) {
-            mMap.put(key, null);
+            map().put(key, null);
             return;
         }
         final double[] array = new double[value.length];
         for (int i = 0; i < value.length; i++) {
             array[i] = (double) value[i];
         }
-        mMap.put(key, array);
+        map().put(key, array);
     }
 
     /**
@@ -609,7 +644,7 @@ public final class GeckoBundle implements Parcelable {
      */
     public void putLongArray(final String key, final Collection<Long> value) {
         if (value == null) {
-            mMap.put(key, null);
+            map().put(key, null);
             return;
         }
         final double[] array = new double[value.size()];
@@ -617,7 +652,7 @@ public final class GeckoBundle implements Parcelable {
         for (final Long element : value) {
             array[i++] = (double) element;
         }
-        mMap.put(key, array);
+        map().put(key, array);
     }
 
     /**
@@ -627,7 +662,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putString(final String key, final String value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -637,7 +672,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putStringArray(final String key, final String[] value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -648,7 +683,7 @@ public final class GeckoBundle implements Parcelable {
      */
     public void putStringArray(final String key, final Collection<String> value) {
         if (value == null) {
-            mMap.put(key, null);
+            map().put(key, null);
             return;
         }
         final String[] array = new String[value.size()];
@@ -656,7 +691,7 @@ public final class GeckoBundle implements Parcelable {
         for (final String element : value) {
             array[i++] = element;
         }
-        mMap.put(key, array);
+        map().put(key, array);
     }
 
     /**
@@ -666,7 +701,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putBundle(final String key, final GeckoBundle value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -676,7 +711,7 @@ public final class GeckoBundle implements Parcelable {
      * @param value Value to map to.
      */
     public void putBundleArray(final String key, final GeckoBundle[] value) {
-        mMap.put(key, value);
+        map().put(key, value);
     }
 
     /**
@@ -687,7 +722,7 @@ public final class GeckoBundle implements Parcelable {
      */
     public void putBundleArray(final String key, final Collection<GeckoBundle> value) {
         if (value == null) {
-            mMap.put(key, null);
+            map().put(key, null);
             return;
         }
         final GeckoBundle[] array = new GeckoBundle[value.size()];
@@ -695,7 +730,7 @@ public final class GeckoBundle implements Parcelable {
         for (final GeckoBundle element : value) {
             array[i++] = element;
         }
-        mMap.put(key, array);
+        map().put(key, array);
     }
 
     /**
@@ -704,7 +739,7 @@ public final class GeckoBundle implements Parcelable {
      * @param key Key to remove.
      */
     public void remove(final String key) {
-        mMap.remove(key);
+        map().remove(key);
     }
 
     /**
@@ -713,7 +748,7 @@ public final class GeckoBundle implements Parcelable {
      * @return Number of mappings.
      */
     public int size() {
-        return mMap.size();
+        return map().size();
     }
 
     private static Object normalizeValue(final Object value) {
@@ -746,21 +781,21 @@ public final class GeckoBundle implements Parcelable {
         }
 
         // Support library's SimpleArrayMap.equals is buggy, so roll our own version.
-        final SimpleArrayMap<String, Object> otherMap = ((GeckoBundle) other).mMap;
-        if (mMap == otherMap) {
+        final SimpleArrayMap<String, Object> otherMap = ((GeckoBundle) other).map();
+        if (map() == otherMap) {
             return true;
         }
-        if (mMap.size() != otherMap.size()) {
+        if (map().size() != otherMap.size()) {
             return false;
         }
 
-        for (int i = 0; i < mMap.size(); i++) {
-            final String thisKey = mMap.keyAt(i);
+        for (int i = 0; i < map().size(); i++) {
+            final String thisKey = map().keyAt(i);
             final int otherKey = otherMap.indexOfKey(thisKey);
             if (otherKey < 0) {
                 return false;
             }
-            final Object thisValue = normalizeValue(mMap.valueAt(i));
+            final Object thisValue = normalizeValue(map().valueAt(i));
             final Object otherValue = normalizeValue(otherMap.valueAt(otherKey));
             if (thisValue == otherValue) {
                 continue;
@@ -799,18 +834,18 @@ public final class GeckoBundle implements Parcelable {
 
     @Override // Object
     public int hashCode() {
-        return mMap.hashCode();
+        return map().hashCode();
     }
 
     @Override // Object
     public String toString() {
-        return mMap.toString();
+        return map().toString();
     }
 
     public JSONObject toJSONObject() throws JSONException {
         final JSONObject out = new JSONObject();
-        for (int i = 0; i < mMap.size(); i++) {
-            final Object value = mMap.valueAt(i);
+        for (int i = 0; i < map().size(); i++) {
+            final Object value = map().valueAt(i);
             final Object jsonValue;
 
             if (value instanceof GeckoBundle) {
@@ -836,16 +871,44 @@ public final class GeckoBundle implements Parcelable {
             } else {
                 jsonValue = value;
             }
-            out.put(mMap.keyAt(i), jsonValue);
+            out.put(map().keyAt(i), jsonValue);
         }
         return out;
     }
 
+    /**
+     * Returns a compact binary encoding of this GeckoBundle, see {@link GeckoBundleCodec}.
+     *
+     * @return Encoded GeckoBundle.
+     */
+    public byte[] toByteArray() {
+        return GeckoBundleCodec.encode(this);
+    }
+
+    /**
+     * Decode a GeckoBundle previously encoded by {@link #toByteArray()}.
+     *
+     * Nested GeckoBundles are decoded when they are first accessed, and keep a reference
+     * to data until then, so it must not be modified afterwards.
+     *
+     * @param data Encoded GeckoBundle.
+     * @return Decoded GeckoBundle, or null if data is null.
+     * @throws IllegalArgumentException if data is not a valid encoding.
+     */
+    public static GeckoBundle fromByteArray(final byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        final GeckoBundle bundle = new GeckoBundle(0);
+        bundle.mMap = GeckoBundleCodec.decodeMap(data);
+        return bundle;
+    }
+
     public Bundle toBundle() {
-        final Bundle out = new Bundle(mMap.size());
-        for (int i = 0; i < mMap.size(); i++) {
-            final String key = mMap.keyAt(i);
-            final Object val = mMap.valueAt(i);
+        final Bundle out = new Bundle(map().size());
+        for (int i = 0; i < map().size(); i++) {
+            final String key = map().keyAt(i);
+            final Object val = map().valueAt(i);
 
             if (val == null) {
                 out.putString(key, null);
@@ -999,33 +1062,14 @@ public final class GeckoBundle implements Parcelable {
 
     @Override // Parcelable
     public void writeToParcel(final Parcel dest, final int flags) {
-        final int len = mMap.size();
-        dest.writeInt(len);
-
-        for (int i = 0; i < len; i++) {
-            dest.writeString(mMap.keyAt(i));
-            dest.writeValue(mMap.valueAt(i));
-        }
+        dest.writeByteArray(GeckoBundleCodec.encode(this));
     }
 
     // AIDL code may call readFromParcel even though it's not part of Parcelable.
     public void readFromParcel(final Parcel source) {
-        final ClassLoader loader = getClass().getClassLoader();
-        final int len = source.readInt();
-        mMap.clear();
-        mMap.ensureCapacity(len);
-
-        for (int i = 0; i < len; i++) {
-            final String key = source.readString();
-            Object val = source.readValue(loader);
-
-            if (val instanceof Parcelable[]) {
-                final Parcelable[] array = (Parcelable[]) val;
-                val = Arrays.copyOf(array, array.length, GeckoBundle[].class);
-            }
-
-            mMap.put(key, val);
-        }
+        mMap = GeckoBundleCodec.decodeMap(source.createByteArray());
+        mEncodedBody = null;
+        mEncodedKeys = null;
     }
 
     public static final Parcelable.Creator<GeckoBundle> CREATOR =
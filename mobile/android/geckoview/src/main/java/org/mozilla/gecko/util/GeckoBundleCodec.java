@@ -0,0 +1,427 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 4; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.util;
+
+import android.support.v4.util.SimpleArrayMap;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+
+/**
+ * Compact binary encoding of a {@link GeckoBundle}, used for Parcel transport and as a faster
+ * alternative to {@link GeckoBundle#toJSONObject()} for persistence.
+ *
+ * The encoding starts with a version byte, followed by a table of every key used anywhere in the
+ * bundle (so keys repeated in nested bundles, e.g. session history entries, are only stored once)
+ * and the body of the root bundle. All integers are little-endian, which is the native byte order
+ * on every Android device, so that primitive arrays are copied in bulk rather than element by
+ * element. The format is:
+ *
+ *   encoding := u8 version, varint key count, string[] keys, body
+ *   body     := varint entry count, entry[]
+ *   entry    := varint key index, u8 tag, value
+ *   string   := varint UTF-8 length, bytes
+ *
+ * Values are stored by their exact type, so that a decoded bundle equals the original and coerces
+ * in the same way. This includes the Object arrays which Gecko uses for empty and all-null arrays,
+ * whose elements are stored as values in their own right. Nested bundles are prefixed with their
+ * length in bytes, and are only decoded when they are first accessed.
+ */
+/* package */ final class GeckoBundleCodec {
+    private static final byte VERSION = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_FALSE = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_STRING = 5;
+    private static final byte TAG_BOOLEAN_ARRAY = 6;
+    private static final byte TAG_INT_ARRAY = 7;
+    private static final byte TAG_DOUBLE_ARRAY = 8;
+    private static final byte TAG_STRING_ARRAY = 9;
+    private static final byte TAG_BUNDLE = 10;
+    private static final byte TAG_BUNDLE_ARRAY = 11;
+    private static final byte TAG_OBJECT_ARRAY = 12;
+
+    private GeckoBundleCodec() {}
+
+    /**
+     * Encode a bundle, see {@link GeckoBundle#toByteArray()}.
+     *
+     * @throws UnsupportedOperationException if the bundle holds a value of an unsupported type.
+     */
+    /* package */ static byte[] encode(final GeckoBundle bundle) {
+        final Encoder encoder = new Encoder();
+        encoder.writeBody(bundle);
+        return encoder.finish();
+    }
+
+    /**
+     * Decode the contents of a bundle, see {@link GeckoBundle#fromByteArray(byte[])}.
+     *
+     * @throws IllegalArgumentException if the data is not a valid encoding.
+     */
+    /* package */ static SimpleArrayMap<String, Object> decodeMap(final byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.get() != VERSION) {
+                throw new IllegalArgumentException("Unsupported GeckoBundle encoding");
+            }
+
+            final String[] keys = new String[readLength(buffer)];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = readString(buffer);
+            }
+            return readBody(buffer, keys);
+        } catch (final BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated GeckoBundle encoding", e);
+        }
+    }
+
+    /**
+     * Decode the body of a lazily decoded bundle, see
+     * {@link GeckoBundle#GeckoBundle(ByteBuffer, String[])}.
+     */
+    /* package */ static SimpleArrayMap<String, Object> decodeBody(final ByteBuffer body, final String[] keys) {
+        try {
+            return readBody(body, keys);
+        } catch (final BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated GeckoBundle encoding", e);
+        }
+    }
+
+    private static SimpleArrayMap<String, Object> readBody(final ByteBuffer buffer, final String[] keys) {
+        final int len = readLength(buffer);
+        final SimpleArrayMap<String, Object> map = new SimpleArrayMap<>(len);
+        for (int i = 0; i < len; i++) {
+            final String key = keys[readVarint(buffer)];
+            map.put(key, readValue(buffer, keys));
+        }
+        return map;
+    }
+
+    private static Object readValue(final ByteBuffer buffer, final String[] keys) {
+        final byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+
+            case TAG_FALSE:
+                return false;
+
+            case TAG_TRUE:
+                return true;
+
+            case TAG_INT: {
+                final int zigzag = readVarint(buffer);
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+
+            case TAG_DOUBLE:
+                return buffer.getDouble();
+
+            case TAG_STRING:
+                return readString(buffer);
+
+            case TAG_BOOLEAN_ARRAY: {
+                final boolean[] array = new boolean[readLength(buffer)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = buffer.get() != 0;
+                }
+                return array;
+            }
+
+            case TAG_INT_ARRAY: {
+                final int[] array = new int[readLength(buffer)];
+                buffer.asIntBuffer().get(array);
+                buffer.position(buffer.position() + 4 * array.length);
+                return array;
+            }
+
+            case TAG_DOUBLE_ARRAY: {
+                final double[] array = new double[readLength(buffer)];
+                buffer.asDoubleBuffer().get(array);
+                buffer.position(buffer.position() + 8 * array.length);
+                return array;
+            }
+
+            case TAG_STRING_ARRAY: {
+                final String[] array = new String[readLength(buffer)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readNullableString(buffer);
+                }
+                return array;
+            }
+
+            case TAG_BUNDLE:
+                return readBundle(buffer, keys);
+
+            case TAG_BUNDLE_ARRAY: {
+                final GeckoBundle[] array = new GeckoBundle[readLength(buffer)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = buffer.get() == TAG_NULL ? null : readBundle(buffer, keys);
+                }
+                return array;
+            }
+
+            case TAG_OBJECT_ARRAY: {
+                final Object[] array = new Object[readLength(buffer)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readValue(buffer, keys);
+                }
+                return array;
+            }
+
+            default:
+                throw new IllegalArgumentException("Unknown GeckoBundle value tag " + tag);
+        }
+    }
+
+    private static GeckoBundle readBundle(final ByteBuffer buffer, final String[] keys) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated GeckoBundle encoding");
+        }
+
+        // Share the underlying data, and only decode it when the bundle is first accessed.
+        final ByteBuffer body = buffer.slice();
+        body.limit(length);
+        body.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.position() + length);
+        return new GeckoBundle(body, keys);
+    }
+
+    private static int readVarint(final ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in GeckoBundle encoding");
+    }
+
+    /**
+     * Read a count of bytes or elements, each of which takes up at least one byte.
+     */
+    private static int readLength(final ByteBuffer buffer) {
+        final int length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated GeckoBundle encoding");
+        }
+        return length;
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final int length = readLength(buffer);
+        final String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                                          length, StringUtils.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    private static String readNullableString(final ByteBuffer buffer) {
+        if (buffer.get() == TAG_NULL) {
+            return null;
+        }
+        return readString(buffer);
+    }
+
+    private static final class Encoder {
+        private final HashMap<String, Integer> mKeyIndices = new HashMap<>();
+        private final Output mKeys = new Output(256);
+        private final Output mBody = new Output(1024);
+
+        public void writeBody(final GeckoBundle bundle) {
+            final int len = bundle.size();
+            mBody.writeVarint(len);
+            for (int i = 0; i < len; i++) {
+                mBody.writeVarint(getKeyIndex(bundle.keyAt(i)));
+                writeValue(bundle.valueAt(i));
+            }
+        }
+
+        private int getKeyIndex(final String key) {
+            final Integer index = mKeyIndices.get(key);
+            if (index != null) {
+                return index;
+            }
+            final int newIndex = mKeyIndices.size();
+            mKeyIndices.put(key, newIndex);
+            mKeys.writeString(key);
+            return newIndex;
+        }
+
+        private void writeValue(final Object value) {
+            final Output out = mBody;
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+
+            } else if (value instanceof Integer) {
+                final int i = (Integer) value;
+                out.writeByte(TAG_INT);
+                out.writeVarint((i << 1) ^ (i >> 31));
+
+            } else if (value instanceof Double) {
+                out.writeByte(TAG_DOUBLE);
+                out.ensure(8).putDouble((Double) value);
+
+            } else if (value instanceof String) {
+                out.writeByte(TAG_STRING);
+                out.writeString((String) value);
+
+            } else if (value instanceof boolean[]) {
+                final boolean[] array = (boolean[]) value;
+                out.writeByte(TAG_BOOLEAN_ARRAY);
+                out.writeVarint(array.length);
+                final ByteBuffer buffer = out.ensure(array.length);
+                for (final boolean element : array) {
+                    buffer.put(element ? (byte) 1 : (byte) 0);
+                }
+
+            } else if (value instanceof int[]) {
+                final int[] array = (int[]) value;
+                out.writeByte(TAG_INT_ARRAY);
+                out.writeVarint(array.length);
+                final ByteBuffer buffer = out.ensure(4 * array.length);
+                buffer.asIntBuffer().put(array);
+                buffer.position(buffer.position() + 4 * array.length);
+
+            } else if (value instanceof double[]) {
+                final double[] array = (double[]) value;
+                out.writeByte(TAG_DOUBLE_ARRAY);
+                out.writeVarint(array.length);
+                final ByteBuffer buffer = out.ensure(8 * array.length);
+                buffer.asDoubleBuffer().put(array);
+                buffer.position(buffer.position() + 8 * array.length);
+
+            } else if (value instanceof String[]) {
+                final String[] array = (String[]) value;
+                out.writeByte(TAG_STRING_ARRAY);
+                out.writeVarint(array.length);
+                for (final String element : array) {
+                    if (element == null) {
+                        out.writeByte(TAG_NULL);
+                    } else {
+                        out.writeByte(TAG_STRING);
+                        out.writeString(element);
+                    }
+                }
+
+            } else if (value instanceof GeckoBundle) {
+                out.writeByte(TAG_BUNDLE);
+                writeBundle((GeckoBundle) value);
+
+            } else if (value instanceof GeckoBundle[]) {
+                final GeckoBundle[] array = (GeckoBundle[]) value;
+                out.writeByte(TAG_BUNDLE_ARRAY);
+                out.writeVarint(array.length);
+                for (final GeckoBundle element : array) {
+                    if (element == null) {
+                        out.writeByte(TAG_NULL);
+                    } else {
+                        out.writeByte(TAG_BUNDLE);
+                        writeBundle(element);
+                    }
+                }
+
+            } else if (value instanceof Object[]) {
+                // Other arrays, e.g. the nested arrays that fromJSONObject creates, decode as
+                // Object arrays, like they did through Parcel.writeValue.
+                final Object[] array = (Object[]) value;
+                out.writeByte(TAG_OBJECT_ARRAY);
+                out.writeVarint(array.length);
+                for (final Object element : array) {
+                    writeValue(element);
+                }
+
+            } else {
+                throw new UnsupportedOperationException(
+                        "Cannot encode " + value.getClass().getName() + " in GeckoBundle");
+            }
+        }
+
+        private void writeBundle(final GeckoBundle bundle) {
+            // Reserve space for the length, and fill it in once we know it.
+            final int lengthPosition = mBody.ensure(4).position();
+            mBody.buffer().putInt(0);
+            writeBody(bundle);
+            final int length = mBody.buffer().position() - lengthPosition - 4;
+            mBody.buffer().putInt(lengthPosition, length);
+        }
+
+        public byte[] finish() {
+            final Output header = new Output(8);
+            header.writeByte(VERSION);
+            header.writeVarint(mKeyIndices.size());
+
+            final int headerLength = header.buffer().position();
+            final int keysLength = mKeys.buffer().position();
+            final int bodyLength = mBody.buffer().position();
+            final byte[] out = new byte[headerLength + keysLength + bodyLength];
+            System.arraycopy(header.buffer().array(), 0, out, 0, headerLength);
+            System.arraycopy(mKeys.buffer().array(), 0, out, headerLength, keysLength);
+            System.arraycopy(mBody.buffer().array(), 0, out, headerLength + keysLength, bodyLength);
+            return out;
+        }
+    }
+
+    /**
+     * Growable little-endian output buffer.
+     */
+    private static final class Output {
+        private ByteBuffer mBuffer;
+
+        public Output(final int capacity) {
+            mBuffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public ByteBuffer buffer() {
+            return mBuffer;
+        }
+
+        /**
+         * @return the buffer, with room for at least the given number of bytes.
+         */
+        public ByteBuffer ensure(final int bytes) {
+            if (mBuffer.remaining() < bytes) {
+                final int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + bytes);
+                final ByteBuffer buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+                mBuffer.flip();
+                buffer.put(mBuffer);
+                mBuffer = buffer;
+            }
+            return mBuffer;
+        }
+
+        public void writeByte(final byte value) {
+            ensure(1).put(value);
+        }
+
+        public void writeVarint(int value) {
+            final ByteBuffer buffer = ensure(5);
+            while ((value & ~0x7f) != 0) {
+                buffer.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        public void writeString(final String value) {
+            final byte[] bytes = value.getBytes(StringUtils.UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length).put(bytes);
+        }
+    }
+}
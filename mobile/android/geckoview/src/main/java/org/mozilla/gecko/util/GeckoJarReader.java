@@ -11,8 +11,6 @@ import android.graphics.drawable.BitmapDrawable;
 import android.util.Log;
 
 import org.mozilla.gecko.annotation.RobocopTarget;
-import org.mozilla.gecko.mozglue.GeckoLoader;
-import org.mozilla.gecko.mozglue.NativeZip;
 import org.mozilla.geckoview.BuildConfig;
 
 import java.io.BufferedReader;
@@ -27,6 +25,8 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Stack;
 
 /* Reads out of a multiple level deep jar file such as
@@ -35,6 +35,24 @@ import java.util.Stack;
 public final class GeckoJarReader {
     private static final String LOGTAG = "GeckoJarReader";
 
+    private static final class CachedZip {
+        public final MappedZip zip;
+        // Of the outermost archive, which nested archives live in.
+        public final long lastModified;
+        public final long length;
+
+        public CachedZip(final MappedZip zip, final long lastModified, final long length) {
+            this.zip = zip;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    // Archives we've already indexed, keyed by their path. Nested archives are keyed by the key of
+    // their parent, followed by "!/" and their name. Entries are replaced once the file on disk
+    // changes, e.g. after an update.
+    private static final HashMap<String, CachedZip> sZipCache = new HashMap<>();
+
     private GeckoJarReader() {}
 
     public static Bitmap getBitmap(final Context context, final Resources resources,
@@ -45,15 +63,11 @@ public final class GeckoJarReader {
 
     public static BitmapDrawable getBitmapDrawable(final Context context, final Resources resources,
                                                    final String url) {
-        Stack<String> jarUrls = parseUrl(url);
         InputStream inputStream = null;
         BitmapDrawable bitmap = null;
 
-        NativeZip zip = null;
         try {
-            // Load the initial jar file as a zip
-            zip = getZipFile(context, jarUrls.pop());
-            inputStream = getStream(zip, jarUrls, url);
+            inputStream = openStream(url);
             if (inputStream != null) {
                 bitmap = new BitmapDrawable(resources, inputStream);
                 // BitmapDrawable created from a stream does not set the correct target density from resources.
@@ -76,14 +90,10 @@ public final class GeckoJarReader {
     }
 
     public static String getText(final Context context, final String url) {
-        Stack<String> jarUrls = parseUrl(url);
-
-        NativeZip zip = null;
         BufferedReader reader = null;
         String text = null;
         try {
-            zip = getZipFile(context, jarUrls.pop());
-            InputStream input = getStream(zip, jarUrls, url);
+            InputStream input = openStream(url);
             if (input != null) {
                 reader = new BufferedReader(new InputStreamReader(input));
                 text = reader.readLine();
@@ -103,13 +113,6 @@ public final class GeckoJarReader {
         return text;
     }
 
-    private static NativeZip getZipFile(final Context context, final String url)
-            throws IOException, URISyntaxException {
-        URI fileUrl = new URI(url);
-        GeckoLoader.loadMozGlue(context);
-        return new NativeZip(fileUrl.getPath());
-    }
-
     @RobocopTarget
     /**
      * Extract a (possibly nested) file from an archive and write it to a temporary file.
@@ -175,52 +178,96 @@ public final class GeckoJarReader {
 
     @RobocopTarget
     public static InputStream getStream(final Context context, final String url) {
-        Stack<String> jarUrls = parseUrl(url);
         try {
-            NativeZip zip = getZipFile(context, jarUrls.pop());
-            return getStream(zip, jarUrls, url);
+            return openStream(url);
         } catch (Exception ex) {
-            // Some JNI code throws IllegalArgumentException on a bad file name;
-            // swallow the error and return null.  We could also see legitimate
-            // IOExceptions here.
+            // Swallow the error and return null. We could see legitimate IOExceptions here.
             Log.e(LOGTAG, "Exception getting input stream from jar URL: " + url, ex);
             return null;
         }
     }
 
-    private static InputStream getStream(final NativeZip zip, final Stack<String> jarUrls,
-                                         final String origUrl) {
-        InputStream inputStream = null;
+    private static InputStream openStream(final String url) throws IOException, URISyntaxException {
+        final Stack<String> jarUrls = parseUrl(url);
+        final File file = new File(new URI(jarUrls.pop()).getPath());
+        if (jarUrls.empty()) {
+            return null;
+        }
+
+        // Only the outermost archive lives on disk, so it decides whether everything we cached for
+        // it is still current.
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        String key = file.getPath();
+        MappedZip zip = getCachedZip(key, lastModified, length);
+        if (zip == null) {
+            zip = MappedZip.open(file);
+            putCachedZip(key, zip, lastModified, length);
+        }
 
-        NativeZip currentZip = zip;
         // loop through children jar files until we reach the innermost one
-        while (!jarUrls.empty()) {
-            String fileName = jarUrls.pop();
-            try {
-                fileName = URLDecoder.decode(fileName, "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                // UTF-8 is always supported
-            }
+        while (jarUrls.size() > 1) {
+            final String fileName = decode(jarUrls.pop());
+            key = key + "!/" + fileName;
 
-            if (inputStream != null) {
-                // intermediate NativeZips and InputStreams will be garbage collected.
-                try {
-                    currentZip = new NativeZip(inputStream);
-                } catch (IllegalArgumentException e) {
-                    String description = "!!! BUG 849589 !!! origUrl=" + origUrl;
-                    Log.e(LOGTAG, description, e);
-                    throw new IllegalArgumentException(description);
+            MappedZip child = getCachedZip(key, lastModified, length);
+            if (child == null) {
+                child = zip.openNested(fileName);
+                if (child == null) {
+                    Log.d(LOGTAG, "No Entry for " + fileName);
+                    return null;
                 }
+                putCachedZip(key, child, lastModified, length);
             }
+            zip = child;
+        }
 
-            inputStream = currentZip.getInputStream(fileName);
-            if (inputStream == null) {
-                Log.d(LOGTAG, "No Entry for " + fileName);
-                return null;
+        final String fileName = decode(jarUrls.pop());
+        final InputStream inputStream = zip.getInputStream(fileName);
+        if (inputStream == null) {
+            Log.d(LOGTAG, "No Entry for " + fileName);
+        }
+        return inputStream;
+    }
+
+    private static synchronized MappedZip getCachedZip(final String key, final long lastModified,
+                                                       final long length) {
+        final CachedZip cached = sZipCache.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.lastModified != lastModified || cached.length != length) {
+            // Drop the stale archive along with everything nested in it.
+            final Iterator<String> keys = sZipCache.keySet().iterator();
+            while (keys.hasNext()) {
+                final String cachedKey = keys.next();
+                if (cachedKey.equals(key) || cachedKey.startsWith(key + "!/")) {
+                    keys.remove();
+                }
             }
+            return null;
         }
+        return cached.zip;
+    }
 
-        return inputStream;
+    /* package-private */ static synchronized MappedZip getCachedZip(final String key) {
+        final CachedZip cached = sZipCache.get(key);
+        return cached != null ? cached.zip : null;
+    }
+
+    private static synchronized void putCachedZip(final String key, final MappedZip zip,
+                                                  final long lastModified, final long length) {
+        sZipCache.put(key, new CachedZip(zip, lastModified, length));
+    }
+
+    private static String decode(final String fileName) {
+        try {
+            return URLDecoder.decode(fileName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            return fileName;
+        }
     }
 
     /* Returns a stack of strings breaking the url up into pieces. Each piece
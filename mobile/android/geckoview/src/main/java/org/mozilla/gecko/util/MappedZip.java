@@ -0,0 +1,303 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read-only view of a zip archive held in a (usually memory-mapped) buffer.
+ *
+ * The central directory is parsed once into a hash map, so looking up an entry doesn't scan the
+ * archive. Entry data isn't copied: stored entries, including nested archives like omni.ja inside
+ * the APK, are returned as slices of the parent buffer.
+ *
+ * Both regular archives and Mozilla's "optimized" jars, which keep their central directory at the
+ * start of the file, are supported. Zip64 archives are not.
+ *
+ * Instances are safe to use from multiple threads.
+ */
+/* package */ final class MappedZip {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final class Entry {
+        private final int method;
+        private final int compressedSize;
+        private final int uncompressedSize;
+        private final int localHeaderOffset;
+
+        private Entry(final int method, final int compressedSize, final int uncompressedSize,
+                      final int localHeaderOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    // Only ever accessed with absolute reads, so its position never changes.
+    private final ByteBuffer mBuffer;
+    private final HashMap<String, Entry> mEntries;
+
+    private MappedZip(final ByteBuffer buffer) throws IOException {
+        mBuffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        mEntries = readCentralDirectory(mBuffer);
+    }
+
+    /**
+     * Map the given file into memory, and index its entries.
+     *
+     * @throws IOException if the file can't be read, or isn't a zip archive.
+     */
+    public static MappedZip open(final File file) throws IOException {
+        final FileInputStream input = new FileInputStream(file);
+        try {
+            final FileChannel channel = input.getChannel();
+            // The mapping stays valid after the channel is closed.
+            return new MappedZip(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Index a zip archive held in the given buffer, from its position to its limit.
+     */
+    public static MappedZip fromBuffer(final ByteBuffer buffer) throws IOException {
+        return new MappedZip(buffer.slice());
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public boolean contains(final String name) {
+        return mEntries.containsKey(name);
+    }
+
+    /**
+     * @return a stream of the entry's uncompressed data, or null if there is no such entry.
+     */
+    public InputStream getInputStream(final String name) throws IOException {
+        final Entry entry = mEntries.get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        final InputStream input = new BufferInputStream(getData(entry));
+        if (entry.method == STORED) {
+            return input;
+        }
+
+        return new InflaterInputStream(input, new Inflater(/* nowrap */ true)) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    /**
+     * Open an archive stored as an entry of this one. Stored archives share our buffer; compressed
+     * ones are inflated into memory.
+     *
+     * @return the nested archive, or null if there is no such entry.
+     */
+    public MappedZip openNested(final String name) throws IOException {
+        final Entry entry = mEntries.get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        final ByteBuffer data = getData(entry);
+        if (entry.method == STORED) {
+            return new MappedZip(data);
+        }
+
+        final ByteBuffer inflated = ByteBuffer.allocate(entry.uncompressedSize);
+        final byte[] compressed = new byte[data.remaining()];
+        data.get(compressed);
+
+        final Inflater inflater = new Inflater(/* nowrap */ true);
+        try {
+            inflater.setInput(compressed);
+            final int length = inflater.inflate(inflated.array());
+            if (length != entry.uncompressedSize) {
+                throw new IOException("Truncated entry " + name);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt entry " + name, e);
+        } finally {
+            inflater.end();
+        }
+        return new MappedZip(inflated);
+    }
+
+    private ByteBuffer getData(final Entry entry) throws IOException {
+        final int header = entry.localHeaderOffset;
+        if (header < 0 || header + LOCAL_HEADER_SIZE > mBuffer.limit() ||
+                mBuffer.getInt(header) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Bad local header at " + header);
+        }
+
+        // The local extra field may differ from the one in the central directory.
+        final int start = header + LOCAL_HEADER_SIZE +
+                readUnsignedShort(mBuffer, header + 26) + readUnsignedShort(mBuffer, header + 28);
+        if (start + entry.compressedSize > mBuffer.limit()) {
+            throw new IOException("Entry at " + header + " extends past the end of the archive");
+        }
+
+        final ByteBuffer data = mBuffer.duplicate();
+        data.position(start);
+        data.limit(start + entry.compressedSize);
+        return data.slice();
+    }
+
+    private static HashMap<String, Entry> readCentralDirectory(final ByteBuffer buffer)
+            throws IOException {
+        final int end = findEndOfCentralDirectory(buffer);
+        final int count = readUnsignedShort(buffer, end + 10);
+        final HashMap<String, Entry> entries = new HashMap<>(count * 4 / 3 + 1);
+
+        int position = buffer.getInt(end + 16);
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > end ||
+                    buffer.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Bad central directory entry at " + position);
+            }
+
+            final int nameLength = readUnsignedShort(buffer, position + 28);
+            final int extraLength = readUnsignedShort(buffer, position + 30);
+            final int commentLength = readUnsignedShort(buffer, position + 32);
+
+            final int method = readUnsignedShort(buffer, position + 10);
+            final int compressedSize = buffer.getInt(position + 20);
+            final int uncompressedSize = buffer.getInt(position + 24);
+            if ((method != STORED && method != DEFLATED) ||
+                    compressedSize < 0 || uncompressedSize < 0) {
+                throw new IOException("Unsupported entry at " + position);
+            }
+
+            final byte[] name = new byte[nameLength];
+            final ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(position + CENTRAL_HEADER_SIZE);
+            nameBuffer.get(name);
+
+            entries.put(new String(name, UTF_8), new Entry(method, compressedSize,
+                    uncompressedSize, buffer.getInt(position + 42)));
+
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    /**
+     * Regular archives end with the end of central directory record, possibly followed by a
+     * comment. Optimized jars have it right after the central directory, near the start.
+     */
+    private static int findEndOfCentralDirectory(final ByteBuffer buffer) throws IOException {
+        final int last = buffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+        final int first = Math.max(0, last - MAX_COMMENT_SIZE);
+
+        for (int position = last; position >= first; position--) {
+            if (isEndOfCentralDirectory(buffer, position)) {
+                return position;
+            }
+        }
+
+        for (int position = 0; position < first; position++) {
+            if (isEndOfCentralDirectory(buffer, position)) {
+                return position;
+            }
+        }
+
+        throw new IOException("Not a zip archive");
+    }
+
+    private static boolean isEndOfCentralDirectory(final ByteBuffer buffer, final int position) {
+        if (buffer.getInt(position) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            return false;
+        }
+
+        // Make sure we didn't just stumble upon the signature inside of some entry's data.
+        final int size = buffer.getInt(position + 12);
+        final int offset = buffer.getInt(position + 16);
+        if (size < 0 || offset < 0 || offset + size != position) {
+            return false;
+        }
+        return size == 0 || buffer.getInt(offset) == CENTRAL_HEADER_SIGNATURE;
+    }
+
+    private static int readUnsignedShort(final ByteBuffer buffer, final int position) {
+        return buffer.getShort(position) & 0xffff;
+    }
+
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer mData;
+
+        private BufferInputStream(final ByteBuffer data) {
+            mData = data;
+        }
+
+        @Override
+        public int available() {
+            return mData.remaining();
+        }
+
+        @Override
+        public int read() {
+            if (!mData.hasRemaining()) {
+                return -1;
+            }
+            return mData.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mData.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, mData.remaining());
+            mData.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long byteCount) {
+            if (byteCount <= 0) {
+                return 0;
+            }
+            final int count = (int) Math.min(byteCount, mData.remaining());
+            mData.position(mData.position() + count);
+            return count;
+        }
+    }
+}
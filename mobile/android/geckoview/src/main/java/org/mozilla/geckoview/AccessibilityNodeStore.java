@@ -0,0 +1,342 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.geckoview;
+
+import org.mozilla.gecko.util.GeckoBundle;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+import android.view.View;
+
+/**
+ * Accessible nodes sent by Gecko ahead of time, so that accessibility services can be
+ * answered without a round trip to Gecko.
+ *
+ * Gecko sends the nodes in the viewport, and the nodes on the path to the focused node. A
+ * node is kept while it is part of either. Each part is replaced as a whole, and so is the
+ * bundle a part holds for a node. The information of a node is read from its bundles, in
+ * the order their parts were last replaced, so that a key missing from the newest bundle
+ * keeps the value of the other part.
+ *
+ * The version of the store is incremented by every change, and each node records the
+ * version that last changed it.
+ *
+ * Nodes are mutable and shared; hold the lock of the store while reading them.
+ */
+@AnyThread
+/* package */ final class AccessibilityNodeStore {
+    /* package */ static final int SOURCE_VIEWPORT = 1;
+    /* package */ static final int SOURCE_FOCUS_PATH = 1 << 1;
+
+    private static final int[] EMPTY_CHILDREN = new int[0];
+
+    /**
+     * The information about an accessible node, read from a node bundle once.
+     */
+    /* package */ static final class Node {
+        public final int id;
+        public int parentId = View.NO_ID;
+        public int[] children = EMPTY_CHILDREN;
+        public int flags;
+        public int className;
+        public int inputType;
+        public String text;
+        public String hint;
+        public String geckoRole;
+        public String roleDescription;
+        public String viewIdResourceName;
+
+        public boolean hasBounds;
+        public int boundsLeft;
+        public int boundsTop;
+        public int boundsRight;
+        public int boundsBottom;
+
+        public boolean hasRangeInfo;
+        public int rangeType;
+        public float rangeMin;
+        public float rangeMax;
+        public float rangeCurrent;
+
+        public boolean hasCollectionItemInfo;
+        public int collectionItemRowIndex;
+        public int collectionItemRowSpan;
+        public int collectionItemColumnIndex;
+        public int collectionItemColumnSpan;
+
+        public boolean hasCollectionInfo;
+        public int collectionRowCount;
+        public int collectionColumnCount;
+        public boolean collectionIsHierarchical;
+        public int collectionSelectionMode;
+
+        // The parts of the store this node is in; a combination of SOURCE_* values.
+        /* package */ int sources;
+        /* package */ int version;
+
+        // The bundle each part of the store holds for this node, or null.
+        private GeckoBundle mViewportBundle;
+        private GeckoBundle mFocusPathBundle;
+
+        /* package */ Node(final int id) {
+            this.id = id;
+        }
+
+        /**
+         * Create a node that is not part of a store from a node bundle.
+         */
+        public static @NonNull Node fromBundle(final @NonNull GeckoBundle bundle) {
+            final Node node = new Node(bundle.getInt("id"));
+            node.apply(bundle);
+            return node;
+        }
+
+        private GeckoBundle getBundle(final int source) {
+            return source == SOURCE_VIEWPORT ? mViewportBundle : mFocusPathBundle;
+        }
+
+        private void setBundle(final int source, final @Nullable GeckoBundle bundle) {
+            if (source == SOURCE_VIEWPORT) {
+                mViewportBundle = bundle;
+            } else {
+                mFocusPathBundle = bundle;
+            }
+            if (bundle != null) {
+                sources |= source;
+            } else {
+                sources &= ~source;
+            }
+        }
+
+        /**
+         * Read the information of the node again from its bundles.
+         *
+         * @param latestSource SOURCE_* value of the part that was replaced last; its bundle
+         *                     is applied last.
+         */
+        private void rebuild(final int latestSource) {
+            reset();
+            final GeckoBundle older = getBundle(latestSource == SOURCE_VIEWPORT ?
+                                                SOURCE_FOCUS_PATH : SOURCE_VIEWPORT);
+            final GeckoBundle latest = getBundle(latestSource);
+            if (older != null) {
+                apply(older);
+            }
+            if (latest != null) {
+                apply(latest);
+            }
+        }
+
+        /**
+         * The bundle of the part that was replaced last among the parts this node is in.
+         */
+        private GeckoBundle getLatestBundle(final int latestSource) {
+            final GeckoBundle latest = getBundle(latestSource);
+            if (latest != null) {
+                return latest;
+            }
+            return getBundle(latestSource == SOURCE_VIEWPORT ?
+                             SOURCE_FOCUS_PATH : SOURCE_VIEWPORT);
+        }
+
+        private void reset() {
+            parentId = View.NO_ID;
+            children = EMPTY_CHILDREN;
+            flags = 0;
+            className = 0;
+            inputType = 0;
+            text = null;
+            hint = null;
+            geckoRole = null;
+            roleDescription = null;
+            viewIdResourceName = null;
+            hasBounds = false;
+            hasRangeInfo = false;
+            hasCollectionItemInfo = false;
+            hasCollectionInfo = false;
+        }
+
+        /**
+         * Apply the keys present in a node bundle. Gecko leaves out what a part of the store
+         * doesn't know about a node, e.g. the text of a node in the viewport, so the values
+         * read from the other part are kept.
+         */
+        private void apply(final GeckoBundle bundle) {
+            if (bundle.containsKey("parentId")) {
+                parentId = bundle.getInt("parentId", View.NO_ID);
+            }
+            if (bundle.containsKey("flags")) {
+                flags = bundle.getInt("flags");
+            }
+            if (bundle.containsKey("className")) {
+                className = bundle.getInt("className");
+            }
+            if (bundle.containsKey("inputType")) {
+                inputType = bundle.getInt("inputType");
+            }
+            if (bundle.containsKey("text")) {
+                text = bundle.getString("text");
+            }
+            if (bundle.containsKey("hint")) {
+                hint = bundle.getString("hint");
+            }
+            if (bundle.containsKey("geckoRole")) {
+                geckoRole = bundle.getString("geckoRole");
+            }
+            if (bundle.containsKey("roleDescription")) {
+                roleDescription = bundle.getString("roleDescription");
+            }
+            if (bundle.containsKey("viewIdResourceName")) {
+                viewIdResourceName = bundle.getString("viewIdResourceName");
+            }
+
+            if (bundle.containsKey("children")) {
+                final int[] childIds = bundle.getIntArray("children");
+                children = childIds != null ? childIds : EMPTY_CHILDREN;
+            }
+
+            if (bundle.containsKey("bounds")) {
+                setBounds(bundle.getIntArray("bounds"));
+            }
+
+            if (bundle.containsKey("rangeInfo")) {
+                final GeckoBundle range = bundle.getBundle("rangeInfo");
+                hasRangeInfo = range != null;
+                if (hasRangeInfo) {
+                    rangeType = range.getInt("type");
+                    rangeMin = (float) range.getDouble("min", Float.NEGATIVE_INFINITY);
+                    rangeMax = (float) range.getDouble("max", Float.POSITIVE_INFINITY);
+                    rangeCurrent = (float) range.getDouble("current", 0);
+                }
+            }
+
+            if (bundle.containsKey("collectionItemInfo")) {
+                final GeckoBundle collectionItem = bundle.getBundle("collectionItemInfo");
+                hasCollectionItemInfo = collectionItem != null;
+                if (hasCollectionItemInfo) {
+                    collectionItemRowIndex = collectionItem.getInt("rowIndex");
+                    collectionItemRowSpan = collectionItem.getInt("rowSpan");
+                    collectionItemColumnIndex = collectionItem.getInt("columnIndex");
+                    collectionItemColumnSpan = collectionItem.getInt("columnSpan");
+                }
+            }
+
+            if (bundle.containsKey("collectionInfo")) {
+                final GeckoBundle collection = bundle.getBundle("collectionInfo");
+                hasCollectionInfo = collection != null;
+                if (hasCollectionInfo) {
+                    collectionRowCount = collection.getInt("rowCount");
+                    collectionColumnCount = collection.getInt("columnCount");
+                    collectionIsHierarchical = collection.getBoolean("isHierarchical", false);
+                    collectionSelectionMode = collection.getInt("selectionMode", 0);
+                }
+            }
+        }
+
+        private void setBounds(final @Nullable int[] bounds) {
+            hasBounds = bounds != null;
+            if (hasBounds) {
+                boundsLeft = bounds[0];
+                boundsTop = bounds[1];
+                boundsRight = bounds[2];
+                boundsBottom = bounds[3];
+            }
+        }
+    }
+
+    private final SparseArray<Node> mNodes = new SparseArray<>();
+    private int mVersion;
+    // SOURCE_* value of the part that was replaced last.
+    private int mLatestSource = SOURCE_VIEWPORT;
+
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    public synchronized int size() {
+        return mNodes.size();
+    }
+
+    /**
+     * @return The node, or null if it is not in the store.
+     */
+    public synchronized @Nullable Node get(final int id) {
+        return mNodes.get(id);
+    }
+
+    /**
+     * Replace the nodes of a part of the store. Nodes that are no longer part of any part of
+     * the store are removed.
+     *
+     * @param source SOURCE_* value of the part to replace.
+     * @param bundles Node bundles of the part; null elements are ignored.
+     */
+    public synchronized void replace(final int source, final @NonNull GeckoBundle[] bundles) {
+        mVersion++;
+        mLatestSource = source;
+
+        // Nodes still in the part are updated in place.
+        for (final GeckoBundle bundle : bundles) {
+            if (bundle == null) {
+                continue;
+            }
+            final int id = bundle.getInt("id");
+            Node node = mNodes.get(id);
+            if (node == null) {
+                node = new Node(id);
+                mNodes.put(id, node);
+            }
+            node.setBundle(source, bundle);
+            node.rebuild(source);
+            node.version = mVersion;
+        }
+
+        for (int i = mNodes.size() - 1; i >= 0; i--) {
+            final Node node = mNodes.valueAt(i);
+            if (node.version == mVersion || (node.sources & source) == 0) {
+                continue;
+            }
+            node.setBundle(source, null);
+            if (node.sources == 0) {
+                mNodes.removeAt(i);
+            } else {
+                node.rebuild(source);
+                node.version = mVersion;
+            }
+        }
+    }
+
+    /**
+     * @return False if the node is not in the store.
+     */
+    public synchronized boolean updateBounds(final int id, final @Nullable int[] bounds) {
+        final Node node = mNodes.get(id);
+        if (node == null) {
+            return false;
+        }
+        node.getLatestBundle(mLatestSource).putIntArray("bounds", bounds);
+        node.rebuild(mLatestSource);
+        node.version = ++mVersion;
+        return true;
+    }
+
+    /**
+     * Set or clear one of the FLAG_* values of SessionAccessibility on a node, if it is in
+     * the store.
+     */
+    public synchronized void setFlag(final int id, final int flag, final boolean set) {
+        final Node node = mNodes.get(id);
+        if (node == null) {
+            return;
+        }
+        node.getLatestBundle(mLatestSource).putInt(
+                "flags", set ? (node.flags | flag) : (node.flags & ~flag));
+        node.rebuild(mLatestSource);
+        node.version = ++mVersion;
+    }
+}
@@ -2115,39 +2115,25 @@ public class GeckoSession implements Parcelable {
 
         @Override // Parcelable
         public void writeToParcel(final Parcel dest, final int flags) {
-            dest.writeString(toString());
+            dest.writeByteArray(mState == null ? null : mState.toByteArray());
         }
 
         // AIDL code may call readFromParcel even though it's not part of Parcelable.
         public void readFromParcel(final @NonNull Parcel source) {
-            if (source.readString() == null) {
+            mState = GeckoBundle.fromByteArray(source.createByteArray());
+            if (mState == null) {
                 Log.w(LOGTAG, "Can't reproduce session state from Parcel");
             }
-
-            try {
-                mState = GeckoBundle.fromJSONObject(new JSONObject(source.readString()));
-            } catch (JSONException e) {
-                Log.e(LOGTAG, "Could not convert string to session state.");
-                mState = null;
-            }
         }
 
         public static final Parcelable.Creator<SessionState> CREATOR =
                 new Parcelable.Creator<SessionState>() {
             @Override
             public SessionState createFromParcel(final Parcel source) {
-                if (source.readString() == null) {
+                final GeckoBundle res = GeckoBundle.fromByteArray(source.createByteArray());
+                if (res == null) {
                     Log.w(LOGTAG, "Can't create session state from Parcel");
                 }
-
-                GeckoBundle res;
-                try {
-                    res = GeckoBundle.fromJSONObject(new JSONObject(source.readString()));
-                } catch (JSONException e) {
-                    Log.e(LOGTAG, "Could not convert parcel to session state.");
-                    res = null;
-                }
-
                 return new SessionState(res);
             }
 
@@ -21,7 +21,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.UiThread;
 import android.support.annotation.IntDef;
 import android.util.Log;
-import android.util.Pair;
 import android.view.MotionEvent;
 import android.view.InputDevice;
 
@@ -29,6 +28,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 @UiThread
 public class PanZoomController {
@@ -60,7 +60,10 @@ public class PanZoomController {
 
     private SynthesizedEventState mPointerState;
 
-    private ArrayList<Pair<Integer, MotionEvent>> mQueuedEvents;
+    private final PointerSamples mPointerSamples = new PointerSamples();
+
+    private final EventQueue mQueuedEvents = new EventQueue();
+    private boolean mQueueEvents;
 
     private boolean mSynthesizedEvent = false;
 
@@ -126,12 +129,11 @@ public class PanZoomController {
 
     private boolean handleMotionEvent(final MotionEvent event) {
         if (!mAttached) {
-            mQueuedEvents.add(new Pair<>(EVENT_SOURCE_MOTION, event));
+            mQueuedEvents.add(EVENT_SOURCE_MOTION, event);
             return false;
         }
 
         final int action = event.getActionMasked();
-        final int count = event.getPointerCount();
 
         if (action == MotionEvent.ACTION_DOWN) {
             mLastDownTime = event.getDownTime();
@@ -139,31 +141,6 @@ public class PanZoomController {
             return false;
         }
 
-        final int[] pointerId = new int[count];
-        final float[] x = new float[count];
-        final float[] y = new float[count];
-        final float[] orientation = new float[count];
-        final float[] pressure = new float[count];
-        final float[] toolMajor = new float[count];
-        final float[] toolMinor = new float[count];
-
-        final MotionEvent.PointerCoords coords = new MotionEvent.PointerCoords();
-
-        for (int i = 0; i < count; i++) {
-            pointerId[i] = event.getPointerId(i);
-            event.getPointerCoords(i, coords);
-
-            x[i] = coords.x;
-            y[i] = coords.y;
-
-            orientation[i] = coords.orientation;
-            pressure[i] = coords.pressure;
-
-            // If we are converting to CSS pixels, we should adjust the radii as well.
-            toolMajor[i] = coords.toolMajor;
-            toolMinor[i] = coords.toolMinor;
-        }
-
         final float screenX = event.getRawX() - event.getX();
         final float screenY = event.getRawY() - event.getY();
 
@@ -174,14 +151,18 @@ public class PanZoomController {
             mSession.onScreenOriginChanged((int)screenX, (int)screenY);
         }
 
+        final PointerSamples samples = mPointerSamples;
+        samples.fill(event);
         return mNative.handleMotionEvent(action, event.getActionIndex(), event.getEventTime(),
-                                         event.getMetaState(), screenX, screenY, pointerId, x, y,
-                                         orientation, pressure, toolMajor, toolMinor);
+                                         event.getMetaState(), screenX, screenY,
+                                         samples.pointerId, samples.x, samples.y,
+                                         samples.orientation, samples.pressure,
+                                         samples.toolMajor, samples.toolMinor);
     }
 
     private boolean handleScrollEvent(final MotionEvent event) {
         if (!mAttached) {
-            mQueuedEvents.add(new Pair<>(EVENT_SOURCE_SCROLL, event));
+            mQueuedEvents.add(EVENT_SOURCE_SCROLL, event);
             return false;
         }
 
@@ -191,13 +172,10 @@ public class PanZoomController {
             return false;
         }
 
-        final MotionEvent.PointerCoords coords = new MotionEvent.PointerCoords();
-        event.getPointerCoords(0, coords);
-
         // Translate surface origin to client origin for scroll events.
         mSession.getSurfaceBounds(mTempRect);
-        final float x = coords.x - mTempRect.left;
-        final float y = coords.y - mTempRect.top;
+        final float x = event.getX(0) - mTempRect.left;
+        final float y = event.getY(0) - mTempRect.top;
 
         final float hScroll = event.getAxisValue(MotionEvent.AXIS_HSCROLL) *
                               mPointerScrollFactor;
@@ -210,7 +188,7 @@ public class PanZoomController {
 
     private boolean handleMouseEvent(final MotionEvent event) {
         if (!mAttached) {
-            mQueuedEvents.add(new Pair<>(EVENT_SOURCE_MOUSE, event));
+            mQueuedEvents.add(EVENT_SOURCE_MOUSE, event);
             return false;
         }
 
@@ -220,13 +198,10 @@ public class PanZoomController {
             return false;
         }
 
-        final MotionEvent.PointerCoords coords = new MotionEvent.PointerCoords();
-        event.getPointerCoords(0, coords);
-
         // Translate surface origin to client origin for mouse events.
         mSession.getSurfaceBounds(mTempRect);
-        final float x = coords.x - mTempRect.left;
-        final float y = coords.y - mTempRect.top;
+        final float x = event.getX(0) - mTempRect.left;
+        final float y = event.getY(0) - mTempRect.top;
 
         return mNative.handleMouseEvent(event.getActionMasked(), event.getEventTime(),
                                         event.getMetaState(), x, y, event.getButtonState());
@@ -352,32 +327,113 @@ public class PanZoomController {
     }
 
     private void enableEventQueue() {
-        if (mQueuedEvents != null) {
+        if (mQueueEvents) {
             throw new IllegalStateException("Already have an event queue");
         }
-        mQueuedEvents = new ArrayList<>();
+        mQueueEvents = true;
     }
 
     private void flushEventQueue() {
-        if (mQueuedEvents == null) {
+        if (!mQueueEvents) {
             return;
         }
 
-        ArrayList<Pair<Integer, MotionEvent>> events = mQueuedEvents;
-        mQueuedEvents = null;
-        for (Pair<Integer, MotionEvent> pair : events) {
-            switch (pair.first) {
+        mQueueEvents = false;
+        final int count = mQueuedEvents.size();
+        for (int i = 0; i < count; i++) {
+            final MotionEvent event = mQueuedEvents.getEvent(i);
+            switch (mQueuedEvents.getSource(i)) {
                 case EVENT_SOURCE_MOTION:
-                    handleMotionEvent(pair.second);
+                    handleMotionEvent(event);
                     break;
                 case EVENT_SOURCE_SCROLL:
-                    handleScrollEvent(pair.second);
+                    handleScrollEvent(event);
                     break;
                 case EVENT_SOURCE_MOUSE:
-                    handleMouseEvent(pair.second);
+                    handleMouseEvent(event);
                     break;
             }
         }
+        mQueuedEvents.clear();
+    }
+
+    /**
+     * The current sample of each pointer of an event. Native code takes the pointer count from
+     * the length of the arrays, so they are only replaced when the pointer count changes.
+     */
+    /* package */ static final class PointerSamples {
+        public int[] pointerId = new int[0];
+        public float[] x = new float[0];
+        public float[] y = new float[0];
+        public float[] orientation = new float[0];
+        public float[] pressure = new float[0];
+        public float[] toolMajor = new float[0];
+        public float[] toolMinor = new float[0];
+
+        public void fill(final MotionEvent event) {
+            final int count = event.getPointerCount();
+            if (count != pointerId.length) {
+                pointerId = new int[count];
+                x = new float[count];
+                y = new float[count];
+                orientation = new float[count];
+                pressure = new float[count];
+                toolMajor = new float[count];
+                toolMinor = new float[count];
+            }
+
+            for (int i = 0; i < count; i++) {
+                pointerId[i] = event.getPointerId(i);
+                x[i] = event.getX(i);
+                y[i] = event.getY(i);
+                orientation[i] = event.getOrientation(i);
+                pressure[i] = event.getPressure(i);
+                // If we are converting to CSS pixels, we should adjust the radii as well.
+                toolMajor[i] = event.getToolMajor(i);
+                toolMinor[i] = event.getToolMinor(i);
+            }
+        }
+    }
+
+    /**
+     * Events received before native code is attached, in the order they were received. The
+     * arrays are reused when native code detaches and attaches again. Each event is a copy,
+     * because the caller recycles its event once it has been dispatched.
+     */
+    private static final class EventQueue {
+        private int[] mSources = new int[8];
+        private MotionEvent[] mEvents = new MotionEvent[8];
+        private int mSize;
+
+        public void add(final int source, final MotionEvent event) {
+            if (mSize == mEvents.length) {
+                mSources = Arrays.copyOf(mSources, mSize * 2);
+                mEvents = Arrays.copyOf(mEvents, mSize * 2);
+            }
+            mSources[mSize] = source;
+            mEvents[mSize] = MotionEvent.obtain(event);
+            mSize++;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public int getSource(final int index) {
+            return mSources[index];
+        }
+
+        public MotionEvent getEvent(final int index) {
+            return mEvents[index];
+        }
+
+        public void clear() {
+            for (int i = 0; i < mSize; i++) {
+                mEvents[i].recycle();
+                mEvents[i] = null;
+            }
+            mSize = 0;
+        }
     }
 
     /**
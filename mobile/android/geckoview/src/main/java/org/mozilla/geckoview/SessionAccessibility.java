@@ -13,6 +13,7 @@ import org.mozilla.gecko.PrefsHelper;
 import org.mozilla.gecko.util.GeckoBundle;
 import org.mozilla.gecko.util.ThreadUtils;
 import org.mozilla.gecko.mozglue.JNIObject;
+import org.mozilla.geckoview.AccessibilityNodeStore.Node;
 
 import android.content.Context;
 import android.graphics.Matrix;
@@ -23,7 +24,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.InputDevice;
 import android.view.MotionEvent;
 import android.view.View;
@@ -36,9 +36,6 @@ import android.view.accessibility.AccessibilityNodeInfo.CollectionItemInfo;
 import android.view.accessibility.AccessibilityNodeInfo.CollectionInfo;
 import android.view.accessibility.AccessibilityNodeProvider;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-
 @UiThread
 public class SessionAccessibility {
     private static final String LOGTAG = "GeckoAccessibility";
@@ -163,11 +160,15 @@ public class SessionAccessibility {
                     return true;
                 case AccessibilityNodeInfo.ACTION_CLICK:
                     nativeProvider.click(virtualViewId);
-                    GeckoBundle nodeInfo = getMostRecentBundle(virtualViewId);
-                    if (nodeInfo != null) {
-                        if ((nodeInfo.getInt("flags") & (FLAG_SELECTABLE | FLAG_CHECKABLE)) == 0) {
-                            sendEvent(AccessibilityEvent.TYPE_VIEW_CLICKED, virtualViewId, nodeInfo.getInt("className"), null);
-                        }
+                    final int className;
+                    synchronized (mNodeStore) {
+                        final Node cachedNode = mNodeStore.get(virtualViewId);
+                        className = (cachedNode != null &&
+                                     (cachedNode.flags & (FLAG_SELECTABLE | FLAG_CHECKABLE)) == 0) ?
+                                    cachedNode.className : CLASSNAME_UNKNOWN;
+                    }
+                    if (className != CLASSNAME_UNKNOWN) {
+                        sendEvent(AccessibilityEvent.TYPE_VIEW_CLICKED, virtualViewId, className, null);
                     }
                     return true;
                 case AccessibilityNodeInfo.ACTION_LONG_CLICK:
@@ -283,39 +284,34 @@ public class SessionAccessibility {
 
         private AccessibilityNodeInfo getNodeFromGecko(final int virtualViewId) {
             AccessibilityNodeInfo node = AccessibilityNodeInfo.obtain(mView, virtualViewId);
-            populateNodeFromBundle(node, nativeProvider.getNodeInfo(virtualViewId), false);
+            final GeckoBundle bundle = nativeProvider.getNodeInfo(virtualViewId);
+            if (bundle != null) {
+                populateNode(node, Node.fromBundle(bundle), false);
+            }
             return node;
         }
 
         private AccessibilityNodeInfo getNodeFromCache(final int virtualViewId) {
-            synchronized (SessionAccessibility.this) {
-                AccessibilityNodeInfo node = null;
-                for (SparseArray<GeckoBundle> cache : mCaches) {
-                    GeckoBundle bundle = cache.get(virtualViewId);
-                    if (bundle == null) {
-                        continue;
-                    }
-
-                    if (node == null) {
-                        node = AccessibilityNodeInfo.obtain(mView, virtualViewId);
-                    }
-                    populateNodeFromBundle(node, bundle, true);
-                }
-
-                if (node == null) {
+            synchronized (mNodeStore) {
+                final Node cachedNode = mNodeStore.get(virtualViewId);
+                if (cachedNode == null) {
                     Log.e(LOGTAG, "No cached node for " + virtualViewId);
+                    return null;
                 }
 
+                final AccessibilityNodeInfo node = AccessibilityNodeInfo.obtain(mView, virtualViewId);
+                populateNode(node, cachedNode, true);
                 return node;
             }
         }
 
-        private void populateNodeFromBundle(final AccessibilityNodeInfo node, final GeckoBundle nodeInfo, final boolean fromCache) {
-            if (mView == null || nodeInfo == null) {
+        // Called with the lock of mNodeStore held if fromCache is true.
+        private void populateNode(final AccessibilityNodeInfo node, final Node nodeInfo, final boolean fromCache) {
+            if (mView == null) {
                 return;
             }
 
-            final int id = nodeInfo.getInt("id");
+            final int id = nodeInfo.id;
             boolean isRoot = id == View.NO_ID;
             if (isRoot) {
                 if (Build.VERSION.SDK_INT < 17 || mView.getDisplay() != null) {
@@ -325,17 +321,17 @@ public class SessionAccessibility {
                 node.addAction(AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD);
                 node.addAction(AccessibilityNodeInfo.ACTION_SCROLL_FORWARD);
             } else {
-                node.setParent(mView, nodeInfo.getInt("parentId", View.NO_ID));
+                node.setParent(mView, nodeInfo.parentId);
             }
 
-            final int flags = nodeInfo.getInt("flags");
+            final int flags = nodeInfo.flags;
 
             // The basics
             node.setPackageName(GeckoAppShell.getApplicationContext().getPackageName());
-            node.setClassName(getClassName(nodeInfo.getInt("className")));
+            node.setClassName(getClassName(nodeInfo.className));
 
-            if (nodeInfo.containsKey("text")) {
-                node.setText(nodeInfo.getString("text"));
+            if (nodeInfo.text != null) {
+                node.setText(nodeInfo.text);
             }
 
             // Add actions
@@ -375,34 +371,33 @@ public class SessionAccessibility {
             node.setFocused(mFocusedNode == id);
 
             // Bounds
-            int[] b = nodeInfo.getIntArray("bounds");
-            if (b != null) {
-                final Rect screenBounds = new Rect(b[0], b[1], b[2], b[3]);
+            if (nodeInfo.hasBounds) {
+                final Rect screenBounds = new Rect(nodeInfo.boundsLeft, nodeInfo.boundsTop,
+                                                   nodeInfo.boundsRight, nodeInfo.boundsBottom);
                 node.setBoundsInScreen(screenBounds);
 
                 final Matrix matrix = new Matrix();
                 mSession.getClientToScreenMatrix(matrix);
                 final float[] origin = new float[2];
                 matrix.mapPoints(origin);
-                final Rect parentBounds = new Rect(b[0] - (int)origin[0], b[1] - (int)origin[1], b[2], b[3]);
+                final Rect parentBounds = new Rect(nodeInfo.boundsLeft - (int)origin[0],
+                                                   nodeInfo.boundsTop - (int)origin[1],
+                                                   nodeInfo.boundsRight, nodeInfo.boundsBottom);
                 node.setBoundsInParent(parentBounds);
             }
 
             // Children
-            int[] children = nodeInfo.getIntArray("children");
-            if (node.getChildCount() == 0 && children != null) {
-                for (int childId : children) {
-                    final GeckoBundle childBundle = getMostRecentBundle(childId);
-                    if (!fromCache || (childBundle != null && childBundle.getInt("parentId") == id)) {
-                        // If this node is from cache, only populate with children that are cached as well.
-                        node.addChild(mView, childId);
-                    }
+            for (final int childId : nodeInfo.children) {
+                final Node child = fromCache ? mNodeStore.get(childId) : null;
+                if (!fromCache || (child != null && child.parentId == id)) {
+                    // If this node is from cache, only populate with children that are cached as well.
+                    node.addChild(mView, childId);
                 }
             }
 
             // SDK 18 and above
             if (Build.VERSION.SDK_INT >= 18) {
-                node.setViewIdResourceName(nodeInfo.getString("viewIdResourceName"));
+                node.setViewIdResourceName(nodeInfo.viewIdResourceName);
 
                 if ((flags & FLAG_EDITABLE) != 0) {
                     node.addAction(AccessibilityNodeInfo.ACTION_SET_SELECTION);
@@ -420,18 +415,17 @@ public class SessionAccessibility {
 
                 // Set bundle keys like role and hint
                 Bundle bundle = node.getExtras();
-                if (nodeInfo.containsKey("hint")) {
-                    final String hint = nodeInfo.getString("hint");
-                    bundle.putCharSequence("AccessibilityNodeInfo.hint", hint);
+                if (nodeInfo.hint != null) {
+                    bundle.putCharSequence("AccessibilityNodeInfo.hint", nodeInfo.hint);
                     if (Build.VERSION.SDK_INT >= 26) {
-                        node.setHintText(hint);
+                        node.setHintText(nodeInfo.hint);
                     }
                 }
-                if (nodeInfo.containsKey("geckoRole")) {
-                    bundle.putCharSequence("AccessibilityNodeInfo.geckoRole", nodeInfo.getString("geckoRole"));
+                if (nodeInfo.geckoRole != null) {
+                    bundle.putCharSequence("AccessibilityNodeInfo.geckoRole", nodeInfo.geckoRole);
                 }
-                if (nodeInfo.containsKey("roleDescription")) {
-                    bundle.putCharSequence("AccessibilityNodeInfo.roleDescription", nodeInfo.getString("roleDescription"));
+                if (nodeInfo.roleDescription != null) {
+                    bundle.putCharSequence("AccessibilityNodeInfo.roleDescription", nodeInfo.roleDescription);
                 }
                 if (isRoot) {
                     // Argument values for ACTION_NEXT_HTML_ELEMENT/ACTION_PREVIOUS_HTML_ELEMENT.
@@ -447,45 +441,40 @@ public class SessionAccessibility {
 
 
                 // Set RangeInfo
-                GeckoBundle rangeBundle = nodeInfo.getBundle("rangeInfo");
-                if (rangeBundle != null) {
+                if (nodeInfo.hasRangeInfo) {
                     final RangeInfo rangeInfo = RangeInfo.obtain(
-                            rangeBundle.getInt("type"),
-                            (float)rangeBundle.getDouble("min", Float.NEGATIVE_INFINITY),
-                            (float)rangeBundle.getDouble("max", Float.POSITIVE_INFINITY),
-                            (float)rangeBundle.getDouble("current", 0));
+                            nodeInfo.rangeType, nodeInfo.rangeMin, nodeInfo.rangeMax,
+                            nodeInfo.rangeCurrent);
                     node.setRangeInfo(rangeInfo);
                 }
 
                 // Set CollectionItemInfo
-                GeckoBundle collectionItemBundle = nodeInfo.getBundle("collectionItemInfo");
-                if (collectionItemBundle != null) {
+                if (nodeInfo.hasCollectionItemInfo) {
                     final CollectionItemInfo collectionItemInfo = CollectionItemInfo.obtain(
-                            collectionItemBundle.getInt("rowIndex"),
-                            collectionItemBundle.getInt("rowSpan"),
-                            collectionItemBundle.getInt("columnIndex"),
-                            collectionItemBundle.getInt("columnSpan"), false);
+                            nodeInfo.collectionItemRowIndex,
+                            nodeInfo.collectionItemRowSpan,
+                            nodeInfo.collectionItemColumnIndex,
+                            nodeInfo.collectionItemColumnSpan, false);
                     node.setCollectionItemInfo(collectionItemInfo);
                 }
 
                 // Set CollectionInfo
-                GeckoBundle collectionBundle = nodeInfo.getBundle("collectionInfo");
-                if (collectionBundle != null) {
+                if (nodeInfo.hasCollectionInfo) {
                     // selectionMode is only supported in SDK >= 21.
                     final CollectionInfo collectionInfo = Build.VERSION.SDK_INT >= 21
                             ? CollectionInfo.obtain(
-                                collectionBundle.getInt("rowCount"),
-                                collectionBundle.getInt("columnCount"),
-                                collectionBundle.getBoolean("isHierarchical", false),
-                                collectionBundle.getInt("selectionMode", 0))
+                                nodeInfo.collectionRowCount,
+                                nodeInfo.collectionColumnCount,
+                                nodeInfo.collectionIsHierarchical,
+                                nodeInfo.collectionSelectionMode)
                             : CollectionInfo.obtain(
-                                collectionBundle.getInt("rowCount"),
-                                collectionBundle.getInt("columnCount"),
-                                collectionBundle.getBoolean("isHierarchical", false));
+                                nodeInfo.collectionRowCount,
+                                nodeInfo.collectionColumnCount,
+                                nodeInfo.collectionIsHierarchical);
                     node.setCollectionInfo(collectionInfo);
                 }
 
-                node.setInputType(nodeInfo.getInt("inputType"));
+                node.setInputType(nodeInfo.inputType);
             }
 
             // SDK 23 and above
@@ -508,12 +497,8 @@ public class SessionAccessibility {
     private int mFocusedNode = 0;
     // A node with no accessibility focus that is currently being hovered.
     private int mHoveredOnNode = 0;
-    // Viewport cache
-    final SparseArray<GeckoBundle> mViewportCache = new SparseArray<>();
-    // Focus cache
-    final SparseArray<GeckoBundle> mFocusPathCache = new SparseArray<>();
-    // List of caches in descending order from last updated.
-    LinkedList<SparseArray<GeckoBundle>> mCaches = new LinkedList<>();
+    // Nodes in the viewport and on the focus path, sent by Gecko ahead of time.
+    /* package */ final AccessibilityNodeStore mNodeStore = new AccessibilityNodeStore();
     private boolean mViewFocusRequested = false;
 
     /* package */ SessionAccessibility(final GeckoSession session) {
@@ -708,18 +693,22 @@ public class SessionAccessibility {
             return;
         }
 
-        GeckoBundle cachedBundle = getMostRecentBundle(sourceId);
-        if (cachedBundle == null && sourceId != View.NO_ID) {
-            // Suppress events from non cached nodes.
-            return;
+        final int cachedClassName;
+        synchronized (mNodeStore) {
+            final Node cachedNode = mNodeStore.get(sourceId);
+            if (cachedNode == null && sourceId != View.NO_ID) {
+                // Suppress events from non cached nodes.
+                return;
+            }
+            cachedClassName = cachedNode != null ? cachedNode.className : CLASSNAME_UNKNOWN;
         }
 
         final AccessibilityEvent event = AccessibilityEvent.obtain(eventType);
         event.setPackageName(GeckoAppShell.getApplicationContext().getPackageName());
         event.setSource(mView, sourceId);
         event.setEnabled(true);
-        if (className == CLASSNAME_UNKNOWN && cachedBundle != null) {
-            event.setClassName(getClassName(cachedBundle.getInt("className")));
+        if (className == CLASSNAME_UNKNOWN && cachedClassName != CLASSNAME_UNKNOWN) {
+            event.setClassName(getClassName(cachedClassName));
         } else {
             event.setClassName(getClassName(className));
         }
@@ -746,21 +735,13 @@ public class SessionAccessibility {
         // Update cache and stored state from this event.
         switch (eventType) {
             case AccessibilityEvent.TYPE_VIEW_CLICKED:
-                if (cachedBundle != null && eventData != null && eventData.containsKey("checked")) {
-                    if (eventData.getInt("checked") != 0) {
-                        cachedBundle.putInt("flags", cachedBundle.getInt("flags") | FLAG_CHECKED);
-                    } else {
-                        cachedBundle.putInt("flags", cachedBundle.getInt("flags") & ~FLAG_CHECKED);
-                    }
+                if (eventData != null && eventData.containsKey("checked")) {
+                    mNodeStore.setFlag(sourceId, FLAG_CHECKED, eventData.getInt("checked") != 0);
                 }
                 break;
             case AccessibilityEvent.TYPE_VIEW_SELECTED:
-                if (cachedBundle != null && eventData != null && eventData.containsKey("selected")) {
-                    if (eventData.getInt("selected") != 0) {
-                        cachedBundle.putInt("flags", cachedBundle.getInt("flags") | FLAG_SELECTED);
-                    } else {
-                        cachedBundle.putInt("flags", cachedBundle.getInt("flags") & ~FLAG_SELECTED);
-                    }
+                if (eventData != null && eventData.containsKey("selected")) {
+                    mNodeStore.setFlag(sourceId, FLAG_SELECTED, eventData.getInt("selected") != 0);
                 }
                 break;
             case AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUS_CLEARED:
@@ -787,18 +768,6 @@ public class SessionAccessibility {
         ((ViewParent) mView).requestSendAccessibilityEvent(mView, event);
     }
 
-    private synchronized GeckoBundle getMostRecentBundle(final int virtualViewId) {
-        Iterator<SparseArray<GeckoBundle>> iter = mCaches.descendingIterator();
-        while (iter.hasNext()) {
-            GeckoBundle bundle = iter.next().get(virtualViewId);
-            if (bundle != null) {
-                return bundle;
-            }
-        }
-
-        return null;
-    }
-
     /* package */ final class NativeProvider extends JNIObject {
         @WrapForJNI(calledFrom = "ui")
         private void setAttached(final boolean attached) {
@@ -832,44 +801,19 @@ public class SessionAccessibility {
 
         @WrapForJNI(calledFrom = "gecko")
         private void replaceViewportCache(final GeckoBundle[] bundles) {
-            synchronized (SessionAccessibility.this) {
-                mViewportCache.clear();
-                for (GeckoBundle bundle : bundles) {
-                    if (bundle == null) {
-                        continue;
-                    }
-                    mViewportCache.append(bundle.getInt("id"), bundle);
-                }
-                mCaches.remove(mViewportCache);
-                mCaches.add(mViewportCache);
-            }
+            mNodeStore.replace(AccessibilityNodeStore.SOURCE_VIEWPORT, bundles);
         }
 
         @WrapForJNI(calledFrom = "gecko")
         private void replaceFocusPathCache(final GeckoBundle[] bundles) {
-            synchronized (SessionAccessibility.this) {
-                mFocusPathCache.clear();
-                for (GeckoBundle bundle : bundles) {
-                    if (bundle == null) {
-                        continue;
-                    }
-                    mFocusPathCache.append(bundle.getInt("id"), bundle);
-                }
-                mCaches.remove(mFocusPathCache);
-                mCaches.add(mFocusPathCache);
-            }
+            mNodeStore.replace(AccessibilityNodeStore.SOURCE_FOCUS_PATH, bundles);
         }
 
         @WrapForJNI(calledFrom = "gecko")
         private void updateCachedBounds(final GeckoBundle[] bundles) {
-            synchronized (SessionAccessibility.this) {
-                for (GeckoBundle bundle : bundles) {
-                    GeckoBundle cachedBundle = getMostRecentBundle(bundle.getInt("id"));
-                    if (cachedBundle == null) {
-                        Log.e(LOGTAG, "Can't update bounds of uncached node " + bundle.getInt("id"));
-                        continue;
-                    }
-                    cachedBundle.putIntArray("bounds", bundle.getIntArray("bounds"));
+            for (GeckoBundle bundle : bundles) {
+                if (!mNodeStore.updateBounds(bundle.getInt("id"), bundle.getIntArray("bounds"))) {
+                    Log.e(LOGTAG, "Can't update bounds of uncached node " + bundle.getInt("id"));
                 }
             }
         }
@@ -0,0 +1,86 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, you can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.mozilla.gecko;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.gecko.util.BundleEventListener;
+import org.mozilla.gecko.util.EventCallback;
+import org.mozilla.gecko.util.GeckoBundle;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for dispatching events to Java listeners.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TestEventDispatcher {
+    private EventDispatcher dispatcher;
+
+    private static class RecordingListener implements BundleEventListener {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void handleMessage(final String event, final GeckoBundle message,
+                                  final EventCallback callback) {
+            events.add(event);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        dispatcher = new EventDispatcher(
+                new NativeQueue(GeckoThread.State.INITIAL, GeckoThread.State.RUNNING));
+    }
+
+    @Test
+    public void testEventsAreDeliveredInOrder() {
+        final RecordingListener first = new RecordingListener();
+        final RecordingListener second = new RecordingListener();
+        dispatcher.registerUiThreadListener(first, "Test:A", "Test:B");
+        dispatcher.registerUiThreadListener(second, "Test:B");
+
+        dispatcher.dispatch("Test:A", null);
+        dispatcher.dispatch("Test:B", null);
+        dispatcher.dispatch("Test:A", null);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(3, first.events.size());
+        assertEquals("Test:A", first.events.get(0));
+        assertEquals("Test:B", first.events.get(1));
+        assertEquals("Test:A", first.events.get(2));
+        assertEquals(1, second.events.size());
+    }
+
+    @Test
+    public void testUnregisteredListenerIsNotCalled() {
+        final RecordingListener listener = new RecordingListener();
+        dispatcher.registerUiThreadListener(listener, "Test:A");
+        assertTrue(dispatcher.hasListener("Test:A"));
+
+        dispatcher.unregisterUiThreadListener(listener, "Test:A");
+        dispatcher.dispatch("Test:A", null);
+        ShadowLooper.idleMainLooper();
+
+        assertTrue(listener.events.isEmpty());
+        assertFalse(dispatcher.hasListener("Test:B"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRegisterUnderDifferentType() {
+        dispatcher.registerUiThreadListener(new RecordingListener(), "Test:A");
+        dispatcher.registerBackgroundThreadListener(new RecordingListener(), "Test:A");
+    }
+}
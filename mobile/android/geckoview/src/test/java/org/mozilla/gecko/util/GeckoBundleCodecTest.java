@@ -0,0 +1,238 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.util;
+
+import static org.junit.Assert.*;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+@SmallTest
+public class GeckoBundleCodecTest {
+    private static GeckoBundle createBundle() {
+        final GeckoBundle inner = new GeckoBundle();
+        inner.putBoolean("true", true);
+        inner.putBoolean("false", false);
+        inner.putInt("int", -42);
+        inner.putInt("maxInt", Integer.MAX_VALUE);
+        inner.putInt("minInt", Integer.MIN_VALUE);
+        inner.putDouble("double", 0.5);
+        inner.putString("string", "f\u00f6\u00f6 \ud83e\udd8a");
+        inner.putString("emptyString", "");
+        inner.putString("nullString", null);
+        inner.putBooleanArray("booleanArray", new boolean[] {false, true});
+        inner.putIntArray("intArray", new int[] {2, -3, Integer.MAX_VALUE});
+        inner.putDoubleArray("doubleArray", new double[] {1.5, -2.5, Double.NaN});
+        inner.putStringArray("stringArray", new String[] {"bar", null, ""});
+        inner.putStringArray("stringArrayOfNull", new String[2]);
+        inner.putBooleanArray("emptyBooleanArray", new boolean[0]);
+        inner.putIntArray("emptyIntArray", new int[0]);
+
+        final GeckoBundle outer = new GeckoBundle(inner);
+        outer.putBundle("object", inner);
+        outer.putBundle("nullObject", null);
+        outer.putBundleArray("objectArray", new GeckoBundle[] {null, inner, new GeckoBundle()});
+        outer.putBundleArray("emptyObjectArray", new GeckoBundle[0]);
+        return outer;
+    }
+
+    @Test
+    public void roundTripShouldPreserveValues() {
+        final GeckoBundle reference = createBundle();
+        final GeckoBundle decoded = GeckoBundle.fromByteArray(reference.toByteArray());
+
+        assertEquals(reference, decoded);
+        assertEquals(Integer.MIN_VALUE, decoded.getInt("minInt"));
+        assertEquals("f\u00f6\u00f6 \ud83e\udd8a", decoded.getBundle("object").getString("string"));
+        assertArrayEquals(new String[] {"bar", null, ""}, decoded.getStringArray("stringArray"));
+        assertNull(decoded.getBundleArray("objectArray")[0]);
+        assertTrue(decoded.getBundleArray("objectArray")[2].isEmpty());
+    }
+
+    @Test
+    public void roundTripShouldPreserveTypes() {
+        final GeckoBundle reference = createBundle();
+        final GeckoBundle decoded = GeckoBundle.fromByteArray(reference.toByteArray());
+
+        // Values coerce differently depending on their type, so types have to survive exactly.
+        for (final String key : reference.keys()) {
+            final Object value = reference.get(key);
+            assertEquals(key, value == null ? null : value.getClass(),
+                         decoded.get(key) == null ? null : decoded.get(key).getClass());
+        }
+    }
+
+    @Test
+    public void roundTripShouldPreserveGeckoObjectArrays() throws Exception {
+        // Gecko creates bundles through JNI, and uses Object arrays for empty and all-null arrays.
+        final Constructor<GeckoBundle> constructor =
+                GeckoBundle.class.getDeclaredConstructor(String[].class, Object[].class);
+        constructor.setAccessible(true);
+        final GeckoBundle reference = constructor.newInstance(
+                new String[] {"emptyArray", "nullArray"},
+                new Object[] {new Object[0], new Object[3]});
+
+        final GeckoBundle decoded = GeckoBundle.fromByteArray(reference.toByteArray());
+        assertEquals(reference, decoded);
+        assertEquals(Object[].class, decoded.get("emptyArray").getClass());
+        assertEquals(0, ((Object[]) decoded.get("emptyArray")).length);
+        assertEquals(Object[].class, decoded.get("nullArray").getClass());
+        assertArrayEquals(new Object[3], (Object[]) decoded.get("nullArray"));
+
+        // They still coerce to any array type.
+        assertEquals(0, decoded.getIntArray("emptyArray").length);
+        assertArrayEquals(new String[3], decoded.getStringArray("nullArray"));
+        assertArrayEquals(new GeckoBundle[3], decoded.getBundleArray("nullArray"));
+    }
+
+    @Test
+    public void parcelShouldPreserveNestedJSONArrays() throws JSONException {
+        final GeckoBundle reference = GeckoBundle.fromJSONObject(new JSONObject(
+                "{\"ints\": [[1, 2], [3]], \"strings\": [[\"a\"], null, [\"b\", null]]," +
+                " \"objects\": [[{\"key\": 1}]]}"));
+        assertEquals(int[][].class, reference.get("ints").getClass());
+        assertEquals(String[][].class, reference.get("strings").getClass());
+
+        final Parcel parcel = Parcel.obtain();
+        reference.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        final GeckoBundle decoded = GeckoBundle.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        final Object[] ints = (Object[]) decoded.get("ints");
+        assertEquals(2, ints.length);
+        assertArrayEquals(new int[] {1, 2}, (int[]) ints[0]);
+        assertArrayEquals(new int[] {3}, (int[]) ints[1]);
+
+        final Object[] strings = (Object[]) decoded.get("strings");
+        assertEquals(3, strings.length);
+        assertArrayEquals(new String[] {"a"}, (String[]) strings[0]);
+        assertNull(strings[1]);
+        assertArrayEquals(new String[] {"b", null}, (String[]) strings[2]);
+
+        final Object[] objects = (Object[]) decoded.get("objects");
+        assertEquals(1, ((GeckoBundle[]) objects[0])[0].getInt("key"));
+    }
+
+    @Test
+    public void keysShouldOnlyBeEncodedOnce() {
+        final String key = "aRatherLongKeyNameThatIsUsedOften";
+        final GeckoBundle[] entries = new GeckoBundle[100];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new GeckoBundle(1);
+            entries[i].putInt(key, i);
+        }
+        final GeckoBundle bundle = new GeckoBundle(1);
+        bundle.putBundleArray("entries", entries);
+
+        assertTrue(bundle.toByteArray().length < entries.length * key.length());
+    }
+
+    @Test
+    public void nestedBundlesShouldBeDecodedLazily() {
+        final GeckoBundle inner = new GeckoBundle(1);
+        inner.putString("key", "value");
+        final GeckoBundle outer = new GeckoBundle(2);
+        outer.putInt("int", 1);
+        outer.putBundle("object", inner);
+
+        final byte[] data = outer.toByteArray();
+        // Corrupt the tag of the inner bundle's only value.
+        final int index = indexOf(data, "value".getBytes()) - 2;
+        data[index] = (byte) 0x7f;
+
+        final GeckoBundle decoded = GeckoBundle.fromByteArray(data);
+        assertEquals(1, decoded.getInt("int"));
+        final GeckoBundle decodedInner = decoded.getBundle("object");
+        try {
+            decodedInner.getString("key");
+            fail("Corrupt inner bundle should only fail to decode when accessed");
+        } catch (final IllegalArgumentException e) {
+            assertTrue(true);
+        }
+    }
+
+    @Test
+    public void truncatedDataShouldFailToDecode() {
+        final byte[] data = createBundle().toByteArray();
+        for (final int length : new int[] {0, 1, data.length / 2, data.length - 1}) {
+            try {
+                GeckoBundle.fromByteArray(Arrays.copyOf(data, length)).getBundle("object").size();
+                fail("Truncated data should fail to decode: " + length);
+            } catch (final IllegalArgumentException e) {
+                assertTrue(true);
+            }
+        }
+    }
+
+    private static int indexOf(final byte[] data, final byte[] needle) {
+        outer:
+        for (int i = 0; i <= data.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (data[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Builds a bundle shaped like session state: a list of history entries with the same
+     * keys, plus some larger numeric arrays like those in media and scroll events.
+     */
+    private static GeckoBundle createSessionLikeBundle() {
+        final GeckoBundle[] entries = new GeckoBundle[50];
+        for (int i = 0; i < entries.length; i++) {
+            final GeckoBundle entry = new GeckoBundle(6);
+            entry.putString("url", "https://www.example.com/some/path/" + i + "?query=string");
+            entry.putString("title", "Example page number " + i);
+            entry.putInt("ID", i);
+            entry.putString("docshellUUID", "{1c6ce6a4-4ad1-4c3b-8b0e-0f2d2a2d" + (1000 + i) + "}");
+            entry.putBoolean("persist", true);
+            entry.putIntArray("scroll", new int[] {0, i * 100});
+            entries[i] = entry;
+        }
+
+        final GeckoBundle history = new GeckoBundle(3);
+        history.putInt("index", 49);
+        history.putInt("fromIdx", -1);
+        history.putBundleArray("entries", entries);
+
+        final double[] samples = new double[1000];
+        final int[] offsets = new int[1000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = i * 0.25;
+            offsets[i] = i * 7;
+        }
+
+        final GeckoBundle state = new GeckoBundle(3);
+        state.putBundle("history", history);
+        state.putDoubleArray("samples", samples);
+        state.putIntArray("offsets", offsets);
+        return state;
+    }
+
+    @Test
+    public void encodingShouldBeSmallerThanJSON() throws JSONException {
+        final GeckoBundle state = createSessionLikeBundle();
+
+        final String json = state.toJSONObject().toString();
+        final byte[] binary = state.toByteArray();
+        assertEquals(state, GeckoBundle.fromJSONObject(new JSONObject(json)));
+        assertEquals(state, GeckoBundle.fromByteArray(binary));
+        assertTrue(binary.length < json.length());
+    }
+}
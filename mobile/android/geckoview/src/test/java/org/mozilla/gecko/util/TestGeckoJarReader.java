@@ -0,0 +1,198 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.mozilla.gecko.util;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mozilla.geckoview.BuildConfig;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit test reading entries of an omnijar nested in an APK, the way search plugins are loaded.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TestGeckoJarReader {
+    private static final String SEARCH_PLUGINS = "chrome/chrome/searchplugins/";
+    private static final int PLUGIN_COUNT = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Context context;
+    private File apk;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.application;
+        apk = folder.newFile("fennec.apk");
+        writeApk(apk, /* storeOmnijar */ true, "1");
+    }
+
+    private static byte[] zip(final boolean stored, final String[] names, final byte[][] contents)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (int i = 0; i < names.length; i++) {
+            final ZipEntry entry = new ZipEntry(names[i]);
+            if (stored) {
+                final CRC32 crc = new CRC32();
+                crc.update(contents[i]);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setCrc(crc.getValue());
+                entry.setSize(contents[i].length);
+            }
+            zip.putNextEntry(entry);
+            zip.write(contents[i]);
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeApk(final File file, final boolean storeOmnijar, final String version)
+            throws IOException {
+        final String[] names = new String[PLUGIN_COUNT + 1];
+        final byte[][] contents = new byte[PLUGIN_COUNT + 1][];
+
+        final StringBuilder list = new StringBuilder("{\"version\":\"" + version + "\"}");
+        names[0] = SEARCH_PLUGINS + "list.json";
+        for (int i = 0; i < PLUGIN_COUNT; i++) {
+            names[i + 1] = SEARCH_PLUGINS + "engine" + i + ".xml";
+            final StringBuilder plugin = new StringBuilder("<SearchPlugin>\n");
+            for (int j = 0; j < 100; j++) {
+                plugin.append("<Param name=\"q\" value=\"{searchTerms}\"/>\n");
+            }
+            contents[i + 1] = plugin.append("</SearchPlugin>\n").toString().getBytes("UTF-8");
+        }
+        contents[0] = list.toString().getBytes("UTF-8");
+
+        final byte[] omnijar = zip(/* stored */ false, names, contents);
+        final byte[] apkBytes = zip(storeOmnijar,
+                new String[] { "classes.dex", BuildConfig.OMNIJAR_NAME },
+                new byte[][] { new byte[1024], omnijar });
+
+        final FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(apkBytes);
+        } finally {
+            output.close();
+        }
+    }
+
+    private String url(final String pathInsideJar) {
+        return GeckoJarReader.computeJarURI(apk.getAbsolutePath(), pathInsideJar);
+    }
+
+    private static int drain(final InputStream input) throws IOException {
+        final byte[] buffer = new byte[4096];
+        int total = 0;
+        int read;
+        try {
+            while ((read = input.read(buffer)) > 0) {
+                total += read;
+            }
+        } finally {
+            input.close();
+        }
+        return total;
+    }
+
+    @Test
+    public void testReadsEntriesOfNestedJar() throws Exception {
+        assertEquals("{\"version\":\"1\"}",
+                GeckoJarReader.getText(context, url(SEARCH_PLUGINS + "list.json")));
+
+        final InputStream plugin = GeckoJarReader.getStream(context, url(SEARCH_PLUGINS + "engine3.xml"));
+        assertNotNull(plugin);
+        assertEquals(4031, drain(plugin));
+    }
+
+    @Test
+    public void testReadsEntriesOfCompressedNestedJar() throws Exception {
+        writeApk(apk, /* storeOmnijar */ false, "1");
+        apk.setLastModified(apk.lastModified() + 2000);
+
+        assertEquals("{\"version\":\"1\"}",
+                GeckoJarReader.getText(context, url(SEARCH_PLUGINS + "list.json")));
+    }
+
+    @Test
+    public void testMissingEntriesReturnNull() throws Exception {
+        assertNull(GeckoJarReader.getStream(context, url(SEARCH_PLUGINS + "missing.xml")));
+        assertNull(GeckoJarReader.getStream(context,
+                "jar:jar:" + apk.toURI() + "!/missing.ja!/" + SEARCH_PLUGINS + "list.json"));
+        assertNull(GeckoJarReader.getStream(context,
+                "jar:jar:" + new File(folder.getRoot(), "missing.apk").toURI() + "!/" +
+                BuildConfig.OMNIJAR_NAME + "!/" + SEARCH_PLUGINS + "list.json"));
+
+        // Not a zip archive at all.
+        final File text = folder.newFile("text.txt");
+        final FileOutputStream output = new FileOutputStream(text);
+        output.write("Not a zip archive".getBytes("UTF-8"));
+        output.close();
+        assertNull(GeckoJarReader.getStream(context, "jar:" + text.toURI() + "!/list.json"));
+    }
+
+    @Test
+    public void testModifiedArchiveIsReopened() throws Exception {
+        assertEquals("{\"version\":\"1\"}",
+                GeckoJarReader.getText(context, url(SEARCH_PLUGINS + "list.json")));
+
+        writeApk(apk, /* storeOmnijar */ true, "2");
+        apk.setLastModified(apk.lastModified() + 2000);
+
+        assertEquals("{\"version\":\"2\"}",
+                GeckoJarReader.getText(context, url(SEARCH_PLUGINS + "list.json")));
+    }
+
+    @Test
+    public void testSearchPluginsReuseCachedArchives() throws Exception {
+        loadSearchPlugins();
+
+        // The APK and the omnijar nested in it are indexed once, and shared by all later lookups.
+        final String apkKey = apk.getAbsolutePath();
+        final String omnijarKey = apkKey + "!/" + BuildConfig.OMNIJAR_NAME;
+        final MappedZip apkZip = GeckoJarReader.getCachedZip(apkKey);
+        final MappedZip omnijar = GeckoJarReader.getCachedZip(omnijarKey);
+        assertNotNull(apkZip);
+        assertNotNull(omnijar);
+
+        loadSearchPlugins();
+        assertSame(apkZip, GeckoJarReader.getCachedZip(apkKey));
+        assertSame(omnijar, GeckoJarReader.getCachedZip(omnijarKey));
+    }
+
+    private void loadSearchPlugins() throws IOException {
+        assertNotNull(GeckoJarReader.getText(context, url(SEARCH_PLUGINS + "list.json")));
+        for (int i = 0; i < PLUGIN_COUNT; i++) {
+            final InputStream plugin =
+                    GeckoJarReader.getStream(context, url(SEARCH_PLUGINS + "engine" + i + ".xml"));
+            assertNotNull(plugin);
+            drain(plugin);
+        }
+    }
+}
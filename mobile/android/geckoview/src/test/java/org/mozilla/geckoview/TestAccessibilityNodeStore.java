@@ -0,0 +1,194 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.geckoview;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.view.View;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.gecko.util.GeckoBundle;
+import org.mozilla.geckoview.AccessibilityNodeStore.Node;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestAccessibilityNodeStore {
+    private static GeckoBundle createNode(final int id, final int parentId, final String text,
+                                          final int... children) {
+        final GeckoBundle bundle = new GeckoBundle();
+        bundle.putInt("id", id);
+        bundle.putInt("parentId", parentId);
+        bundle.putInt("className", SessionAccessibility.CLASSNAME_VIEW);
+        bundle.putInt("flags", SessionAccessibility.FLAG_ENABLED | SessionAccessibility.FLAG_VISIBLE_TO_USER);
+        bundle.putString("text", text);
+        bundle.putIntArray("bounds", new int[] { 0, id * 10, 100, id * 10 + 10 });
+        bundle.putIntArray("children", children);
+        return bundle;
+    }
+
+    @Test
+    public void testNodeFromBundle() {
+        final GeckoBundle bundle = createNode(3, View.NO_ID, "Heading", 4, 5);
+        bundle.putString("hint", "Hint");
+        final GeckoBundle range = new GeckoBundle();
+        range.putInt("type", 1);
+        range.putDouble("max", 10);
+        range.putDouble("current", 4);
+        bundle.putBundle("rangeInfo", range);
+
+        final Node node = Node.fromBundle(bundle);
+        assertEquals(3, node.id);
+        assertEquals(View.NO_ID, node.parentId);
+        assertEquals(SessionAccessibility.CLASSNAME_VIEW, node.className);
+        assertTrue((node.flags & SessionAccessibility.FLAG_ENABLED) != 0);
+        assertEquals("Heading", node.text);
+        assertEquals("Hint", node.hint);
+        assertNull(node.roleDescription);
+        assertArrayEquals(new int[] { 4, 5 }, node.children);
+
+        assertTrue(node.hasBounds);
+        assertEquals(30, node.boundsTop);
+        assertEquals(40, node.boundsBottom);
+
+        assertTrue(node.hasRangeInfo);
+        assertEquals(1, node.rangeType);
+        assertEquals(Float.NEGATIVE_INFINITY, node.rangeMin, 0);
+        assertEquals(10, node.rangeMax, 0);
+        assertEquals(4, node.rangeCurrent, 0);
+        assertFalse(node.hasCollectionInfo);
+        assertFalse(node.hasCollectionItemInfo);
+    }
+
+    @Test
+    public void testReplaceViewport() {
+        final AccessibilityNodeStore store = new AccessibilityNodeStore();
+        store.replace(AccessibilityNodeStore.SOURCE_VIEWPORT, new GeckoBundle[] {
+                createNode(View.NO_ID, View.NO_ID, null, 1, 2),
+                createNode(1, View.NO_ID, "One"),
+                null,
+                createNode(2, View.NO_ID, "Two"),
+        });
+        assertEquals(3, store.size());
+        final Node one = store.get(1);
+
+        store.replace(AccessibilityNodeStore.SOURCE_VIEWPORT, new GeckoBundle[] {
+                createNode(View.NO_ID, View.NO_ID, null, 1, 3),
+                createNode(1, View.NO_ID, "One again"),
+                createNode(3, View.NO_ID, "Three"),
+        });
+        assertEquals(3, store.size());
+        assertNull(store.get(2));
+        // Nodes that stay in the viewport are updated in place.
+        assertSame(one, store.get(1));
+        assertEquals("One again", one.text);
+        assertEquals("Three", store.get(3).text);
+    }
+
+    @Test
+    public void testNodesStayWhileInEitherPart() {
+        final AccessibilityNodeStore store = new AccessibilityNodeStore();
+        store.replace(AccessibilityNodeStore.SOURCE_VIEWPORT, new GeckoBundle[] {
+                createNode(1, View.NO_ID, "One"),
+                createNode(2, 1, "Two"),
+        });
+        store.replace(AccessibilityNodeStore.SOURCE_FOCUS_PATH, new GeckoBundle[] {
+                createNode(2, 1, "Two focused"),
+                createNode(5, 2, "Five"),
+        });
+        assertEquals("Two focused", store.get(2).text);
+
+        // Node 2 is still on the focus path after leaving the viewport.
+        store.replace(AccessibilityNodeStore.SOURCE_VIEWPORT, new GeckoBundle[0]);
+        assertNull(store.get(1));
+        assertNotNull(store.get(2));
+
+        store.replace(AccessibilityNodeStore.SOURCE_FOCUS_PATH, new GeckoBundle[0]);
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testMissingKeysKeepValuesOfOtherPart() {
+        final AccessibilityNodeStore store = new AccessibilityNodeStore();
+        final GeckoBundle focused = createNode(2, 1, "Two focused");
+        focused.putString("hint", "Hint");
+        store.replace(AccessibilityNodeStore.SOURCE_FOCUS_PATH, new GeckoBundle[] { focused });
+
+        // The viewport doesn't send the text of its nodes.
+        final GeckoBundle viewport = createNode(2, 1, null);
+        viewport.remove("text");
+        viewport.putIntArray("bounds", new int[] { 0, 50, 100, 60 });
+        store.replace(AccessibilityNodeStore.SOURCE_VIEWPORT, new GeckoBundle[] { viewport });
+
+        final Node two = store.get(2);
+        assertEquals("Two focused", two.text);
+        assertEquals("Hint", two.hint);
+        assertEquals(50, two.boundsTop);
+
+        // The focus path is now the newest part, and a key that is present replaces the
+        // value, even with null.
+        final GeckoBundle cleared = createNode(2, 1, null);
+        store.replace(AccessibilityNodeStore.SOURCE_FOCUS_PATH, new GeckoBundle[] { cleared });
+        assertNull(two.text);
+        assertEquals(20, two.boundsTop);
+
+        // Once the node leaves the focus path, only the viewport's information is left.
+        store.replace(AccessibilityNodeStore.SOURCE_FOCUS_PATH, new GeckoBundle[0]);
+        assertSame(two, store.get(2));
+        assertEquals(50, two.boundsTop);
+    }
+
+    @Test
+    public void testReplaceClearsKeysMissingFromSamePart() {
+        final AccessibilityNodeStore store = new AccessibilityNodeStore();
+        final GeckoBundle cell = createNode(2, 1, "Label");
+        cell.putString("hint", "Hint");
+        final GeckoBundle collectionItem = new GeckoBundle();
+        collectionItem.putInt("rowIndex", 3);
+        collectionItem.putInt("rowSpan", 1);
+        cell.putBundle("collectionItemInfo", collectionItem);
+        store.replace(AccessibilityNodeStore.SOURCE_FOCUS_PATH, new GeckoBundle[] { cell });
+
+        final Node two = store.get(2);
+        assertTrue(two.hasCollectionItemInfo);
+        assertEquals(3, two.collectionItemRowIndex);
+
+        // The node left its table, and its label and hint became empty.
+        final GeckoBundle plain = createNode(2, 1, null);
+        plain.remove("text");
+        store.replace(AccessibilityNodeStore.SOURCE_FOCUS_PATH, new GeckoBundle[] { plain });
+
+        assertSame(two, store.get(2));
+        assertNull(two.text);
+        assertNull(two.hint);
+        assertFalse(two.hasCollectionItemInfo);
+    }
+
+    @Test
+    public void testUpdateBoundsAndFlags() {
+        final AccessibilityNodeStore store = new AccessibilityNodeStore();
+        store.replace(AccessibilityNodeStore.SOURCE_VIEWPORT, new GeckoBundle[] {
+                createNode(1, View.NO_ID, "One"),
+        });
+
+        assertTrue(store.updateBounds(1, new int[] { 5, 6, 7, 8 }));
+        assertFalse(store.updateBounds(2, new int[] { 5, 6, 7, 8 }));
+        final Node one = store.get(1);
+        assertEquals(5, one.boundsLeft);
+        assertEquals(8, one.boundsBottom);
+
+        store.setFlag(1, SessionAccessibility.FLAG_CHECKED, true);
+        assertTrue((one.flags & SessionAccessibility.FLAG_CHECKED) != 0);
+        store.setFlag(1, SessionAccessibility.FLAG_CHECKED, false);
+        assertEquals(0, one.flags & SessionAccessibility.FLAG_CHECKED);
+        assertTrue((one.flags & SessionAccessibility.FLAG_ENABLED) != 0);
+        assertEquals(store.getVersion(), one.version);
+    }
+}
@@ -0,0 +1,99 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.geckoview;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import android.view.MotionEvent;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestPointerSamples {
+    private static MotionEvent.PointerCoords createCoords(final float x, final float y) {
+        final MotionEvent.PointerCoords coords = new MotionEvent.PointerCoords();
+        coords.x = x;
+        coords.y = y;
+        coords.orientation = x / 1000;
+        coords.pressure = 0.5f;
+        coords.toolMajor = 8;
+        coords.toolMinor = 6;
+        return coords;
+    }
+
+    private static MotionEvent createMoveEvent(final int pointerCount, final float offset) {
+        final MotionEvent.PointerProperties[] properties =
+                new MotionEvent.PointerProperties[pointerCount];
+        final MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerCount];
+        for (int i = 0; i < pointerCount; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = 7 + i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = createCoords(offset + 100 * i, offset + 200 * i);
+        }
+
+        return MotionEvent.obtain(/* downTime */ 100, /* eventTime */ 1000,
+                                  MotionEvent.ACTION_MOVE, pointerCount, properties, coords,
+                                  0, 0, 1, 1, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void testFillCopiesEveryPointer() {
+        final MotionEvent event = createMoveEvent(2, 10);
+        final PanZoomController.PointerSamples samples = new PanZoomController.PointerSamples();
+        samples.fill(event);
+        event.recycle();
+
+        assertArrayEquals(new int[] { 7, 8 }, samples.pointerId);
+        assertArrayEquals(new float[] { 10, 110 }, samples.x, 0);
+        assertArrayEquals(new float[] { 10, 210 }, samples.y, 0);
+        assertArrayEquals(new float[] { 0.01f, 0.11f }, samples.orientation, 1e-6f);
+        assertArrayEquals(new float[] { 0.5f, 0.5f }, samples.pressure, 1e-6f);
+        assertArrayEquals(new float[] { 8, 8 }, samples.toolMajor, 0);
+        assertArrayEquals(new float[] { 6, 6 }, samples.toolMinor, 0);
+    }
+
+    @Test
+    public void testArraysAreReusedWhilePointerCountIsUnchanged() {
+        final PanZoomController.PointerSamples samples = new PanZoomController.PointerSamples();
+        MotionEvent event = createMoveEvent(2, 10);
+        samples.fill(event);
+        event.recycle();
+
+        final int[] pointerId = samples.pointerId;
+        final float[] x = samples.x;
+        final float[] toolMinor = samples.toolMinor;
+
+        event = createMoveEvent(2, 20);
+        samples.fill(event);
+        event.recycle();
+
+        assertSame(pointerId, samples.pointerId);
+        assertSame(x, samples.x);
+        assertSame(toolMinor, samples.toolMinor);
+        assertArrayEquals(new float[] { 20, 120 }, samples.x, 0);
+
+        // Native code takes the pointer count from the array length.
+        event = createMoveEvent(3, 30);
+        samples.fill(event);
+        event.recycle();
+
+        assertNotSame(x, samples.x);
+        assertEquals(3, samples.pointerId.length);
+        assertEquals(3, samples.toolMinor.length);
+        assertArrayEquals(new float[] { 30, 130, 230 }, samples.x, 0);
+
+        event = createMoveEvent(1, 40);
+        samples.fill(event);
+        event.recycle();
+
+        assertEquals(1, samples.x.length);
+        assertArrayEquals(new float[] { 40 }, samples.x, 0);
+    }
+}
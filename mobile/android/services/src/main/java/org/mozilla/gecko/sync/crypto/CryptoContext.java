@@ -0,0 +1,128 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Initialized <code>Cipher</code> and <code>Mac</code> instances for a single KeyBundle.
+ *
+ * Looking up JCE providers and initializing a Mac is expensive relative to encrypting a
+ * single small record, and a sync will encrypt or decrypt many thousands of them with the
+ * same keys. Contexts are confined to the thread which created them, so no locking is needed;
+ * each thread keeps a handful of the most recently used ones.
+ *
+ * A context remembers the key arrays it was created with, and is discarded if the KeyBundle
+ * has had its keys replaced since.
+ */
+/* package-private */ class CryptoContext {
+  private static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
+  private static final String KEY_ALGORITHM_SPEC = "AES";
+
+  // Sync rarely uses more than a sync key bundle and a single collection key bundle at once.
+  private static final int MAX_CONTEXTS_PER_THREAD = 4;
+
+  private static final ThreadLocal<ArrayList<CryptoContext>> contexts = new ThreadLocal<ArrayList<CryptoContext>>() {
+    @Override
+    protected ArrayList<CryptoContext> initialValue() {
+      return new ArrayList<>(MAX_CONTEXTS_PER_THREAD);
+    }
+  };
+
+  private final KeyBundle keys;
+  private final byte[] encryptionKey;
+  private final byte[] hmacKey;
+
+  private final SecretKeySpec keySpec;
+  private final Cipher cipher;
+  private final Mac mac;
+  private final byte[] hmacOutput;
+
+  private CryptoContext(KeyBundle keys) throws CryptoException {
+    this.keys = keys;
+    this.encryptionKey = keys.getEncryptionKey();
+    this.hmacKey = keys.getHMACKey();
+    try {
+      this.keySpec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
+      this.cipher = Cipher.getInstance(TRANSFORMATION);
+      this.mac = HKDF.makeHMACHasher(hmacKey);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+    this.hmacOutput = new byte[mac.getMacLength()];
+  }
+
+  /**
+   * Return this thread's context for the given keys, creating one if necessary.
+   */
+  /* package-private */ static CryptoContext forKeyBundle(KeyBundle keys) throws CryptoException {
+    final ArrayList<CryptoContext> cached = contexts.get();
+    for (int i = 0; i < cached.size(); i++) {
+      final CryptoContext context = cached.get(i);
+      if (context.keys != keys) {
+        continue;
+      }
+      if (context.isCurrent()) {
+        return context;
+      }
+      // Keys were swapped out from under us.
+      cached.remove(i);
+      break;
+    }
+
+    final CryptoContext context = new CryptoContext(keys);
+    if (cached.size() >= MAX_CONTEXTS_PER_THREAD) {
+      cached.remove(0);
+    }
+    cached.add(context);
+    return context;
+  }
+
+  private boolean isCurrent() {
+    return keys.getEncryptionKey() == encryptionKey && keys.getHMACKey() == hmacKey;
+  }
+
+  /* package-private */ byte[] hmac(byte[] input) {
+    return mac.doFinal(input);
+  }
+
+  /**
+   * Compare the HMAC of the input with the expected value, in constant time, without
+   * allocating a new output buffer.
+   */
+  /* package-private */ boolean verifyHMAC(byte[] input, byte[] expected) {
+    if (expected == null || expected.length != hmacOutput.length) {
+      return false;
+    }
+    mac.update(input);
+    try {
+      mac.doFinal(hmacOutput, 0);
+    } catch (ShortBufferException e) {
+      // Can't happen: our buffer is sized to the MAC length.
+      throw new IllegalStateException(e);
+    }
+    return MessageDigest.isEqual(hmacOutput, expected);
+  }
+
+  /**
+   * @return this context's cipher, initialized for the given mode and initialization vector.
+   */
+  /* package-private */ Cipher cipher(int mode, byte[] iv) throws GeneralSecurityException {
+    cipher.init(mode, keySpec, new IvParameterSpec(iv));
+    return cipher;
+  }
+
+  /* package-private */ int getBlockSize() {
+    return cipher.getBlockSize();
+  }
+}
@@ -7,15 +7,10 @@ package org.mozilla.gecko.sync.crypto;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.Utils;
@@ -24,9 +19,6 @@ import org.mozilla.gecko.sync.Utils;
  * All info in these objects should be decoded (i.e. not BaseXX encoded).
  */
 public class CryptoInfo {
-  private static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
-  private static final String KEY_ALGORITHM_SPEC = "AES";
-
   private byte[] message;
   private byte[] iv;
   private byte[] hmac;
@@ -113,17 +105,32 @@ public class CryptoInfo {
    * Generate HMAC for given cipher text.
    */
   public static byte[] generatedHMACFor(byte[] message, KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac hmacHasher = HKDF.makeHMACHasher(keys.getHMACKey());
-    return hmacHasher.doFinal(Base64.encodeBase64(message));
+    return contextFor(keys).hmac(Base64.encodeBase64(message));
   }
 
   /*
    * Return true if generated HMAC is the same as the specified HMAC.
    */
   public boolean generatedHMACIsHMAC() throws NoSuchAlgorithmException, InvalidKeyException {
-    byte[] generatedHMAC = generatedHMACFor(getMessage(), getKeys());
-    byte[] expectedHMAC  = getHMAC();
-    return Arrays.equals(generatedHMAC, expectedHMAC);
+    return contextFor(getKeys()).verifyHMAC(Base64.encodeBase64(getMessage()), getHMAC());
+  }
+
+  /**
+   * Fetch the calling thread's cached crypto context for the given keys. Failures to set up a
+   * context are reported the same way as failures to set up an HMAC hasher used to be.
+   */
+  private static CryptoContext contextFor(KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
+    try {
+      return CryptoContext.forKeyBundle(keys);
+    } catch (CryptoException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      }
+      final NoSuchAlgorithmException wrapped = new NoSuchAlgorithmException(e.getMessage());
+      wrapped.initCause(cause);
+      throw wrapped;
+    }
   }
 
   /**
@@ -152,22 +159,14 @@ public class CryptoInfo {
    */
   public void encrypt() throws CryptoException {
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    final CryptoContext context = CryptoContext.forKeyBundle(getKeys());
+    final Cipher cipher;
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-
       // If no IV is provided, use a shared SecureRandom to generate one.
       if (getIV() == null || getIV().length == 0) {
-        cipher.init(
-                Cipher.ENCRYPT_MODE,
-                spec,
-                new IvParameterSpec(
-                        Utils.generateRandomBytes(cipher.getBlockSize())
-                )
-        );
+        cipher = context.cipher(Cipher.ENCRYPT_MODE, Utils.generateRandomBytes(context.getBlockSize()));
       } else {
-        cipher.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(getIV()));
+        cipher = context.cipher(Cipher.ENCRYPT_MODE, getIV());
       }
     } catch (GeneralSecurityException ex) {
       throw new CryptoException(ex);
@@ -207,11 +206,9 @@ public class CryptoInfo {
       throw new CryptoException(e);
     }
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    final Cipher cipher;
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-      cipher.init(Cipher.DECRYPT_MODE, spec, new IvParameterSpec(getIV()));
+      cipher = CryptoContext.forKeyBundle(getKeys()).cipher(Cipher.DECRYPT_MODE, getIV());
     } catch (GeneralSecurityException ex) {
       throw new CryptoException(ex);
     }
@@ -223,17 +220,4 @@ public class CryptoInfo {
     this.setIV(iv);
     this.setMessage(decryptedBytes);
   }
-
-  /**
-   * Helper to get a Cipher object.
-   *
-   * @param transformation The type of Cipher to get.
-   */
-  private static Cipher getCipher(String transformation) throws CryptoException {
-    try {
-      return Cipher.getInstance(transformation);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-      throw new CryptoException(e);
-    }
-  }
 }
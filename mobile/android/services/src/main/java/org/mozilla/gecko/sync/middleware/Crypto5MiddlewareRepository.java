@@ -11,6 +11,7 @@ import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCleanDelegate;
+import org.mozilla.gecko.sync.telemetry.TelemetryStageCollector;
 
 import android.content.Context;
 
@@ -25,6 +26,14 @@ public class Crypto5MiddlewareRepository extends Repository {
   public RecordFactory recordFactory = new IdentityRecordFactory();
 
   public KeyBundle keyBundle;
+
+  // When positive, incoming records are decrypted on this many worker threads.
+  // See {@link PipelinedDecryptingFetchDelegate}. Otherwise, decryption happens on the fetching thread.
+  public int fetchWorkerCount = 0;
+  // When positive, outgoing records are encrypted on this many worker threads.
+  // See {@link PipelinedEncryptingStore}. Otherwise, encryption happens on the storing thread.
+  public int storeWorkerCount = 0;
+  public TelemetryStageCollector telemetryStageCollector;
   private final Repository inner;
 
   public Crypto5MiddlewareRepository(Repository inner, KeyBundle keys) {
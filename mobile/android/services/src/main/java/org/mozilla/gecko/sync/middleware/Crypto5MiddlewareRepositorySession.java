@@ -14,8 +14,10 @@ import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.telemetry.TelemetryStageCollector;
 
 /**
  * It's a RepositorySession that accepts Records as input, producing CryptoRecords
@@ -59,11 +61,20 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySession {
   private final KeyBundle keyBundle;
   private final RecordFactory recordFactory;
+  private final int fetchWorkerCount;
+  private final int storeWorkerCount;
+  // Created on the first store, if records are to be encrypted on worker threads.
+  // Records are stored from a single thread.
+  private PipelinedEncryptingStore encryptingStore;
+  private final TelemetryStageCollector telemetryStageCollector;
 
   public Crypto5MiddlewareRepositorySession(RepositorySession session, Crypto5MiddlewareRepository repository, RecordFactory recordFactory) {
     super(session, repository);
     this.keyBundle = repository.keyBundle;
     this.recordFactory = recordFactory;
+    this.fetchWorkerCount = repository.fetchWorkerCount;
+    this.storeWorkerCount = repository.storeWorkerCount;
+    this.telemetryStageCollector = repository.telemetryStageCollector;
   }
 
   public class DecryptingTransformingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
@@ -84,23 +95,9 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
 
     @Override
     public void onFetchedRecord(Record record) {
-      CryptoRecord r;
+      final Record transformed;
       try {
-        r = (CryptoRecord) record;
-      } catch (ClassCastException e) {
-        next.onFetchFailed(e);
-        return;
-      }
-      r.keyBundle = keyBundle;
-      try {
-        r.decrypt();
-      } catch (Exception e) {
-        next.onFetchFailed(e);
-        return;
-      }
-      Record transformed;
-      try {
-        transformed = this.recordFactory.createRecord(r);
+        transformed = decryptAndTransform(record, keyBundle, recordFactory);
       } catch (Exception e) {
         next.onFetchFailed(e);
         return;
@@ -121,10 +118,25 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     }
   }
 
-  private DecryptingTransformingFetchDelegate makeUnwrappingDelegate(RepositorySessionFetchRecordsDelegate inner) {
+  /**
+   * Decrypt an incoming CryptoRecord and turn it into a local record via the given factory.
+   * Safe to call concurrently for different records.
+   */
+  /* package-private */ static Record decryptAndTransform(Record record, KeyBundle keyBundle, RecordFactory recordFactory) throws Exception {
+    final CryptoRecord r = (CryptoRecord) record;
+    r.keyBundle = keyBundle;
+    r.decrypt();
+    return recordFactory.createRecord(r);
+  }
+
+  private RepositorySessionFetchRecordsDelegate makeUnwrappingDelegate(RepositorySessionFetchRecordsDelegate inner) {
     if (inner == null) {
       throw new IllegalArgumentException("Inner delegate cannot be null!");
     }
+    if (fetchWorkerCount > 0) {
+      return new PipelinedDecryptingFetchDelegate(inner, this.keyBundle, this.recordFactory,
+              fetchWorkerCount, telemetryStageCollector);
+    }
     return new DecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory);
   }
 
@@ -151,15 +163,32 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     this.storeDelegate = delegate;             // So we can handle errors without involving inner.
   }
 
+  /**
+   * Wrap an outgoing record into an encrypted CryptoRecord.
+   * Safe to call concurrently for different records.
+   */
+  /* package-private */ static CryptoRecord encrypt(Record record, KeyBundle keyBundle) throws CryptoException {
+    final CryptoRecord rec = record.getEnvelope();
+    rec.keyBundle = keyBundle;
+    rec.encrypt();
+    return rec;
+  }
+
   @Override
   public void store(Record record) throws NoStoreDelegateException {
     if (storeDelegate == null) {
       throw new NoStoreDelegateException();
     }
-    CryptoRecord rec = record.getEnvelope();
-    rec.keyBundle = this.keyBundle;
+    if (storeWorkerCount > 0) {
+      if (encryptingStore == null) {
+        encryptingStore = new PipelinedEncryptingStore(inner, storeDelegate, keyBundle, storeWorkerCount);
+      }
+      encryptingStore.store(record);
+      return;
+    }
+    final CryptoRecord rec;
     try {
-      rec.encrypt();
+      rec = encrypt(record, this.keyBundle);
     } catch (CryptoException e) {
       storeDelegate.onRecordStoreFailed(e, record.guid);
       return;
@@ -167,4 +196,29 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     // Allow the inner session to do delegate handling.
     inner.store(rec);
   }
+
+  @Override
+  public void storeDone() {
+    if (encryptingStore != null) {
+      encryptingStore.storeDone();
+      return;
+    }
+    inner.storeDone();
+  }
+
+  @Override
+  public void abort() {
+    if (encryptingStore != null) {
+      encryptingStore.shutdown();
+    }
+    super.abort();
+  }
+
+  @Override
+  public void abort(RepositorySessionFinishDelegate delegate) {
+    if (encryptingStore != null) {
+      encryptingStore.shutdown();
+    }
+    super.abort(delegate);
+  }
 }
@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync.middleware;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.mozilla.gecko.sync.SyncException;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
@@ -111,6 +112,11 @@ public abstract class MiddlewareRepositorySession extends RepositorySession {
     inner.storeDone();
   }
 
+  @Override
+  public Future<?> storeCheckpoint() {
+    return inner.storeCheckpoint();
+  }
+
   @Override
   public boolean shouldSkip() {
     return inner.shouldSkip();
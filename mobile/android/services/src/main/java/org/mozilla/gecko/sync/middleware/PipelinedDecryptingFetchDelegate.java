@@ -0,0 +1,226 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.middleware;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.repositories.RecordFactory;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.telemetry.TelemetryStageCollector;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetch delegate which moves HMAC verification, decryption and record transformation off the
+ * fetching thread and onto a small pool of workers.
+ *
+ * The fetching thread (usually the one reading lines off the network) parses the envelope, and
+ * hands each record to this delegate. Records are decrypted concurrently, and then handed off to
+ * the next delegate strictly in the order in which they were fetched, one at a time.
+ *
+ * At most <code>windowSize</code> records may be in flight at any given moment. Once that limit
+ * is reached, <code>onFetchedRecord</code> blocks until the next delegate took an earlier record.
+ * A next delegate which blocks while its sink catches up, as NonBufferingRecordsChannel does,
+ * therefore throttles the download instead of having records pile up in memory.
+ *
+ * The number of records decrypted, and the time spent decrypting them, handing them off and
+ * waiting for room in the window, are added to the stage's telemetry once the fetch completes.
+ *
+ * <code>onFetchCompleted</code> is forwarded only once every in-flight record has been delivered.
+ * Once <code>onFetchFailed</code> is called, or a record fails to decrypt, records still in flight
+ * are dropped.
+ */
+public class PipelinedDecryptingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
+  private static final String LOG_TAG = "PipelinedDecrypt";
+
+  public static final int DEFAULT_WORKER_COUNT = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+  private static final int RECORDS_IN_FLIGHT_PER_WORKER = 32;
+
+  // If a fetch never completes, idle workers go away on their own.
+  private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+  private static final ThreadFactory WORKER_THREAD_FACTORY = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      final Thread thread = new Thread(runnable, LOG_TAG);
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  private final RepositorySessionFetchRecordsDelegate next;
+  private final KeyBundle keyBundle;
+  private final RecordFactory recordFactory;
+  @Nullable private final TelemetryStageCollector telemetryStageCollector;
+
+  private final int workerCount;
+  private final int windowSize;
+  private final ThreadPoolExecutor workers;
+  private final Semaphore window;
+
+  // Set once the fetch failed; from then on, decrypted records are dropped instead of delivered.
+  private volatile boolean failed = false;
+
+  // Sequence numbers are assigned on the fetching thread only.
+  private long submittedCount = 0;
+
+  // Decrypted records (or the exceptions produced while decrypting them) waiting for their turn.
+  /* @GuardedBy("deliveryLock") */ private final HashMap<Long, Object> completed = new HashMap<>();
+  /* @GuardedBy("deliveryLock") */ private long deliveredCount = 0;
+  private final Object deliveryLock = new Object();
+
+  private final AtomicLong decryptNanos = new AtomicLong(0);
+  private final AtomicLong deliverNanos = new AtomicLong(0);
+  private final AtomicLong stalledNanos = new AtomicLong(0);
+
+  public PipelinedDecryptingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle keyBundle,
+                                          RecordFactory recordFactory, int workerCount,
+                                          @Nullable TelemetryStageCollector telemetryStageCollector) {
+    this(next, keyBundle, recordFactory, workerCount, workerCount * RECORDS_IN_FLIGHT_PER_WORKER, telemetryStageCollector);
+  }
+
+  @VisibleForTesting
+  public PipelinedDecryptingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle keyBundle,
+                                          RecordFactory recordFactory, int workerCount, int windowSize,
+                                          @Nullable TelemetryStageCollector telemetryStageCollector) {
+    if (workerCount < 1 || windowSize < 1) {
+      throw new IllegalArgumentException("Worker count and window size must be positive.");
+    }
+    this.next = next;
+    this.keyBundle = keyBundle;
+    this.recordFactory = recordFactory;
+    this.workerCount = workerCount;
+    this.windowSize = windowSize;
+    this.workers = new ThreadPoolExecutor(workerCount, workerCount,
+            WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            WORKER_THREAD_FACTORY);
+    this.workers.allowCoreThreadTimeOut(true);
+    this.window = new Semaphore(windowSize);
+    this.telemetryStageCollector = telemetryStageCollector;
+  }
+
+  @Override
+  public void onFetchFailed(Exception ex) {
+    workers.shutdown();
+    // A worker may be handing off records; the next delegate mustn't see any after the failure.
+    synchronized (deliveryLock) {
+      failed = true;
+      next.onFetchFailed(ex);
+    }
+  }
+
+  @Override
+  public void onFetchedRecord(final Record record) {
+    final long stallStarted = System.nanoTime();
+    window.acquireUninterruptibly();
+    stalledNanos.addAndGet(System.nanoTime() - stallStarted);
+
+    final long sequence = submittedCount++;
+    try {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          final long decryptStarted = System.nanoTime();
+          Object result;
+          try {
+            result = Crypto5MiddlewareRepositorySession.decryptAndTransform(record, keyBundle, recordFactory);
+          } catch (Exception e) {
+            result = e;
+          }
+          decryptNanos.addAndGet(System.nanoTime() - decryptStarted);
+          onRecordProcessed(sequence, result);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The fetch failed already, and this record would be dropped anyway. Keep our sequence intact.
+      onRecordProcessed(sequence, null);
+    }
+  }
+
+  private void onRecordProcessed(long sequence, Object result) {
+    synchronized (deliveryLock) {
+      completed.put(sequence, result);
+
+      // Whichever worker finishes the record we're waiting on delivers it, along with any
+      // consecutive records which were finished before it.
+      while (completed.containsKey(deliveredCount)) {
+        final Object ready = completed.remove(deliveredCount);
+        final long deliverStarted = System.nanoTime();
+        if (failed || ready == null) {
+          Logger.debug(LOG_TAG, "Dropping record after fetch failure.");
+        } else if (ready instanceof Exception) {
+          failed = true;
+          next.onFetchFailed((Exception) ready);
+        } else {
+          next.onFetchedRecord((Record) ready);
+        }
+        deliverNanos.addAndGet(System.nanoTime() - deliverStarted);
+        deliveredCount++;
+        window.release();
+      }
+      deliveryLock.notifyAll();
+    }
+  }
+
+  @Override
+  public void onFetchCompleted() {
+    // Every onFetchedRecord call happened-before this one, so submittedCount is final by now.
+    synchronized (deliveryLock) {
+      while (deliveredCount < submittedCount) {
+        try {
+          deliveryLock.wait();
+        } catch (InterruptedException e) {
+          Logger.warn(LOG_TAG, "Interrupted while waiting for in-flight records.", e);
+          Thread.currentThread().interrupt();
+          workers.shutdown();
+          // We hold deliveryLock again here, so workers still in flight will drop their records.
+          failed = true;
+          next.onFetchFailed(e);
+          return;
+        }
+      }
+    }
+    workers.shutdown();
+    recordTelemetry();
+    next.onFetchCompleted();
+  }
+
+  private void recordTelemetry() {
+    Logger.debug(LOG_TAG, "Decrypted " + submittedCount + " records. Decrypt ms: " + (decryptNanos.get() / 1000000) +
+            ", deliver ms: " + (deliverNanos.get() / 1000000) + ", stalled ms: " + (stalledNanos.get() / 1000000));
+    if (telemetryStageCollector == null) {
+      return;
+    }
+    // Fetches are sequential within a stage, so accumulating here is safe.
+    telemetryStageCollector.fetchDecrypted += submittedCount;
+    telemetryStageCollector.fetchDecryptMillis += decryptNanos.get() / 1000000;
+    telemetryStageCollector.fetchDeliverMillis += deliverNanos.get() / 1000000;
+    telemetryStageCollector.fetchStalledMillis += stalledNanos.get() / 1000000;
+  }
+
+  @Override
+  public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+    // Deliveries already happen off the fetching thread; defer the rest of the chain as requested.
+    final RepositorySessionFetchRecordsDelegate deferredNext = next.deferredFetchDelegate(executor);
+    if (deferredNext == next) {
+      return this;
+    }
+    workers.shutdown();
+    return new PipelinedDecryptingFetchDelegate(deferredNext, keyBundle, recordFactory,
+            workerCount, windowSize, telemetryStageCollector);
+  }
+}
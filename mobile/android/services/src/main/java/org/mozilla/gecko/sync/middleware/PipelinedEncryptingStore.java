@@ -0,0 +1,173 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.middleware;
+
+import android.support.annotation.VisibleForTesting;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
+import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counterpart of {@link PipelinedDecryptingFetchDelegate} for outgoing records.
+ *
+ * Building a record's cleartext payload, encrypting it and computing its HMAC happen on a small
+ * pool of workers. Encrypted records are then handed to the inner session strictly in the order
+ * in which they were stored, one at a time, so the inner session (usually a batching uploader)
+ * assembles its payloads exactly as it would have without this pipeline.
+ *
+ * At most <code>windowSize</code> records may be in flight at any given moment. Once that limit
+ * is reached, <code>store</code> blocks until the inner session consumed an earlier record.
+ *
+ * <code>storeDone</code> is forwarded only once every in-flight record has been delivered.
+ */
+public class PipelinedEncryptingStore {
+  private static final String LOG_TAG = "PipelinedEncrypt";
+
+  public static final int DEFAULT_WORKER_COUNT = PipelinedDecryptingFetchDelegate.DEFAULT_WORKER_COUNT;
+  private static final int RECORDS_IN_FLIGHT_PER_WORKER = 32;
+
+  // If a store fails, we might never see storeDone. Idle workers go away on their own.
+  private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+  private static final ThreadFactory WORKER_THREAD_FACTORY = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      final Thread thread = new Thread(runnable, LOG_TAG);
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  private final RepositorySession next;
+  private final RepositorySessionStoreDelegate storeDelegate;
+  private final KeyBundle keyBundle;
+
+  private final ThreadPoolExecutor workers;
+  private final Semaphore window;
+
+  // Sequence numbers are assigned on the storing thread only.
+  private long submittedCount = 0;
+
+  // Guids along with their encrypted records (or the exceptions produced while encrypting them)
+  // waiting for their turn. A null result marks a record we didn't get to encrypt.
+  /* @GuardedBy("deliveryLock") */ private final HashMap<Long, Object[]> completed = new HashMap<>();
+  /* @GuardedBy("deliveryLock") */ private long deliveredCount = 0;
+  private final Object deliveryLock = new Object();
+
+  public PipelinedEncryptingStore(RepositorySession next, RepositorySessionStoreDelegate storeDelegate,
+                                  KeyBundle keyBundle, int workerCount) {
+    this(next, storeDelegate, keyBundle, workerCount, workerCount * RECORDS_IN_FLIGHT_PER_WORKER);
+  }
+
+  @VisibleForTesting
+  public PipelinedEncryptingStore(RepositorySession next, RepositorySessionStoreDelegate storeDelegate,
+                                  KeyBundle keyBundle, int workerCount, int windowSize) {
+    if (workerCount < 1 || windowSize < 1) {
+      throw new IllegalArgumentException("Worker count and window size must be positive.");
+    }
+    this.next = next;
+    this.storeDelegate = storeDelegate;
+    this.keyBundle = keyBundle;
+    this.workers = new ThreadPoolExecutor(workerCount, workerCount,
+            WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            WORKER_THREAD_FACTORY);
+    this.workers.allowCoreThreadTimeOut(true);
+    this.window = new Semaphore(windowSize);
+  }
+
+  public void store(final Record record) {
+    window.acquireUninterruptibly();
+
+    final long sequence = submittedCount++;
+    try {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          Object result;
+          try {
+            result = Crypto5MiddlewareRepositorySession.encrypt(record, keyBundle);
+          } catch (Exception e) {
+            result = e;
+          }
+          onRecordProcessed(sequence, record.guid, result);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // We've been shut down because the session was aborted. The inner session ignores
+      // records at this point anyway, so just keep our sequence intact.
+      onRecordProcessed(sequence, record.guid, null);
+    }
+  }
+
+  private void onRecordProcessed(long sequence, String guid, Object result) {
+    synchronized (deliveryLock) {
+      completed.put(sequence, new Object[] { guid, result });
+
+      // Whichever worker finishes the record we're waiting on delivers it, along with any
+      // consecutive records which were finished before it.
+      while (completed.containsKey(deliveredCount)) {
+        final Object[] ready = completed.remove(deliveredCount);
+        if (ready[1] == null) {
+          Logger.debug(LOG_TAG, "Dropping record " + ready[0] + " after shutdown.");
+        } else if (ready[1] instanceof Exception) {
+          storeDelegate.onRecordStoreFailed((Exception) ready[1], (String) ready[0]);
+        } else {
+          try {
+            next.store((CryptoRecord) ready[1]);
+          } catch (NoStoreDelegateException e) {
+            // The session checks for a store delegate before handing us any records.
+            throw new IllegalStateException(e);
+          }
+        }
+        deliveredCount++;
+        window.release();
+      }
+      deliveryLock.notifyAll();
+    }
+  }
+
+  /**
+   * Wait for every stored record to be handed to the inner session, and then tell it that we're done.
+   */
+  public void storeDone() {
+    // Every store call happened-before this one, so submittedCount is final by now.
+    synchronized (deliveryLock) {
+      while (deliveredCount < submittedCount) {
+        try {
+          deliveryLock.wait();
+        } catch (InterruptedException e) {
+          Logger.warn(LOG_TAG, "Interrupted while waiting for in-flight records.", e);
+          Thread.currentThread().interrupt();
+          workers.shutdown();
+          storeDelegate.onStoreFailed(e);
+          return;
+        }
+      }
+    }
+    workers.shutdown();
+    Logger.debug(LOG_TAG, "Encrypted " + submittedCount + " records.");
+    next.storeDone();
+  }
+
+  /**
+   * Stop encrypting records. Records which are already encrypted may still be delivered.
+   */
+  public void shutdown() {
+    workers.shutdown();
+  }
+}
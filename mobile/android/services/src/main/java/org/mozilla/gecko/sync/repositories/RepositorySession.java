@@ -9,6 +9,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.SyncException;
@@ -163,6 +164,20 @@ public abstract class RepositorySession {
 
   public void storeIncomplete() {}
 
+  /**
+   * Queue a marker behind the store work queued so far, so that a caller which stores records
+   * as they are fetched can wait for storing to catch up.
+   *
+   * @return a future which completes once the store work queued before it has run.
+   */
+  public Future<?> storeCheckpoint() {
+    return storeWorkQueue.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+  }
+
   public void storeDone() {
     // Our default behavior will be to assume that the Runnable is
     // executed as soon as all the stores synchronously finish, so
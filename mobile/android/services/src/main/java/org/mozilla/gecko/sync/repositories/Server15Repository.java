@@ -35,6 +35,7 @@ public class Server15Repository extends Repository {
   private final InfoConfiguration infoConfiguration;
   private final static String DEFAULT_SORT_ORDER = "oldest";
   private final static long DEFAULT_BATCH_LIMIT = 100;
+  private final static int DEFAULT_MAX_CONCURRENT_PAYLOAD_UPLOADS = 4;
 
   /**
    * Construct a new repository that fetches and stores against the Sync 1.5 API.
@@ -117,6 +118,13 @@ public class Server15Repository extends Repository {
     return false;
   }
 
+  /**
+   * How many payloads of a batch may be uploaded at the same time.
+   */
+  public int getMaxConcurrentPayloadUploads() {
+    return DEFAULT_MAX_CONCURRENT_PAYLOAD_UPLOADS;
+  }
+
   /**
    * A point in time by which this repository's session must complete fetch and store operations.
    * Particularly pertinent for batching downloads performed by the session (should we fetch
@@ -44,7 +44,8 @@ public class Server15RepositorySession extends RepositorySession {
     this.uploader = new BatchingUploader(
             this, storeWorkQueue, storeDelegate, Uri.parse(serverRepository.collectionURI.toString()),
             serverRepository.getCollectionLastModified(), serverRepository.getInfoConfiguration(),
-            serverRepository.authHeaderProvider, serverRepository.getAbortOnStoreFailure());
+            serverRepository.authHeaderProvider, serverRepository.getAbortOnStoreFailure(),
+            serverRepository.getMaxConcurrentPayloadUploads());
   }
 
   private void fetchSince(long timestamp, RepositorySessionFetchRecordsDelegate delegate) {
@@ -239,6 +239,15 @@ import java.util.concurrent.ConcurrentHashMap;
         return null;
     }
 
+    /**
+     * A bookmark's record string includes its parent's title, which isn't stored with it,
+     * so every bookmark is a candidate.
+     */
+    @Override
+    /* package-private */ Cursor fetchByRecordString(String recordString) throws NullCursorException {
+        return dbHelper.fetchAll();
+    }
+
     @Override
     /* package-private */ void updateBookkeeping(Record record) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
         super.updateBookkeeping(record);
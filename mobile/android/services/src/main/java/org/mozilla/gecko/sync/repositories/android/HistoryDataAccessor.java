@@ -16,6 +16,7 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 
@@ -102,6 +103,20 @@ public class HistoryDataAccessor extends
     );
   }
 
+  /**
+   * Fetch history records with the given URL, using the index on the URL column.
+   * <p>
+   * The caller is responsible for closing the cursor.
+   *
+   * @return A cursor. You <b>must</b> close this when you're done with it.
+   * @throws NullCursorException
+   */
+  public Cursor fetchByURL(String url) throws NullCursorException {
+    return queryHelper.safeQuery(".fetchByURL", getAllColumns(),
+                                 BrowserContract.History.URL + " = ?",
+                                 new String[] { url }, null);
+  }
+
   /**
    * Insert records.
    * <p>
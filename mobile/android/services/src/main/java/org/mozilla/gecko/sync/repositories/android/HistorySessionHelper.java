@@ -9,6 +9,7 @@ import android.database.Cursor;
 import android.os.RemoteException;
 import android.support.annotation.VisibleForTesting;
 
+import org.json.simple.JSONArray;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.repositories.NoGuidForIdException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
@@ -20,6 +21,8 @@ import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /* package-private */ class HistorySessionHelper extends SessionHelper {
     private final static String LOG_TAG = "HistorySessionHelper";
@@ -30,6 +33,12 @@ import java.util.ArrayList;
     private static final int INSERT_RECORD_THRESHOLD = 5000;
     private static final int RECENT_VISITS_LIMIT = 20;
 
+    /**
+     * The number of outgoing records for which visits are fetched in a single query.
+     * Kept well below SQLite's limit of 999 bound arguments.
+     */
+    private static final int VISITS_BATCH_SIZE = 250;
+
     private final Object recordsBufferMonitor = new Object();
     private ArrayList<HistoryRecord> recordsBuffer = new ArrayList<HistoryRecord>();
 
@@ -87,6 +96,19 @@ import java.util.ArrayList;
         return buildRecordStringStatic(record);
     }
 
+    /**
+     * A history record's record string is its URL, which is indexed.
+     */
+    @Override
+    /* package-private */ boolean hasRecordStringIndex() {
+        return true;
+    }
+
+    @Override
+    /* package-private */ Cursor fetchByRecordString(String recordString) throws NullCursorException {
+        return ((HistoryDataAccessor) dbHelper).fetchByURL(recordString);
+    }
+
     @VisibleForTesting
     /* package-private */ static String buildRecordStringStatic(Record record) {
         HistoryRecord hist = (HistoryRecord) record;
@@ -126,6 +148,16 @@ import java.util.ArrayList;
         return addVisitsToRecord(record);
     }
 
+    @Override
+    /* package-private */ void transformRecords(List<Record> records) {
+        addVisitsToRecords(records);
+    }
+
+    @Override
+    /* package-private */ int getFetchTransformBatchSize() {
+        return VISITS_BATCH_SIZE;
+    }
+
     @Override
     void doBegin() throws NullCursorException {}
 
@@ -221,6 +253,34 @@ import java.util.ArrayList;
         return record;
     }
 
+    private void addVisitsToRecords(List<Record> records) {
+        Logger.debug(LOG_TAG, "Adding visits for " + records.size() + " records");
+
+        final ArrayList<String> guids = new ArrayList<>(records.size());
+        for (Record record : records) {
+            guids.add(record.guid);
+        }
+
+        // See addVisitsToRecord for why we only upload a recent subset of visits.
+        ContentProviderClient visitsClient = dbHelper.context.getContentResolver().acquireContentProviderClient(BrowserContractHelpers.VISITS_CONTENT_URI);
+        if (visitsClient == null) {
+            throw new IllegalStateException("Could not obtain a ContentProviderClient for Visits URI");
+        }
+
+        final Map<String, JSONArray> visits;
+        try {
+            visits = VisitsHelper.getRecentHistoryVisitsForGUIDs(visitsClient, guids, RECENT_VISITS_LIMIT);
+        } catch (RemoteException e) {
+            throw new IllegalStateException("Error while obtaining visits for records", e);
+        } finally {
+            visitsClient.release();
+        }
+
+        for (Record record : records) {
+            ((HistoryRecord) record).visits = visits.get(record.guid);
+        }
+    }
+
     /**
      * Flush queue of incoming records to database.
      * <p>
@@ -286,4 +286,24 @@ public class RepoUtils {
     builder.append(")");
     return builder.toString();
   }
+
+  private static final long FNV_64_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_64_PRIME = 0x100000001b3L;
+
+  /**
+   * 64-bit FNV-1a hash of a record string. Unlike <code>String.hashCode</code>, collisions are
+   * practically impossible for the number of records we deal with.
+   */
+  public static long hashRecordString(String recordString) {
+    long hash = FNV_64_OFFSET_BASIS;
+    final int length = recordString.length();
+    for (int i = 0; i < length; i++) {
+      final char c = recordString.charAt(i);
+      hash ^= (c & 0xff);
+      hash *= FNV_64_PRIME;
+      hash ^= (c >>> 8);
+      hash *= FNV_64_PRIME;
+    }
+    return hash;
+  }
 }
@@ -5,7 +5,8 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import android.database.Cursor;
-import android.util.SparseArray;
+import android.support.annotation.VisibleForTesting;
+import android.util.LongSparseArray;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
@@ -22,6 +23,8 @@ import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDeleg
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * You'll notice that all delegate calls *either*:
@@ -59,11 +62,14 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
      * The "record string" above is a "record identifying unique key" produced by
      * <code>buildRecordString</code>.
      * <p>
-     * Since we hash each "record string", this map may produce a false positive.
-     * In this case, we search the database for a matching record explicitly using
-     * <code>findByRecordString</code>.
+     * Since we hash each "record string" (see <code>RepoUtils.hashRecordString</code>), this map
+     * may produce a false positive. In this case, we search the database for a matching record
+     * explicitly using <code>findByRecordString</code>.
+     * <p>
+     * Sessions which can look up records by their record string with an indexed query (see
+     * <code>hasRecordStringIndex</code>) never build this map.
      */
-    private SparseArray<String> recordToGuid;
+    private LongSparseArray<String> recordToGuid;
 
     /* package-private */ final DataAccessor dbHelper;
 
@@ -121,6 +127,25 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
      */
     abstract String buildRecordString(Record record);
 
+    /**
+     * Override in subclass if <code>fetchByRecordString</code> is an indexed query, in which
+     * case no in-memory map of record strings is built.
+     */
+    /* package-private */ boolean hasRecordStringIndex() {
+        return false;
+    }
+
+    /**
+     * Fetch candidate local records for a "record string". Every record with a matching record
+     * string must be included; extra candidates are fine, they are filtered out by the caller.
+     * Sessions without a record string index return every record.
+     * <p>
+     * The caller is responsible for closing the cursor.
+     *
+     * @throws NullCursorException
+     */
+    abstract Cursor fetchByRecordString(String recordString) throws NullCursorException;
+
     abstract Record processBeforeInsertion(Record toProcess);
 
     abstract void insert(RepositorySessionStoreDelegate delegate, Record record)
@@ -147,6 +172,29 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
      */
     abstract Record transformRecord(Record record);
 
+    /**
+     * Transform a batch of records fetched from the database, in place.
+     *
+     * Override in subclass if expensive fields can be populated for many records at once;
+     * by default, every record is passed through <code>transformRecord</code>.
+     *
+     * @param records
+     *        Records to transform, in fetch order. Elements may be replaced, including with null.
+     */
+    /* package-private */ void transformRecords(List<Record> records) {
+        for (int i = 0; i < records.size(); i++) {
+            records.set(i, transformRecord(records.get(i)));
+        }
+    }
+
+    /**
+     * Override in subclass to have fetched records handed to <code>transformRecords</code>
+     * in batches of this size.
+     */
+    /* package-private */ int getFetchTransformBatchSize() {
+        return 1;
+    }
+
     abstract Record prepareRecord(Record record);
 
     abstract void doBegin() throws NullCursorException;
@@ -185,14 +233,14 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 
     private void putRecordToGuidMap(String recordString, String guid)
             throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-        if (recordString == null) {
+        if (recordString == null || hasRecordStringIndex()) {
             return;
         }
 
         if (recordToGuid == null) {
             createRecordToGuidMap();
         }
-        recordToGuid.put(recordString.hashCode(), guid);
+        recordToGuid.put(RepoUtils.hashRecordString(recordString), guid);
     }
 
     /* package-private */ Runnable getStoreRunnable(final Record record, final RepositorySessionStoreDelegate storeDelegate) {
@@ -365,7 +413,8 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
      * @throws NullCursorException
      * @throws ParentNotFoundException
      */
-    private Record findExistingRecord(Record record) throws MultipleRecordsForGuidException,
+    @VisibleForTesting
+    /* package-private */ Record findExistingRecord(Record record) throws MultipleRecordsForGuidException,
             NoGuidForIdException, NullCursorException, ParentNotFoundException {
 
         Logger.debug(LOG_TAG, "Finding existing record for incoming record with GUID " + record.guid);
@@ -380,6 +429,11 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
         } else {
             Logger.debug(LOG_TAG, "Searching with record string.");
         }
+
+        if (hasRecordStringIndex()) {
+            return findByRecordString(recordString);
+        }
+
         String guid = getGuidForString(recordString);
         if (guid == null) {
             Logger.debug(LOG_TAG, "Failed to find existing record for " + record.guid);
@@ -391,8 +445,7 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
         // verify our positive.
         Logger.debug(LOG_TAG, "Found one. Checking stored record.");
         Record stored = retrieveByGUIDDuringStore(guid);
-        String storedRecordString = buildRecordString(record);
-        if (recordString.equals(storedRecordString)) {
+        if (stored == null || recordString.equals(buildRecordString(stored))) {
             Logger.debug(LOG_TAG, "Existing record matches incoming record.  Returning existing record.");
             return stored;
         }
@@ -407,7 +460,8 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
     /**
      * Search the local database for a record with the same "record string".
      * <p>
-     * We expect to do this only in the unlikely event of a hash
+     * If the session has a record string index, this is a single indexed query.
+     * Otherwise, we expect to do this only in the unlikely event of a hash
      * collision, so we iterate the database completely.  Since we want
      * to include information about the parents of bookmarks, it is
      * difficult to do better purely using the
@@ -422,7 +476,7 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
      * @throws NoGuidForIdException
      */
     private Record findByRecordString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-        Cursor cur = dbHelper.fetchAll();
+        Cursor cur = fetchByRecordString(recordString);
         try {
             if (!cur.moveToFirst()) {
                 return null;
@@ -447,12 +501,12 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
         if (recordToGuid == null) {
             createRecordToGuidMap();
         }
-        return recordToGuid.get(recordString.hashCode());
+        return recordToGuid.get(RepoUtils.hashRecordString(recordString));
     }
 
     private void createRecordToGuidMap() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
         Logger.info(LOG_TAG, "BEGIN: creating record -> GUID map.");
-        recordToGuid = new SparseArray<>();
+        recordToGuid = new LongSparseArray<>();
 
         // TODO: we should be able to do this entire thing with string concatenations within SQL.
         // Also consider whether it's better to fetch and process every record in the DB into
@@ -467,7 +521,7 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
                 if (record != null) {
                     final String recordString = buildRecordString(record);
                     if (recordString != null) {
-                        recordToGuid.put(recordString.hashCode(), record.guid);
+                        recordToGuid.put(RepoUtils.hashRecordString(recordString), record.guid);
                     }
                 }
                 cur.moveToNext();
@@ -572,18 +626,24 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
                         delegate.onFetchCompleted();
                         return;
                     }
+                    final int batchSize = getFetchTransformBatchSize();
+                    final ArrayList<Record> batch = new ArrayList<>(batchSize);
                     while (!cursor.isAfterLast()) {
                         Record r = retrieveDuringFetch(cursor);
                         if (r != null) {
                             if (filter == null || !filter.excludeRecord(r)) {
                                 Logger.trace(LOG_TAG, "Processing record " + r.guid);
-                                delegate.onFetchedRecord(transformRecord(r));
+                                batch.add(r);
+                                if (batch.size() >= batchSize) {
+                                    transformAndDeliver(batch);
+                                }
                             } else {
                                 Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
                             }
                         }
                         cursor.moveToNext();
                     }
+                    transformAndDeliver(batch);
                     session.setLastFetchTimestamp(end);
                     delegate.onFetchCompleted();
 //                } catch (NoGuidForIdException e) {
@@ -599,6 +659,17 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
                 cursor.close();
             }
         }
+
+        private void transformAndDeliver(ArrayList<Record> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            transformRecords(batch);
+            for (Record record : batch) {
+                delegate.onFetchedRecord(record);
+            }
+            batch.clear();
+        }
     }
 
     /* package-private */ class WipeRunnable implements Runnable {
@@ -13,8 +13,13 @@ import android.support.annotation.NonNull;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.db.BrowserContract.Visits;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * This class is used by History Sync code (see <code>AndroidBrowserHistoryDataAccessor</code> and <code>AndroidBrowserHistoryRepositorySession</code>,
  * and provides utility functions for working with history visits. Primarily we're either inserting visits
@@ -90,6 +95,65 @@ public class VisitsHelper {
         return visits;
     }
 
+    /**
+     * Batched version of <code>getRecentHistoryVisitsForGUID</code>: fetches up to <code>limit</code> most
+     * recent visits for each of the given history GUIDs in a single query.
+     *
+     * Callers are responsible for keeping the number of GUIDs below SQLite's limit on bound arguments.
+     *
+     * @param contentClient <code>ContentProviderClient</code> to use for querying Visits table
+     * @param guids History GUIDs for which to return visits
+     * @param limit Will return at most this number of visits per GUID
+     * @return map of every given GUID to a <code>JSONArray</code> of its visits, most recent first
+     */
+    public static Map<String, JSONArray> getRecentHistoryVisitsForGUIDs(@NonNull ContentProviderClient contentClient,
+                                                                       @NonNull Collection<String> guids, int limit) throws RemoteException {
+        final Map<String, JSONArray> visitsForGUIDs = new HashMap<>(guids.size());
+        for (String guid : guids) {
+            visitsForGUIDs.put(guid, new JSONArray());
+        }
+        if (guids.isEmpty()) {
+            return visitsForGUIDs;
+        }
+
+        final Cursor cursor = contentClient.query(
+                visitsUriWithLimitPerGUID(limit),
+                new String[] {Visits.HISTORY_GUID, Visits.VISIT_TYPE, Visits.DATE_VISITED},
+                RepoUtils.computeSQLInClause(guids.size(), Visits.HISTORY_GUID),
+                guids.toArray(new String[guids.size()]),
+                Visits.HISTORY_GUID + ", " + Visits.DATE_VISITED + " DESC");
+        if (cursor == null) {
+            return visitsForGUIDs;
+        }
+        try {
+            final int guidCol = cursor.getColumnIndexOrThrow(Visits.HISTORY_GUID);
+            final int dateVisitedCol = cursor.getColumnIndexOrThrow(Visits.DATE_VISITED);
+            final int visitTypeCol = cursor.getColumnIndexOrThrow(Visits.VISIT_TYPE);
+
+            // Rows are grouped by GUID, so avoid a map lookup for every visit.
+            String currentGUID = null;
+            JSONArray currentVisits = null;
+            while (cursor.moveToNext()) {
+                final String guid = cursor.getString(guidCol);
+                if (!guid.equals(currentGUID)) {
+                    currentGUID = guid;
+                    currentVisits = visitsForGUIDs.get(guid);
+                }
+                if (currentVisits == null) {
+                    continue;
+                }
+                insertTupleIntoVisitsUnchecked(currentVisits,
+                        cursor.getLong(visitTypeCol),
+                        cursor.getLong(dateVisitedCol)
+                );
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return visitsForGUIDs;
+    }
+
     /**
      * Constructs <code>ContentValues</code> object for a visit based on passed in parameters.
      *
@@ -121,6 +185,13 @@ public class VisitsHelper {
         visits.add(visit);
     }
 
+    private static Uri visitsUriWithLimitPerGUID(int limit) {
+        return BrowserContractHelpers.VISITS_CONTENT_URI
+                .buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT_PER_HISTORY_GUID, Integer.toString(limit))
+                .build();
+    }
+
     private static Uri visitsUriWithLimit(int limit) {
         return BrowserContractHelpers.VISITS_CONTENT_URI
                 .buildUpon()
@@ -20,7 +20,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * NB regarding concurrent access:
  * - this class expects access by possibly different, sequentially running threads.
- * - concurrent access is not supported.
+ * - the exception are non-commit payloads of a batch, which may be uploaded concurrently. Their
+ *   results only add to the success counter, and check token and Last-Modified against values
+ *   which can't change until the batch is committed.
+ * - other concurrent access is not supported.
  */
 public class BatchMeta {
     private static final String LOG_TAG = "BatchMeta";
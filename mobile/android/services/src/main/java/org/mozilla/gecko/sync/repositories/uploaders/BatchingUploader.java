@@ -51,6 +51,8 @@ import java.util.concurrent.atomic.AtomicLong;
  * - BatchMeta within PayloadDispatcher acts as a shared whiteboard which is used for tracking
  *   information across batches (last-modified, batching mode) as well as batch side-effects (stored guids)
  *
+ * Payloads of a batch which don't commit it may be uploaded concurrently, see {@link PayloadDispatcher}.
+ *
  * Non-batching mode notes:
  * We also support Sync servers which don't enable batching for uploads. In this case, we respect
  * payload limits for individual uploads, and every upload is considered a commit. Batching limits
@@ -112,16 +114,31 @@ public class BatchingUploader {
     @VisibleForTesting
     protected final boolean shouldFailBatchOnFailure;
 
+    // How many non-commit payloads of a batch may be in flight at the same time.
+    /* package-local */ final int maxConcurrentPayloads;
+
     public BatchingUploader(
             final RepositorySession repositorySession, final ExecutorService workQueue,
             final RepositorySessionStoreDelegate sessionStoreDelegate, final Uri baseCollectionUri,
             final Long localCollectionLastModified, final InfoConfiguration infoConfiguration,
             final AuthHeaderProvider authHeaderProvider, final boolean shouldAbortOnFailure) {
+        this(repositorySession, workQueue, sessionStoreDelegate, baseCollectionUri,
+                localCollectionLastModified, infoConfiguration, authHeaderProvider,
+                shouldAbortOnFailure, 1);
+    }
+
+    public BatchingUploader(
+            final RepositorySession repositorySession, final ExecutorService workQueue,
+            final RepositorySessionStoreDelegate sessionStoreDelegate, final Uri baseCollectionUri,
+            final Long localCollectionLastModified, final InfoConfiguration infoConfiguration,
+            final AuthHeaderProvider authHeaderProvider, final boolean shouldAbortOnFailure,
+            final int maxConcurrentPayloads) {
         this.repositorySession = repositorySession;
         this.sessionStoreDelegate = sessionStoreDelegate;
         this.collectionUri = baseCollectionUri;
         this.authHeaderProvider = authHeaderProvider;
         this.shouldFailBatchOnFailure = shouldAbortOnFailure;
+        this.maxConcurrentPayloads = maxConcurrentPayloads;
 
         this.uploaderMeta = new UploaderMeta(
                 payloadLock, infoConfiguration.maxTotalBytes, infoConfiguration.maxTotalRecords);
@@ -324,7 +341,7 @@ public class BatchingUploader {
      */
     @VisibleForTesting
     PayloadDispatcher createPayloadDispatcher(ExecutorService workQueue, Long localCollectionLastModified) {
-        return new PayloadDispatcher(workQueue, this, localCollectionLastModified);
+        return new PayloadDispatcher(workQueue, this, localCollectionLastModified, maxConcurrentPayloads);
     }
 
     /* package-local */ static class BatchingUploaderException extends Exception {
@@ -15,6 +15,10 @@ import org.mozilla.gecko.sync.net.SyncStorageResponse;
 
 import java.util.ArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -23,10 +27,18 @@ import java.util.concurrent.atomic.AtomicLong;
  *
  * All of the methods, except for `queue` and `finalizeQueue`, will be called from the thread(s)
  * running sequentially on the SingleThreadExecutor `executor`.
+ *
+ * Once the server gave us a batch token, payloads which don't commit the batch may be uploaded
+ * concurrently on a separate pool, up to `maxConcurrentPayloads` at a time. Their results only
+ * touch thread-safe parts of the whiteboard. A commit payload, and the final flush, are uploaded
+ * on the `executor` only after all of the preceding payloads have been acknowledged.
  */
 class PayloadDispatcher {
     private static final String LOG_TAG = "PayloadDispatcher";
 
+    // Idle upload threads go away after this long, so we don't need to shut the pool down.
+    private static final long UPLOAD_THREAD_KEEP_ALIVE_SECONDS = 10;
+
     // All payload runnables share the same whiteboard.
     // It's accessed directly by the runnables; tests also make use of this direct access.
     volatile BatchMeta batchWhiteboard;
@@ -39,11 +51,28 @@ class PayloadDispatcher {
     // Read by many threads running concurrently on the records consumer thread pool.
     final AtomicBoolean storeFailed = new AtomicBoolean(false);
 
+    private final int maxConcurrentPayloads;
+    // One permit per payload which may be in flight on the upload pool.
+    // Acquired only by the `executor`, released by the upload pool.
+    private final Semaphore uploadPermits;
+    // Created when first needed. Accessed only by the `executor`.
+    private ThreadPoolExecutor uploadPool;
+
     PayloadDispatcher(Executor executor, BatchingUploader uploader, @Nullable Long initialLastModified) {
+        this(executor, uploader, initialLastModified, 1);
+    }
+
+    PayloadDispatcher(Executor executor, BatchingUploader uploader, @Nullable Long initialLastModified, int maxConcurrentPayloads) {
+        if (maxConcurrentPayloads < 1) {
+            throw new IllegalArgumentException("maxConcurrentPayloads must be at least 1");
+        }
+
         // Initially we don't know if we're in a batching mode.
         this.batchWhiteboard = new BatchMeta(initialLastModified, null);
         this.uploader = uploader;
         this.executor = executor;
+        this.maxConcurrentPayloads = maxConcurrentPayloads;
+        this.uploadPermits = new Semaphore(maxConcurrentPayloads);
     }
 
     void queue(
@@ -56,11 +85,72 @@ class PayloadDispatcher {
         executor.execute(new BatchContextRunnable(isCommit) {
             @Override
             public void run() {
-                createRecordUploadRunnable(outgoing, outgoingGuids, byteCount, isCommit, isLastPayload).run();
+                final Runnable upload = createRecordUploadRunnable(outgoing, outgoingGuids, byteCount, isCommit, isLastPayload);
+                if (mayUploadConcurrently(isCommit)) {
+                    uploadConcurrently(upload);
+                    return;
+                }
+
+                awaitConcurrentUploads();
+                upload.run();
             }
         });
     }
 
+    /**
+     * Payloads may be uploaded concurrently only after the batch has been started by a previous
+     * payload, and only until it's committed. Outside of a batch every payload is a commit, and
+     * must see the Last-Modified timestamp of the one before it.
+     */
+    private boolean mayUploadConcurrently(final boolean isCommit) {
+        return maxConcurrentPayloads > 1
+                && !isCommit
+                && Boolean.TRUE.equals(batchWhiteboard.getInBatchingMode())
+                && batchWhiteboard.getToken() != null;
+    }
+
+    private void uploadConcurrently(final Runnable upload) {
+        // Blocks the executor, and so any further payloads, while our window is full.
+        uploadPermits.acquireUninterruptibly();
+        try {
+            getUploadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        upload.run();
+                    } finally {
+                        uploadPermits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            uploadPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait until every payload that was uploaded concurrently has been acknowledged.
+     */
+    private void awaitConcurrentUploads() {
+        if (maxConcurrentPayloads == 1) {
+            return;
+        }
+        uploadPermits.acquireUninterruptibly(maxConcurrentPayloads);
+        uploadPermits.release(maxConcurrentPayloads);
+    }
+
+    private ThreadPoolExecutor getUploadPool() {
+        if (uploadPool == null) {
+            uploadPool = new ThreadPoolExecutor(
+                    maxConcurrentPayloads, maxConcurrentPayloads,
+                    UPLOAD_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            uploadPool.allowCoreThreadTimeOut(true);
+        }
+        return uploadPool;
+    }
+
     void setInBatchingMode(boolean inBatchingMode) {
         batchWhiteboard.setInBatchingMode(inBatchingMode);
         uploader.setUnlimitedMode(!inBatchingMode);
@@ -114,6 +204,7 @@ class PayloadDispatcher {
             @Override
             public void run() {
                 // Must be called after last payload upload finishes.
+                awaitConcurrentUploads();
                 if (needToCommit && Boolean.TRUE.equals(batchWhiteboard.getInBatchingMode())) {
                     finalRunnable.run();
 
@@ -21,6 +21,8 @@ import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.delegates.WipeServerDelegate;
 import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepository;
+import org.mozilla.gecko.sync.middleware.PipelinedDecryptingFetchDelegate;
+import org.mozilla.gecko.sync.middleware.PipelinedEncryptingStore;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageRequest;
@@ -207,6 +209,9 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     KeyBundle collectionKey = session.keyBundleForCollection(collection);
     Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(getRemoteRepository(), collectionKey);
     cryptoRepo.recordFactory = getRecordFactory();
+    cryptoRepo.fetchWorkerCount = PipelinedDecryptingFetchDelegate.DEFAULT_WORKER_COUNT;
+    cryptoRepo.storeWorkerCount = PipelinedEncryptingStore.DEFAULT_WORKER_COUNT;
+    cryptoRepo.telemetryStageCollector = telemetryStageCollector;
     return cryptoRepo;
   }
 
@@ -4,17 +4,38 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
+import android.support.annotation.VisibleForTesting;
+
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
 /**
  * Same as a regular RecordsChannel, except records aren't buffered and are stored when encountered.
+ *
+ * Sinks usually store records on a work queue of their own. Every
+ * <code>STORE_CHECKPOINT_INTERVAL</code> records, a checkpoint is queued behind them, and once
+ * more than <code>MAX_PENDING_CHECKPOINTS</code> are waiting, <code>onFetchedRecord</code> blocks
+ * until the oldest one has run. A slow sink therefore throttles the fetch, instead of having
+ * records pile up in its queue.
  */
 public class NonBufferingRecordsChannel extends RecordsChannel {
     private static final String LOG_TAG = "NonBufferingRecordsChannel";
 
+    @VisibleForTesting
+    public static final int STORE_CHECKPOINT_INTERVAL = 250;
+    @VisibleForTesting
+    public static final int MAX_PENDING_CHECKPOINTS = 4;
+
+    // Records are fetched one at a time, so this is only touched by one thread at a time.
+    private final ArrayDeque<Future<?>> pendingCheckpoints = new ArrayDeque<>();
+
     public NonBufferingRecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate) {
         super(source, sink, delegate);
     }
@@ -26,7 +47,7 @@ public class NonBufferingRecordsChannel extends RecordsChannel {
             return;
         }
 
-        fetchedCount.incrementAndGet();
+        final int count = fetchedCount.incrementAndGet();
         storeAttemptedCount.incrementAndGet();
 
         try {
@@ -35,6 +56,31 @@ public class NonBufferingRecordsChannel extends RecordsChannel {
             // Must not happen, bail out.
             throw new IllegalStateException(e);
         }
+
+        if (count % STORE_CHECKPOINT_INTERVAL == 0) {
+            waitForSink();
+        }
+    }
+
+    private void waitForSink() {
+        try {
+            pendingCheckpoints.add(sink.storeCheckpoint());
+        } catch (RejectedExecutionException e) {
+            // The sink is finished already; there is nothing left to wait for.
+            return;
+        }
+
+        while (pendingCheckpoints.size() > MAX_PENDING_CHECKPOINTS) {
+            try {
+                pendingCheckpoints.remove().get();
+            } catch (ExecutionException e) {
+                // Checkpoints don't do anything, so they can't fail.
+            } catch (InterruptedException e) {
+                Logger.warn(LOG_TAG, "Interrupted while waiting for the sink to store records.", e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
     @Override
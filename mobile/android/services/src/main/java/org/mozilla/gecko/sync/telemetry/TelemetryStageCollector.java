@@ -29,6 +29,12 @@ public class TelemetryStageCollector {
     public volatile ExtendedJSONObject validation = null;
     public volatile List<StoreBatchTracker.Batch> outbound = null;
 
+    // Throughput of the incoming decryption pipeline, see PipelinedDecryptingFetchDelegate.
+    public volatile long fetchDecrypted = 0L;
+    public volatile long fetchDecryptMillis = 0L;
+    public volatile long fetchDeliverMillis = 0L;
+    public volatile long fetchStalledMillis = 0L;
+
     public TelemetryStageCollector(TelemetryCollector syncCollector) {
         this.syncCollector = syncCollector;
     }
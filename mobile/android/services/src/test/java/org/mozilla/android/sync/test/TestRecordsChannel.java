@@ -16,12 +16,16 @@ import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
 import org.mozilla.gecko.sync.synchronizer.NonBufferingRecordsChannel;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannel;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannelDelegate;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -454,4 +458,78 @@ public class TestRecordsChannel {
     // Number of store attempts.
     assertEquals(sourceRepository.wbos.size(), recordsChannel.getStoreAttemptedCount());
   }
+
+  private static class SlowStoreSession extends RepositorySession {
+    final CountDownLatch storing = new CountDownLatch(1);
+    final AtomicInteger stored = new AtomicInteger(0);
+
+    SlowStoreSession() {
+      super(null);
+    }
+
+    @Override
+    public void store(Record record) {
+      storeWorkQueue.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            storing.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          stored.incrementAndGet();
+        }
+      });
+    }
+
+    @Override
+    public void fetchModified(RepositorySessionFetchRecordsDelegate delegate) {
+    }
+
+    @Override
+    public void fetch(String[] guids, RepositorySessionFetchRecordsDelegate delegate) {
+    }
+
+    @Override
+    public void fetchAll(RepositorySessionFetchRecordsDelegate delegate) {
+    }
+
+    @Override
+    public void wipe(RepositorySessionWipeDelegate delegate) {
+    }
+  }
+
+  @Test
+  public void testSlowSinkThrottlesFetchNB() throws Exception {
+    final int limit = NonBufferingRecordsChannel.STORE_CHECKPOINT_INTERVAL *
+            (NonBufferingRecordsChannel.MAX_PENDING_CHECKPOINTS + 1);
+    final int total = limit * 2;
+
+    sourceRepository = full();
+    final SlowStoreSession sink = new SlowStoreSession();
+    final RecordsChannel channel = new NonBufferingRecordsChannel(
+            sourceRepository.createSession(null), sink, rcDelegate);
+
+    final AtomicInteger fetched = new AtomicInteger(0);
+    final Thread fetcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < total; i++) {
+          channel.onFetchedRecord(new BookmarkRecord("guid" + i, "bookmarks", 1, false));
+          fetched.incrementAndGet();
+        }
+      }
+    });
+    fetcher.start();
+
+    // The sink hasn't stored anything, so the fetch stops once enough records wait for it.
+    fetcher.join(500);
+    assertTrue(fetcher.isAlive());
+    assertEquals(limit - 1, fetched.get());
+
+    sink.storing.countDown();
+    fetcher.join(5000);
+    assertFalse(fetcher.isAlive());
+    assertEquals(total, fetched.get());
+  }
 }
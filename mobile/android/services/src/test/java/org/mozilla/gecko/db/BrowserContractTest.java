@@ -28,6 +28,9 @@ public class BrowserContractTest {
 
         assertTrue(sqlBookmarksAsc.startsWith("(CASE WHEN bookmark_id > -1 THEN 100 ELSE 0 END) + "));
         assertTrue(sqlBookmarksDesc.startsWith("(CASE WHEN bookmark_id > -1 THEN 100 ELSE 0 END) + "));
+
+        // Sorting uses the stored score.
+        assertEquals("frecency DESC", sqlNoBookmarksDesc);
     }
 
     @Test
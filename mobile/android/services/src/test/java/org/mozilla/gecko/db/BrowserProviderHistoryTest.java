@@ -262,6 +262,52 @@ public class BrowserProviderHistoryTest extends BrowserProviderHistoryVisitsTest
         }
     }
 
+    /**
+     * Test that the stored frecency follows changes to the visit aggregates.
+     */
+    @Test
+    public void testHistoryFrecency() throws Exception {
+        final String url = "https://www.mozilla.org";
+        insertHistoryItem(url, null, System.currentTimeMillis(), null);
+
+        // A page without visits gets the minimal local frecency, (0 + 2) * (0 + 2) * 2.
+        final long unvisitedFrecency = getFrecency(url);
+        assertEquals(8, unvisitedFrecency);
+
+        final ContentValues cv = new ContentValues();
+        cv.put(BrowserContract.History.LOCAL_DATE_LAST_VISITED, System.currentTimeMillis());
+        cv.put(BrowserContract.History.LOCAL_VISITS, 5);
+        historyClient.update(historyTestUri, cv, BrowserContract.History.URL + " = ?", new String[] {url});
+        final long localFrecency = getFrecency(url);
+        assertTrue(localFrecency > unvisitedFrecency);
+
+        cv.clear();
+        cv.put(BrowserContract.History.REMOTE_DATE_LAST_VISITED, System.currentTimeMillis());
+        cv.put(BrowserContract.History.REMOTE_VISITS, 3);
+        historyClient.update(historyTestUri, cv, BrowserContract.History.URL + " = ?", new String[] {url});
+        assertTrue(getFrecency(url) > localFrecency);
+
+        // Updating other fields leaves frecency alone.
+        final long frecency = getFrecency(url);
+        cv.clear();
+        cv.put(BrowserContract.History.TITLE, "New title");
+        historyClient.update(historyTestUri, cv, BrowserContract.History.URL + " = ?", new String[] {url});
+        assertEquals(frecency, getFrecency(url));
+    }
+
+    private long getFrecency(String url) throws RemoteException {
+        final Cursor c = historyClient.query(testUri(BrowserContract.Combined.CONTENT_URI),
+                new String[] { BrowserContract.Combined.FRECENCY },
+                BrowserContract.Combined.URL + " = ?", new String[] { url }, null);
+        assertNotNull(c);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
     private void assertHistoryValuesForGuidsFromSync(int expectedCount, String title, String url, Long remoteLastVisited, Integer visits) throws RemoteException {
         final Cursor c = historyClient.query(historyTestUri, new String[] {
                 BrowserContract.History.TITLE,
@@ -24,8 +24,12 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowContentResolver;
 
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
@@ -445,6 +449,58 @@ public class LocalBrowserDBTest {
         }
     }
 
+    @Test
+    public void testFilter() throws Exception {
+        final BrowserDB db = new LocalBrowserDB("default");
+        final ContentResolver cr = context.getContentResolver();
+
+        db.addBookmark(cr, BOOKMARK_TITLE, BOOKMARK_URL);
+        db.updateVisitedHistory(cr, UPDATE_URL);
+        db.updateHistoryTitle(cr, UPDATE_URL, UPDATE_TITLE);
+
+        assertFilterMatches(db, cr, "moz", BOOKMARK_URL, UPDATE_URL);
+        assertFilterMatches(db, cr, "BUGZ", UPDATE_URL);
+        assertFilterMatches(db, cr, "www.mozilla", BOOKMARK_URL);
+        assertFilterMatches(db, cr, "mozilla.org bug", UPDATE_URL);
+        assertFilterMatches(db, cr, "firefox");
+
+        // Titles are kept up to date.
+        db.updateHistoryTitle(cr, UPDATE_URL, "Bug tracker");
+        assertFilterMatches(db, cr, "tracker", UPDATE_URL);
+        assertFilterMatches(db, cr, UPDATE_TITLE, UPDATE_URL);
+        assertFilterMatches(db, cr, "bugzilla.mozilla", UPDATE_URL);
+        assertFilterMatches(db, cr, "zilla");
+
+        // Words without any tokens are still applied.
+        assertFilterMatches(db, cr, "https://www", BOOKMARK_URL);
+    }
+
+    @Test
+    public void testGetSearchIndexQuery() {
+        assertEquals("\"moz*\"", LocalBrowserDB.getSearchIndexQuery(new String[] { "Moz" }, 1));
+        assertEquals("\"mozilla o*\" \"bug*\"",
+                LocalBrowserDB.getSearchIndexQuery(new String[] { "mozilla.o", "", "bug/" }, 3));
+        assertEquals("\"https www*\"", LocalBrowserDB.getSearchIndexQuery(new String[] { "https://www" }, 1));
+        assertEquals("\"caf\u00e9*\"", LocalBrowserDB.getSearchIndexQuery(new String[] { "caf\u00e9" }, 1));
+        assertNull(LocalBrowserDB.getSearchIndexQuery(new String[] { "://", "" }, 2));
+        assertNull(LocalBrowserDB.getSearchIndexQuery(new String[] { "a", "b" }, 0));
+    }
+
+    private void assertFilterMatches(BrowserDB db, ContentResolver cr, String constraint, String... expectedUrls) {
+        final Cursor cursor = db.filter(cr, constraint, 100, EnumSet.noneOf(BrowserDB.FilterFlags.class));
+        assertNotNull(cursor);
+
+        final Set<String> urls = new HashSet<>();
+        try {
+            while (cursor.moveToNext()) {
+                urls.add(cursor.getString(cursor.getColumnIndexOrThrow(BrowserContract.Combined.URL)));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(new HashSet<>(Arrays.asList(expectedUrls)), urls);
+    }
+
     private long getBookmarkIdFromGuid(String guid) throws RemoteException {
         Cursor cursor = bookmarkClient.query(BrowserContract.Bookmarks.CONTENT_URI,
                                              new String[] { BrowserContract.Bookmarks._ID },
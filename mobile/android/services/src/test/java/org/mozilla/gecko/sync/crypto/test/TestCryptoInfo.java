@@ -9,6 +9,7 @@ import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HMACVerificationException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.util.StringUtils;
 import org.robolectric.RobolectricTestRunner;
@@ -20,6 +21,7 @@ import java.security.NoSuchAlgorithmException;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(RobolectricTestRunner.class)
 public class TestCryptoInfo {
@@ -142,4 +144,37 @@ public class TestCryptoInfo {
     assertArrayEquals(Base64.decodeBase64(base64CipherText), encrypted.getMessage());
     assertArrayEquals(Utils.hex2Byte(base16Hmac), encrypted.getHMAC());
   }
+
+  @Test
+  public void testKeyChangeIsNotMaskedByCachedContext() throws CryptoException {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    byte[] plaintext = "plaintext".getBytes(StringUtils.UTF_8);
+    CryptoInfo encrypted = CryptoInfo.encrypt(plaintext, kb);
+
+    // Swap out the HMAC key on the same bundle; verification must now fail.
+    kb.setHMACKey(KeyBundle.withRandomKeys().getHMACKey());
+    try {
+      CryptoInfo.decrypt(encrypted.getMessage(), encrypted.getIV(), encrypted.getHMAC(), kb);
+      fail("Expected HMAC verification to fail.");
+    } catch (HMACVerificationException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testRoundTripsWithManyBundles() throws CryptoException {
+    // More bundles than we keep contexts for, interleaved.
+    KeyBundle[] bundles = new KeyBundle[10];
+    for (int i = 0; i < bundles.length; i++) {
+      bundles[i] = KeyBundle.withRandomKeys();
+    }
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < bundles.length; i++) {
+        byte[] plaintext = ("plaintext " + round + " " + i).getBytes(StringUtils.UTF_8);
+        CryptoInfo encrypted = CryptoInfo.encrypt(plaintext, bundles[i]);
+        CryptoInfo decrypted = CryptoInfo.decrypt(encrypted.getMessage(), encrypted.getIV(), encrypted.getHMAC(), bundles[i]);
+        assertArrayEquals(plaintext, decrypted.getMessage());
+      }
+    }
+  }
 }
@@ -0,0 +1,330 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.middleware.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.middleware.PipelinedDecryptingFetchDelegate;
+import org.mozilla.gecko.sync.repositories.RecordFactory;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.telemetry.TelemetryStageCollector;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestPipelinedDecryptingFetchDelegate {
+  private static final int RECORD_COUNT = 500;
+
+  private KeyBundle keyBundle;
+  private CollectingFetchDelegate collector;
+
+  private static class CollectingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
+    final List<Record> fetched = Collections.synchronizedList(new ArrayList<Record>());
+    final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+    volatile boolean completed = false;
+    volatile int fetchedWhenCompleted = -1;
+
+    @Override
+    public void onFetchFailed(Exception ex) {
+      failures.add(ex);
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      fetched.add(record);
+    }
+
+    @Override
+    public void onFetchCompleted() {
+      fetchedWhenCompleted = fetched.size();
+      completed = true;
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    keyBundle = KeyBundle.withRandomKeys();
+    collector = new CollectingFetchDelegate();
+  }
+
+  private CryptoRecord encryptedBookmark(int i) throws Exception {
+    final BookmarkRecord record = new BookmarkRecord(String.format("guid%08d", i), "bookmarks", 1000L + i, false);
+    record.title = "Bookmark " + i;
+    final CryptoRecord envelope = record.getEnvelope();
+    envelope.keyBundle = keyBundle;
+    return envelope.encrypt();
+  }
+
+  @Test
+  public void testRecordsAreDeliveredInOrder() throws Exception {
+    final PipelinedDecryptingFetchDelegate pipeline = new PipelinedDecryptingFetchDelegate(
+            collector, keyBundle, new BookmarkRecordFactory(), 3, null);
+
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      pipeline.onFetchedRecord(encryptedBookmark(i));
+    }
+    pipeline.onFetchCompleted();
+
+    assertTrue(collector.completed);
+    assertTrue(collector.failures.isEmpty());
+    assertEquals(RECORD_COUNT, collector.fetchedWhenCompleted);
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      final BookmarkRecord record = (BookmarkRecord) collector.fetched.get(i);
+      assertEquals(String.format("guid%08d", i), record.guid);
+      assertEquals("Bookmark " + i, record.title);
+    }
+  }
+
+  @Test
+  public void testThroughputIsAddedToStageTelemetry() throws Exception {
+    final TelemetryStageCollector stageCollector = new TelemetryStageCollector(null);
+    stageCollector.fetchDecrypted = 7;
+
+    final PipelinedDecryptingFetchDelegate pipeline = new PipelinedDecryptingFetchDelegate(
+            collector, keyBundle, new BookmarkRecordFactory(), 2, stageCollector);
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      pipeline.onFetchedRecord(encryptedBookmark(i));
+    }
+    assertEquals(7, stageCollector.fetchDecrypted);
+    pipeline.onFetchCompleted();
+
+    assertEquals(7 + RECORD_COUNT, stageCollector.fetchDecrypted);
+    assertTrue(stageCollector.fetchDecryptMillis >= 0);
+    assertTrue(stageCollector.fetchDeliverMillis >= 0);
+    assertTrue(stageCollector.fetchStalledMillis >= 0);
+  }
+
+  @Test
+  public void testDecryptionFailureIsReportedInPlace() throws Exception {
+    final PipelinedDecryptingFetchDelegate pipeline = new PipelinedDecryptingFetchDelegate(
+            collector, keyBundle, new BookmarkRecordFactory(), 2, null);
+
+    pipeline.onFetchedRecord(encryptedBookmark(0));
+    final CryptoRecord corrupt = encryptedBookmark(1);
+    corrupt.payload.put("hmac", "00");
+    pipeline.onFetchedRecord(corrupt);
+    pipeline.onFetchedRecord(encryptedBookmark(2));
+    pipeline.onFetchCompleted();
+
+    assertTrue(collector.completed);
+    assertEquals(1, collector.failures.size());
+    // Records after the failed one are dropped.
+    assertEquals(1, collector.fetched.size());
+    assertEquals("guid00000000", collector.fetched.get(0).guid);
+  }
+
+  @Test
+  public void testRecordsInFlightAreDroppedAfterFetchFailure() throws Exception {
+    final CountDownLatch decrypting = new CountDownLatch(1);
+    final BookmarkRecordFactory bookmarkFactory = new BookmarkRecordFactory();
+    final RecordFactory blockingFactory = new RecordFactory() {
+      @Override
+      public Record createRecord(Record record) {
+        try {
+          decrypting.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return bookmarkFactory.createRecord(record);
+      }
+    };
+
+    final PipelinedDecryptingFetchDelegate pipeline = new PipelinedDecryptingFetchDelegate(
+            collector, keyBundle, blockingFactory, 2, null);
+    for (int i = 0; i < 3; i++) {
+      pipeline.onFetchedRecord(encryptedBookmark(i));
+    }
+
+    final Exception failure = new Exception("Fetch failed.");
+    pipeline.onFetchFailed(failure);
+    // Records fetched after the failure are dropped too.
+    pipeline.onFetchedRecord(encryptedBookmark(3));
+    decrypting.countDown();
+
+    // Returns once every record was either delivered or dropped.
+    pipeline.onFetchCompleted();
+
+    assertTrue(collector.fetched.isEmpty());
+    assertEquals(1, collector.failures.size());
+    assertEquals(failure, collector.failures.get(0));
+  }
+
+  @Test
+  public void testRecordsInFlightAreDroppedAfterInterruptedCompletion() throws Exception {
+    final CountDownLatch decrypting = new CountDownLatch(1);
+    final CountDownLatch decrypted = new CountDownLatch(1);
+    final BookmarkRecordFactory bookmarkFactory = new BookmarkRecordFactory();
+    final RecordFactory blockingFactory = new RecordFactory() {
+      @Override
+      public Record createRecord(Record record) {
+        try {
+          decrypting.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        decrypted.countDown();
+        return bookmarkFactory.createRecord(record);
+      }
+    };
+
+    final PipelinedDecryptingFetchDelegate pipeline = new PipelinedDecryptingFetchDelegate(
+            collector, keyBundle, blockingFactory, 1, null);
+    pipeline.onFetchedRecord(encryptedBookmark(0));
+
+    final Thread completing = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        pipeline.onFetchCompleted();
+      }
+    });
+    completing.start();
+    completing.interrupt();
+    completing.join(5000);
+    assertEquals(1, collector.failures.size());
+
+    // The worker finishes its record after the failure was forwarded.
+    decrypting.countDown();
+    decrypted.await();
+    Thread.sleep(200);
+
+    assertTrue(collector.fetched.isEmpty());
+    assertFalse(collector.completed);
+  }
+
+  @Test
+  public void testFailureWaitsForRecordBeingHandedOff() throws Exception {
+    final CountDownLatch handingOff = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final boolean[] handedOffAfterFailure = new boolean[] { false };
+    final CollectingFetchDelegate blockingCollector = new CollectingFetchDelegate() {
+      @Override
+      public void onFetchedRecord(Record record) {
+        if (!failures.isEmpty()) {
+          handedOffAfterFailure[0] = true;
+        }
+        handingOff.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        super.onFetchedRecord(record);
+      }
+    };
+
+    final PipelinedDecryptingFetchDelegate pipeline = new PipelinedDecryptingFetchDelegate(
+            blockingCollector, keyBundle, new BookmarkRecordFactory(), 2, null);
+    for (int i = 0; i < 4; i++) {
+      pipeline.onFetchedRecord(encryptedBookmark(i));
+    }
+    handingOff.await();
+
+    final Exception failure = new Exception("Fetch failed.");
+    final Thread failing = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        pipeline.onFetchFailed(failure);
+      }
+    });
+    failing.start();
+
+    // The failure isn't forwarded while the first record is being handed off.
+    failing.join(200);
+    assertTrue(failing.isAlive());
+    assertTrue(blockingCollector.failures.isEmpty());
+
+    release.countDown();
+    failing.join(5000);
+    pipeline.onFetchCompleted();
+
+    // Nothing is handed off after the failure.
+    assertFalse(handedOffAfterFailure[0]);
+    assertEquals("guid00000000", blockingCollector.fetched.get(0).guid);
+    assertEquals(1, blockingCollector.failures.size());
+    assertEquals(failure, blockingCollector.failures.get(0));
+  }
+
+  @Test
+  public void testWindowBoundsRecordsInFlight() throws Exception {
+    final int workers = 2;
+    final int window = 4;
+    final Object gate = new Object();
+    final boolean[] open = new boolean[] { false };
+
+    final CollectingFetchDelegate blockingCollector = new CollectingFetchDelegate() {
+      @Override
+      public void onFetchedRecord(Record record) {
+        synchronized (gate) {
+          while (!open[0]) {
+            try {
+              gate.wait();
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+        super.onFetchedRecord(record);
+      }
+    };
+
+    final PipelinedDecryptingFetchDelegate pipeline = new PipelinedDecryptingFetchDelegate(
+            blockingCollector, keyBundle, new BookmarkRecordFactory(), workers, window, null);
+
+    final List<CryptoRecord> records = new ArrayList<>();
+    for (int i = 0; i < window * 3; i++) {
+      records.add(encryptedBookmark(i));
+    }
+
+    final int[] submitted = new int[] { 0 };
+    final Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (CryptoRecord record : records) {
+          pipeline.onFetchedRecord(record);
+          synchronized (submitted) {
+            submitted[0]++;
+          }
+        }
+        pipeline.onFetchCompleted();
+      }
+    });
+    producer.start();
+
+    // The consumer is stuck on the first record, so no more than a window of records is held.
+    Thread.sleep(500);
+    synchronized (submitted) {
+      assertEquals(window, submitted[0]);
+    }
+    assertFalse(blockingCollector.completed);
+
+    synchronized (gate) {
+      open[0] = true;
+      gate.notifyAll();
+    }
+    producer.join(5000);
+
+    assertTrue(blockingCollector.completed);
+    assertEquals(records.size(), blockingCollector.fetched.size());
+  }
+}
@@ -0,0 +1,177 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.middleware.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.middleware.PipelinedEncryptingStore;
+import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestPipelinedEncryptingStore {
+  private static final int RECORD_COUNT = 500;
+
+  private KeyBundle keyBundle;
+  private CollectingSession session;
+  private CollectingStoreDelegate storeDelegate;
+
+  private static class CollectingSession extends RepositorySession {
+    final List<Record> stored = Collections.synchronizedList(new ArrayList<Record>());
+    volatile boolean storeDone = false;
+    volatile int storedWhenDone = -1;
+
+    CollectingSession() {
+      super(null);
+    }
+
+    @Override
+    public void store(Record record) {
+      stored.add(record);
+    }
+
+    @Override
+    public void storeDone() {
+      storedWhenDone = stored.size();
+      storeDone = true;
+    }
+
+    @Override
+    public void fetchModified(RepositorySessionFetchRecordsDelegate delegate) {
+    }
+
+    @Override
+    public void fetch(String[] guids, RepositorySessionFetchRecordsDelegate delegate) {
+    }
+
+    @Override
+    public void fetchAll(RepositorySessionFetchRecordsDelegate delegate) {
+    }
+
+    @Override
+    public void wipe(RepositorySessionWipeDelegate delegate) {
+    }
+  }
+
+  private static class CollectingStoreDelegate implements RepositorySessionStoreDelegate {
+    final List<String> failedGuids = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public void onRecordStoreFailed(Exception ex, String recordGuid) {
+      failedGuids.add(recordGuid);
+    }
+
+    @Override
+    public void onRecordStoreSucceeded(int count) {
+    }
+
+    @Override
+    public void onStoreCompleted() {
+    }
+
+    @Override
+    public void onStoreFailed(Exception e) {
+    }
+
+    @Override
+    public void onRecordStoreReconciled(String guid, String oldGuid, Integer newVersion) {
+    }
+
+    @Override
+    public void onBatchCommitted() {
+    }
+
+    @Override
+    public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    keyBundle = KeyBundle.withRandomKeys();
+    session = new CollectingSession();
+    storeDelegate = new CollectingStoreDelegate();
+  }
+
+  private static BookmarkRecord bookmark(int i) {
+    final BookmarkRecord record = new BookmarkRecord(String.format("guid%08d", i), "bookmarks", 1000L + i, false);
+    record.title = "Bookmark " + i;
+    record.bookmarkURI = "https://example.com/bookmarks/" + i;
+    record.parentID = "toolbar";
+    record.type = "bookmark";
+    return record;
+  }
+
+  @Test
+  public void testRecordsAreEncryptedAndStoredInOrder() throws Exception {
+    final PipelinedEncryptingStore pipeline = new PipelinedEncryptingStore(session, storeDelegate, keyBundle, 3);
+
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      pipeline.store(bookmark(i));
+    }
+    pipeline.storeDone();
+
+    assertTrue(session.storeDone);
+    assertTrue(storeDelegate.failedGuids.isEmpty());
+    assertEquals(RECORD_COUNT, session.storedWhenDone);
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      final CryptoRecord record = (CryptoRecord) session.stored.get(i);
+      assertEquals(String.format("guid%08d", i), record.guid);
+      assertNotNull(record.payload.getString("ciphertext"));
+
+      record.keyBundle = keyBundle;
+      record.decrypt();
+      assertEquals("Bookmark " + i, record.payload.getString("title"));
+    }
+  }
+
+  @Test
+  public void testEncryptionFailureIsReportedInPlace() throws Exception {
+    // Without a key bundle, encryption fails for every record.
+    final PipelinedEncryptingStore pipeline = new PipelinedEncryptingStore(session, storeDelegate, null, 2);
+
+    pipeline.store(bookmark(0));
+    pipeline.store(bookmark(1));
+    pipeline.storeDone();
+
+    assertTrue(session.storeDone);
+    assertTrue(session.stored.isEmpty());
+    assertEquals(2, storeDelegate.failedGuids.size());
+    assertEquals("guid00000000", storeDelegate.failedGuids.get(0));
+    assertEquals("guid00000001", storeDelegate.failedGuids.get(1));
+  }
+
+  @Test
+  public void testRecordsAfterShutdownAreDropped() throws Exception {
+    final PipelinedEncryptingStore pipeline = new PipelinedEncryptingStore(session, storeDelegate, keyBundle, 2);
+
+    pipeline.store(bookmark(0));
+    pipeline.shutdown();
+    pipeline.store(bookmark(1));
+    pipeline.storeDone();
+
+    assertTrue(session.storeDone);
+    assertEquals(1, session.stored.size());
+    assertFalse(storeDelegate.failedGuids.contains("guid00000001"));
+  }
+}
@@ -3,14 +3,25 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mozilla.gecko.background.db.DelegatingTestContentProvider;
+import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.StoreTrackingRepositorySession;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
 
 @RunWith(RobolectricTestRunner.class)
 public class HistorySessionHelperTest {
@@ -48,4 +59,60 @@ public class HistorySessionHelperTest {
                 HistorySessionHelper.buildRecordStringStatic(record2)
         );
     }
-}
\ No newline at end of file
+
+    private static class CountingHistoryDataAccessor extends HistoryDataAccessor {
+        int fetchByURLCount;
+        int fetchAllCount;
+
+        CountingHistoryDataAccessor() {
+            super(RuntimeEnvironment.application);
+        }
+
+        @Override
+        public Cursor fetchByURL(String url) throws NullCursorException {
+            fetchByURLCount++;
+            return super.fetchByURL(url);
+        }
+
+        @Override
+        public Cursor fetchAll() throws NullCursorException {
+            fetchAllCount++;
+            return super.fetchAll();
+        }
+    }
+
+    @Test
+    public void testFindExistingRecordByURL() throws Exception {
+        final ContentProvider provider = DelegatingTestContentProvider.createDelegatingBrowserProvider();
+        try {
+            final ContentValues historyItem = new ContentValues();
+            historyItem.put(BrowserContract.History.URL, "https://www.mozilla.org/");
+            historyItem.put(BrowserContract.History.TITLE, "Mozilla");
+            historyItem.put(BrowserContract.History.GUID, "localGUID");
+            RuntimeEnvironment.application.getContentResolver().insert(BrowserContractHelpers.HISTORY_CONTENT_URI, historyItem);
+
+            final CountingHistoryDataAccessor dataAccessor = new CountingHistoryDataAccessor();
+            final HistorySessionHelper helper = new HistorySessionHelper(
+                    mock(StoreTrackingRepositorySession.class), dataAccessor);
+
+            // The same page, synced from another device under a different GUID.
+            final HistoryRecord incoming = new HistoryRecord("remoteGUID", "history", RepositorySession.now(), false);
+            incoming.histURI = "https://www.mozilla.org/";
+            incoming.title = "Mozilla";
+
+            final Record existing = helper.findExistingRecord(incoming);
+            assertNotNull(existing);
+            assertEquals("localGUID", existing.guid);
+
+            final HistoryRecord unknown = new HistoryRecord("otherGUID", "history", RepositorySession.now(), false);
+            unknown.histURI = "https://www.mozilla.org/firefox/";
+            assertNull(helper.findExistingRecord(unknown));
+
+            // Both lookups went through the URL index, without loading every record.
+            assertEquals(2, dataAccessor.fetchByURLCount);
+            assertEquals(0, dataAccessor.fetchAllCount);
+        } finally {
+            provider.shutdown();
+        }
+    }
+}
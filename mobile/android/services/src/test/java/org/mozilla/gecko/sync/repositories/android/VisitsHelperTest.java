@@ -21,6 +21,9 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowContentResolver;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -94,6 +97,58 @@ public class VisitsHelperTest {
         }
     }
 
+    @Test
+    public void testGetRecentHistoryVisitsForGUIDs() throws Exception {
+        Uri historyTestUri = testUri(BrowserContract.History.CONTENT_URI);
+        Uri visitsTestUri = testUri(BrowserContract.Visits.CONTENT_URI);
+
+        final ContentProvider provider = DelegatingTestContentProvider.createDelegatingBrowserProvider();
+        try {
+            final ContentResolver cr = RuntimeEnvironment.application.getContentResolver();
+            ContentProviderClient historyClient = cr.acquireContentProviderClient(BrowserContractHelpers.HISTORY_CONTENT_URI);
+            ContentProviderClient visitsClient = cr.acquireContentProviderClient(BrowserContractHelpers.VISITS_CONTENT_URI);
+
+            final String[] guids = new String[] {"testGUID1", "testGUID2", "testGUID3"};
+            final int[] visitCounts = new int[] {30, 5, 0};
+
+            Long baseDate = System.currentTimeMillis();
+            for (int g = 0; g < guids.length; g++) {
+                ContentValues historyItem = new ContentValues();
+                historyItem.put(BrowserContract.History.URL, "https://www.mozilla.org/" + g);
+                historyItem.put(BrowserContract.History.GUID, guids[g]);
+                historyClient.insert(historyTestUri, historyItem);
+
+                for (int i = 0; i < visitCounts[g]; i++) {
+                    ContentValues visitItem = new ContentValues();
+                    visitItem.put(BrowserContract.Visits.HISTORY_GUID, guids[g]);
+                    visitItem.put(BrowserContract.Visits.DATE_VISITED, baseDate - i * 100);
+                    visitItem.put(BrowserContract.Visits.VISIT_TYPE, g + 1);
+                    visitItem.put(BrowserContract.Visits.IS_LOCAL, 1);
+                    visitsClient.insert(visitsTestUri, visitItem);
+                }
+            }
+
+            // test that the limit applies per GUID, that sorting is correct, and that GUIDs without visits are present
+            Map<String, JSONArray> recentVisits = VisitsHelper.getRecentHistoryVisitsForGUIDs(
+                    visitsClient, Arrays.asList(guids), 10);
+            Assert.assertEquals(3, recentVisits.size());
+            Assert.assertEquals(10, recentVisits.get("testGUID1").size());
+            Assert.assertEquals(5, recentVisits.get("testGUID2").size());
+            Assert.assertEquals(0, recentVisits.get("testGUID3").size());
+
+            for (int g = 0; g < 2; g++) {
+                JSONArray visits = recentVisits.get(guids[g]);
+                for (int i = 0; i < visits.size(); i++) {
+                    JSONObject v = (JSONObject) visits.get(i);
+                    Assert.assertEquals(Long.valueOf(baseDate - i * 100), v.get("date"));
+                    Assert.assertEquals(Long.valueOf(g + 1), v.get("type"));
+                }
+            }
+        } finally {
+            provider.shutdown();
+        }
+    }
+
     @Test
     public void testGetVisitContentValues() throws Exception {
         JSONObject visit = new JSONObject();
@@ -0,0 +1,251 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.uploaders;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.background.testhelpers.MockRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
+import org.mozilla.gecko.sync.repositories.NonPersistentRepositoryStateProvider;
+import org.mozilla.gecko.sync.repositories.Server15Repository;
+import org.mozilla.gecko.sync.repositories.Server15RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+import org.robolectric.RobolectricTestRunner;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Uploads records against a local Sync server, one record per payload.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PayloadDispatcherTest {
+    private static final int TEST_PORT = HTTPServerTestHelper.getTestPort();
+    private static final String TEST_SERVER = "http://localhost:" + TEST_PORT + "/";
+    private static final String COLLECTION_URL = TEST_SERVER + "1.5/12345/storage/bookmarks";
+
+    private static final int RECORD_COUNT = 20;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static final String BATCH_LAST_MODIFIED = "1000.00";
+    private static final String COMMIT_LAST_MODIFIED = "2000.00";
+
+    /**
+     * Accepts every record into batch "1". Keeps track of how many requests it was serving at
+     * the same time, and of records posted after the batch was committed.
+     *
+     * Payloads posted into the open batch are held until <code>expectedInFlight</code> of them are
+     * in flight at once, so an uploader that doesn't upload concurrently never gets a response.
+     */
+    private static class BatchServer extends MockServer {
+        final int expectedInFlight;
+        final CountDownLatch windowFilled = new CountDownLatch(1);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger receivedRecords = new AtomicInteger();
+        final AtomicInteger recordsAfterCommit = new AtomicInteger();
+        volatile boolean committed;
+
+        BatchServer(int expectedInFlight) {
+            this.expectedInFlight = expectedInFlight;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void handle(Request request, Response response) {
+            final int current = inFlight.incrementAndGet();
+            try {
+                while (true) {
+                    final int max = maxInFlight.get();
+                    if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                        break;
+                    }
+                }
+
+                final JSONArray records = (JSONArray) new JSONParser().parse(request.getContent());
+                final JSONArray success = new JSONArray();
+                for (Object record : records) {
+                    success.add(((JSONObject) record).get("id"));
+                }
+                receivedRecords.addAndGet(records.size());
+                if (committed) {
+                    recordsAfterCommit.addAndGet(records.size());
+                }
+
+                final boolean isCommit = "true".equals(request.getQuery().get("commit"));
+                if (!isCommit && "1".equals(request.getQuery().get("batch"))) {
+                    if (current >= expectedInFlight) {
+                        windowFilled.countDown();
+                    }
+                    windowFilled.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+
+                final ExtendedJSONObject body = new ExtendedJSONObject();
+                body.put("success", success);
+                body.put("failed", new JSONObject());
+                if (!isCommit) {
+                    body.put("batch", "1");
+                }
+
+                final PrintStream bodyStream = handleBasicHeaders(request, response, isCommit ? 200 : 202, "application/json");
+                response.setValue("X-Last-Modified", isCommit ? COMMIT_LAST_MODIFIED : BATCH_LAST_MODIFIED);
+                bodyStream.println(body.toJSONString());
+                bodyStream.close();
+
+                if (isCommit) {
+                    committed = true;
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private static class CountingStoreDelegate implements RepositorySessionStoreDelegate {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger recordsSucceeded = new AtomicInteger();
+        final AtomicInteger recordsFailed = new AtomicInteger();
+        final AtomicInteger batchesCommitted = new AtomicInteger();
+        volatile Exception storeFailedException;
+
+        @Override
+        public void onRecordStoreFailed(Exception ex, String recordGuid) {
+            recordsFailed.incrementAndGet();
+        }
+
+        @Override
+        public void onRecordStoreSucceeded(int count) {
+            recordsSucceeded.addAndGet(count);
+        }
+
+        @Override
+        public void onStoreCompleted() {
+            done.countDown();
+        }
+
+        @Override
+        public void onStoreFailed(Exception e) {
+            storeFailedException = e;
+            done.countDown();
+        }
+
+        @Override
+        public void onRecordStoreReconciled(String guid, String oldGuid, Integer newVersion) {
+        }
+
+        @Override
+        public void onBatchCommitted() {
+            batchesCommitted.incrementAndGet();
+        }
+
+        @Override
+        public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
+            return this;
+        }
+    }
+
+    private final HTTPServerTestHelper data = new HTTPServerTestHelper();
+    private ExecutorService workQueue;
+
+    @Before
+    public void setUp() {
+        workQueue = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        workQueue.shutdown();
+    }
+
+    @Test
+    public void testSequentialUpload() throws Exception {
+        final BatchServer server = new BatchServer(1);
+        upload(server, new CountingStoreDelegate(), 1);
+
+        assertEquals(1, server.maxInFlight.get());
+    }
+
+    @Test
+    public void testConcurrentUpload() throws Exception {
+        final BatchServer server = new BatchServer(4);
+        upload(server, new CountingStoreDelegate(), 4);
+
+        // Payloads were uploaded four at a time, but never more than that.
+        assertEquals(0, server.windowFilled.getCount());
+        assertEquals(4, server.maxInFlight.get());
+    }
+
+    private void upload(BatchServer server, CountingStoreDelegate delegate, int maxConcurrentPayloads) throws Exception {
+        final BatchingUploader uploader = makeUploader(delegate, maxConcurrentPayloads);
+
+        data.startHTTPServer(server);
+        try {
+            for (int i = 0; i < RECORD_COUNT; i++) {
+                uploader.process(new MockRecord("record" + i, null, 0, false));
+            }
+            uploader.noMoreRecordsToUpload();
+            assertTrue(delegate.done.await(30, TimeUnit.SECONDS));
+        } finally {
+            data.stopHTTPServer();
+        }
+
+        // Every record is accounted for exactly once, and the commit came after all of them.
+        assertNull(delegate.storeFailedException);
+        assertEquals(RECORD_COUNT, server.receivedRecords.get());
+        assertEquals(0, server.recordsAfterCommit.get());
+        assertEquals(RECORD_COUNT, delegate.recordsSucceeded.get());
+        assertEquals(0, delegate.recordsFailed.get());
+        assertEquals(1, delegate.batchesCommitted.get());
+    }
+
+    private BatchingUploader makeUploader(CountingStoreDelegate delegate, int maxConcurrentPayloads) throws Exception {
+        final ExtendedJSONObject infoConfigurationJSON = new ExtendedJSONObject();
+        infoConfigurationJSON.put(InfoConfiguration.MAX_POST_RECORDS, 1L);
+        infoConfigurationJSON.put(InfoConfiguration.MAX_TOTAL_RECORDS, 1000L);
+
+        final Server15Repository repository = new Server15Repository(
+                "bookmarks",
+                SystemClock.elapsedRealtime() + TimeUnit.MINUTES.toMillis(30),
+                TEST_SERVER + "1.5/12345/",
+                null,
+                new InfoCollections() {
+                    @Override
+                    public Long getTimestamp(String collection) {
+                        return null;
+                    }
+                },
+                mock(InfoConfiguration.class),
+                new NonPersistentRepositoryStateProvider());
+        final Server15RepositorySession session = new Server15RepositorySession(repository);
+
+        return new BatchingUploader(
+                session, workQueue, delegate, Uri.parse(COLLECTION_URL), null,
+                new InfoConfiguration(infoConfigurationJSON), null, false, maxConcurrentPayloads);
+    }
+}
@@ -18,10 +18,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.mozilla.mozstumbler.service.AppGlobals;
-import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageContract;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
@@ -181,36 +178,23 @@ public final class Reporter extends BroadcastReceiver {
             return;
         }
 
-        storeBundleAsJSON(mBundle);
+        storeBundle(mBundle);
 
         mBundle.wasSent();
     }
 
-    private void storeBundleAsJSON(StumblerBundle bundle) {
-        JSONObject mlsObj;
-        int wifiCount = 0;
-        int cellCount = 0;
-        try {
-            mlsObj = bundle.toMLSJSON();
-            wifiCount = mlsObj.getInt(DataStorageContract.ReportsColumns.WIFI_COUNT);
-            cellCount = mlsObj.getInt(DataStorageContract.ReportsColumns.CELL_COUNT);
-
-        } catch (JSONException e) {
-            Log.w(LOG_TAG, "Failed to convert bundle to JSON: " + e);
-            return;
-        }
-
+    private void storeBundle(StumblerBundle bundle) {
         if (AppGlobals.isDebug) {
             // PII: do not log the bundle without obfuscating it
             Log.d(LOG_TAG, "Received bundle");
         }
 
-        if (wifiCount + cellCount < 1) {
+        if (bundle.getWifiData().size() + bundle.getCellData().size() < 1) {
             return;
         }
 
         try {
-            DataStorageManager.getInstance().insert(mlsObj.toString(), wifiCount, cellCount);
+            DataStorageManager.getInstance().insert(bundle);
         } catch (IOException e) {
             Log.w(LOG_TAG, e.toString());
         }
@@ -7,45 +7,49 @@ package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
 import android.content.Context;
 import android.util.Log;
 
+import org.json.JSONObject;
 import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.utils.AbstractCommunicator.ZippedBody;
 import org.mozilla.mozstumbler.service.utils.StringUtils;
-import org.mozilla.mozstumbler.service.utils.Zipper;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.zip.GZIPOutputStream;
 
-/* Stores reports in memory (mCurrentReports) until MAX_REPORTS_IN_MEMORY,
- * then writes them to disk as a .gz file. The name of the file has
- * the time written, the # of reports, and the # of cells and wifis.
+/* Reports are appended to an open segment file (mCurrentSegment) as they arrive, in a compact
+ * binary form, gzipped (see ReportSegmentWriter). Once it holds MAX_REPORTS_PER_SEGMENT reports,
+ * or no report has arrived for a few minutes, the segment is finished and moved into the reports
+ * directory. The name of the file has the time written, the # of reports, and the # of cells and wifis.
  *
- * Each .gz file is typically 1-5KB. File name example: reports-t1406863343313-r4-w25-c7.gz
+ * File name example: reports-t1406863343313-r4-w25-c7.seg.gz
+ * Files ending in just .gz hold gzipped JSON, and were written by earlier versions.
  *
  * The sync stats are written as a key-value pair file (not zipped).
  *
- * The tricky bit is the mCurrentReportsSendBuffer. When the uploader code begins accessing the
- * report batches, mCurrentReports gets pushed to mCurrentReportsSendBuffer.
- * The mCurrentReports is then cleared, and can continue receiving new reports.
- * From the uploader perspective, mCurrentReportsSendBuffer looks and acts exactly like a batch file on disk.
+ * When the uploader code begins accessing the report batches, the open segment is finished, so that
+ * the reports collected so far are uploaded too. Batches are streamed to the server, being turned
+ * back into JSON on the fly, and are never held in memory in full.
  *
- * If the network is reasonably active, and reporting is slow enough, there is no disk I/O, it all happens
- * in-memory.
- *
- * Also of note: the in-memory buffers (both mCurrentReports and mCurrentReportsSendBuffer) are saved
- * when the service is destroyed.
+ * An open segment left behind by the process being killed is recovered on startup.
  */
 public class DataStorageManager {
     private static final String LOG_TAG = AppGlobals.makeLogTag(DataStorageManager.class.getSimpleName());
 
-    // The max number of reports stored in the mCurrentReports. Each report is a GPS location plus wifi and cell scan.
-    // After this size is reached, data is persisted to disk, mCurrentReports is cleared.
-    private static final int MAX_REPORTS_IN_MEMORY = 50;
+    // The max number of reports in a segment. Each report is a GPS location plus wifi and cell scan.
+    // After this size is reached, the segment is finished, and a new one started.
+    private static final int MAX_REPORTS_PER_SEGMENT = 100;
+
+    // The open segment is finished when no report has arrived for this long, so that it gets
+    // uploaded if collection stops.
+    private static final long FINISH_IDLE_SEGMENT_MS = 1000 * 60 * 3;
 
     // Used to cap the amount of data stored. When this limit is hit, no more data is saved to disk
     // until the data is uploaded, or and data exceeds DEFAULT_MAX_WEEKS_DATA_ON_DISK.
@@ -61,17 +65,17 @@ public class DataStorageManager {
     // Set to the default value specified above.
     private final int mMaxWeeksStored;
 
-    private final ReportBatchBuilder mCurrentReports = new ReportBatchBuilder();
     private final File mReportsDir;
-    private final File mStatsFile;
+    private final File mOpenSegmentFile;
     private final WeakReference<StorageIsEmptyTracker> mTrackerWeakReference;
 
     private static DataStorageManager sInstance;
 
-    private ReportBatch mCurrentReportsSendBuffer;
+    private ReportSegmentWriter mCurrentSegment;
     private ReportBatchIterator mReportBatchIterator;
     private final ReportFileList mFileList;
-    private Timer mFlushMemoryBuffersToDiskTimer;
+    private Timer mFinishSegmentTimer;
+    private TimerTask mFinishSegmentTask;
     private final PersistedStats mPersistedOnDiskUploadStats;
 
     static final String SEP_REPORT_COUNT = "-r";
@@ -79,7 +83,8 @@ public class DataStorageManager {
     static final String SEP_CELL_COUNT = "-c";
     static final String SEP_TIME_MS = "-t";
     static final String FILENAME_PREFIX = "reports";
-    static final String MEMORY_BUFFER_NAME = "in memory send buffer";
+    static final String SEGMENT_SUFFIX = ".seg.gz";
+    static final String OPEN_SEGMENT_NAME = "reports-open" + SEGMENT_SUFFIX;
 
     public static class QueuedCounts {
         public final int mReportCount;
@@ -96,29 +101,17 @@ public class DataStorageManager {
     }
 
     /* Some data is calculated on-demand, don't abuse this function */
-    public QueuedCounts getQueuedCounts() {
-        int reportCount = mFileList.mReportCount + mCurrentReports.reports.size();
-        int wifiCount = mFileList.mWifiCount + mCurrentReports.wifiCount;
-        int cellCount = mFileList.mCellCount + mCurrentReports.cellCount;
-        long bytes = 0;
-
-        if (mCurrentReports.reports.size() > 0) {
-            try {
-                bytes = Zipper.zipData(finalizeReports(mCurrentReports.reports).getBytes(StringUtils.UTF_8)).length;
-            } catch (IOException ex) {
-                Log.e(LOG_TAG, "Zip error in getQueuedCounts()", ex);
-            }
-
-            if (mFileList.mReportCount > 0) {
-                bytes += mFileList.mFilesOnDiskBytes;
-            }
-        }
-
-        if (mCurrentReportsSendBuffer != null) {
-            reportCount += mCurrentReportsSendBuffer.reportCount;
-            wifiCount += mCurrentReportsSendBuffer.wifiCount;
-            cellCount += mCurrentReportsSendBuffer.cellCount;
-            bytes += mCurrentReportsSendBuffer.data.length;
+    public synchronized QueuedCounts getQueuedCounts() {
+        int reportCount = mFileList.mReportCount;
+        int wifiCount = mFileList.mWifiCount;
+        int cellCount = mFileList.mCellCount;
+        long bytes = mFileList.mFilesOnDiskBytes;
+
+        if (mCurrentSegment != null) {
+            reportCount += mCurrentSegment.getReportCount();
+            wifiCount += mCurrentSegment.getWifiCount();
+            cellCount += mCurrentSegment.getCellCount();
+            bytes += mOpenSegmentFile.length();
         }
         return new QueuedCounts(reportCount, wifiCount, cellCount, bytes);
     }
@@ -168,26 +161,49 @@ public class DataStorageManager {
         }
     }
 
-    public static class ReportBatch {
+    /* A batch file, which writes itself to the upload as a gzipped JSON {"items":[...]} object. */
+    public static class ReportBatch implements ZippedBody {
         public final String filename;
-        public final byte[] data;
         public final int reportCount;
         public final int wifiCount;
         public final int cellCount;
+        private final File mFile;
 
-        public ReportBatch(String filename, byte[] data, int reportCount, int wifiCount, int cellCount) {
-            this.filename = filename;
-            this.data = data;
+        public ReportBatch(File file, int reportCount, int wifiCount, int cellCount) {
+            this.filename = file.getName();
             this.reportCount = reportCount;
             this.wifiCount = wifiCount;
             this.cellCount = cellCount;
+            this.mFile = file;
         }
-    }
 
-    private static class ReportBatchBuilder {
-        public final ArrayList<String> reports = new ArrayList<String>();
-        public int wifiCount;
-        public int cellCount;
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (!filename.endsWith(SEGMENT_SUFFIX)) {
+                // Written by an earlier version, already gzipped JSON.
+                copyFile(mFile, out);
+                return;
+            }
+
+            final ReportSegmentReader reader = new ReportSegmentReader(mFile);
+            try {
+                final GZIPOutputStream gzip = new GZIPOutputStream(out);
+                final Writer writer = new OutputStreamWriter(gzip, StringUtils.UTF_8);
+                writer.write("{\"items\":[");
+                String sep = "";
+                JSONObject report;
+                while ((report = reader.next()) != null) {
+                    writer.write(sep);
+                    writer.write(report.toString());
+                    sep = ",";
+                }
+                writer.write("]}");
+                writer.flush();
+                gzip.finish();
+            } finally {
+                reader.close();
+            }
+        }
     }
 
     private static class ReportBatchIterator {
@@ -195,8 +211,7 @@ public class DataStorageManager {
             fileList = new ReportFileList(list);
         }
 
-        static final int BATCH_INDEX_FOR_MEM_BUFFER = -1;
-        public int currentIndex = BATCH_INDEX_FOR_MEM_BUFFER;
+        public int currentIndex = -1;
         public final ReportFileList fileList;
     }
 
@@ -245,28 +260,61 @@ public class DataStorageManager {
         mMaxWeeksStored = maxWeeksDataStored;
         mTrackerWeakReference = new WeakReference<>(tracker);
         final String baseDir = getStorageDir(c.getApplicationContext());
-        mStatsFile = new File(baseDir, "upload_stats.ini");
         mReportsDir = new File(baseDir + "/reports");
         if (!mReportsDir.exists()) {
             mReportsDir.mkdirs();
         }
+        // Kept out of the reports directory, which only holds finished batches.
+        mOpenSegmentFile = new File(baseDir, OPEN_SEGMENT_NAME);
         mFileList = new ReportFileList();
+        recoverOpenSegment();
         mFileList.update(mReportsDir);
         mPersistedOnDiskUploadStats = new PersistedStats(baseDir);
     }
 
+    /* Finish a segment that was still open when the process was killed, counting the reports
+     * that made it to disk. */
+    private void recoverOpenSegment() {
+        if (!mOpenSegmentFile.exists()) {
+            return;
+        }
+
+        int reportCount = 0;
+        int wifiCount = 0;
+        int cellCount = 0;
+        try {
+            final ReportSegmentReader reader = new ReportSegmentReader(mOpenSegmentFile);
+            try {
+                JSONObject report;
+                while ((report = reader.next()) != null) {
+                    reportCount++;
+                    wifiCount += report.optInt(DataStorageContract.ReportsColumns.WIFI_COUNT);
+                    cellCount += report.optInt(DataStorageContract.ReportsColumns.CELL_COUNT);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Failed to recover open segment", ex);
+            reportCount = 0;
+        }
+        moveSegmentToReportsDir(reportCount, wifiCount, cellCount);
+    }
+
     public synchronized int getMaxWeeksStored() {
         return mMaxWeeksStored;
     }
 
-    private static byte[] readFile(File file) throws IOException {
-        final RandomAccessFile f = new RandomAccessFile(file, "r");
+    private static void copyFile(File file, OutputStream out) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
         try {
-            final byte[] data = new byte[(int) f.length()];
-            f.readFully(data);
-            return data;
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
         } finally {
-            f.close();
+            in.close();
         }
     }
 
@@ -276,11 +324,6 @@ public class DataStorageManager {
 
     /* Pass filename returned from dataToSend() */
     public synchronized boolean delete(String filename) {
-        if (filename.equals(MEMORY_BUFFER_NAME)) {
-            mCurrentReportsSendBuffer = null;
-            return true;
-        }
-
         final File file = new File(mReportsDir, filename);
         final boolean ok = file.delete();
         mFileList.update(mReportsDir);
@@ -296,35 +339,17 @@ public class DataStorageManager {
         return Long.parseLong(name.substring(s, e));
     }
 
-    /* return name of file used, or memory buffer sentinel value.
-     * The return value is used to delete the file/buffer later. */
+    /* The filename of the returned batch is used to delete it later. */
     public synchronized ReportBatch getFirstBatch() throws IOException {
-        final boolean dirEmpty = isDirEmpty();
-        final int currentReportsCount = mCurrentReports.reports.size();
+        // Upload the reports collected so far too.
+        finishCurrentSegment();
 
-        if (dirEmpty && currentReportsCount < 1) {
+        if (isDirEmpty()) {
             return null;
         }
 
         mReportBatchIterator = new ReportBatchIterator(mFileList);
-
-        if (currentReportsCount > 0) {
-            final String filename = MEMORY_BUFFER_NAME;
-            final byte[] data = Zipper.zipData(finalizeReports(mCurrentReports.reports).getBytes(StringUtils.UTF_8));
-            final int wifiCount = mCurrentReports.wifiCount;
-            final int cellCount = mCurrentReports.cellCount;
-            clearCurrentReports();
-            final ReportBatch result = new ReportBatch(filename, data, currentReportsCount, wifiCount, cellCount);
-            mCurrentReportsSendBuffer = result;
-            return result;
-        } else {
-            return getNextBatch();
-        }
-    }
-
-    private void clearCurrentReports() {
-        mCurrentReports.reports.clear();
-        mCurrentReports.wifiCount = mCurrentReports.cellCount = 0;
+        return getNextBatch();
     }
 
     public synchronized ReportBatch getNextBatch() throws IOException {
@@ -339,12 +364,10 @@ public class DataStorageManager {
         }
 
         final File f = mReportBatchIterator.fileList.mFiles[mReportBatchIterator.currentIndex];
-        final String filename = f.getName();
         final int reportCount = (int) getLongFromFilename(f.getName(), SEP_REPORT_COUNT);
         final int wifiCount = (int) getLongFromFilename(f.getName(), SEP_WIFI_COUNT);
         final int cellCount = (int) getLongFromFilename(f.getName(), SEP_CELL_COUNT);
-        final byte[] data = readFile(f);
-        return new ReportBatch(filename, data, reportCount, wifiCount, cellCount);
+        return new ReportBatch(f, reportCount, wifiCount, cellCount);
     }
 
     private File createFile(int reportCount, int wifiCount, int cellCount) {
@@ -353,7 +376,7 @@ public class DataStorageManager {
                       SEP_TIME_MS + time +
                       SEP_REPORT_COUNT + reportCount +
                       SEP_WIFI_COUNT + wifiCount +
-                      SEP_CELL_COUNT + cellCount + ".gz";
+                      SEP_CELL_COUNT + cellCount + SEGMENT_SUFFIX;
         return new File(mReportsDir, name);
     }
 
@@ -372,94 +395,93 @@ public class DataStorageManager {
         return oldest;
     }
 
-    public synchronized void saveCurrentReportsSendBufferToDisk() throws IOException {
-        if (mCurrentReportsSendBuffer == null || mCurrentReportsSendBuffer.reportCount < 1) {
-            return;
-        }
-
-        saveToDisk(mCurrentReportsSendBuffer.data,
-                   mCurrentReportsSendBuffer.reportCount,
-                   mCurrentReportsSendBuffer.wifiCount,
-                   mCurrentReportsSendBuffer.cellCount);
-        mCurrentReportsSendBuffer = null;
+    /* Finish the open segment, making its reports available for upload. */
+    public synchronized void saveCurrentReportsToDisk() throws IOException {
+        finishCurrentSegment();
     }
 
-    private void saveToDisk(byte[] bytes, int reportCount, int wifiCount, int cellCount)
-      throws IOException {
-        if (mFileList.mFilesOnDiskBytes > mMaxBytesDiskStorage) {
+    private void finishCurrentSegment() throws IOException {
+        cancelFinishSegmentTask();
+        if (mCurrentSegment == null) {
             return;
         }
 
-        final FileOutputStream fos = new FileOutputStream(createFile(reportCount, wifiCount, cellCount));
+        final ReportSegmentWriter segment = mCurrentSegment;
+        mCurrentSegment = null;
         try {
-            fos.write(bytes);
+            segment.close();
         } finally {
-            fos.close();
+            moveSegmentToReportsDir(segment.getReportCount(), segment.getWifiCount(), segment.getCellCount());
         }
-        mFileList.update(mReportsDir);
     }
 
-    private String finalizeReports(ArrayList<String> reports) {
-        final String kPrefix = "{\"items\":[";
-        final String kSuffix = "]}";
-        final StringBuilder sb = new StringBuilder(kPrefix);
-        String sep = "";
-        final String separator = ",";
-        if (reports != null) {
-            for(String s: reports) {
-                sb.append(sep).append(s);
-                sep = separator;
-            }
+    private void moveSegmentToReportsDir(int reportCount, int wifiCount, int cellCount) {
+        if (reportCount < 1 || !mOpenSegmentFile.renameTo(createFile(reportCount, wifiCount, cellCount))) {
+            mOpenSegmentFile.delete();
         }
-
-        final String result = sb.append(kSuffix).toString();
-        return result;
+        mFileList.update(mReportsDir);
     }
 
-    public synchronized void saveCurrentReportsToDisk() throws IOException {
-        saveCurrentReportsSendBufferToDisk();
-        if (mCurrentReports.reports.size() < 1) {
+    public synchronized void insert(StumblerBundle bundle) throws IOException {
+        if (mFileList.mFilesOnDiskBytes + mOpenSegmentFile.length() > mMaxBytesDiskStorage) {
             return;
         }
-        final byte[] bytes = Zipper.zipData(finalizeReports(mCurrentReports.reports).getBytes(StringUtils.UTF_8));
-        saveToDisk(bytes, mCurrentReports.reports.size(), mCurrentReports.wifiCount, mCurrentReports.cellCount);
-        clearCurrentReports();
-    }
-
-    public synchronized void insert(String report, int wifiCount, int cellCount) throws IOException {
-        notifyStorageIsEmpty(false);
 
-        if (mFlushMemoryBuffersToDiskTimer != null) {
-            mFlushMemoryBuffersToDiskTimer.cancel();
-            mFlushMemoryBuffersToDiskTimer = null;
+        if (mCurrentSegment == null) {
+            mCurrentSegment = new ReportSegmentWriter(mOpenSegmentFile);
         }
 
-        mCurrentReports.reports.add(report);
-        mCurrentReports.wifiCount += wifiCount;
-        mCurrentReports.cellCount += cellCount;
+        if (!mCurrentSegment.write(bundle)) {
+            return;
+        }
+        notifyStorageIsEmpty(false);
 
-        if (mCurrentReports.reports.size() >= MAX_REPORTS_IN_MEMORY) {
-            // save to disk
-            saveCurrentReportsToDisk();
+        if (mCurrentSegment.getReportCount() >= MAX_REPORTS_PER_SEGMENT) {
+            finishCurrentSegment();
         } else {
-            // Schedule a timer to flush to disk after a few mins.
-            // If collection stops and wifi not available for uploading, the memory buffer is flushed to disk.
-            final int kMillis = 1000 * 60 * 3;
-            mFlushMemoryBuffersToDiskTimer = new Timer();
-            mFlushMemoryBuffersToDiskTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    try {
-                        saveCurrentReportsToDisk();
-                    } catch (IOException ex) {
-                        Log.e(LOG_TAG, "mFlushMemoryBuffersToDiskTimer exception" + ex);
-                    }
+            // If collection stops and wifi not available for uploading, the segment is finished
+            // after a few mins, and counted as waiting for upload.
+            scheduleFinishSegmentTask();
+        }
+    }
+
+    private void scheduleFinishSegmentTask() {
+        cancelFinishSegmentTask();
+        if (mFinishSegmentTimer == null) {
+            mFinishSegmentTimer = new Timer("StumblerFinishSegment", true);
+        }
+        mFinishSegmentTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    saveCurrentReportsToDisk();
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "mFinishSegmentTask exception" + ex);
                 }
-            }, kMillis);
+            }
+        };
+        mFinishSegmentTimer.schedule(mFinishSegmentTask, FINISH_IDLE_SEGMENT_MS);
+    }
+
+    private void cancelFinishSegmentTask() {
+        if (mFinishSegmentTask != null) {
+            mFinishSegmentTask.cancel();
+            mFinishSegmentTask = null;
         }
     }
 
     public synchronized void deleteAll() {
+        cancelFinishSegmentTask();
+        if (mCurrentSegment != null) {
+            try {
+                mCurrentSegment.close();
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Failed to close open segment", ex);
+            }
+            mCurrentSegment = null;
+        }
+        mOpenSegmentFile.delete();
+
         if (mFileList.mFiles == null) {
             return;
         }
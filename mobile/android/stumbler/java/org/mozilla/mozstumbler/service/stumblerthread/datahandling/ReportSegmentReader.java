@@ -0,0 +1,93 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.mozstumbler.service.AppGlobals;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/* Reads the reports of a segment written by ReportSegmentWriter back as JSON, one at a time.
+ *
+ * A segment that was cut short, or is corrupt, ends after its last complete report rather than failing:
+ * a segment that can never be read in full would otherwise never be uploaded nor deleted. */
+final class ReportSegmentReader implements Closeable {
+    private static final String LOG_TAG = AppGlobals.makeLogTag(ReportSegmentReader.class.getSimpleName());
+
+    // Far larger than a report with the maximum number of wifis and cells, see Reporter.
+    private static final int MAX_REPORT_BYTES = 64 * 1024;
+
+    private final InputStream mFile;
+    private DataInputStream mIn;
+    private byte[] mReport = new byte[4096];
+
+    ReportSegmentReader(File file) throws IOException {
+        mFile = new BufferedInputStream(new FileInputStream(file));
+        try {
+            mIn = new DataInputStream(new GZIPInputStream(mFile));
+            final int version = mIn.readUnsignedByte();
+            if (version != ReportSegmentWriter.VERSION) {
+                throw new IOException("Unsupported report segment version " + version);
+            }
+        } catch (EOFException | ZipException e) {
+            // Nothing was written before the segment was cut short.
+            mIn = null;
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /* Returns the next report, or null at the end of the segment. */
+    JSONObject next() throws IOException {
+        while (mIn != null) {
+            final int length;
+            try {
+                length = mIn.readInt();
+                if (length < 0 || length > MAX_REPORT_BYTES) {
+                    throw new ZipException("Bad report length " + length);
+                }
+                if (length > mReport.length) {
+                    mReport = new byte[length];
+                }
+                mIn.readFully(mReport, 0, length);
+            } catch (EOFException e) {
+                mIn = null;
+                break;
+            } catch (ZipException e) {
+                Log.w(LOG_TAG, "Corrupt report segment: " + e);
+                mIn = null;
+                break;
+            }
+
+            try {
+                return StumblerBundle.readCompactAsMLSJSON(
+                        new DataInputStream(new ByteArrayInputStream(mReport, 0, length)));
+            } catch (IOException | JSONException e) {
+                // The report is skipped, but the ones after it are still intact.
+                Log.w(LOG_TAG, "Failed to read report: " + e);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,116 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.os.Build;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.zip.GZIPOutputStream;
+
+/* Appends reports to a gzipped segment file as they arrive, in the form written by
+ * StumblerBundle.writeCompact(). The segment starts with a version byte, and each report is prefixed
+ * by its length in bytes.
+ *
+ * Where the platform supports it, the gzip stream is flushed after every report, so that a segment
+ * cut short by the process being killed can still be read up to its last complete report
+ * (see ReportSegmentReader).
+ *
+ * Scanning while standing still sees the same wifis over and over, which tells the server nothing new.
+ * Wifis already written for the current location, a grid cell of roughly 10 m, are left out. */
+final class ReportSegmentWriter {
+    static final int VERSION = 1;
+
+    // 1E-4 degrees is about 11 m, similar to the minimum distance between active GPS updates.
+    private static final double LOCATION_CELLS_PER_DEGREE = 1.0E4;
+
+    private final DataOutputStream mOut;
+    private final ByteArrayOutputStream mReport = new ByteArrayOutputStream(4096);
+    private final DataOutputStream mReportOut = new DataOutputStream(mReport);
+
+    private final HashSet<Long> mWifisAtLocation = new HashSet<>();
+    private final ArrayList<ScanResult> mNewWifis = new ArrayList<>();
+    private long mLocationCellLat = Long.MIN_VALUE;
+    private long mLocationCellLon = Long.MIN_VALUE;
+
+    private int mReportCount;
+    private int mWifiCount;
+    private int mCellCount;
+
+    ReportSegmentWriter(File file) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(file);
+        final GZIPOutputStream gzip;
+        try {
+            gzip = (Build.VERSION.SDK_INT >= 19) ? new GZIPOutputStream(fos, true) : new GZIPOutputStream(fos);
+        } catch (IOException e) {
+            fos.close();
+            throw e;
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(gzip));
+        mOut.writeByte(VERSION);
+    }
+
+    /* Returns false if the report had nothing new in it, and was not written. */
+    boolean write(StumblerBundle bundle) throws IOException {
+        final Location location = bundle.getGpsPosition();
+        final long cellLat = (long) Math.floor(location.getLatitude() * LOCATION_CELLS_PER_DEGREE);
+        final long cellLon = (long) Math.floor(location.getLongitude() * LOCATION_CELLS_PER_DEGREE);
+        if (cellLat != mLocationCellLat || cellLon != mLocationCellLon) {
+            mLocationCellLat = cellLat;
+            mLocationCellLon = cellLon;
+            mWifisAtLocation.clear();
+        }
+
+        mNewWifis.clear();
+        for (ScanResult wifi : bundle.getWifiData().values()) {
+            final long bssid = StumblerBundle.bssidToLong(wifi.BSSID);
+            if (bssid >= 0 && mWifisAtLocation.add(bssid)) {
+                mNewWifis.add(wifi);
+            }
+        }
+
+        final int cellCount = bundle.getCellData().size();
+        if (mNewWifis.isEmpty() && cellCount < 1) {
+            return false;
+        }
+
+        mReport.reset();
+        bundle.writeCompact(mReportOut, mNewWifis);
+        mOut.writeInt(mReport.size());
+        mReport.writeTo(mOut);
+        mOut.flush();
+
+        mReportCount++;
+        mWifiCount += mNewWifis.size();
+        mCellCount += cellCount;
+        mNewWifis.clear();
+        return true;
+    }
+
+    int getReportCount() {
+        return mReportCount;
+    }
+
+    int getWifiCount() {
+        return mWifiCount;
+    }
+
+    int getCellCount() {
+        return mCellCount;
+    }
+
+    /* Finish the gzip stream and close the file. */
+    void close() throws IOException {
+        mOut.close();
+    }
+}
@@ -11,8 +11,12 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.telephony.TelephonyManager;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -20,13 +24,18 @@ import org.json.JSONObject;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
 
 public final class StumblerBundle implements Parcelable {
+    // Optional fields of the compact form, see writeCompact().
+    private static final int FLAG_HAS_PRESSURE = 1;
+    private static final int FLAG_HAS_ACCURACY = 1 << 1;
+    private static final int FLAG_HAS_ALTITUDE = 1 << 2;
+    private static final int FLAG_HAS_WIFI_AGES = 1 << 3;
+
     private final int mPhoneType;
     private final Location mGpsPosition;
     private final Map<String, ScanResult> mWifiData;
     private final Map<String, CellInfo> mCellData;
     private float mPressureHPA;
 
-
     public void wasSent() {
         mGpsPosition.setTime(System.currentTimeMillis());
         mWifiData.clear();
@@ -111,31 +120,115 @@ public final class StumblerBundle implements Parcelable {
         return mCellData;
     }
 
-    public JSONObject toMLSJSON() throws JSONException {
-        JSONObject item = new JSONObject();
+    /* Parse a canonical BSSID (see BSSIDBlockList) into the 48 bits of a long. Returns -1 if the BSSID
+     * is not canonical. */
+    public static long bssidToLong(String bssid) {
+        if (bssid == null || bssid.length() != 12) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(bssid, 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-        item.put(DataStorageContract.ReportsColumns.TIME, mGpsPosition.getTime());
-        item.put(DataStorageContract.ReportsColumns.LAT, Math.floor(mGpsPosition.getLatitude() * 1.0E6) / 1.0E6);
-        item.put(DataStorageContract.ReportsColumns.LON, Math.floor(mGpsPosition.getLongitude() * 1.0E6) / 1.0E6);
+    /* Write the observation, and the given subset of its wifis, in a compact binary form that
+     * readCompactAsMLSJSON() turns back into the JSON the server expects. Coordinates are stored as
+     * micro-degrees, BSSIDs as 48 bit numbers and signal strengths as bytes. The layout is:
+     *
+     *   time (long), lat, lon (int micro-degrees), heading, speed (float), flags (byte),
+     *   [pressure (float)], [accuracy (int)], [altitude (long)], phone type (byte),
+     *   cell count (short), cells (see CellInfo.writeCompact()),
+     *   wifi count (short), wifis: BSSID (6 bytes), frequency (short), signal (byte), [age (int)]
+     */
+    public void writeCompact(DataOutput out, Collection<ScanResult> wifis) throws IOException {
+        out.writeLong(mGpsPosition.getTime());
+        out.writeInt((int) Math.floor(mGpsPosition.getLatitude() * 1.0E6));
+        out.writeInt((int) Math.floor(mGpsPosition.getLongitude() * 1.0E6));
+        out.writeFloat(mGpsPosition.getBearing());
+        out.writeFloat(mGpsPosition.getSpeed());
+
+        final boolean hasWifiAges = Build.VERSION.SDK_INT >= 17;
+        int flags = 0;
+        if (mPressureHPA != 0.0) {
+            flags |= FLAG_HAS_PRESSURE;
+        }
+        if (mGpsPosition.hasAccuracy()) {
+            flags |= FLAG_HAS_ACCURACY;
+        }
+        if (mGpsPosition.hasAltitude()) {
+            flags |= FLAG_HAS_ALTITUDE;
+        }
+        if (hasWifiAges) {
+            flags |= FLAG_HAS_WIFI_AGES;
+        }
+        out.writeByte(flags);
 
-        item.put(DataStorageContract.ReportsColumns.HEADING, mGpsPosition.getBearing());
-        item.put(DataStorageContract.ReportsColumns.SPEED,  mGpsPosition.getSpeed());
         if (mPressureHPA != 0.0) {
-            item.put(DataStorageContract.ReportsColumns.PRESSURE,  mPressureHPA);
+            out.writeFloat(mPressureHPA);
+        }
+        if (mGpsPosition.hasAccuracy()) {
+            out.writeInt((int) Math.ceil(mGpsPosition.getAccuracy()));
         }
+        if (mGpsPosition.hasAltitude()) {
+            out.writeLong(Math.round(mGpsPosition.getAltitude()));
+        }
+        out.writeByte(mPhoneType);
 
+        out.writeShort(mCellData.size());
+        for (CellInfo c : mCellData.values()) {
+            c.writeCompact(out);
+        }
 
-        if (mGpsPosition.hasAccuracy()) {
-            item.put(DataStorageContract.ReportsColumns.ACCURACY, (int) Math.ceil(mGpsPosition.getAccuracy()));
+        long gpsTimeSinceBootInMS = 0;
+        if (hasWifiAges) {
+            gpsTimeSinceBootInMS = mGpsPosition.getElapsedRealtimeNanos() / 1000000;
         }
 
-        if (mGpsPosition.hasAltitude()) {
-            item.put(DataStorageContract.ReportsColumns.ALTITUDE, Math.round(mGpsPosition.getAltitude()));
+        out.writeShort(wifis.size());
+        for (ScanResult s : wifis) {
+            final long bssid = bssidToLong(s.BSSID);
+            out.writeShort((int) (bssid >>> 32));
+            out.writeInt((int) bssid);
+            out.writeShort(s.frequency);
+            out.writeByte(Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, s.level)));
+
+            if (hasWifiAges) {
+                long wifiTimeSinceBootInMS = (s.timestamp / 1000);
+                out.writeInt((int) (wifiTimeSinceBootInMS - gpsTimeSinceBootInMS));
+            }
+        }
+    }
+
+    /* Read an observation written by writeCompact() as a report for the MLS submit API. */
+    public static JSONObject readCompactAsMLSJSON(DataInput in) throws IOException, JSONException {
+        JSONObject item = new JSONObject();
+
+        item.put(DataStorageContract.ReportsColumns.TIME, in.readLong());
+        item.put(DataStorageContract.ReportsColumns.LAT, in.readInt() / 1.0E6);
+        item.put(DataStorageContract.ReportsColumns.LON, in.readInt() / 1.0E6);
+
+        item.put(DataStorageContract.ReportsColumns.HEADING, in.readFloat());
+        item.put(DataStorageContract.ReportsColumns.SPEED, in.readFloat());
+
+        final int flags = in.readByte();
+        if ((flags & FLAG_HAS_PRESSURE) != 0) {
+            item.put(DataStorageContract.ReportsColumns.PRESSURE, in.readFloat());
+        }
+
+        if ((flags & FLAG_HAS_ACCURACY) != 0) {
+            item.put(DataStorageContract.ReportsColumns.ACCURACY, in.readInt());
+        }
+
+        if ((flags & FLAG_HAS_ALTITUDE) != 0) {
+            item.put(DataStorageContract.ReportsColumns.ALTITUDE, in.readLong());
         }
 
-        if (mPhoneType == TelephonyManager.PHONE_TYPE_GSM) {
+        final int phoneType = in.readByte();
+        if (phoneType == TelephonyManager.PHONE_TYPE_GSM) {
             item.put(DataStorageContract.ReportsColumns.RADIO, "gsm");
-        } else if (mPhoneType == TelephonyManager.PHONE_TYPE_CDMA) {
+        } else if (phoneType == TelephonyManager.PHONE_TYPE_CDMA) {
             item.put(DataStorageContract.ReportsColumns.RADIO, "cdma");
         } else {
             // issue #598. investigate this case further in future
@@ -143,32 +236,26 @@ public final class StumblerBundle implements Parcelable {
         }
 
         JSONArray cellJSON = new JSONArray();
-        for (CellInfo c : mCellData.values()) {
-            JSONObject obj = c.toJSONObject();
-            cellJSON.put(obj);
+        final int cellCount = in.readUnsignedShort();
+        for (int i = 0; i < cellCount; i++) {
+            cellJSON.put(CellInfo.readCompact(in).toJSONObject());
         }
 
         item.put(DataStorageContract.ReportsColumns.CELL, cellJSON);
         item.put(DataStorageContract.ReportsColumns.CELL_COUNT, cellJSON.length());
 
         JSONArray wifis = new JSONArray();
+        final int wifiCount = in.readUnsignedShort();
+        for (int i = 0; i < wifiCount; i++) {
+            final long bssid = ((long) in.readUnsignedShort() << 32) | (in.readInt() & 0xffffffffL);
 
-        long gpsTimeSinceBootInMS = 0;
-
-        if (Build.VERSION.SDK_INT >= 17) {
-            gpsTimeSinceBootInMS = mGpsPosition.getElapsedRealtimeNanos() / 1000000;
-        }
-
-        for (ScanResult s : mWifiData.values()) {
             JSONObject wifiEntry = new JSONObject();
-            wifiEntry.put("key", s.BSSID);
-            wifiEntry.put("frequency", s.frequency);
-            wifiEntry.put("signal", s.level);
+            wifiEntry.put("key", String.format(Locale.US, "%012x", bssid));
+            wifiEntry.put("frequency", in.readUnsignedShort());
+            wifiEntry.put("signal", in.readByte());
 
-            if (Build.VERSION.SDK_INT >= 17) {
-                long wifiTimeSinceBootInMS = (s.timestamp / 1000);
-                long ageMS =  wifiTimeSinceBootInMS - gpsTimeSinceBootInMS;
-                wifiEntry.put("age", ageMS);
+            if ((flags & FLAG_HAS_WIFI_AGES) != 0) {
+                wifiEntry.put("age", (long) in.readInt());
             }
 
             wifis.put(wifiEntry);
@@ -179,7 +266,6 @@ public final class StumblerBundle implements Parcelable {
         return item;
     }
 
-
     public void addPressure(float hPa) {
         mPressureHPA = hPa;
     }
@@ -18,6 +18,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.mozilla.mozstumbler.service.AppGlobals;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 public class CellInfo implements Parcelable {
     private static final String LOG_TAG = AppGlobals.makeLogTag(CellInfo.class.getSimpleName());
 
@@ -76,6 +80,24 @@ public class CellInfo implements Parcelable {
         mPsc = in.readInt();
     }
 
+    private CellInfo(DataInput in) throws IOException {
+        mRadio = in.readUTF();
+        mCellRadio = in.readUTF();
+        mMcc = in.readInt();
+        mMnc = in.readInt();
+        mCid = in.readInt();
+        mLac = in.readInt();
+        mSignal = in.readInt();
+        mAsu = in.readInt();
+        mTa = in.readInt();
+        mPsc = in.readInt();
+    }
+
+    /* Read a cell written by writeCompact(). */
+    public static CellInfo readCompact(DataInput in) throws IOException {
+        return new CellInfo(in);
+    }
+
     public boolean isCellRadioValid() {
         return mCellRadio != null && (mCellRadio.length() > 0) && !mCellRadio.equals("0");
     }
@@ -157,6 +179,20 @@ public class CellInfo implements Parcelable {
         dest.writeInt(mPsc);
     }
 
+    /* Write the cell for storage on disk, which unlike a Parcel has to stay readable across releases. */
+    public void writeCompact(DataOutput out) throws IOException {
+        out.writeUTF(mRadio);
+        out.writeUTF(mCellRadio);
+        out.writeInt(mMcc);
+        out.writeInt(mMnc);
+        out.writeInt(mCid);
+        out.writeInt(mLac);
+        out.writeInt(mSignal);
+        out.writeInt(mAsu);
+        out.writeInt(mTa);
+        out.writeInt(mPsc);
+    }
+
     void reset() {
         mRadio = RADIO_GSM;
         mCellRadio = CELL_RADIO_GSM;
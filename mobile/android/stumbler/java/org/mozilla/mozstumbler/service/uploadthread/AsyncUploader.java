@@ -127,10 +127,10 @@ public class AsyncUploader extends AsyncTask<Void, Void, SyncSummary> {
         }
 
         @Override
-        public NetworkSendResult cleanSend(byte[] data) {
+        public NetworkSendResult cleanSend(ZippedBody body) {
             final NetworkSendResult result = new NetworkSendResult();
             try {
-                result.bytesSent = this.send(data, ZippedState.eAlreadyZipped);
+                result.bytesSent = this.send(body);
                 result.errorCode = 0;
             } catch (IOException ex) {
                 String msg = "Error submitting: " + ex;
@@ -167,7 +167,7 @@ public class AsyncUploader extends AsyncTask<Void, Void, SyncSummary> {
         try {
             DataStorageManager.ReportBatch batch = dm.getFirstBatch();
             while (batch != null) {
-                AbstractCommunicator.NetworkSendResult result = submitter.cleanSend(batch.data);
+                AbstractCommunicator.NetworkSendResult result = submitter.cleanSend(batch);
 
                 if (result.errorCode == 0) {
                     syncResult.totalBytesSent += result.bytesSent;
@@ -178,11 +178,10 @@ public class AsyncUploader extends AsyncTask<Void, Void, SyncSummary> {
                     uploadedWifis += batch.wifiCount;
                     uploadedCells += batch.cellCount;
                 } else {
+                    // Otherwise the batch stays on disk, and is sent again next time.
                     if (result.errorCode / 100 == 4) {
                         // delete on 4xx, no point in resending
                         dm.delete(batch.filename);
-                    } else {
-                        DataStorageManager.getInstance().saveCurrentReportsSendBufferToDisk();
                     }
                     syncResult.numIoExceptions += 1;
                 }
@@ -11,6 +11,7 @@ import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.Prefs;
 
 import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -55,7 +56,13 @@ public abstract class AbstractCommunicator {
         public int errorCode = -1;
     }
 
-    public abstract NetworkSendResult cleanSend(byte[] data);
+    /* An upload body that writes itself, already gzipped, straight to the connection, so that it
+     * never has to be held in memory in full. */
+    public interface ZippedBody {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    public abstract NetworkSendResult cleanSend(ZippedBody body);
 
     public String getNickname() {
         return null;
@@ -105,6 +112,22 @@ public abstract class AbstractCommunicator {
         OutputStream out = new BufferedOutputStream(mHttpURLConnection.getOutputStream());
         out.write(data);
         out.flush();
+        checkResponseCode();
+    }
+
+    /* Return the number of bytes sent. */
+    private int sendData(ZippedBody body) throws IOException {
+        // The length isn't known up front.
+        mHttpURLConnection.setChunkedStreamingMode(0);
+        CountingOutputStream out = new CountingOutputStream(
+                new BufferedOutputStream(mHttpURLConnection.getOutputStream()));
+        body.writeTo(out);
+        out.flush();
+        checkResponseCode();
+        return out.mCount;
+    }
+
+    private void checkResponseCode() throws IOException {
         int code = mHttpURLConnection.getResponseCode();
         final boolean isSuccessCode2XX = (code/100 == 2);
         if (!isSuccessCode2XX) {
@@ -116,7 +139,6 @@ public abstract class AbstractCommunicator {
     /* Return the number of bytes sent. */
     public int send(byte[] data, ZippedState isAlreadyZipped) throws IOException {
         openConnectionAndSetHeaders();
-        String logMsg;
         try {
             if (isAlreadyZipped != ZippedState.eAlreadyZipped) {
                 data = zipData(data);
@@ -132,12 +154,31 @@ public abstract class AbstractCommunicator {
         } finally {
             close();
         }
-        sBytesSentTotal += data.length;
-        logMsg = "Send data: " + String.format("%.2f", data.length / 1024.0) + " kB";
+        logBytesSent(data.length);
+        return data.length;
+    }
+
+    /* Return the number of bytes sent. */
+    public int send(ZippedBody body) throws IOException {
+        openConnectionAndSetHeaders();
+        mHttpURLConnection.setRequestProperty("Content-Encoding","gzip");
+
+        final int bytesSent;
+        try {
+            bytesSent = sendData(body);
+        } finally {
+            close();
+        }
+        logBytesSent(bytesSent);
+        return bytesSent;
+    }
+
+    private void logBytesSent(int bytesSent) {
+        sBytesSentTotal += bytesSent;
+        String logMsg = "Send data: " + String.format("%.2f", bytesSent / 1024.0) + " kB";
         logMsg += " Session Total:" + String.format("%.2f", sBytesSentTotal / 1024.0) + " kB";
         AppGlobals.guiLogInfo(logMsg, "#FFFFCC", true);
         Log.d(LOG_TAG, logMsg);
-        return data.length;
     }
 
     public InputStream getInputStream() {
@@ -155,4 +196,24 @@ public abstract class AbstractCommunicator {
         mHttpURLConnection.disconnect();
         mHttpURLConnection = null;
     }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        int mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
 }